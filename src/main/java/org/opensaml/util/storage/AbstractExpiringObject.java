@@ -37,14 +37,32 @@ public abstract class AbstractExpiringObject implements ExpiringObject, Serializ
         expiration = expirationTime.toDateTime(ISOChronology.getInstanceUTC()).getMillis();
     }
 
+    /**
+     * Constructor.
+     * 
+     * @param expirationMillis time this object should expire, in milliseconds since the epoch
+     */
+    public AbstractExpiringObject(long expirationMillis) {
+        expiration = expirationMillis;
+    }
+
     /** {@inheritDoc} */
     public DateTime getExpirationTime() {
         return new DateTime(expiration, ISOChronology.getInstanceUTC());
     }
 
+    /**
+     * Gets the time the object expires, in milliseconds since the epoch.
+     * 
+     * @return time the object expires
+     */
+    public long getExpirationMillis() {
+        return expiration;
+    }
+
     /** {@inheritDoc} */
     public boolean isExpired() {
-        return getExpirationTime().isBeforeNow();
+        return expiration < System.currentTimeMillis();
     }
 
     /** {@inheritDoc} */
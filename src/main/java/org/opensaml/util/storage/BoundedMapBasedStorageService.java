@@ -0,0 +1,673 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.util.storage;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link MapBasedStorageService} whose partitions hold at most a fixed number of entries.
+ * 
+ * Each partition is split into up to {@value #MAX_SEGMENTS} segments, selected by key hash, each holding at least
+ * {@value #MIN_SEGMENT_CAPACITY} entries and an equal share of the partition's capacity. Operations on a segment are
+ * serialized on that segment only, so operations on different keys mostly proceed concurrently. When a put would take
+ * a segment over its capacity, expired entries are evicted first; if the segment holds none, its least recently used
+ * entry is evicted. Least recently used order is therefore tracked per segment, and a segment may fill up before the
+ * partition as a whole does. Partitions smaller than twice {@value #MIN_SEGMENT_CAPACITY} entries have a single
+ * segment. Replay cache entries are written once and only read again when a replay is attempted, so for them least
+ * recently used is, in practice, the entry closest to its expiration, which is the cheapest entry to lose.
+ * 
+ * Evicting an {@link ExpiringObject} that has not yet expired weakens whatever the entry protects: for a
+ * {@link ReplayCache} a replay of that message during the rest of its lifetime will no longer be detected. The
+ * behavior is chosen at construction time:
+ * <ul>
+ * <li>by default the entry is evicted anyway, so the store fails open, keeps accepting messages and counts the
+ * eviction in {@link PartitionStatistics#getUnexpiredEvictionCount()} so operators can size the partition;</li>
+ * <li>otherwise the put fails with an {@link IllegalStateException}, so the store fails closed and a replay cache
+ * rejects new messages until entries expire.</li>
+ * </ul>
+ * Values that do not implement {@link ExpiringObject} never expire and are always counted as unexpired evictions.
+ * 
+ * Each partition keeps hit, miss, and eviction counters, available through {@link #getStatistics(String)}. Both
+ * reads and put-if-absent operations count as lookups, so the hit rate of a {@link ReplayCache} partition is the rate
+ * of detected replays. Partition key iterators work on a snapshot of the keys taken when the iterator is created.
+ * 
+ * @param <KeyType> object type of the keys
+ * @param <ValueType> object type of the values
+ */
+public class BoundedMapBasedStorageService<KeyType, ValueType> extends MapBasedStorageService<KeyType, ValueType> {
+
+    /** Maximum number of segments of a partition. */
+    public static final int MAX_SEGMENTS = 16;
+
+    /** Minimum capacity of a segment of a partition split into several segments. */
+    public static final int MIN_SEGMENT_CAPACITY = 64;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(BoundedMapBasedStorageService.class);
+
+    /** Capacity of partitions without a specific capacity. */
+    private final int defaultCapacity;
+
+    /** Whether unexpired entries may be evicted to make room for new entries. */
+    private final boolean evictUnexpired;
+
+    /** Partition specific capacities. */
+    private final Map<String, Integer> partitionCapacities;
+
+    /**
+     * Constructor. Unexpired entries are evicted when a partition is full.
+     * 
+     * @param capacity maximum number of entries held by each partition
+     */
+    public BoundedMapBasedStorageService(int capacity) {
+        this(capacity, true);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param capacity maximum number of entries held by each partition
+     * @param evictUnexpiredEntries whether unexpired entries may be evicted when a partition is full; if false a put
+     *            into a full partition segment holding no expired entries fails
+     */
+    public BoundedMapBasedStorageService(int capacity, boolean evictUnexpiredEntries) {
+        super();
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Partition capacity must be greater than zero");
+        }
+        defaultCapacity = capacity;
+        evictUnexpired = evictUnexpiredEntries;
+        partitionCapacities = new ConcurrentHashMap<String, Integer>();
+    }
+
+    /**
+     * Sets the capacity of a given partition. Only affects partitions created after this call.
+     * 
+     * @param partition name of the partition
+     * @param capacity maximum number of entries held by the partition
+     */
+    public void setPartitionCapacity(String partition, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Partition capacity must be greater than zero");
+        }
+        partitionCapacities.put(partition, capacity);
+    }
+
+    /**
+     * Gets a snapshot of the statistics of a partition.
+     * 
+     * @param partition name of the partition
+     * 
+     * @return statistics of the partition, or null if the partition does not exist
+     */
+    public PartitionStatistics getStatistics(String partition) {
+        Map<KeyType, ValueType> partitionMap = getPartitionMap(partition);
+        if (partitionMap instanceof BoundedPartitionMap) {
+            return ((BoundedPartitionMap<KeyType, ValueType>) partitionMap).getStatistics();
+        }
+
+        return null;
+    }
+
+    /** {@inheritDoc} */
+    protected Map<KeyType, ValueType> createPartitionMap(String partition) {
+        Integer capacity = partitionCapacities.get(partition);
+        if (capacity == null) {
+            capacity = defaultCapacity;
+        }
+        log.debug("Creating storage service partition {} with capacity {}", partition, capacity);
+        return new BoundedPartitionMap<KeyType, ValueType>(partition, capacity, evictUnexpired);
+    }
+
+    /** A point in time view of the usage of a partition. */
+    public static class PartitionStatistics {
+
+        /** Number of entries in the partition. */
+        private final int size;
+
+        /** Maximum number of entries held by the partition. */
+        private final int capacity;
+
+        /** Number of lookups that found an unexpired entry. */
+        private final long hitCount;
+
+        /** Number of lookups that found no unexpired entry. */
+        private final long missCount;
+
+        /** Number of entries evicted to make room for new ones. */
+        private final long evictionCount;
+
+        /** Number of evicted entries that had not yet expired. */
+        private final long unexpiredEvictionCount;
+
+        /**
+         * Constructor.
+         * 
+         * @param currentSize number of entries in the partition
+         * @param maxSize maximum number of entries held by the partition
+         * @param hits number of lookups that found an unexpired entry
+         * @param misses number of lookups that found no unexpired entry
+         * @param evictions number of entries evicted to make room for new ones
+         * @param unexpiredEvictions number of evicted entries that had not yet expired
+         */
+        public PartitionStatistics(int currentSize, int maxSize, long hits, long misses, long evictions,
+                long unexpiredEvictions) {
+            size = currentSize;
+            capacity = maxSize;
+            hitCount = hits;
+            missCount = misses;
+            evictionCount = evictions;
+            unexpiredEvictionCount = unexpiredEvictions;
+        }
+
+        /**
+         * Gets the number of entries in the partition.
+         * 
+         * @return number of entries in the partition
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * Gets the maximum number of entries held by the partition.
+         * 
+         * @return maximum number of entries held by the partition
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * Gets the number of lookups that found an unexpired entry.
+         * 
+         * @return number of lookups that found an unexpired entry
+         */
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        /**
+         * Gets the number of lookups that found no unexpired entry.
+         * 
+         * @return number of lookups that found no unexpired entry
+         */
+        public long getMissCount() {
+            return missCount;
+        }
+
+        /**
+         * Gets the fraction of lookups that found an unexpired entry.
+         * 
+         * @return fraction of lookups that found an unexpired entry, or 0 if there have been no lookups
+         */
+        public double getHitRate() {
+            long lookups = hitCount + missCount;
+            if (lookups == 0) {
+                return 0;
+            }
+            return (double) hitCount / lookups;
+        }
+
+        /**
+         * Gets the number of entries evicted to make room for new ones.
+         * 
+         * @return number of entries evicted to make room for new ones
+         */
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        /**
+         * Gets the number of evicted entries that had not yet expired.
+         * 
+         * @return number of evicted entries that had not yet expired
+         */
+        public long getUnexpiredEvictionCount() {
+            return unexpiredEvictionCount;
+        }
+    }
+
+    /**
+     * A partition map holding at most a fixed number of entries, split into segments each holding a share of the
+     * entries in access order. Operations are serialized on the segment holding the key.
+     * 
+     * @param <KeyType> object type of the keys
+     * @param <ValueType> object type of the values
+     */
+    private static class BoundedPartitionMap<KeyType, ValueType> extends AbstractMap<KeyType, ValueType> implements
+            ConcurrentMap<KeyType, ValueType> {
+
+        /** Maximum number of entries. */
+        private final int capacity;
+
+        /** Segments of the map. */
+        private final Segment<KeyType, ValueType>[] segments;
+
+        /**
+         * Constructor.
+         * 
+         * @param partitionName name of the partition
+         * @param maxSize maximum number of entries
+         * @param evictUnexpiredEntries whether unexpired entries may be evicted
+         */
+        public BoundedPartitionMap(String partitionName, int maxSize, boolean evictUnexpiredEntries) {
+            capacity = maxSize;
+            int segmentCount = 1;
+            while (segmentCount < MAX_SEGMENTS && maxSize / (segmentCount * 2) >= MIN_SEGMENT_CAPACITY) {
+                segmentCount *= 2;
+            }
+            @SuppressWarnings("unchecked")
+            Segment<KeyType, ValueType>[] newSegments = (Segment<KeyType, ValueType>[]) new Segment<?, ?>[segmentCount];
+            segments = newSegments;
+            for (int i = 0; i < segmentCount; i++) {
+                segments[i] = new Segment<KeyType, ValueType>(partitionName, maxSize / segmentCount
+                        + (i < maxSize % segmentCount ? 1 : 0), evictUnexpiredEntries);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public boolean containsKey(Object key) {
+            Segment<KeyType, ValueType> segment = segmentFor(key);
+            synchronized (segment) {
+                return segment.entries.containsKey(key);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public ValueType get(Object key) {
+            Segment<KeyType, ValueType> segment = segmentFor(key);
+            synchronized (segment) {
+                ValueType value = segment.entries.get(key);
+                if (value == null || Segment.isExpired(value)) {
+                    segment.misses++;
+                } else {
+                    segment.hits++;
+                }
+                return value;
+            }
+        }
+
+        /** {@inheritDoc} */
+        public ValueType put(KeyType key, ValueType value) {
+            Segment<KeyType, ValueType> segment = segmentFor(key);
+            synchronized (segment) {
+                if (!segment.entries.containsKey(key)) {
+                    segment.makeRoom();
+                }
+                segment.recordExpiration(value);
+                return segment.entries.put(key, value);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public ValueType putIfAbsent(KeyType key, ValueType value) {
+            Segment<KeyType, ValueType> segment = segmentFor(key);
+            synchronized (segment) {
+                ValueType existing = segment.entries.get(key);
+                if (existing != null) {
+                    // an expired entry is replaced by the caller, so only an unexpired one counts as a hit
+                    if (Segment.isExpired(existing)) {
+                        segment.misses++;
+                    } else {
+                        segment.hits++;
+                    }
+                    return existing;
+                }
+                segment.misses++;
+                segment.makeRoom();
+                segment.recordExpiration(value);
+                segment.entries.put(key, value);
+                return null;
+            }
+        }
+
+        /** {@inheritDoc} */
+        public ValueType remove(Object key) {
+            Segment<KeyType, ValueType> segment = segmentFor(key);
+            synchronized (segment) {
+                return segment.entries.remove(key);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public boolean remove(Object key, Object value) {
+            Segment<KeyType, ValueType> segment = segmentFor(key);
+            synchronized (segment) {
+                ValueType existing = segment.entries.get(key);
+                if (existing == null || !existing.equals(value)) {
+                    return false;
+                }
+                segment.entries.remove(key);
+                return true;
+            }
+        }
+
+        /** {@inheritDoc} */
+        public boolean replace(KeyType key, ValueType oldValue, ValueType newValue) {
+            Segment<KeyType, ValueType> segment = segmentFor(key);
+            synchronized (segment) {
+                ValueType existing = segment.entries.get(key);
+                if (existing == null || !existing.equals(oldValue)) {
+                    return false;
+                }
+                segment.recordExpiration(newValue);
+                segment.entries.put(key, newValue);
+                return true;
+            }
+        }
+
+        /** {@inheritDoc} */
+        public ValueType replace(KeyType key, ValueType value) {
+            Segment<KeyType, ValueType> segment = segmentFor(key);
+            synchronized (segment) {
+                if (!segment.entries.containsKey(key)) {
+                    return null;
+                }
+                segment.recordExpiration(value);
+                return segment.entries.put(key, value);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public int size() {
+            int size = 0;
+            for (Segment<KeyType, ValueType> segment : segments) {
+                synchronized (segment) {
+                    size += segment.entries.size();
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Gets a snapshot of the keys. Removing a key through the snapshot's iterator removes it from the map.
+         * 
+         * @return snapshot of the keys
+         */
+        public Set<KeyType> keySet() {
+            final List<KeyType> snapshot = new ArrayList<KeyType>();
+            for (Segment<KeyType, ValueType> segment : segments) {
+                synchronized (segment) {
+                    snapshot.addAll(segment.entries.keySet());
+                }
+            }
+
+            return new AbstractSet<KeyType>() {
+                public Iterator<KeyType> iterator() {
+                    final Iterator<KeyType> keys = snapshot.iterator();
+                    return new Iterator<KeyType>() {
+                        private KeyType current;
+
+                        public boolean hasNext() {
+                            return keys.hasNext();
+                        }
+
+                        public KeyType next() {
+                            current = keys.next();
+                            return current;
+                        }
+
+                        public void remove() {
+                            BoundedPartitionMap.this.remove(current);
+                        }
+                    };
+                }
+
+                public int size() {
+                    return snapshot.size();
+                }
+            };
+        }
+
+        /**
+         * Gets an unmodifiable snapshot of the entries.
+         * 
+         * @return snapshot of the entries
+         */
+        public Set<Map.Entry<KeyType, ValueType>> entrySet() {
+            final List<Map.Entry<KeyType, ValueType>> snapshot = new ArrayList<Map.Entry<KeyType, ValueType>>();
+            for (Segment<KeyType, ValueType> segment : segments) {
+                synchronized (segment) {
+                    for (Map.Entry<KeyType, ValueType> entry : segment.entries.entrySet()) {
+                        snapshot.add(new AbstractMap.SimpleImmutableEntry<KeyType, ValueType>(entry));
+                    }
+                }
+            }
+
+            return new AbstractSet<Map.Entry<KeyType, ValueType>>() {
+                public Iterator<Map.Entry<KeyType, ValueType>> iterator() {
+                    return Collections.unmodifiableList(snapshot).iterator();
+                }
+
+                public int size() {
+                    return snapshot.size();
+                }
+            };
+        }
+
+        /**
+         * Gets a snapshot of the statistics of this partition.
+         * 
+         * @return statistics of this partition
+         */
+        public PartitionStatistics getStatistics() {
+            int size = 0;
+            long hits = 0;
+            long misses = 0;
+            long evictions = 0;
+            long unexpiredEvictions = 0;
+            for (Segment<KeyType, ValueType> segment : segments) {
+                synchronized (segment) {
+                    size += segment.entries.size();
+                    hits += segment.hits;
+                    misses += segment.misses;
+                    evictions += segment.evictions;
+                    unexpiredEvictions += segment.unexpiredEvictions;
+                }
+            }
+            return new PartitionStatistics(size, capacity, hits, misses, evictions, unexpiredEvictions);
+        }
+
+        /**
+         * Gets the segment holding a key.
+         * 
+         * @param key the key
+         * 
+         * @return the segment holding the key
+         */
+        private Segment<KeyType, ValueType> segmentFor(Object key) {
+            if (segments.length == 1) {
+                return segments[0];
+            }
+            int h = key.hashCode();
+            h ^= (h >>> 20) ^ (h >>> 12);
+            h ^= (h >>> 7) ^ (h >>> 4);
+            return segments[h & (segments.length - 1)];
+        }
+    }
+
+    /**
+     * A segment of a partition map holding at most a fixed number of entries in access order. All fields are guarded
+     * by the segment's monitor.
+     * 
+     * @param <KeyType> object type of the keys
+     * @param <ValueType> object type of the values
+     */
+    private static class Segment<KeyType, ValueType> {
+
+        /** Class logger. */
+        private final Logger log = LoggerFactory.getLogger(Segment.class);
+
+        /** Name of the partition. */
+        private final String partition;
+
+        /** Entries, least recently used first. */
+        private final LinkedHashMap<KeyType, ValueType> entries;
+
+        /** Maximum number of entries. */
+        private final int capacity;
+
+        /** Whether unexpired entries may be evicted. */
+        private final boolean evictUnexpired;
+
+        /** Earliest expiration, in milliseconds since the epoch, of the entries which may have expired. */
+        private long earliestExpiration;
+
+        /** Number of reads and put-if-absent operations that found an unexpired entry. */
+        private long hits;
+
+        /** Number of reads and put-if-absent operations that found no entry, or an expired one. */
+        private long misses;
+
+        /** Number of evicted entries. */
+        private long evictions;
+
+        /** Number of evicted entries that had not yet expired. */
+        private long unexpiredEvictions;
+
+        /**
+         * Constructor.
+         * 
+         * @param partitionName name of the partition
+         * @param maxSize maximum number of entries
+         * @param evictUnexpiredEntries whether unexpired entries may be evicted
+         */
+        public Segment(String partitionName, int maxSize, boolean evictUnexpiredEntries) {
+            partition = partitionName;
+            capacity = maxSize;
+            evictUnexpired = evictUnexpiredEntries;
+            entries = new LinkedHashMap<KeyType, ValueType>(16, 0.75f, true);
+            earliestExpiration = Long.MAX_VALUE;
+        }
+
+        /**
+         * Notes the expiration of a value about to be stored, so that a later sweep for expired entries is not
+         * skipped. Must be called while holding this segment's monitor.
+         * 
+         * @param value the value
+         */
+        private void recordExpiration(ValueType value) {
+            if (value instanceof ExpiringObject) {
+                earliestExpiration = Math.min(earliestExpiration, getExpirationMillis((ExpiringObject) value));
+            }
+        }
+
+        /**
+         * Makes room for a new entry if the segment is full. The least recently used entry is evicted if it has
+         * expired; otherwise every expired entry is evicted and, if there were none, the least recently used entry is
+         * evicted anyway or, if unexpired entries may not be evicted, the put is rejected. Must be called while holding
+         * this segment's monitor.
+         */
+        private void makeRoom() {
+            if (entries.size() < capacity) {
+                return;
+            }
+
+            Iterator<Map.Entry<KeyType, ValueType>> eldestEntries = entries.entrySet().iterator();
+            if (!eldestEntries.hasNext()) {
+                return;
+            }
+            if (isExpired(eldestEntries.next().getValue())) {
+                eldestEntries.remove();
+                evictions++;
+                return;
+            }
+
+            if (earliestExpiration < System.currentTimeMillis() && evictExpired() > 0) {
+                return;
+            }
+
+            if (!evictUnexpired) {
+                throw new IllegalStateException("Storage service partition " + partition + " is full, " + capacity
+                        + " unexpired entries");
+            }
+            unexpiredEvictions++;
+            log.debug("Evicting unexpired entry from full storage service partition {}", partition);
+            eldestEntries = entries.entrySet().iterator();
+            eldestEntries.next();
+            eldestEntries.remove();
+            evictions++;
+        }
+
+        /**
+         * Evicts every expired entry and recomputes the earliest expiration of the remaining entries. Must be called
+         * while holding this segment's monitor.
+         * 
+         * @return number of entries evicted
+         */
+        private int evictExpired() {
+            int evicted = 0;
+            long earliest = Long.MAX_VALUE;
+            ValueType value;
+            Iterator<ValueType> values = entries.values().iterator();
+            while (values.hasNext()) {
+                value = values.next();
+                if (isExpired(value)) {
+                    values.remove();
+                    evicted++;
+                } else if (value instanceof ExpiringObject) {
+                    earliest = Math.min(earliest, getExpirationMillis((ExpiringObject) value));
+                }
+            }
+            earliestExpiration = earliest;
+            evictions += evicted;
+            log.debug("Evicted {} expired entries from full storage service partition {}", evicted, partition);
+            return evicted;
+        }
+
+        /**
+         * Checks whether a stored value is an {@link ExpiringObject} that has expired.
+         * 
+         * @param value the stored value
+         * 
+         * @return true if the value has expired
+         */
+        private static boolean isExpired(Object value) {
+            return value instanceof ExpiringObject && ((ExpiringObject) value).isExpired();
+        }
+
+        /**
+         * Gets the expiration instant of a value, avoiding the {@link org.joda.time.DateTime} allocation for values
+         * that extend {@link AbstractExpiringObject}.
+         * 
+         * @param value the value
+         * 
+         * @return the expiration instant in milliseconds since the epoch
+         */
+        private static long getExpirationMillis(ExpiringObject value) {
+            if (value instanceof AbstractExpiringObject) {
+                return ((AbstractExpiringObject) value).getExpirationMillis();
+            }
+            return value.getExpirationTime().getMillis();
+        }
+    }
+}
@@ -17,7 +17,10 @@
 
 package org.opensaml.util.storage;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -27,9 +30,19 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A simple task that periodically sweeps over a {@link StorageService} and removes expired entries.
+ * 
+ * Keys are read in batches through {@link StorageService#getAll(String, java.util.Collection)}. Each expired value
+ * is then removed with {@link StorageService#remove(String, Object, Object)}, which only removes it if it is still
+ * the value stored under its key; a value replaced since the batch was read, for instance by a replay cache reusing
+ * the key of an expired entry, is left in place. Stores that index their entries by expiration time,
+ * such as {@link TimeBucketedStorageService}, are asked to evict their expired entries directly rather than being
+ * scanned key by key.
  */
 public class ExpiringObjectStorageServiceSweeper extends TimerTask {
 
+    /** Number of keys read and removed with each batch call to the storage service. */
+    static final int SWEEP_BATCH_SIZE = 256;
+
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(ExpiringObjectStorageServiceSweeper.class);
 
@@ -88,24 +101,25 @@ public class ExpiringObjectStorageServiceSweeper extends TimerTask {
 
             String currentParition;
             Iterator<?> partitionKeys;
-            Object partitionKey;
-            Object partitionValue;
+            List<Object> keyBatch = new ArrayList<Object>(SWEEP_BATCH_SIZE);
             while (sweepPartitions.hasNext()) {
                 currentParition = sweepPartitions.next();
                 log.trace("Sweeping storage service partition {}", currentParition);
+                if (store instanceof TimeBucketedStorageService) {
+                    ((TimeBucketedStorageService) store).evictExpired(currentParition);
+                    continue;
+                }
+
                 partitionKeys = store.getKeys(currentParition);
                 if (partitionKeys == null) {
                     continue;
                 }
 
                 while (partitionKeys.hasNext()) {
-                    partitionKey = partitionKeys.next();
-                    partitionValue = store.get(currentParition, partitionKey);
-                    if (partitionValue instanceof ExpiringObject) {
-                        if (((ExpiringObject) partitionValue).isExpired()) {
-                            log.trace("Removing expired object from storage service partition {}", currentParition);
-                            partitionKeys.remove();
-                        }
+                    keyBatch.add(partitionKeys.next());
+                    if (keyBatch.size() == SWEEP_BATCH_SIZE || !partitionKeys.hasNext()) {
+                        removeExpired(store, currentParition, keyBatch);
+                        keyBatch.clear();
                     }
                 }
             }
@@ -113,4 +127,27 @@ public class ExpiringObjectStorageServiceSweeper extends TimerTask {
             log.error("Caught unexpected error, sweeper will execute again in " + sweepInterval + "ms", t);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Removes the expired entries among a batch of keys, reading the batch with one call. Only the exact expired values
+     * read are removed.
+     * 
+     * @param store storage service being swept
+     * @param partition partition being swept
+     * @param keys batch of keys to check
+     * 
+     * @return number of entries removed
+     */
+    @SuppressWarnings("unchecked")
+    static int removeExpired(StorageService store, String partition, List<Object> keys) {
+        Map<Object, Object> values = store.getAll(partition, keys);
+        int removed = 0;
+        for (Map.Entry<Object, Object> value : values.entrySet()) {
+            if (value.getValue() instanceof ExpiringObject && ((ExpiringObject) value.getValue()).isExpired()
+                    && store.remove(partition, value.getKey(), value.getValue())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+}
@@ -17,10 +17,13 @@
 
 package org.opensaml.util.storage;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A simple {@link Map} based {@link StorageService} implementation.
@@ -33,9 +36,13 @@ public class MapBasedStorageService<KeyType, ValueType> implements StorageServic
     /** Backing map. */
     private Map<String, Map<KeyType, ValueType>> store;
 
+    /** Backing map as a {@link ConcurrentMap}, or null if the backing map does not support atomic operations. */
+    private ConcurrentMap<String, Map<KeyType, ValueType>> concurrentStore;
+
     /** Constructor. */
     public MapBasedStorageService() {
-        store = new ConcurrentHashMap<String, Map<KeyType, ValueType>>();
+        concurrentStore = new ConcurrentHashMap<String, Map<KeyType, ValueType>>();
+        store = concurrentStore;
     }
 
     /**
@@ -43,8 +50,12 @@ public class MapBasedStorageService<KeyType, ValueType> implements StorageServic
      * 
      * @param serviceStore the map to use as storage
      */
+    @SuppressWarnings("unchecked")
     protected MapBasedStorageService(Map<String, Map<KeyType, ValueType>> serviceStore) {
         store = serviceStore;
+        if (serviceStore instanceof ConcurrentMap) {
+            concurrentStore = (ConcurrentMap<String, Map<KeyType, ValueType>>) serviceStore;
+        }
     }
 
     /** {@inheritDoc} */
@@ -59,8 +70,9 @@ public class MapBasedStorageService<KeyType, ValueType> implements StorageServic
 
     /** {@inheritDoc} */
     public Iterator<KeyType> getKeys(String partition) {
-        if (store.containsKey(partition)) {
-            Set<KeyType> keys = store.get(partition).keySet();
+        Map<KeyType, ValueType> partitionMap = store.get(partition);
+        if (partitionMap != null) {
+            Set<KeyType> keys = partitionMap.keySet();
             if (keys != null) {
                 return keys.iterator();
             }
@@ -75,8 +87,9 @@ public class MapBasedStorageService<KeyType, ValueType> implements StorageServic
             return false;
         }
 
-        if (store.containsKey(partition)) {
-            return store.get(partition).containsKey(key);
+        Map<KeyType, ValueType> partitionMap = store.get(partition);
+        if (partitionMap != null) {
+            return partitionMap.containsKey(key);
         }
 
         return false;
@@ -88,8 +101,9 @@ public class MapBasedStorageService<KeyType, ValueType> implements StorageServic
             return null;
         }
 
-        if (store.containsKey(partition)) {
-            return store.get(partition).get(key);
+        Map<KeyType, ValueType> partitionMap = store.get(partition);
+        if (partitionMap != null) {
+            return partitionMap.get(key);
         }
 
         return null;
@@ -101,28 +115,196 @@ public class MapBasedStorageService<KeyType, ValueType> implements StorageServic
             return null;
         }
 
-        Map<KeyType, ValueType> partitionMap;
-        synchronized (store) {
-            partitionMap = store.get(partition);
-            if (partitionMap == null) {
-                partitionMap = new ConcurrentHashMap<KeyType, ValueType>();
+        return getOrCreatePartitionMap(partition).put(key, value);
+    }
+
+    /** {@inheritDoc} */
+    public ValueType remove(String partition, KeyType key) {
+        if (key == null) {
+            return null;
+        }
+
+        Map<KeyType, ValueType> partitionMap = store.get(partition);
+        if (partitionMap != null) {
+            return partitionMap.remove(key);
+        }
+
+        return null;
+    }
+
+    /** {@inheritDoc} */
+    public boolean remove(String partition, KeyType key, ValueType value) {
+        if (key == null || value == null) {
+            return false;
+        }
+
+        Map<KeyType, ValueType> partitionMap = store.get(partition);
+        if (partitionMap == null) {
+            return false;
+        }
+        if (partitionMap instanceof ConcurrentMap) {
+            return ((ConcurrentMap<KeyType, ValueType>) partitionMap).remove(key, value);
+        }
+
+        synchronized (partitionMap) {
+            if (value.equals(partitionMap.get(key))) {
+                partitionMap.remove(key);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public Map<KeyType, ValueType> getAll(String partition, Collection<KeyType> keys) {
+        Map<KeyType, ValueType> values = new HashMap<KeyType, ValueType>();
+        Map<KeyType, ValueType> partitionMap = store.get(partition);
+        if (partitionMap == null || keys == null) {
+            return values;
+        }
+
+        ValueType value;
+        for (KeyType key : keys) {
+            if (key != null) {
+                value = partitionMap.get(key);
+                if (value != null) {
+                    values.put(key, value);
+                }
             }
-            store.put(partition, partitionMap);
+        }
+        return values;
+    }
+
+    /** {@inheritDoc} */
+    public void putAll(String partition, Map<KeyType, ValueType> entries) {
+        if (entries == null || entries.isEmpty()) {
+            return;
         }
 
-        return partitionMap.put(key, value);
+        Map<KeyType, ValueType> partitionMap = getOrCreatePartitionMap(partition);
+        for (Map.Entry<KeyType, ValueType> entry : entries.entrySet()) {
+            if (entry.getKey() != null) {
+                partitionMap.put(entry.getKey(), entry.getValue());
+            }
+        }
     }
 
     /** {@inheritDoc} */
-    public ValueType remove(String partition, KeyType key) {
+    public void removeAll(String partition, Collection<KeyType> keys) {
+        Map<KeyType, ValueType> partitionMap = store.get(partition);
+        if (partitionMap == null || keys == null) {
+            return;
+        }
+
+        for (KeyType key : keys) {
+            if (key != null) {
+                partitionMap.remove(key);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The time to live is ignored, values are only removed when explicitly removed or swept.
+     */
+    public ValueType putIfAbsent(String partition, KeyType key, ValueType value, long ttl) {
         if (key == null) {
             return null;
         }
 
-        if (store.containsKey(partition)) {
-            return store.get(partition).remove(key);
+        Map<KeyType, ValueType> partitionMap = getOrCreatePartitionMap(partition);
+        ValueType existing;
+        if (partitionMap instanceof ConcurrentMap) {
+            ConcurrentMap<KeyType, ValueType> concurrentPartition = (ConcurrentMap<KeyType, ValueType>) partitionMap;
+            while (true) {
+                existing = concurrentPartition.putIfAbsent(key, value);
+                if (existing == null) {
+                    return null;
+                }
+                if (!isExpired(existing)) {
+                    return existing;
+                }
+                if (concurrentPartition.replace(key, existing, value)) {
+                    return null;
+                }
+            }
         }
 
-        return null;
+        synchronized (partitionMap) {
+            existing = partitionMap.get(key);
+            if (existing != null && !isExpired(existing)) {
+                return existing;
+            }
+            partitionMap.put(key, value);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the map holding the entries of a partition, creating the partition if it does not exist. Existing
+     * partitions are found without locking. If the backing map is a {@link ConcurrentMap} a new partition is added
+     * with an atomic put-if-absent, otherwise creation is synchronized on the backing map.
+     * 
+     * @param partition name of the partition
+     * 
+     * @return map holding the entries of the partition
+     */
+    protected Map<KeyType, ValueType> getOrCreatePartitionMap(String partition) {
+        Map<KeyType, ValueType> partitionMap = store.get(partition);
+        if (partitionMap != null) {
+            return partitionMap;
+        }
+
+        if (concurrentStore != null) {
+            partitionMap = createPartitionMap(partition);
+            Map<KeyType, ValueType> existing = concurrentStore.putIfAbsent(partition, partitionMap);
+            return existing != null ? existing : partitionMap;
+        }
+
+        synchronized (store) {
+            partitionMap = store.get(partition);
+            if (partitionMap == null) {
+                partitionMap = createPartitionMap(partition);
+                store.put(partition, partitionMap);
+            }
+            return partitionMap;
+        }
+    }
+
+    /**
+     * Creates the map holding the entries of a new partition. The returned map must be safe for concurrent use; if it
+     * is not a {@link ConcurrentMap} its own monitor must guard its operations, as is the case for maps returned by
+     * {@link java.util.Collections#synchronizedMap(Map)}. When two threads create the same partition concurrently this
+     * may be called by both, only one of the maps is kept.
+     * 
+     * @param partition name of the partition
+     * 
+     * @return map holding the entries of the partition
+     */
+    protected Map<KeyType, ValueType> createPartitionMap(String partition) {
+        return new ConcurrentHashMap<KeyType, ValueType>();
+    }
+
+    /**
+     * Gets the map holding the entries of a partition.
+     * 
+     * @param partition name of the partition
+     * 
+     * @return map holding the entries of the partition, or null if the partition does not exist
+     */
+    protected Map<KeyType, ValueType> getPartitionMap(String partition) {
+        return store.get(partition);
+    }
+
+    /**
+     * Checks whether a stored value is an {@link ExpiringObject} that has expired.
+     * 
+     * @param value the stored value
+     * 
+     * @return true if the value has expired
+     */
+    private static boolean isExpired(Object value) {
+        return value instanceof ExpiringObject && ((ExpiringObject) value).isExpired();
     }
 }
\ No newline at end of file
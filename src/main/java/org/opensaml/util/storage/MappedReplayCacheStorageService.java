@@ -0,0 +1,981 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opensaml.util.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link StorageService} for {@link ReplayCacheEntry} objects backed by a fixed-size, open-addressing hash table
+ * held outside of the Java heap, either in a memory-mapped file or in a direct buffer.
+ * 
+ * Each entry occupies a 16 byte slot holding a 64-bit hash of the partition and key followed by the entry's
+ * expiration instant in milliseconds since the epoch. Keys themselves are not retained. As a consequence:
+ * <ul>
+ * <li>{@link #get(String, String)} returns a new {@link ReplayCacheEntry} carrying the requested key;</li>
+ * <li>{@link #getKeys(String)} returns null, keys can not be enumerated, so the store is not swept; instead each
+ * insertion reclaims the expired entries among the next {@value #RECLAIM_STEP} slots of a cursor cycling through its
+ * segment, and reuses expired slots on its own probe path;</li>
+ * <li>two distinct keys whose hashes collide are treated as the same entry, which can only cause a message to be
+ * reported as a replay, never the reverse.</li>
+ * </ul>
+ * 
+ * The table is divided into up to {@value #MAX_SEGMENTS} segments of at least {@value #MIN_SEGMENT_CAPACITY} slots,
+ * each an independent hash table guarded by its own lock, and a key is always stored in the segment selected by its
+ * hash. Operations on keys of different segments therefore do not contend, so replay checks scale with the number of
+ * threads much as they do with the lock striping of {@link ReplayCache}. Operations spanning several keys lock one
+ * segment at a time and so are not atomic as a whole.
+ * 
+ * When backed by a file the table is written through the memory mapping, so entries written before a process restart
+ * are visible to the next instance opening the same file. The file consists of a {@value #HEADER_SIZE} byte header
+ * (magic number, format version, slot count, segment count), the occupied slot count of each segment, padded to
+ * {@value #SEGMENT_COUNTS_SIZE} bytes, and the slots, and is loaded by mapping it rather than reading it. Files of the
+ * first format version, which have a single occupied slot count and no segments, are still loaded, as a single
+ * segment. The file is locked for the lifetime of the instance, so a second instance, in this or another process, can
+ * not open it.
+ * 
+ * The table does not grow; capacity should be sized for the peak number of unexpired entries. Once a segment is 3/4
+ * full the expired entries of the whole segment are reclaimed; a put that still finds its segment 3/4 full fails with
+ * an {@link IllegalStateException} rather than silently dropping replay state. Keys are spread evenly over the
+ * segments, so they fill up at close to the same rate.
+ * 
+ * Entries are removed in place by shifting later entries of the same probe sequence back, so the table never holds
+ * tombstones and no copy of it is ever made. An entry is unexpired up to and including its expiration instant, as for
+ * {@link AbstractExpiringObject#isExpired()}.
+ * 
+ * This class is thread-safe.
+ */
+public class MappedReplayCacheStorageService implements ReplayCacheStorageService {
+
+    /** Size, in bytes, of the file header. */
+    public static final int HEADER_SIZE = 32;
+
+    /** Size, in bytes, of a table slot. */
+    public static final int SLOT_SIZE = 16;
+
+    /** Maximum number of segments. */
+    public static final int MAX_SEGMENTS = 16;
+
+    /** Minimum number of slots in a segment, tables with fewer than twice as many slots have a single segment. */
+    public static final int MIN_SEGMENT_CAPACITY = 1024;
+
+    /** Size, in bytes, reserved after the header for the occupied slot counts of the segments. */
+    public static final int SEGMENT_COUNTS_SIZE = MAX_SEGMENTS * 4;
+
+    /** Magic number identifying a replay cache file. */
+    private static final int MAGIC = 0x4F575243;
+
+    /** Version of the file format. */
+    private static final int VERSION = 2;
+
+    /** Version of the file format without segments. */
+    private static final int UNSEGMENTED_VERSION = 1;
+
+    /** Offset of the magic number within the header. */
+    private static final int MAGIC_OFFSET = 0;
+
+    /** Offset of the format version within the header. */
+    private static final int VERSION_OFFSET = 4;
+
+    /** Offset of the slot count within the header. */
+    private static final int CAPACITY_OFFSET = 8;
+
+    /** Offset of the occupied slot count within the header of a file without segments. */
+    private static final int OCCUPIED_OFFSET = 12;
+
+    /** Offset of the segment count within the header. */
+    private static final int SEGMENTS_OFFSET = 16;
+
+    /** Largest number of slots that fits in a single mapping. */
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    /** Hash value marking an empty slot. */
+    private static final long EMPTY = 0L;
+
+    /**
+     * Expiration value marking a removed entry in files written by earlier versions of this class, and the value
+     * returned internally when no entry was present.
+     */
+    private static final long REMOVED = Long.MIN_VALUE;
+
+    /** Number of slots examined for expired entries by each insertion. */
+    private static final int RECLAIM_STEP = 4;
+
+    /** FNV-1a 64-bit offset basis. */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    /** FNV-1a 64-bit prime. */
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(MappedReplayCacheStorageService.class);
+
+    /** Buffer holding the header and the table. */
+    private final ByteBuffer table;
+
+    /** File backing the table, or null if the table is held in a direct buffer. */
+    private final RandomAccessFile backingFile;
+
+    /** Exclusive lock held on the backing file, or null if the table is held in a direct buffer. */
+    private final FileLock fileLock;
+
+    /** Number of slots in the table, a power of two. */
+    private final int capacity;
+
+    /** Segments of the table, a power of two in number. */
+    private final Segment[] segments;
+
+    /** Partitions written to since this instance was created. */
+    private final Set<String> partitions;
+
+    /**
+     * Constructor. Creates a table held in a direct buffer that does not survive a restart.
+     * 
+     * @param entries number of entries the table must be able to hold, rounded up so the table is at most 3/4 full
+     */
+    public MappedReplayCacheStorageService(int entries) {
+        capacity = computeCapacity(entries);
+        partitions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        backingFile = null;
+        fileLock = null;
+        table = ByteBuffer.allocateDirect(HEADER_SIZE + SEGMENT_COUNTS_SIZE + capacity * SLOT_SIZE);
+        segments = createSegments(computeSegmentCount(capacity), HEADER_SIZE + SEGMENT_COUNTS_SIZE, HEADER_SIZE);
+        writeHeader();
+    }
+
+    /**
+     * Constructor. Maps the given file, creating and initializing it if it is empty or does not exist. An existing
+     * file is loaded with the slot and segment counts recorded in its header, the requested number of entries is then
+     * ignored.
+     * 
+     * @param file file backing the table
+     * @param entries number of entries the table must be able to hold, rounded up so the table is at most 3/4 full
+     * 
+     * @throws IOException thrown if the file can not be opened, locked or mapped, or is not a replay cache file
+     */
+    public MappedReplayCacheStorageService(File file, int entries) throws IOException {
+        partitions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        backingFile = new RandomAccessFile(file, "rw");
+
+        try {
+            FileChannel channel = backingFile.getChannel();
+            try {
+                fileLock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                throw new IOException("Replay cache file " + file.getAbsolutePath() + " is already open");
+            }
+            if (fileLock == null) {
+                throw new IOException("Replay cache file " + file.getAbsolutePath()
+                        + " is locked by another process");
+            }
+
+            if (channel.size() == 0) {
+                capacity = computeCapacity(entries);
+                table = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + SEGMENT_COUNTS_SIZE
+                        + (long) capacity * SLOT_SIZE);
+                segments = createSegments(computeSegmentCount(capacity), HEADER_SIZE + SEGMENT_COUNTS_SIZE,
+                        HEADER_SIZE);
+                writeHeader();
+                log.debug("Created replay cache file {} with {} slots in {} segments", new Object[] {
+                        file.getAbsolutePath(), capacity, segments.length, });
+            } else {
+                ByteBuffer header = readHeader(channel, file);
+                capacity = header.getInt(CAPACITY_OFFSET);
+                if (header.getInt(VERSION_OFFSET) == UNSEGMENTED_VERSION) {
+                    table = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity
+                            * SLOT_SIZE);
+                    segments = createSegments(1, HEADER_SIZE, OCCUPIED_OFFSET);
+                } else {
+                    table = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + SEGMENT_COUNTS_SIZE
+                            + (long) capacity * SLOT_SIZE);
+                    segments = createSegments(header.getInt(SEGMENTS_OFFSET), HEADER_SIZE + SEGMENT_COUNTS_SIZE,
+                            HEADER_SIZE);
+                }
+                log.debug("Loaded replay cache file {} with {} slots in {} segments", new Object[] {
+                        file.getAbsolutePath(), capacity, segments.length, });
+            }
+        } catch (IOException e) {
+            backingFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the number of slots in the table.
+     * 
+     * @return number of slots in the table
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of segments the table is divided into.
+     * 
+     * @return number of segments
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Gets the number of unexpired entries in the table. This scans the whole table, one segment at a time.
+     * 
+     * @return number of unexpired entries
+     */
+    public int getSize() {
+        long now = System.currentTimeMillis();
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size(now);
+        }
+        return size;
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<String> getPartitions() {
+        return partitions.iterator();
+    }
+
+    /**
+     * Keys are stored only as hashes and can not be enumerated.
+     * 
+     * @param partition partition on which to operate
+     * 
+     * @return null
+     */
+    public Iterator<String> getKeys(String partition) {
+        return null;
+    }
+
+    /** {@inheritDoc} */
+    public boolean contains(String partition, String key) {
+        if (key == null) {
+            return false;
+        }
+
+        long keyHash = hash(partition, key);
+        return segmentFor(keyHash).get(keyHash) != REMOVED;
+    }
+
+    /** {@inheritDoc} */
+    public ReplayCacheEntry get(String partition, String key) {
+        if (key == null) {
+            return null;
+        }
+
+        long keyHash = hash(partition, key);
+        long expiration = segmentFor(keyHash).get(keyHash);
+        if (expiration == REMOVED) {
+            return null;
+        }
+        return newEntry(key, expiration);
+    }
+
+    /** {@inheritDoc} */
+    public ReplayCacheEntry put(String partition, String key, ReplayCacheEntry value) {
+        if (key == null) {
+            return null;
+        }
+
+        partitions.add(partition);
+        long keyHash = hash(partition, key);
+        long previous = segmentFor(keyHash).put(keyHash, value.getExpirationMillis());
+        if (previous == REMOVED) {
+            return null;
+        }
+        return newEntry(key, previous);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The key is hashed from the issuer and message ID directly, producing the same hash as their non-null
+     * concatenation, so this method allocates nothing.
+     */
+    public boolean checkAndPut(String partition, String issuerId, String messageId, long expiration) {
+        return putIfAbsent(partition, hash(partition, issuerId, messageId), expiration) != REMOVED;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The time to live is ignored, slots are reclaimed according to the entry's own expiration.
+     */
+    public ReplayCacheEntry putIfAbsent(String partition, String key, ReplayCacheEntry value, long ttl) {
+        if (key == null) {
+            return null;
+        }
+
+        long existing = putIfAbsent(partition, hash(partition, key), value.getExpirationMillis());
+        if (existing == REMOVED) {
+            return null;
+        }
+        return newEntry(key, existing);
+    }
+
+    /** {@inheritDoc} */
+    public Map<String, ReplayCacheEntry> getAll(String partition, Collection<String> keys) {
+        Map<String, ReplayCacheEntry> values = new HashMap<String, ReplayCacheEntry>();
+        if (keys == null) {
+            return values;
+        }
+
+        ReplayCacheEntry value;
+        for (String key : keys) {
+            value = get(partition, key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    /** {@inheritDoc} */
+    public void putAll(String partition, Map<String, ReplayCacheEntry> entries) {
+        if (entries == null) {
+            return;
+        }
+
+        for (Map.Entry<String, ReplayCacheEntry> entry : entries.entrySet()) {
+            put(partition, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void removeAll(String partition, Collection<String> keys) {
+        if (keys == null) {
+            return;
+        }
+
+        for (String key : keys) {
+            remove(partition, key);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public ReplayCacheEntry remove(String partition, String key) {
+        if (key == null) {
+            return null;
+        }
+
+        long keyHash = hash(partition, key);
+        long previous = segmentFor(keyHash).remove(keyHash);
+        if (previous == REMOVED) {
+            return null;
+        }
+        return newEntry(key, previous);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Since only the expiration of an entry is stored, the entry is removed if its expiration equals that of the
+     * given value.
+     */
+    public boolean remove(String partition, String key, ReplayCacheEntry value) {
+        if (key == null || value == null) {
+            return false;
+        }
+
+        long keyHash = hash(partition, key);
+        return segmentFor(keyHash).remove(keyHash, value.getExpirationMillis());
+    }
+
+    /**
+     * Flushes the table to its backing file, if any.
+     */
+    public void flush() {
+        if (table instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) table).force();
+        }
+    }
+
+    /**
+     * Flushes the table to its backing file, releases the file's lock and closes the file. The instance must not be
+     * used afterwards.
+     * 
+     * @throws IOException thrown if the backing file can not be closed
+     */
+    public void close() throws IOException {
+        flush();
+        if (backingFile != null) {
+            try {
+                fileLock.release();
+            } finally {
+                backingFile.close();
+            }
+        }
+    }
+
+    /**
+     * Records an entry unless an unexpired entry with the same hash is present.
+     * 
+     * @param partition partition on which to operate
+     * @param keyHash hash of the partition and key
+     * @param expiration expiration instant of the new entry
+     * 
+     * @return the expiration of the unexpired entry already present, or {@link #REMOVED} if the entry was recorded
+     */
+    private long putIfAbsent(String partition, long keyHash, long expiration) {
+        long existing = segmentFor(keyHash).putIfAbsent(keyHash, expiration);
+        if (existing == REMOVED) {
+            partitions.add(partition);
+        }
+        return existing;
+    }
+
+    /**
+     * Gets the segment holding a hash. The segment is selected by the high order bits of the spread hash, whereas the
+     * home slot within the segment is selected by its low order bits.
+     * 
+     * @param keyHash hash of the partition and key
+     * 
+     * @return the segment
+     */
+    private Segment segmentFor(long keyHash) {
+        return segments[(spread(keyHash) >>> 28) & (segments.length - 1)];
+    }
+
+    /**
+     * Creates the segments of the table.
+     * 
+     * @param count number of segments, a power of two dividing the slot count
+     * @param slotsOffset offset of the first slot within the table
+     * @param countsOffset offset of the occupied slot count of the first segment within the table
+     * 
+     * @return the segments
+     */
+    private Segment[] createSegments(int count, int slotsOffset, int countsOffset) {
+        int segmentCapacity = capacity / count;
+        Segment[] created = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            created[i] = new Segment(slotsOffset + i * segmentCapacity * SLOT_SIZE, segmentCapacity,
+                    countsOffset + i * 4);
+        }
+        return created;
+    }
+
+    /**
+     * Checks whether an entry with the given expiration is unexpired.
+     * 
+     * @param expiration the entry's expiration instant
+     * @param now current time in milliseconds
+     * 
+     * @return true if the entry has not expired
+     */
+    private static boolean isUnexpired(long expiration, long now) {
+        return expiration >= now;
+    }
+
+    /**
+     * Writes the header of a new table. A newly allocated buffer or file is zero filled, so every slot is empty and
+     * every segment's occupied slot count is zero.
+     */
+    private void writeHeader() {
+        table.putInt(MAGIC_OFFSET, MAGIC);
+        table.putInt(VERSION_OFFSET, VERSION);
+        table.putInt(CAPACITY_OFFSET, capacity);
+        table.putInt(SEGMENTS_OFFSET, segments.length);
+    }
+
+    /**
+     * Reads and validates the header of an existing replay cache file.
+     * 
+     * @param channel channel to the file
+     * @param file the file
+     * 
+     * @return the header
+     * 
+     * @throws IOException thrown if the file is not a replay cache file of a supported version
+     */
+    private ByteBuffer readHeader(FileChannel channel, File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            // keep reading until the header is complete
+        }
+        if (header.hasRemaining() || header.getInt(MAGIC_OFFSET) != MAGIC) {
+            throw new IOException(file.getAbsolutePath() + " is not a replay cache file");
+        }
+        int version = header.getInt(VERSION_OFFSET);
+        if (version != VERSION && version != UNSEGMENTED_VERSION) {
+            throw new IOException("Unsupported replay cache file version " + version + " in "
+                    + file.getAbsolutePath());
+        }
+
+        int fileCapacity = header.getInt(CAPACITY_OFFSET);
+        long size = HEADER_SIZE + (long) fileCapacity * SLOT_SIZE;
+        int segmentCount = 1;
+        if (version == VERSION) {
+            size += SEGMENT_COUNTS_SIZE;
+            segmentCount = header.getInt(SEGMENTS_OFFSET);
+        }
+        if (fileCapacity < 1 || fileCapacity > MAX_CAPACITY || Integer.bitCount(fileCapacity) != 1
+                || segmentCount < 1 || segmentCount > MAX_SEGMENTS || Integer.bitCount(segmentCount) != 1
+                || segmentCount > fileCapacity || channel.size() < size) {
+            throw new IOException("Replay cache file " + file.getAbsolutePath() + " is truncated or corrupt");
+        }
+        return header;
+    }
+
+    /**
+     * Creates the entry returned to callers for a stored expiration.
+     * 
+     * @param key the requested key
+     * @param expiration the stored expiration
+     * 
+     * @return the entry
+     */
+    private ReplayCacheEntry newEntry(String key, long expiration) {
+        return new ReplayCacheEntry(key, expiration);
+    }
+
+    /**
+     * Computes the 64-bit FNV-1a hash of a partition and key. The result is never {@link #EMPTY}.
+     * 
+     * @param partition the partition
+     * @param key the key
+     * 
+     * @return the hash
+     */
+    private static long hash(String partition, String key) {
+        return hash(partition, key, null);
+    }
+
+    /**
+     * Computes the 64-bit FNV-1a hash of a partition and a key given in two parts. The hash is the same as that of the
+     * concatenated parts. The result is never {@link #EMPTY}.
+     * 
+     * @param partition the partition
+     * @param keyStart first part of the key, may be null
+     * @param keyEnd second part of the key, may be null
+     * 
+     * @return the hash
+     */
+    private static long hash(String partition, String keyStart, String keyEnd) {
+        long hash = FNV_OFFSET;
+        if (partition != null) {
+            for (int i = 0; i < partition.length(); i++) {
+                hash = (hash ^ partition.charAt(i)) * FNV_PRIME;
+            }
+        }
+        // separate the partition from the key so that ("ab", "c") and ("a", "bc") differ
+        hash = (hash ^ 0xFFFF) * FNV_PRIME;
+        hash = hash(hash, keyStart);
+        hash = hash(hash, keyEnd);
+        return hash == EMPTY ? 1L : hash;
+    }
+
+    /**
+     * Continues an FNV-1a hash over the characters of a string.
+     * 
+     * @param hash the hash so far
+     * @param value the string, may be null
+     * 
+     * @return the hash
+     */
+    private static long hash(long hash, String value) {
+        long result = hash;
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                result = (result ^ value.charAt(i)) * FNV_PRIME;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Mixes all bits of a hash into the low order bits used to select the home slot.
+     * 
+     * @param keyHash the hash
+     * 
+     * @return the mixed hash
+     */
+    private static int spread(long keyHash) {
+        long h = keyHash;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * Computes the number of slots needed to hold the given number of entries at a load factor of at most 3/4.
+     * 
+     * @param entries number of entries
+     * 
+     * @return number of slots, a power of two
+     */
+    private static int computeCapacity(int entries) {
+        if (entries < 1) {
+            throw new IllegalArgumentException("Number of entries must be greater than zero");
+        }
+
+        long required = (long) entries + (entries / 3) + 1;
+        int slots = 16;
+        while (slots < required && slots < MAX_CAPACITY) {
+            slots <<= 1;
+        }
+        return slots;
+    }
+
+    /**
+     * Computes the number of segments a table is divided into, the largest power of two up to
+     * {@value #MAX_SEGMENTS} leaving each segment at least {@value #MIN_SEGMENT_CAPACITY} slots.
+     * 
+     * @param slots number of slots in the table, a power of two
+     * 
+     * @return number of segments, a power of two
+     */
+    private static int computeSegmentCount(int slots) {
+        int count = 1;
+        while (count < MAX_SEGMENTS && slots / (count * 2) >= MIN_SEGMENT_CAPACITY) {
+            count <<= 1;
+        }
+        return count;
+    }
+
+    /**
+     * A contiguous region of the table holding an independent open-addressing hash table. The region is accessed
+     * only through absolute reads and writes of the shared buffer, which leave the buffer's position and limit alone,
+     * while holding this segment's monitor.
+     */
+    private final class Segment {
+
+        /** Offset of the segment's first slot within the table. */
+        private final int slotsOffset;
+
+        /** Number of slots in the segment, a power of two. */
+        private final int segmentCapacity;
+
+        /** Mask selecting a slot of the segment from a spread hash. */
+        private final int mask;
+
+        /** Number of occupied slots, including expired entries, at which the whole segment is reclaimed. */
+        private final int occupancyThreshold;
+
+        /** Offset of the segment's occupied slot count within the table. */
+        private final int occupiedOffset;
+
+        /** Number of slots whose hash is not {@link #EMPTY}. Guarded by this instance's monitor. */
+        private int occupied;
+
+        /** Next slot examined for an expired entry. Guarded by this instance's monitor. */
+        private int reclaimCursor;
+
+        /**
+         * Constructor. The occupied slot count is read from the table, so a loaded file resumes where it was left.
+         * 
+         * @param offset offset of the segment's first slot within the table
+         * @param slots number of slots in the segment, a power of two
+         * @param countOffset offset of the segment's occupied slot count within the table
+         */
+        Segment(int offset, int slots, int countOffset) {
+            slotsOffset = offset;
+            segmentCapacity = slots;
+            mask = slots - 1;
+            occupancyThreshold = slots - (slots >>> 2);
+            occupiedOffset = countOffset;
+            occupied = table.getInt(occupiedOffset);
+        }
+
+        /**
+         * Gets the number of unexpired entries in the segment.
+         * 
+         * @param now current time in milliseconds
+         * 
+         * @return number of unexpired entries
+         */
+        synchronized int size(long now) {
+            int size = 0;
+            for (int slot = 0; slot < segmentCapacity; slot++) {
+                if (getHash(slot) != EMPTY && isUnexpired(getExpiration(slot), now)) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+        /**
+         * Gets the expiration stored for a hash.
+         * 
+         * @param keyHash hash of the partition and key
+         * 
+         * @return the stored expiration, or {@link #REMOVED} if the hash is not present
+         */
+        synchronized long get(long keyHash) {
+            int slot = findSlot(keyHash);
+            if (slot < 0) {
+                return REMOVED;
+            }
+            return getExpiration(slot);
+        }
+
+        /**
+         * Stores the expiration for a hash, replacing any stored expiration.
+         * 
+         * @param keyHash hash of the partition and key
+         * @param expiration expiration instant of the entry
+         * 
+         * @return the expiration previously stored, or {@link #REMOVED} if the hash was not present
+         */
+        synchronized long put(long keyHash, long expiration) {
+            int slot = findSlot(keyHash);
+            if (slot >= 0) {
+                long previous = getExpiration(slot);
+                setExpiration(slot, expiration);
+                return previous;
+            }
+
+            insert(keyHash, expiration, System.currentTimeMillis());
+            return REMOVED;
+        }
+
+        /**
+         * Stores the expiration for a hash unless an unexpired entry with the same hash is present.
+         * 
+         * @param keyHash hash of the partition and key
+         * @param expiration expiration instant of the new entry
+         * 
+         * @return the expiration of the unexpired entry already present, or {@link #REMOVED} if the entry was
+         *         recorded
+         */
+        synchronized long putIfAbsent(long keyHash, long expiration) {
+            long now = System.currentTimeMillis();
+
+            int slot = findSlot(keyHash);
+            if (slot >= 0) {
+                long existing = getExpiration(slot);
+                if (isUnexpired(existing, now)) {
+                    return existing;
+                }
+                setExpiration(slot, expiration);
+                return REMOVED;
+            }
+
+            insert(keyHash, expiration, now);
+            return REMOVED;
+        }
+
+        /**
+         * Removes the entry for a hash.
+         * 
+         * @param keyHash hash of the partition and key
+         * 
+         * @return the expiration of the removed entry, or {@link #REMOVED} if the hash was not present
+         */
+        synchronized long remove(long keyHash) {
+            int slot = findSlot(keyHash);
+            if (slot < 0) {
+                return REMOVED;
+            }
+
+            long previous = getExpiration(slot);
+            delete(slot);
+            return previous;
+        }
+
+        /**
+         * Removes the entry for a hash if its expiration is the given one.
+         * 
+         * @param keyHash hash of the partition and key
+         * @param expiration the expected expiration
+         * 
+         * @return true if the entry was removed
+         */
+        synchronized boolean remove(long keyHash, long expiration) {
+            int slot = findSlot(keyHash);
+            if (slot < 0 || getExpiration(slot) != expiration) {
+                return false;
+            }
+
+            delete(slot);
+            return true;
+        }
+
+        /**
+         * Removes the expired entries among a number of slots, starting at the reclaim cursor and advancing it.
+         * 
+         * @param slots number of slots to examine
+         * @param now current time in milliseconds
+         * 
+         * @return number of entries removed
+         */
+        private int reclaim(int slots, long now) {
+            int removed = 0;
+            for (int examined = 0; examined < slots && occupied > 0; examined++) {
+                // an entry shifted back into the slot by the removal is examined next, so the cursor only advances
+                // past slots that are empty or hold an unexpired entry
+                while (getHash(reclaimCursor) != EMPTY && !isUnexpired(getExpiration(reclaimCursor), now)) {
+                    delete(reclaimCursor);
+                    removed++;
+                }
+                reclaimCursor = (reclaimCursor + 1) & mask;
+            }
+            return removed;
+        }
+
+        /**
+         * Removes the entry held in a slot. The following entries of the cluster whose probe sequence passes through
+         * the slot are shifted back, so every remaining entry stays reachable from its home slot without tombstones.
+         * 
+         * @param slot the slot
+         */
+        private void delete(int slot) {
+            int hole = slot;
+            int next = slot;
+            long nextHash;
+            int home;
+            while (true) {
+                next = (next + 1) & mask;
+                nextHash = getHash(next);
+                if (nextHash == EMPTY) {
+                    break;
+                }
+                home = spread(nextHash) & mask;
+                // the entry may fill the hole if the hole lies on its probe sequence, between its home slot and its
+                // slot
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    setHash(hole, nextHash);
+                    setExpiration(hole, getExpiration(next));
+                    hole = next;
+                }
+            }
+            setHash(hole, EMPTY);
+            setExpiration(hole, 0);
+            occupied--;
+            table.putInt(occupiedOffset, occupied);
+        }
+
+        /**
+         * Finds the slot holding the given hash.
+         * 
+         * @param keyHash hash of the partition and key
+         * 
+         * @return the slot holding the hash, or -1 if the hash is not present or its entry was removed
+         */
+        private int findSlot(long keyHash) {
+            int slot = spread(keyHash) & mask;
+            long slotHash;
+            for (int probes = 0; probes < segmentCapacity; probes++) {
+                slotHash = getHash(slot);
+                if (slotHash == EMPTY) {
+                    return -1;
+                }
+                if (slotHash == keyHash) {
+                    return getExpiration(slot) == REMOVED ? -1 : slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Inserts a hash that is known not to be present, reusing the first expired slot on its probe path. Expired
+         * entries are first reclaimed from the next few slots, or from the whole segment if it is 3/4 full.
+         * 
+         * @param keyHash hash of the partition and key
+         * @param expiration expiration instant of the entry
+         * @param now current time in milliseconds
+         */
+        private void insert(long keyHash, long expiration, long now) {
+            reclaim(RECLAIM_STEP, now);
+            if (occupied >= occupancyThreshold) {
+                int removed = reclaim(segmentCapacity, now);
+                log.debug("Replay cache segment reached its occupancy threshold, reclaimed {} expired entries",
+                        removed);
+                if (occupied >= occupancyThreshold) {
+                    throw new IllegalStateException("Replay cache storage is full, " + occupied
+                            + " unexpired entries in a segment of " + segmentCapacity + " slots");
+                }
+            }
+
+            int slot = spread(keyHash) & mask;
+            for (int probes = 0; probes < segmentCapacity; probes++) {
+                if (getHash(slot) == EMPTY) {
+                    occupied++;
+                    table.putInt(occupiedOffset, occupied);
+                    break;
+                }
+                if (!isUnexpired(getExpiration(slot), now)) {
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            setExpiration(slot, expiration);
+            setHash(slot, keyHash);
+        }
+
+        /**
+         * Gets the hash stored in a slot.
+         * 
+         * @param slot the slot
+         * 
+         * @return the hash
+         */
+        private long getHash(int slot) {
+            return table.getLong(slotsOffset + slot * SLOT_SIZE);
+        }
+
+        /**
+         * Sets the hash stored in a slot.
+         * 
+         * @param slot the slot
+         * @param keyHash the hash
+         */
+        private void setHash(int slot, long keyHash) {
+            table.putLong(slotsOffset + slot * SLOT_SIZE, keyHash);
+        }
+
+        /**
+         * Gets the expiration stored in a slot.
+         * 
+         * @param slot the slot
+         * 
+         * @return the expiration
+         */
+        private long getExpiration(int slot) {
+            return table.getLong(slotsOffset + slot * SLOT_SIZE + 8);
+        }
+
+        /**
+         * Sets the expiration stored in a slot.
+         * 
+         * @param slot the slot
+         * @param expiration the expiration
+         */
+        private void setExpiration(int slot, long expiration) {
+            table.putLong(slotsOffset + slot * SLOT_SIZE + 8, expiration);
+        }
+    }
+}
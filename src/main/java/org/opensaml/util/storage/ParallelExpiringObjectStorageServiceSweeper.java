@@ -0,0 +1,310 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.util.storage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A task that periodically sweeps over a {@link StorageService} and removes expired entries, sweeping partitions in
+ * parallel on an {@link Executor}.
+ * 
+ * The timer thread only hands one sweep job per partition to the executor and returns, so a long sweep never delays
+ * the other tasks scheduled on the same {@link Timer}. Each job works for at most one time slice and then resubmits
+ * itself to continue where it left off, so a large partition does not monopolize an executor thread. A new sweep is
+ * not started while the previous one is still running.
+ * 
+ * Keys are checked and removed in batches, as by {@link ExpiringObjectStorageServiceSweeper}. Stores that index their
+ * entries by expiration time, such as {@link TimeBucketedStorageService}, are asked to evict their expired entries
+ * directly rather than being scanned key by key.
+ * 
+ * The duration of the last completed sweep and the number of entries it removed are logged at debug level and
+ * available from {@link #getLastSweepDuration()} and {@link #getLastSweepRemovedCount()}.
+ */
+public class ParallelExpiringObjectStorageServiceSweeper extends TimerTask {
+
+    /** Default length, in milliseconds, of a time slice. */
+    public static final long DEFAULT_TIME_SLICE = 50;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ParallelExpiringObjectStorageServiceSweeper.class);
+
+    /** Storage service whose entries will be periodically checked. */
+    private final StorageService<?, ?> store;
+
+    /** Storage partitions to sweep, null to sweep all partitions. */
+    private final Set<String> partitions;
+
+    /** Executor running the partition sweeps. */
+    private final Executor sweepExecutor;
+
+    /** Length, in milliseconds, of a time slice. */
+    private final long timeSlice;
+
+    /** Whether a sweep is in progress. */
+    private final AtomicBoolean sweeping;
+
+    /** Duration, in milliseconds, of the last completed sweep. */
+    private volatile long lastSweepDuration;
+
+    /** Number of entries removed by the last completed sweep. */
+    private volatile long lastSweepRemovedCount;
+
+    /**
+     * Constructor. Registers this task with the given timer.
+     * 
+     * @param taskTimer timer that will trigger sweeps of the given storage service
+     * @param interval interval, in milliseconds, that the storage service will be swept
+     * @param sweptStore storage service that will be swept
+     * @param executor executor running the partition sweeps
+     */
+    public ParallelExpiringObjectStorageServiceSweeper(Timer taskTimer, long interval, StorageService<?, ?> sweptStore,
+            Executor executor) {
+        this(taskTimer, interval, sweptStore, null, executor, DEFAULT_TIME_SLICE);
+    }
+
+    /**
+     * Constructor. Registers this task with the given timer.
+     * 
+     * @param taskTimer timer that will trigger sweeps of the given storage service
+     * @param interval interval, in milliseconds, that the storage service will be swept
+     * @param sweptStore storage service that will be swept
+     * @param sweptPartitions the partitions to sweep, if null or empty all partitions are swept
+     * @param executor executor running the partition sweeps
+     * @param slice length, in milliseconds, of the time slice a partition sweep runs for before yielding its thread
+     */
+    public ParallelExpiringObjectStorageServiceSweeper(Timer taskTimer, long interval, StorageService<?, ?> sweptStore,
+            Set<String> sweptPartitions, Executor executor, long slice) {
+        if (slice < 1) {
+            throw new IllegalArgumentException("Time slice must be greater than zero");
+        }
+        store = sweptStore;
+        if (sweptPartitions != null && !sweptPartitions.isEmpty()) {
+            partitions = sweptPartitions;
+        } else {
+            partitions = null;
+        }
+        sweepExecutor = executor;
+        timeSlice = slice;
+        sweeping = new AtomicBoolean(false);
+        taskTimer.schedule(this, interval, interval);
+    }
+
+    /**
+     * Gets the duration of the last completed sweep.
+     * 
+     * @return duration, in milliseconds, of the last completed sweep
+     */
+    public long getLastSweepDuration() {
+        return lastSweepDuration;
+    }
+
+    /**
+     * Gets the number of entries removed by the last completed sweep.
+     * 
+     * @return number of entries removed by the last completed sweep
+     */
+    public long getLastSweepRemovedCount() {
+        return lastSweepRemovedCount;
+    }
+
+    /**
+     * Gets whether a sweep is in progress.
+     * 
+     * @return true if a sweep is in progress
+     */
+    public boolean isSweeping() {
+        return sweeping.get();
+    }
+
+    /** {@inheritDoc} */
+    public void run() {
+        if (!sweeping.compareAndSet(false, true)) {
+            log.debug("Previous sweep of storage service is still running, skipping this sweep");
+            return;
+        }
+
+        try {
+            List<String> sweepPartitions = new ArrayList<String>();
+            Iterator<String> partitionIterator;
+            if (partitions != null) {
+                partitionIterator = partitions.iterator();
+            } else {
+                partitionIterator = store.getPartitions();
+            }
+            while (partitionIterator != null && partitionIterator.hasNext()) {
+                sweepPartitions.add(partitionIterator.next());
+            }
+
+            if (sweepPartitions.isEmpty()) {
+                sweeping.set(false);
+                return;
+            }
+
+            Sweep sweep = new Sweep(sweepPartitions.size());
+            for (String partition : sweepPartitions) {
+                submit(new PartitionSweep(sweep, partition));
+            }
+        } catch (Throwable t) {
+            log.error("Caught unexpected error starting sweep of storage service", t);
+            sweeping.set(false);
+        }
+    }
+
+    /**
+     * Hands a partition sweep to the executor, finishing it immediately if the executor rejects it.
+     * 
+     * @param partitionSweep the partition sweep
+     */
+    private void submit(PartitionSweep partitionSweep) {
+        try {
+            sweepExecutor.execute(partitionSweep);
+        } catch (RejectedExecutionException e) {
+            log.warn("Executor rejected sweep of storage service partition {}, partition will be swept next time",
+                    partitionSweep.partition);
+            partitionSweep.finish();
+        }
+    }
+
+    /** State shared by the partition sweeps making up one sweep. */
+    private class Sweep {
+
+        /** Time, in milliseconds, the sweep started. */
+        private final long start;
+
+        /** Number of partitions not yet swept. */
+        private final AtomicInteger remainingPartitions;
+
+        /** Number of entries removed so far. */
+        private final AtomicLong removed;
+
+        /**
+         * Constructor.
+         * 
+         * @param partitionCount number of partitions to sweep
+         */
+        public Sweep(int partitionCount) {
+            start = System.currentTimeMillis();
+            remainingPartitions = new AtomicInteger(partitionCount);
+            removed = new AtomicLong();
+        }
+
+        /**
+         * Records the completion of a partition sweep, completing the sweep once every partition is done.
+         */
+        public void partitionDone() {
+            if (remainingPartitions.decrementAndGet() == 0) {
+                lastSweepDuration = System.currentTimeMillis() - start;
+                lastSweepRemovedCount = removed.get();
+                log.debug("Storage service sweep removed {} expired entries in {}ms", lastSweepRemovedCount,
+                        lastSweepDuration);
+                sweeping.set(false);
+            }
+        }
+    }
+
+    /** Incremental sweep of a single partition. */
+    private class PartitionSweep implements Runnable {
+
+        /** The sweep this partition sweep is part of. */
+        private final Sweep sweep;
+
+        /** Partition being swept. */
+        private final String partition;
+
+        /** Position within the partition, null until the first time slice. */
+        private Iterator<?> partitionKeys;
+
+        /**
+         * Constructor.
+         * 
+         * @param parentSweep the sweep this partition sweep is part of
+         * @param partitionName partition to sweep
+         */
+        public PartitionSweep(Sweep parentSweep, String partitionName) {
+            sweep = parentSweep;
+            partition = partitionName;
+        }
+
+        /** {@inheritDoc} */
+        public void run() {
+            try {
+                if (store instanceof TimeBucketedStorageService) {
+                    sweep.removed.addAndGet(((TimeBucketedStorageService<?, ?>) store).evictExpired(partition));
+                    finish();
+                    return;
+                }
+
+                if (partitionKeys == null) {
+                    log.trace("Sweeping storage service partition {}", partition);
+                    partitionKeys = store.getKeys(partition);
+                }
+
+                if (partitionKeys != null && sweepSlice()) {
+                    submit(this);
+                } else {
+                    finish();
+                }
+            } catch (Throwable t) {
+                log.error("Caught unexpected error sweeping storage service partition " + partition, t);
+                finish();
+            }
+        }
+
+        /**
+         * Removes expired entries until the partition is exhausted or the time slice ends.
+         * 
+         * @return true if the partition has entries left to examine
+         */
+        private boolean sweepSlice() {
+            long deadline = System.currentTimeMillis() + timeSlice;
+            List<Object> keyBatch = new ArrayList<Object>(ExpiringObjectStorageServiceSweeper.SWEEP_BATCH_SIZE);
+            while (partitionKeys.hasNext()) {
+                keyBatch.add(partitionKeys.next());
+                if (keyBatch.size() == ExpiringObjectStorageServiceSweeper.SWEEP_BATCH_SIZE
+                        || !partitionKeys.hasNext()) {
+                    sweep.removed.addAndGet(ExpiringObjectStorageServiceSweeper.removeExpired(store, partition,
+                            keyBatch));
+                    keyBatch.clear();
+                    if (System.currentTimeMillis() >= deadline) {
+                        return partitionKeys.hasNext();
+                    }
+                }
+            }
+            return false;
+        }
+
+        /** Marks this partition as swept. */
+        private void finish() {
+            partitionKeys = null;
+            sweep.partitionDone();
+        }
+    }
+}
@@ -17,8 +17,6 @@
 
 package org.opensaml.util.storage;
 
-import java.util.concurrent.locks.ReentrantLock;
-
 import org.joda.time.DateTime;
 import org.opensaml.xml.util.DatatypeHelper;
 import org.slf4j.Logger;
@@ -28,26 +26,43 @@ import org.slf4j.LoggerFactory;
  * Class that uses an underlying {@link StorageService} to track information associated with messages in order to detect
  * message replays.
  * 
- * This class is thread-safe and uses a basic reentrant lock to avoid corruption of the underlying store, as well as to
- * prevent race conditions with respect to replay checking.
+ * This class is thread-safe and takes no locks of its own. Each check is a single
+ * {@link StorageService#putIfAbsent(String, Object, Object, long)}, so the check-and-insert for a given issuer and
+ * message ID is atomic as long as the storage service honors that contract, while checks for unrelated messages
+ * proceed concurrently. When the storage service is a {@link ReplayCacheStorageService} the check is delegated to
+ * {@link ReplayCacheStorageService#checkAndPut(String, String, String, long)} instead, which need not build the entry
+ * key nor allocate an entry.
+ * 
+ * A storage service that is full and may not drop unexpired entries, such as a fail-closed
+ * {@link BoundedMapBasedStorageService} or a full {@link MappedReplayCacheStorageService}, rejects the new entry with
+ * an {@link IllegalStateException}. The message is then reported as a replay, so that it is rejected rather than
+ * accepted without its ID being recorded.
  */
 public class ReplayCache {
 
+    /**
+     * Default number of lock stripes.
+     * 
+     * @deprecated replay checks no longer take locks of their own
+     */
+    @Deprecated
+    public static final int DEFAULT_LOCK_STRIPES = 64;
+
     /** Logger. */
     private final Logger log = LoggerFactory.getLogger(ReplayCache.class);
 
     /** Backing storage for the replay cache. */
     private StorageService<String, ReplayCacheEntry> storage;
 
+    /** Backing storage for the replay cache if it performs replay checks itself, otherwise null. */
+    private ReplayCacheStorageService replayStorage;
+
     /** Storage service partition used by this cache. default: replay */
     private String partition;
 
     /** Time, in milliseconds, that message state is valid. */
     private long entryDuration;
 
-    /** Replay cache lock. */
-    private ReentrantLock cacheLock;
-
     /**
      * Constructor.
      * 
@@ -55,10 +70,7 @@ public class ReplayCache {
      * @param duration default length of time that message state is valid
      */
     public ReplayCache(StorageService<String, ReplayCacheEntry> storageService, long duration) {
-        storage = storageService;
-        entryDuration = duration;
-        partition = "replay";
-        cacheLock = new ReentrantLock(true);
+        this(storageService, null, duration);
     }
 
     /**
@@ -70,66 +82,100 @@ public class ReplayCache {
      */
     public ReplayCache(StorageService<String, ReplayCacheEntry> storageService, String storageParition, long duration) {
         storage = storageService;
+        if (storageService instanceof ReplayCacheStorageService) {
+            replayStorage = (ReplayCacheStorageService) storageService;
+        }
         entryDuration = duration;
         if (!DatatypeHelper.isEmpty(storageParition)) {
             partition = DatatypeHelper.safeTrim(storageParition);
         } else {
             partition = "replay";
         }
-        cacheLock = new ReentrantLock(true);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param storageService the StorageService which serves as the backing store for the cache
+     * @param storageParition name of storage service partition to use
+     * @param duration default length of time that message state is valid
+     * @param lockStripes ignored
+     * 
+     * @deprecated replay checks no longer take locks of their own, use
+     *             {@link #ReplayCache(StorageService, String, long)}
+     */
+    @Deprecated
+    public ReplayCache(StorageService<String, ReplayCacheEntry> storageService, String storageParition,
+            long duration, int lockStripes) {
+        this(storageService, storageParition, duration);
     }
 
     /**
      * Checks if the message has been replayed. If the message has not been seen before then it is added to the list of
-     * seen of messages for the default duration.
+     * seen of messages for the default duration. The message is recorded by the same storage service operation that
+     * checks for it, the deprecated {@link #addMessageID(String, DateTime)} is not called.
      * 
      * @param issuerId unique ID of the message issuer
      * @param messageId unique ID of the message
      * 
-     * @return true if the given message ID has been seen before
+     * @return true if the given message ID has been seen before, or could not be recorded because the storage service
+     *         is full
      */
     public boolean isReplay(String issuerId, String messageId) {
-        log.debug("Attempting to acquire lock for replay cache check");
-        cacheLock.lock();
-        log.debug("Lock acquired");
-
         try {
-            boolean replayed = true;
-            String entryHash = issuerId + messageId;
-
-            ReplayCacheEntry cacheEntry = storage.get(partition, entryHash);
-
-            if (cacheEntry == null || cacheEntry.isExpired()) {
-                if (log.isDebugEnabled()) {
-                    if (cacheEntry == null) {
-                        log.debug("Message ID {} was not a replay", messageId);
-                    } else if (cacheEntry.isExpired()) {
-                        log.debug("Message ID {} expired in replay cache at {}", messageId, cacheEntry
-                                .getExpirationTime().toString());
-                        storage.remove(partition, entryHash);
-                    }
-                }
-                replayed = false;
-                addMessageID(entryHash, new DateTime().plus(entryDuration));
-            } else {
-                log.debug("Replay of message ID {} detected in replay cache, will expire at {}", messageId, cacheEntry
-                        .getExpirationTime().toString());
-            }
+            return checkAndAdd(issuerId, messageId);
+        } catch (IllegalStateException e) {
+            log.warn("Replay cache storage could not record message ID {}, treating it as a replay: {}", messageId,
+                    e.getMessage());
+            return true;
+        }
+    }
 
+    /**
+     * Checks if the message has been replayed and, if not, records it for the default duration.
+     * 
+     * @param issuerId unique ID of the message issuer
+     * @param messageId unique ID of the message
+     * 
+     * @return true if the given message ID has been seen before
+     */
+    private boolean checkAndAdd(String issuerId, String messageId) {
+        long expiration = System.currentTimeMillis() + entryDuration;
+        if (replayStorage != null) {
+            boolean replayed = replayStorage.checkAndPut(partition, issuerId, messageId, expiration);
+            log.debug("Message ID {} was {}a replay", messageId, replayed ? "" : "not ");
             return replayed;
-        } finally {
-            cacheLock.unlock();
         }
+
+        String entryHash = issuerId + messageId;
+        ReplayCacheEntry cacheEntry = storage.putIfAbsent(partition, entryHash, new ReplayCacheEntry(entryHash,
+                expiration), entryDuration);
+        if (cacheEntry == null) {
+            log.debug("Message ID {} was not a replay", messageId);
+            return false;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Replay of message ID {} detected in replay cache, will expire at {}", messageId,
+                    new DateTime(cacheEntry.getExpirationMillis()));
+        }
+        return true;
     }
 
     /**
-     * Accquires a write lock and adds the message state to the underlying storage service.
+     * Adds the message state to the underlying storage service, replacing any existing state for the message.
      * 
      * @param messageId unique ID of the message
      * @param expiration time the message state expires
+     * 
+     * @deprecated {@link #isReplay(String, String)} no longer calls this method, so overriding it has no effect on
+     *             replay checks. A check and the recording of the message are now a single
+     *             {@link StorageService#putIfAbsent(String, Object, Object, long)}, which a separate write could not
+     *             keep atomic. Customize how messages are recorded through the {@link StorageService} instead.
      */
+    @Deprecated
     protected void addMessageID(String messageId, DateTime expiration) {
-        log.debug("Writing message ID {} to replay cache with expiration time {}", messageId, expiration.toString());
+        log.debug("Writing message ID {} to replay cache with expiration time {}", messageId, expiration);
         storage.put(partition, messageId, new ReplayCacheEntry(messageId, expiration));
     }
 }
\ No newline at end of file
@@ -41,6 +41,17 @@ public class ReplayCacheEntry extends AbstractExpiringObject implements Serializ
         messageId = id;
     }
 
+    /**
+     * Constructor.
+     * 
+     * @param id ID of the message that may not be replayed
+     * @param expiration time when this entry expires, in milliseconds since the epoch
+     */
+    public ReplayCacheEntry(String id, long expiration) {
+        super(expiration);
+        messageId = id;
+    }
+
     /**
      * Gets the ID of the message that may not be replayed.
      * 
@@ -49,4 +60,29 @@ public class ReplayCacheEntry extends AbstractExpiringObject implements Serializ
     public String getMessageId() {
         return messageId;
     }
+
+    /** {@inheritDoc} */
+    public int hashCode() {
+        int hash = messageId == null ? 0 : messageId.hashCode();
+        long expiration = getExpirationMillis();
+        return 31 * hash + (int) (expiration ^ (expiration >>> 32));
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Two entries are equal if they have the same message ID and expiration, so an entry read from a store that does
+     * not hand out the stored instance can still be matched against the store's current value.
+     */
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof ReplayCacheEntry)) {
+            return false;
+        }
+        ReplayCacheEntry other = (ReplayCacheEntry) obj;
+        return getExpirationMillis() == other.getExpirationMillis()
+                && (messageId == null ? other.messageId == null : messageId.equals(other.messageId));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,40 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.util.storage;
+
+/**
+ * A {@link StorageService} for {@link ReplayCacheEntry} objects that can perform a replay check itself, without the
+ * caller building the entry key or the entry. {@link ReplayCache} uses this check when its storage service implements
+ * this interface, and {@link StorageService#putIfAbsent(String, Object, Object, long)} otherwise.
+ */
+public interface ReplayCacheStorageService extends StorageService<String, ReplayCacheEntry> {
+
+    /**
+     * Atomically checks whether an unexpired entry exists for the given issuer and message and, if not, records one.
+     * The entry's key is the concatenation of the issuer and message ID, as for the entries {@link ReplayCache}
+     * records through {@link StorageService#putIfAbsent(String, Object, Object, long)}.
+     * 
+     * @param partition partition on which to operate
+     * @param issuerId unique ID of the message issuer
+     * @param messageId unique ID of the message
+     * @param expiration time the new entry expires, in milliseconds since the epoch
+     * 
+     * @return true if an unexpired entry already existed
+     */
+    public boolean checkAndPut(String partition, String issuerId, String messageId, long expiration);
+}
@@ -17,7 +17,9 @@
 
 package org.opensaml.util.storage;
 
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Generic data storage facility for use by services that require some degree of persistence.
@@ -25,6 +27,9 @@ import java.util.Iterator;
  * The storage service is partitioned. This is to allow different objects to use the service, each with its own
  * partition, without the worry of conflicting keys.
  * 
+ * Besides single key operations the service offers batch operations, which allow implementations backed by remote or
+ * off-heap storage to amortize the cost of a call over many keys, and an atomic conditional insert.
+ * 
  * @param <KeyType> object type of the keys
  * @param <ValueType> object type of the values
  */
@@ -91,4 +96,57 @@ public interface StorageService<KeyType, ValueType> {
      * @return the value that was removed
      */
     public ValueType remove(String partition, KeyType key);
+
+    /**
+     * Atomically removes an item from storage if, and only if, the value stored under the key is equal to the given
+     * value. This lets a caller which has read an expired value remove exactly that value without also removing a
+     * value stored under the same key since it was read.
+     * 
+     * @param partition partition on which to operate
+     * @param key the key to the value to remove
+     * @param value the value expected to be stored under the key
+     * 
+     * @return true if the value was removed
+     */
+    public boolean remove(String partition, KeyType key, ValueType value);
+
+    /**
+     * Gets the values stored under a set of keys.
+     * 
+     * @param partition partition on which to operate
+     * @param keys the keys
+     * 
+     * @return the values stored under those keys which have a value, indexed by key; never null
+     */
+    public Map<KeyType, ValueType> getAll(String partition, Collection<KeyType> keys);
+
+    /**
+     * Adds a set of values, indexed by key, in to storage.
+     * 
+     * @param partition partition on which to operate
+     * @param entries the values to add, indexed by key
+     */
+    public void putAll(String partition, Map<KeyType, ValueType> entries);
+
+    /**
+     * Removes a set of items from storage.
+     * 
+     * @param partition partition on which to operate
+     * @param keys the keys to the values to remove
+     */
+    public void removeAll(String partition, Collection<KeyType> keys);
+
+    /**
+     * Atomically adds a value, indexed by a key, in to storage unless a value is already present. A present value that
+     * is an {@link ExpiringObject} which has expired is treated as absent and replaced.
+     * 
+     * @param partition partition on which to operate
+     * @param key the key
+     * @param value the value
+     * @param ttl time, in milliseconds, after which the store may evict the value; like the eviction hint described
+     *            in {@link #put(String, Object, Object)} implementations may ignore it, 0 or less means no hint
+     * 
+     * @return the value already present under the key, or null if the given value was added
+     */
+    public ValueType putIfAbsent(String partition, KeyType key, ValueType value, long ttl);
 }
\ No newline at end of file
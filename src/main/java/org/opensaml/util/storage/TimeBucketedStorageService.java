@@ -0,0 +1,457 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.util.storage;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link StorageService} implementation that indexes {@link ExpiringObject} values by the time at which they expire.
+ * 
+ * Each partition keeps, alongside its entries, an ordered set of time buckets of a fixed width. A value is filed
+ * under the bucket containing its expiration instant when it is stored, so finding expired entries only requires
+ * visiting the buckets whose span has passed. Eviction cost is therefore proportional to the number of expired
+ * entries rather than to the size of the partition.
+ * 
+ * Expired entries are evicted as a side effect of writes, at most once per bucket width per partition, so an
+ * {@link ExpiringObjectStorageServiceSweeper} is not required for this store. If one is registered it delegates to
+ * {@link #evictExpired(String)} instead of scanning every key.
+ * 
+ * Values that do not implement {@link ExpiringObject} are stored but never evicted.
+ * 
+ * @param <KeyType> object type of the keys
+ * @param <ValueType> object type of the values
+ */
+public class TimeBucketedStorageService<KeyType, ValueType> implements StorageService<KeyType, ValueType> {
+
+    /** Default width, in milliseconds, of an expiration bucket. */
+    public static final long DEFAULT_BUCKET_WIDTH = 1000;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(TimeBucketedStorageService.class);
+
+    /** Width, in milliseconds, of an expiration bucket. */
+    private final long bucketWidth;
+
+    /** Storage partitions. */
+    private final ConcurrentMap<String, Partition<KeyType, ValueType>> store;
+
+    /** Constructor. */
+    public TimeBucketedStorageService() {
+        this(DEFAULT_BUCKET_WIDTH);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param width width, in milliseconds, of an expiration bucket; entries are evicted at most this long after they
+     *            expire
+     */
+    public TimeBucketedStorageService(long width) {
+        if (width < 1) {
+            throw new IllegalArgumentException("Bucket width must be greater than zero");
+        }
+        bucketWidth = width;
+        store = new ConcurrentHashMap<String, Partition<KeyType, ValueType>>();
+    }
+
+    /**
+     * Gets the width, in milliseconds, of an expiration bucket.
+     * 
+     * @return width of an expiration bucket
+     */
+    public long getBucketWidth() {
+        return bucketWidth;
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<String> getPartitions() {
+        return store.keySet().iterator();
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<KeyType> getKeys(String partition) {
+        Partition<KeyType, ValueType> partitionStore = store.get(partition);
+        if (partitionStore != null) {
+            return partitionStore.entries.keySet().iterator();
+        }
+
+        return null;
+    }
+
+    /** {@inheritDoc} */
+    public boolean contains(String partition, KeyType key) {
+        if (key == null) {
+            return false;
+        }
+
+        Partition<KeyType, ValueType> partitionStore = store.get(partition);
+        if (partitionStore != null) {
+            return partitionStore.entries.containsKey(key);
+        }
+
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    public ValueType get(String partition, KeyType key) {
+        if (key == null) {
+            return null;
+        }
+
+        Partition<KeyType, ValueType> partitionStore = store.get(partition);
+        if (partitionStore != null) {
+            return partitionStore.entries.get(key);
+        }
+
+        return null;
+    }
+
+    /** {@inheritDoc} */
+    public ValueType put(String partition, KeyType key, ValueType value) {
+        if (key == null) {
+            return null;
+        }
+
+        Partition<KeyType, ValueType> partitionStore = getPartition(partition);
+        ValueType previous = partitionStore.entries.put(key, value);
+        index(partitionStore, key, value);
+        evictIfDue(partition, partitionStore);
+
+        return previous;
+    }
+
+    /** {@inheritDoc} */
+    public ValueType remove(String partition, KeyType key) {
+        if (key == null) {
+            return null;
+        }
+
+        // the key is left in its expiration bucket, eviction skips keys that are no longer present
+        Partition<KeyType, ValueType> partitionStore = store.get(partition);
+        if (partitionStore != null) {
+            return partitionStore.entries.remove(key);
+        }
+
+        return null;
+    }
+
+    /** {@inheritDoc} */
+    public boolean remove(String partition, KeyType key, ValueType value) {
+        if (key == null || value == null) {
+            return false;
+        }
+
+        Partition<KeyType, ValueType> partitionStore = store.get(partition);
+        if (partitionStore != null) {
+            return partitionStore.entries.remove(key, value);
+        }
+
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    public Map<KeyType, ValueType> getAll(String partition, Collection<KeyType> keys) {
+        Map<KeyType, ValueType> values = new HashMap<KeyType, ValueType>();
+        Partition<KeyType, ValueType> partitionStore = store.get(partition);
+        if (partitionStore == null || keys == null) {
+            return values;
+        }
+
+        ValueType value;
+        for (KeyType key : keys) {
+            if (key != null) {
+                value = partitionStore.entries.get(key);
+                if (value != null) {
+                    values.put(key, value);
+                }
+            }
+        }
+        return values;
+    }
+
+    /** {@inheritDoc} */
+    public void putAll(String partition, Map<KeyType, ValueType> entries) {
+        if (entries == null || entries.isEmpty()) {
+            return;
+        }
+
+        Partition<KeyType, ValueType> partitionStore = getPartition(partition);
+        for (Map.Entry<KeyType, ValueType> entry : entries.entrySet()) {
+            if (entry.getKey() != null) {
+                partitionStore.entries.put(entry.getKey(), entry.getValue());
+                index(partitionStore, entry.getKey(), entry.getValue());
+            }
+        }
+        evictIfDue(partition, partitionStore);
+    }
+
+    /** {@inheritDoc} */
+    public void removeAll(String partition, Collection<KeyType> keys) {
+        Partition<KeyType, ValueType> partitionStore = store.get(partition);
+        if (partitionStore == null || keys == null) {
+            return;
+        }
+
+        for (KeyType key : keys) {
+            if (key != null) {
+                partitionStore.entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The time to live is ignored, values are evicted according to their own expiration.
+     */
+    public ValueType putIfAbsent(String partition, KeyType key, ValueType value, long ttl) {
+        if (key == null) {
+            return null;
+        }
+
+        Partition<KeyType, ValueType> partitionStore = getPartition(partition);
+        ValueType existing;
+        while (true) {
+            existing = partitionStore.entries.putIfAbsent(key, value);
+            if (existing != null && !(existing instanceof ExpiringObject && ((ExpiringObject) existing).isExpired())) {
+                return existing;
+            }
+            if (existing == null || partitionStore.entries.replace(key, existing, value)) {
+                break;
+            }
+        }
+
+        index(partitionStore, key, value);
+        evictIfDue(partition, partitionStore);
+        return null;
+    }
+
+    /**
+     * Evicts the expired entries of every partition.
+     * 
+     * @return number of entries evicted
+     */
+    public int evictExpired() {
+        int evicted = 0;
+        for (String partition : store.keySet()) {
+            evicted += evictExpired(partition);
+        }
+        return evicted;
+    }
+
+    /**
+     * Evicts the expired entries of the given partition. Only the buckets whose span has passed are visited.
+     * 
+     * @param partition partition on which to operate
+     * 
+     * @return number of entries evicted
+     */
+    public int evictExpired(String partition) {
+        Partition<KeyType, ValueType> partitionStore = store.get(partition);
+        if (partitionStore == null) {
+            return 0;
+        }
+
+        return evictExpired(partition, partitionStore, System.currentTimeMillis());
+    }
+
+    /**
+     * Evicts the expired entries of the given partition if at least one bucket width has passed since the last
+     * eviction pass.
+     * 
+     * @param partition name of the partition
+     * @param partitionStore the partition on which to operate
+     */
+    private void evictIfDue(String partition, Partition<KeyType, ValueType> partitionStore) {
+        long now = System.currentTimeMillis();
+        if (now >= partitionStore.nextEviction) {
+            evictExpired(partition, partitionStore, now);
+        }
+    }
+
+    /**
+     * Evicts the expired entries of the given partition. If another thread is already evicting from the partition
+     * this method returns immediately.
+     * 
+     * @param partition name of the partition
+     * @param partitionStore the partition on which to operate
+     * @param now current time in milliseconds
+     * 
+     * @return number of entries evicted
+     */
+    private int evictExpired(String partition, Partition<KeyType, ValueType> partitionStore, long now) {
+        if (!partitionStore.evicting.compareAndSet(false, true)) {
+            return 0;
+        }
+
+        int evicted = 0;
+        try {
+            long currentBucket = now / bucketWidth;
+            Map.Entry<Long, Set<KeyType>> bucket = partitionStore.buckets.firstEntry();
+            while (bucket != null && bucket.getKey() < currentBucket) {
+                if (partitionStore.buckets.remove(bucket.getKey(), bucket.getValue())) {
+                    evicted += evictBucket(partitionStore, bucket.getValue(), now);
+                }
+                bucket = partitionStore.buckets.firstEntry();
+            }
+            partitionStore.nextEviction = (currentBucket + 1) * bucketWidth;
+        } finally {
+            partitionStore.evicting.set(false);
+        }
+
+        if (evicted > 0) {
+            log.trace("Evicted {} expired entries from storage service partition {}", evicted, partition);
+        }
+        return evicted;
+    }
+
+    /**
+     * Removes the entries filed under a bucket that are still expired. Keys that have since been removed, or whose
+     * value has been replaced by one expiring later, are skipped; a replaced value is filed under its own bucket. As
+     * with {@link AbstractExpiringObject#isExpired()}, an entry only expires once its expiration instant has passed.
+     * 
+     * @param partitionStore the partition on which to operate
+     * @param keys keys filed under the bucket
+     * @param now current time in milliseconds
+     * 
+     * @return number of entries evicted
+     */
+    private int evictBucket(Partition<KeyType, ValueType> partitionStore, Set<KeyType> keys, long now) {
+        int evicted = 0;
+        ValueType value;
+        for (KeyType key : keys) {
+            value = partitionStore.entries.get(key);
+            if (value instanceof ExpiringObject && getExpirationMillis((ExpiringObject) value) < now
+                    && partitionStore.entries.remove(key, value)) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Gets the expiration instant of a value, avoiding the {@link org.joda.time.DateTime} allocation for values that
+     * extend {@link AbstractExpiringObject}.
+     * 
+     * @param value the value
+     * 
+     * @return the expiration instant in milliseconds since the epoch
+     */
+    private long getExpirationMillis(ExpiringObject value) {
+        if (value instanceof AbstractExpiringObject) {
+            return ((AbstractExpiringObject) value).getExpirationMillis();
+        }
+        return value.getExpirationTime().getMillis();
+    }
+
+    /**
+     * Files a key under the bucket containing its value's expiration instant, if the value is an
+     * {@link ExpiringObject}.
+     * 
+     * @param partitionStore the partition on which to operate
+     * @param key the key
+     * @param value the value stored under the key
+     */
+    private void index(Partition<KeyType, ValueType> partitionStore, KeyType key, ValueType value) {
+        if (value instanceof ExpiringObject) {
+            index(partitionStore, key, getExpirationMillis((ExpiringObject) value));
+        }
+    }
+
+    /**
+     * Files a key under the bucket containing the given expiration instant.
+     * 
+     * @param partitionStore the partition on which to operate
+     * @param key the key
+     * @param expiration expiration instant of the key's value, in milliseconds
+     */
+    private void index(Partition<KeyType, ValueType> partitionStore, KeyType key, long expiration) {
+        Long bucketId = expiration / bucketWidth;
+        Set<KeyType> bucket;
+        Set<KeyType> existing;
+        while (true) {
+            bucket = partitionStore.buckets.get(bucketId);
+            if (bucket == null) {
+                bucket = Collections.newSetFromMap(new ConcurrentHashMap<KeyType, Boolean>());
+                existing = partitionStore.buckets.putIfAbsent(bucketId, bucket);
+                if (existing != null) {
+                    bucket = existing;
+                }
+            }
+            bucket.add(key);
+
+            // if the bucket was evicted while the key was being added, file the key again under a fresh bucket
+            if (partitionStore.buckets.get(bucketId) == bucket) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the given partition, creating it if it does not yet exist.
+     * 
+     * @param partition name of the partition
+     * 
+     * @return the partition
+     */
+    private Partition<KeyType, ValueType> getPartition(String partition) {
+        Partition<KeyType, ValueType> partitionStore = store.get(partition);
+        if (partitionStore == null) {
+            partitionStore = new Partition<KeyType, ValueType>();
+            Partition<KeyType, ValueType> existing = store.putIfAbsent(partition, partitionStore);
+            if (existing != null) {
+                partitionStore = existing;
+            }
+        }
+        return partitionStore;
+    }
+
+    /**
+     * A storage partition and its expiration index.
+     * 
+     * @param <KeyType> object type of the keys
+     * @param <ValueType> object type of the values
+     */
+    private static class Partition<KeyType, ValueType> {
+
+        /** Entries stored in the partition. */
+        private final ConcurrentMap<KeyType, ValueType> entries = new ConcurrentHashMap<KeyType, ValueType>();
+
+        /** Keys filed by expiration bucket, ordered by bucket. */
+        private final ConcurrentSkipListMap<Long, Set<KeyType>> buckets =
+                new ConcurrentSkipListMap<Long, Set<KeyType>>();
+
+        /** Whether a thread is currently evicting from this partition. */
+        private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+        /** Time, in milliseconds, after which the next write triggers an eviction pass. */
+        private volatile long nextEviction;
+    }
+}
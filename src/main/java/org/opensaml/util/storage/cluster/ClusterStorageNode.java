@@ -0,0 +1,102 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.util.storage.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opensaml.util.storage.StorageService;
+
+/**
+ * The receiving side of a {@link ClusterTransport}: executes batches of operations against the entries a node owns.
+ * 
+ * {@link StorageOperation.Type#PUT_IF_ABSENT} maps onto
+ * {@link StorageService#putIfAbsent(String, Object, Object, long)} of the local store, which makes it atomic with
+ * respect to every other operation on the same key.
+ * 
+ * @param <KeyType> object type of the keys
+ * @param <ValueType> object type of the values
+ */
+public class ClusterStorageNode<KeyType, ValueType> {
+
+    /** Store holding the entries owned by this node. */
+    private final StorageService<KeyType, ValueType> localStore;
+
+    /**
+     * Constructor.
+     * 
+     * @param store store holding the entries owned by this node
+     */
+    public ClusterStorageNode(StorageService<KeyType, ValueType> store) {
+        localStore = store;
+    }
+
+    /**
+     * Gets the store holding the entries owned by this node.
+     * 
+     * @return store holding the entries owned by this node
+     */
+    public StorageService<KeyType, ValueType> getLocalStore() {
+        return localStore;
+    }
+
+    /**
+     * Executes a batch of operations, in order.
+     * 
+     * @param partition partition on which to operate
+     * @param operations operations to execute
+     * 
+     * @return the result of each operation, in the same order as the operations
+     */
+    public List<ValueType> execute(String partition, List<StorageOperation<KeyType, ValueType>> operations) {
+        List<ValueType> results = new ArrayList<ValueType>(operations.size());
+        for (StorageOperation<KeyType, ValueType> operation : operations) {
+            results.add(execute(partition, operation));
+        }
+        return results;
+    }
+
+    /**
+     * Executes a single operation.
+     * 
+     * @param partition partition on which to operate
+     * @param operation operation to execute
+     * 
+     * @return result of the operation
+     */
+    protected ValueType execute(String partition, StorageOperation<KeyType, ValueType> operation) {
+        switch (operation.getType()) {
+            case GET:
+                return localStore.get(partition, operation.getKey());
+            case PUT:
+                return localStore.put(partition, operation.getKey(), operation.getValue());
+            case REMOVE:
+                return localStore.remove(partition, operation.getKey());
+            case REMOVE_VALUE:
+                if (localStore.remove(partition, operation.getKey(), operation.getValue())) {
+                    return operation.getValue();
+                }
+                return null;
+            case PUT_IF_ABSENT:
+                return localStore.putIfAbsent(partition, operation.getKey(), operation.getValue(), operation
+                        .getTtl());
+            default:
+                throw new IllegalArgumentException("Unsupported storage operation " + operation.getType());
+        }
+    }
+}
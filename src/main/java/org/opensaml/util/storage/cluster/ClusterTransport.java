@@ -0,0 +1,62 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.util.storage.cluster;
+
+import java.util.List;
+
+/**
+ * Transport used by a {@link ClusteredStorageService} to reach the other nodes of the cluster.
+ * 
+ * Implementations deliver a batch of operations to the named node, where they are handed to that node's
+ * {@link ClusterStorageNode#execute(String, List)}, and return the results. A batch is delivered in a single round
+ * trip and executed in order.
+ * 
+ * @param <KeyType> object type of the keys
+ * @param <ValueType> object type of the values
+ */
+public interface ClusterTransport<KeyType, ValueType> {
+
+    /**
+     * Gets the identifier of the node this transport runs on.
+     * 
+     * @return identifier of the local node
+     */
+    public String getLocalNodeId();
+
+    /**
+     * Gets the identifiers of all nodes currently members of the cluster, including the local node. Every node must
+     * see the same membership for keys to be routed consistently.
+     * 
+     * @return identifiers of the cluster members
+     */
+    public List<String> getNodeIds();
+
+    /**
+     * Executes a batch of operations on the given node.
+     * 
+     * @param nodeId identifier of the node to execute the operations on
+     * @param partition partition on which to operate
+     * @param operations operations to execute, in order
+     * 
+     * @return the result of each operation, in the same order as the operations
+     * 
+     * @throws ClusterStorageException thrown if the node can not be reached or fails to execute the batch
+     */
+    public List<ValueType> execute(String nodeId, String partition,
+            List<StorageOperation<KeyType, ValueType>> operations) throws ClusterStorageException;
+}
@@ -0,0 +1,559 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.util.storage.cluster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.opensaml.util.storage.StorageService;
+
+/**
+ * A {@link StorageService} that partitions its entries across the nodes of a cluster.
+ * 
+ * Each key is owned by exactly one node, chosen by rendezvous hashing of the key over the members reported by the
+ * {@link ClusterTransport}; all operations on a key are executed by its owner. Because the owner's store makes its
+ * own put-if-absent atomic, {@link #putIfAbsent(String, Object, Object, long)} gives cluster-wide check-and-insert
+ * semantics, which is what replay detection needs, in a single round trip. Batch operations are grouped so that each
+ * node is contacted at most once per batch.
+ * 
+ * When a node joins, the keys it now owns move to it without their entries. For a transition period after each
+ * membership change this service therefore also consults, for every key whose owner changed, the owner under the
+ * previous membership: {@link #putIfAbsent(String, Object, Object, long)} is executed on both owners and reports an
+ * entry found on either, {@link #get(String, Object)} falls back to the previous owner, and removals are executed on
+ * both. Because nodes that have not yet seen the new membership still use the previous owner, the put-if-absent there
+ * keeps replay detection atomic across the change. The transition period should be at least the longest lifetime of
+ * the stored entries, such as the replay cache entry duration; once it has passed, entries remaining only on a
+ * previous owner are no longer found. A node seeing the membership for the first time assumes it has just joined the
+ * other members. Entries owned by a node that leaves the cluster are lost with it.
+ * 
+ * {@link #getPartitions()} and {@link #getKeys(String)} only enumerate the entries owned by the local node, so a
+ * sweeper running on every node sweeps the whole cluster exactly once.
+ * 
+ * Transport failures surface as {@link ClusterStorageException}s rather than being treated as a missing entry.
+ * 
+ * @param <KeyType> object type of the keys
+ * @param <ValueType> object type of the values
+ */
+public class ClusteredStorageService<KeyType, ValueType> implements StorageService<KeyType, ValueType> {
+
+    /** Default length, in milliseconds, of the transition period following a membership change: 10 minutes. */
+    public static final long DEFAULT_TRANSITION_PERIOD = 10 * 60 * 1000;
+
+    /** Transport used to reach the other nodes. */
+    private final ClusterTransport<KeyType, ValueType> transport;
+
+    /** The local node. */
+    private final ClusterStorageNode<KeyType, ValueType> localNode;
+
+    /** Length, in milliseconds, of the transition period following a membership change. */
+    private final long transitionPeriod;
+
+    /** Membership last seen, or null if the membership has not been seen yet. */
+    private final AtomicReference<Membership> membership;
+
+    /**
+     * Constructor. The transition period following a membership change is {@link #DEFAULT_TRANSITION_PERIOD}.
+     * 
+     * @param clusterTransport transport used to reach the other nodes
+     * @param node the local node, which must also be reachable through the transport under the transport's local
+     *            node identifier
+     */
+    public ClusteredStorageService(ClusterTransport<KeyType, ValueType> clusterTransport,
+            ClusterStorageNode<KeyType, ValueType> node) {
+        this(clusterTransport, node, DEFAULT_TRANSITION_PERIOD);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param clusterTransport transport used to reach the other nodes
+     * @param node the local node, which must also be reachable through the transport under the transport's local
+     *            node identifier
+     * @param period length, in milliseconds, of the transition period following a membership change, during which
+     *            the previous owner of a key is also consulted; 0 to only ever consult the current owner
+     */
+    public ClusteredStorageService(ClusterTransport<KeyType, ValueType> clusterTransport,
+            ClusterStorageNode<KeyType, ValueType> node, long period) {
+        transport = clusterTransport;
+        localNode = node;
+        transitionPeriod = period;
+        membership = new AtomicReference<Membership>();
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<String> getPartitions() {
+        return localNode.getLocalStore().getPartitions();
+    }
+
+    /** {@inheritDoc} */
+    public Iterator<KeyType> getKeys(String partition) {
+        return localNode.getLocalStore().getKeys(partition);
+    }
+
+    /** {@inheritDoc} */
+    public boolean contains(String partition, KeyType key) {
+        if (key == null) {
+            return false;
+        }
+
+        return get(partition, key) != null;
+    }
+
+    /** {@inheritDoc} */
+    public ValueType get(String partition, KeyType key) {
+        if (key == null) {
+            return null;
+        }
+
+        return execute(partition, new StorageOperation<KeyType, ValueType>(StorageOperation.Type.GET, key, null));
+    }
+
+    /** {@inheritDoc} */
+    public ValueType put(String partition, KeyType key, ValueType value) {
+        if (key == null) {
+            return null;
+        }
+
+        return execute(partition, new StorageOperation<KeyType, ValueType>(StorageOperation.Type.PUT, key, value));
+    }
+
+    /** {@inheritDoc} */
+    public ValueType remove(String partition, KeyType key) {
+        if (key == null) {
+            return null;
+        }
+
+        return execute(partition, new StorageOperation<KeyType, ValueType>(StorageOperation.Type.REMOVE, key, null));
+    }
+
+    /** {@inheritDoc} */
+    public boolean remove(String partition, KeyType key, ValueType value) {
+        if (key == null || value == null) {
+            return false;
+        }
+
+        return execute(partition, new StorageOperation<KeyType, ValueType>(StorageOperation.Type.REMOVE_VALUE, key,
+                value)) != null;
+    }
+
+    /** {@inheritDoc} */
+    public ValueType putIfAbsent(String partition, KeyType key, ValueType value, long ttl) {
+        if (key == null) {
+            return null;
+        }
+
+        return execute(partition, new StorageOperation<KeyType, ValueType>(StorageOperation.Type.PUT_IF_ABSENT, key,
+                value, ttl));
+    }
+
+    /** {@inheritDoc} */
+    public Map<KeyType, ValueType> getAll(String partition, Collection<KeyType> keys) {
+        Map<KeyType, ValueType> values = new HashMap<KeyType, ValueType>();
+        if (keys == null) {
+            return values;
+        }
+
+        Map<String, List<StorageOperation<KeyType, ValueType>>> batches =
+                new HashMap<String, List<StorageOperation<KeyType, ValueType>>>();
+        List<String> nodeIds = transport.getNodeIds();
+        for (KeyType key : keys) {
+            addToBatch(batches, nodeIds, new StorageOperation<KeyType, ValueType>(StorageOperation.Type.GET, key,
+                    null));
+        }
+        executeGets(partition, batches, values);
+
+        List<String> previousNodeIds = getPreviousNodeIds(nodeIds);
+        if (previousNodeIds != null) {
+            Map<String, List<StorageOperation<KeyType, ValueType>>> previousBatches =
+                    new HashMap<String, List<StorageOperation<KeyType, ValueType>>>();
+            String previousOwner;
+            for (KeyType key : keys) {
+                if (key != null && !values.containsKey(key)) {
+                    previousOwner = getPreviousOwner(nodeIds, previousNodeIds, key);
+                    if (previousOwner != null) {
+                        addToBatch(previousBatches, previousOwner, new StorageOperation<KeyType, ValueType>(
+                                StorageOperation.Type.GET, key, null));
+                    }
+                }
+            }
+            executeGets(partition, previousBatches, values);
+        }
+        return values;
+    }
+
+    /** {@inheritDoc} */
+    public void putAll(String partition, Map<KeyType, ValueType> entries) {
+        if (entries == null) {
+            return;
+        }
+
+        Map<String, List<StorageOperation<KeyType, ValueType>>> batches =
+                new HashMap<String, List<StorageOperation<KeyType, ValueType>>>();
+        List<String> nodeIds = transport.getNodeIds();
+        for (Map.Entry<KeyType, ValueType> entry : entries.entrySet()) {
+            addToBatch(batches, nodeIds, new StorageOperation<KeyType, ValueType>(StorageOperation.Type.PUT, entry
+                    .getKey(), entry.getValue()));
+        }
+        executeBatches(partition, batches);
+    }
+
+    /** {@inheritDoc} */
+    public void removeAll(String partition, Collection<KeyType> keys) {
+        if (keys == null) {
+            return;
+        }
+
+        Map<String, List<StorageOperation<KeyType, ValueType>>> batches =
+                new HashMap<String, List<StorageOperation<KeyType, ValueType>>>();
+        List<String> nodeIds = transport.getNodeIds();
+        List<String> previousNodeIds = getPreviousNodeIds(nodeIds);
+        String previousOwner;
+        for (KeyType key : keys) {
+            addToBatch(batches, nodeIds, new StorageOperation<KeyType, ValueType>(StorageOperation.Type.REMOVE, key,
+                    null));
+            if (key != null && previousNodeIds != null) {
+                previousOwner = getPreviousOwner(nodeIds, previousNodeIds, key);
+                if (previousOwner != null) {
+                    addToBatch(batches, previousOwner, new StorageOperation<KeyType, ValueType>(
+                            StorageOperation.Type.REMOVE, key, null));
+                }
+            }
+        }
+        executeBatches(partition, batches);
+    }
+
+    /**
+     * Gets the identifier of the node owning a key.
+     * 
+     * @param key the key
+     * 
+     * @return identifier of the owning node
+     */
+    public String getOwner(KeyType key) {
+        return getOwner(transport.getNodeIds(), key);
+    }
+
+    /**
+     * Executes a single operation on the node owning its key and, during a membership transition, also on the key's
+     * previous owner as described in the class documentation.
+     * 
+     * @param partition partition on which to operate
+     * @param operation the operation
+     * 
+     * @return result of the operation
+     */
+    protected ValueType execute(String partition, StorageOperation<KeyType, ValueType> operation) {
+        List<String> nodeIds = transport.getNodeIds();
+        String owner = getOwner(nodeIds, operation.getKey());
+        String previousOwner = null;
+        List<String> previousNodeIds = getPreviousNodeIds(nodeIds);
+        if (previousNodeIds != null && operation.getType() != StorageOperation.Type.PUT) {
+            previousOwner = getPreviousOwner(nodeIds, previousNodeIds, operation.getKey());
+        }
+        if (previousOwner == null) {
+            return execute(owner, partition, operation);
+        }
+
+        ValueType result;
+        ValueType previousResult;
+        if (operation.getType() == StorageOperation.Type.GET) {
+            result = execute(owner, partition, operation);
+            return result != null ? result : execute(previousOwner, partition, operation);
+        } else if (operation.getType() == StorageOperation.Type.PUT_IF_ABSENT) {
+            // the previous owner first, where nodes still on the previous membership perform their checks
+            previousResult = execute(previousOwner, partition, operation);
+            result = execute(owner, partition, operation);
+            return previousResult != null ? previousResult : result;
+        } else {
+            result = execute(owner, partition, operation);
+            previousResult = execute(previousOwner, partition, operation);
+            return result != null ? result : previousResult;
+        }
+    }
+
+    /**
+     * Executes a single operation on a node.
+     * 
+     * @param nodeId identifier of the node
+     * @param partition partition on which to operate
+     * @param operation the operation
+     * 
+     * @return result of the operation
+     */
+    private ValueType execute(String nodeId, String partition, StorageOperation<KeyType, ValueType> operation) {
+        return execute(nodeId, partition, Collections.singletonList(operation)).get(0);
+    }
+
+    /**
+     * Executes a batch of operations on a node, bypassing the transport for the local node.
+     * 
+     * @param nodeId identifier of the node
+     * @param partition partition on which to operate
+     * @param operations the operations
+     * 
+     * @return results of the operations
+     */
+    protected List<ValueType> execute(String nodeId, String partition,
+            List<StorageOperation<KeyType, ValueType>> operations) {
+        if (nodeId.equals(transport.getLocalNodeId())) {
+            return localNode.execute(partition, operations);
+        }
+        return transport.execute(nodeId, partition, operations);
+    }
+
+    /**
+     * Adds an operation to the batch of the node owning its key. Operations on a null key are dropped.
+     * 
+     * @param batches batches, indexed by node identifier
+     * @param nodeIds identifiers of the cluster members
+     * @param operation the operation
+     */
+    private void addToBatch(Map<String, List<StorageOperation<KeyType, ValueType>>> batches, List<String> nodeIds,
+            StorageOperation<KeyType, ValueType> operation) {
+        if (operation.getKey() == null) {
+            return;
+        }
+
+        addToBatch(batches, getOwner(nodeIds, operation.getKey()), operation);
+    }
+
+    /**
+     * Adds an operation to the batch of a node.
+     * 
+     * @param batches batches, indexed by node identifier
+     * @param nodeId identifier of the node
+     * @param operation the operation
+     */
+    private void addToBatch(Map<String, List<StorageOperation<KeyType, ValueType>>> batches, String nodeId,
+            StorageOperation<KeyType, ValueType> operation) {
+        List<StorageOperation<KeyType, ValueType>> batch = batches.get(nodeId);
+        if (batch == null) {
+            batch = new ArrayList<StorageOperation<KeyType, ValueType>>();
+            batches.put(nodeId, batch);
+        }
+        batch.add(operation);
+    }
+
+    /**
+     * Executes each node's batch of get operations and collects the values found.
+     * 
+     * @param partition partition on which to operate
+     * @param batches batches, indexed by node identifier
+     * @param values map receiving the values found, indexed by key
+     */
+    private void executeGets(String partition, Map<String, List<StorageOperation<KeyType, ValueType>>> batches,
+            Map<KeyType, ValueType> values) {
+        List<StorageOperation<KeyType, ValueType>> batch;
+        List<ValueType> results;
+        for (Map.Entry<String, List<StorageOperation<KeyType, ValueType>>> nodeBatch : batches.entrySet()) {
+            batch = nodeBatch.getValue();
+            results = execute(nodeBatch.getKey(), partition, batch);
+            for (int i = 0; i < batch.size(); i++) {
+                if (results.get(i) != null) {
+                    values.put(batch.get(i).getKey(), results.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Executes each node's batch of operations.
+     * 
+     * @param partition partition on which to operate
+     * @param batches batches, indexed by node identifier
+     */
+    private void executeBatches(String partition, Map<String, List<StorageOperation<KeyType, ValueType>>> batches) {
+        for (Map.Entry<String, List<StorageOperation<KeyType, ValueType>>> nodeBatch : batches.entrySet()) {
+            execute(nodeBatch.getKey(), partition, nodeBatch.getValue());
+        }
+    }
+
+    /**
+     * Records the current membership and gets the previous one if a transition is in progress.
+     * 
+     * @param nodeIds identifiers of the current cluster members
+     * 
+     * @return identifiers of the members before the last membership change, or null if no transition is in progress
+     */
+    private List<String> getPreviousNodeIds(List<String> nodeIds) {
+        if (transitionPeriod <= 0 || nodeIds == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        Membership current = membership.get();
+        if (current == null || !current.hasMembers(nodeIds)) {
+            List<String> previousNodeIds;
+            if (current != null) {
+                previousNodeIds = current.getNodeIds();
+            } else {
+                // seen for the first time, assume the local node has just joined the other members
+                previousNodeIds = new ArrayList<String>(nodeIds);
+                previousNodeIds.remove(transport.getLocalNodeId());
+            }
+            Membership changed = new Membership(new ArrayList<String>(nodeIds), previousNodeIds, now
+                    + transitionPeriod);
+            // a concurrent update has recorded the same change, or an even more recent one
+            membership.compareAndSet(current, changed);
+            current = changed;
+        }
+
+        if (now >= current.getTransitionEnd() || current.getPreviousNodeIds().isEmpty()) {
+            return null;
+        }
+        return current.getPreviousNodeIds();
+    }
+
+    /**
+     * Gets the owner of a key under the previous membership, if it differs from the current owner and is still a
+     * member of the cluster.
+     * 
+     * @param nodeIds identifiers of the current cluster members
+     * @param previousNodeIds identifiers of the members before the last membership change
+     * @param key the key
+     * 
+     * @return identifier of the previous owner, or null if the previous owner need not be consulted
+     */
+    private String getPreviousOwner(List<String> nodeIds, List<String> previousNodeIds, KeyType key) {
+        String previousOwner = getOwner(previousNodeIds, key);
+        if (previousOwner.equals(getOwner(nodeIds, key)) || !nodeIds.contains(previousOwner)) {
+            return null;
+        }
+        return previousOwner;
+    }
+
+    /**
+     * Selects the node owning a key by rendezvous hashing: the node whose identifier, mixed with the key's hash,
+     * yields the highest weight. Adding or removing a node only moves the keys that node gains or loses.
+     * 
+     * @param nodeIds identifiers of the cluster members
+     * @param key the key
+     * 
+     * @return identifier of the owning node
+     */
+    private String getOwner(List<String> nodeIds, KeyType key) {
+        if (nodeIds == null || nodeIds.isEmpty()) {
+            throw new ClusterStorageException("Cluster has no members");
+        }
+
+        String owner = null;
+        long highestWeight = Long.MIN_VALUE;
+        long weight;
+        for (String nodeId : nodeIds) {
+            weight = mix(((long) nodeId.hashCode() << 32) ^ (key.hashCode() & 0xffffffffL));
+            if (owner == null || weight > highestWeight) {
+                owner = nodeId;
+                highestWeight = weight;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * Mixes the bits of a 64-bit value.
+     * 
+     * @param value the value
+     * 
+     * @return the mixed value
+     */
+    private static long mix(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /** A cluster membership and the membership it replaced. */
+    private static final class Membership {
+
+        /** Identifiers of the cluster members. */
+        private final List<String> nodeIds;
+
+        /** Identifiers of the cluster members, compared regardless of the order in which they are reported. */
+        private final Set<String> memberSet;
+
+        /** Identifiers of the members before the change to this membership. */
+        private final List<String> previousNodeIds;
+
+        /** Time, in milliseconds since the epoch, at which the transition from the previous membership ends. */
+        private final long transitionEnd;
+
+        /**
+         * Constructor.
+         * 
+         * @param members identifiers of the cluster members
+         * @param previousMembers identifiers of the members before the change to this membership
+         * @param end time, in milliseconds since the epoch, at which the transition ends
+         */
+        private Membership(List<String> members, List<String> previousMembers, long end) {
+            nodeIds = members;
+            memberSet = new HashSet<String>(members);
+            previousNodeIds = previousMembers;
+            transitionEnd = end;
+        }
+
+        /**
+         * Gets the identifiers of the cluster members.
+         * 
+         * @return identifiers of the cluster members
+         */
+        public List<String> getNodeIds() {
+            return nodeIds;
+        }
+
+        /**
+         * Checks whether the given identifiers name the same members as this membership, in whatever order.
+         * 
+         * @param members identifiers of the cluster members
+         * 
+         * @return true if the members are the same
+         */
+        public boolean hasMembers(List<String> members) {
+            return memberSet.containsAll(members) && members.containsAll(memberSet);
+        }
+
+        /**
+         * Gets the identifiers of the members before the change to this membership.
+         * 
+         * @return identifiers of the previous members
+         */
+        public List<String> getPreviousNodeIds() {
+            return previousNodeIds;
+        }
+
+        /**
+         * Gets the time at which the transition from the previous membership ends.
+         * 
+         * @return end of the transition, in milliseconds since the epoch
+         */
+        public long getTransitionEnd() {
+            return transitionEnd;
+        }
+    }
+}
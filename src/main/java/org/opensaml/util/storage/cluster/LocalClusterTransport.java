@@ -0,0 +1,92 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.util.storage.cluster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ClusterTransport} that delivers batches directly to {@link ClusterStorageNode}s living in the same JVM.
+ * 
+ * Every node of an in-process cluster gets its own transport instance sharing one node map. This stands in for a
+ * network transport in tests, and counts the batches it delivers so that round trips can be asserted.
+ * 
+ * @param <KeyType> object type of the keys
+ * @param <ValueType> object type of the values
+ */
+public class LocalClusterTransport<KeyType, ValueType> implements ClusterTransport<KeyType, ValueType> {
+
+    /** Identifier of the node this transport runs on. */
+    private final String localNodeId;
+
+    /** Cluster members, indexed by node identifier. */
+    private final Map<String, ClusterStorageNode<KeyType, ValueType>> nodes;
+
+    /** Number of batches delivered to nodes other than the local one. */
+    private final AtomicLong remoteRequests;
+
+    /**
+     * Constructor.
+     * 
+     * @param nodeId identifier of the node this transport runs on
+     * @param clusterNodes cluster members, indexed by node identifier; shared by the transports of every member
+     */
+    public LocalClusterTransport(String nodeId, Map<String, ClusterStorageNode<KeyType, ValueType>> clusterNodes) {
+        localNodeId = nodeId;
+        nodes = clusterNodes;
+        remoteRequests = new AtomicLong();
+    }
+
+    /** {@inheritDoc} */
+    public String getLocalNodeId() {
+        return localNodeId;
+    }
+
+    /** {@inheritDoc} */
+    public List<String> getNodeIds() {
+        List<String> nodeIds = new ArrayList<String>(nodes.keySet());
+        Collections.sort(nodeIds);
+        return nodeIds;
+    }
+
+    /** {@inheritDoc} */
+    public List<ValueType> execute(String nodeId, String partition,
+            List<StorageOperation<KeyType, ValueType>> operations) throws ClusterStorageException {
+        ClusterStorageNode<KeyType, ValueType> node = nodes.get(nodeId);
+        if (node == null) {
+            throw new ClusterStorageException("Cluster node " + nodeId + " is not available");
+        }
+
+        if (!localNodeId.equals(nodeId)) {
+            remoteRequests.incrementAndGet();
+        }
+        return node.execute(partition, operations);
+    }
+
+    /**
+     * Gets the number of batches delivered to nodes other than the local one.
+     * 
+     * @return number of remote batches
+     */
+    public long getRemoteRequestCount() {
+        return remoteRequests.get();
+    }
+}
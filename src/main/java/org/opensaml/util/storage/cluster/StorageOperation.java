@@ -0,0 +1,131 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.util.storage.cluster;
+
+import java.io.Serializable;
+
+/**
+ * A single storage operation shipped to the node owning its key. Operations are grouped by partition and sent to a
+ * node as one batch; see {@link ClusterTransport#execute(String, String, java.util.List)}.
+ * 
+ * @param <KeyType> object type of the keys
+ * @param <ValueType> object type of the values
+ */
+public class StorageOperation<KeyType, ValueType> implements Serializable {
+
+    /** Kinds of operations. */
+    public enum Type {
+        /** Read the value stored under the key. */
+        GET,
+
+        /** Store the value under the key, returning the previous value. */
+        PUT,
+
+        /** Remove the key, returning the previous value. */
+        REMOVE,
+
+        /**
+         * Remove the key if the value stored under it equals the operation's value. Returns the operation's value if
+         * it was removed, or null otherwise.
+         */
+        REMOVE_VALUE,
+
+        /**
+         * Store the value under the key unless an unexpired value is already present. Returns the present value, or
+         * null if the value was stored.
+         */
+        PUT_IF_ABSENT,
+    }
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 3893716129581044270L;
+
+    /** Kind of operation. */
+    private final Type type;
+
+    /** Key operated on. */
+    private final KeyType key;
+
+    /** Value to store, null for operations that do not store a value. */
+    private final ValueType value;
+
+    /** Time to live hint, in milliseconds, for {@link Type#PUT_IF_ABSENT}. */
+    private final long ttl;
+
+    /**
+     * Constructor.
+     * 
+     * @param operationType kind of operation
+     * @param operationKey key operated on
+     * @param operationValue value to store, or null for operations that do not store a value
+     */
+    public StorageOperation(Type operationType, KeyType operationKey, ValueType operationValue) {
+        this(operationType, operationKey, operationValue, 0);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param operationType kind of operation
+     * @param operationKey key operated on
+     * @param operationValue value to store, or null for operations that do not store a value
+     * @param operationTtl time to live hint, in milliseconds, for {@link Type#PUT_IF_ABSENT}
+     */
+    public StorageOperation(Type operationType, KeyType operationKey, ValueType operationValue, long operationTtl) {
+        type = operationType;
+        key = operationKey;
+        value = operationValue;
+        ttl = operationTtl;
+    }
+
+    /**
+     * Gets the kind of operation.
+     * 
+     * @return kind of operation
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Gets the key operated on.
+     * 
+     * @return key operated on
+     */
+    public KeyType getKey() {
+        return key;
+    }
+
+    /**
+     * Gets the value to store.
+     * 
+     * @return value to store, or null for operations that do not store a value
+     */
+    public ValueType getValue() {
+        return value;
+    }
+
+    /**
+     * Gets the time to live hint for {@link Type#PUT_IF_ABSENT}.
+     * 
+     * @return time to live hint, in milliseconds
+     */
+    public long getTtl() {
+        return ttl;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.opensaml.xml.util.DatatypeHelper;
+
+/**
+ * A bounded cache of lists of values, such as handler chains or security policies, keyed by a message context's
+ * communication profile ID and inbound message issuer.
+ * 
+ * Cached lists are held in a {@link ConcurrentHashMap}, so cache hits neither lock nor serialize with one another.
+ * Once the bound is exceeded the least recently used entry is discarded. Recency is approximate: every entry stored
+ * advances a clock, and a hit marks its entry as used just after the most recently stored entry, so entries hit since
+ * the last store are not ordered among themselves.
+ * 
+ * A value resolved while the cache is being invalidated is returned but not cached, so a stale value is never cached
+ * after an invalidation.
+ * 
+ * @param <ValueType> type of the cached values
+ */
+@ThreadSafe
+public class ProfileIssuerCache<ValueType> {
+
+    /** Maximum number of cached entries. */
+    private final int maxEntries;
+
+    /** Cached values. */
+    private final ConcurrentMap<CacheKey, CacheEntry<ValueType>> entries;
+
+    /** Clock advanced by every entry stored. */
+    private final AtomicLong clock;
+
+    /** Number of times the cache has been invalidated. */
+    private final AtomicLong generation;
+
+    /**
+     * Constructor.
+     * 
+     * @param maximumEntries maximum number of cached entries, must be greater than zero
+     */
+    public ProfileIssuerCache(int maximumEntries) {
+        if (maximumEntries < 1) {
+            throw new IllegalArgumentException("Maximum number of entries must be greater than zero");
+        }
+        maxEntries = maximumEntries;
+        entries = new ConcurrentHashMap<CacheKey, CacheEntry<ValueType>>();
+        clock = new AtomicLong();
+        generation = new AtomicLong();
+    }
+
+    /**
+     * Gets the values cached for the communication profile ID and inbound message issuer of a message context,
+     * resolving and caching them if there are none.
+     * 
+     * @param <ExceptionType> type of the exception thrown by the resolver
+     * @param messageContext the message context
+     * @param resolver resolver of the values of message contexts which have none cached
+     * 
+     * @return an unmodifiable snapshot of the values returned by the resolver; if it returned null, an empty list
+     * 
+     * @throws ExceptionType thrown if the resolver fails
+     */
+    public <ExceptionType extends Exception> List<ValueType> get(MessageContext messageContext,
+            Resolver<ValueType, ExceptionType> resolver) throws ExceptionType {
+        CacheKey key = new CacheKey(messageContext);
+        CacheEntry<ValueType> entry = entries.get(key);
+        if (entry != null) {
+            long used = clock.get() + 1;
+            if (entry.lastUsed != used) {
+                entry.lastUsed = used;
+            }
+            return entry.values;
+        }
+
+        long resolveGeneration = generation.get();
+        List<ValueType> resolved = new ArrayList<ValueType>();
+        Iterable<ValueType> values = resolver.resolve(messageContext);
+        if (values != null) {
+            for (ValueType value : values) {
+                resolved.add(value);
+            }
+        }
+        entry = new CacheEntry<ValueType>(Collections.unmodifiableList(resolved), clock.incrementAndGet());
+
+        CacheEntry<ValueType> existing = entries.putIfAbsent(key, entry);
+        if (existing != null) {
+            return existing.values;
+        }
+        // the generation is advanced before an invalidation discards entries, so an entry stored concurrently with an
+        // invalidation is either discarded by it or noticed here
+        if (resolveGeneration != generation.get()) {
+            entries.remove(key, entry);
+        } else if (entries.size() > maxEntries) {
+            evictLeastRecentlyUsed();
+        }
+        return entry.values;
+    }
+
+    /** Discards all cached values. */
+    public void invalidate() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    /**
+     * Discards the cached values of a single communication profile.
+     * 
+     * @param communicationProfileId the communication profile ID, may be null
+     */
+    public void invalidate(String communicationProfileId) {
+        generation.incrementAndGet();
+        Iterator<CacheKey> keys = entries.keySet().iterator();
+        while (keys.hasNext()) {
+            if (DatatypeHelper.safeEquals(keys.next().profileId, communicationProfileId)) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of cached entries.
+     * 
+     * @return number of cached entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /** Discards the least recently used entries until the cache holds no more than its maximum number of entries. */
+    private void evictLeastRecentlyUsed() {
+        while (entries.size() > maxEntries) {
+            Map.Entry<CacheKey, CacheEntry<ValueType>> eldest = null;
+            for (Map.Entry<CacheKey, CacheEntry<ValueType>> candidate : entries.entrySet()) {
+                if (eldest == null || candidate.getValue().lastUsed < eldest.getValue().lastUsed) {
+                    eldest = candidate;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            entries.remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /**
+     * Resolver of the values of a message context which has none cached. The values may only depend upon the
+     * communication profile ID and inbound message issuer of the message context.
+     * 
+     * @param <ValueType> type of the resolved values
+     * @param <ExceptionType> type of the exception thrown if resolution fails
+     */
+    public interface Resolver<ValueType, ExceptionType extends Exception> {
+
+        /**
+         * Resolves the values of a message context.
+         * 
+         * @param messageContext the message context
+         * 
+         * @return the values, may be null
+         * 
+         * @throws ExceptionType thrown if resolution fails
+         */
+        public Iterable<ValueType> resolve(MessageContext messageContext) throws ExceptionType;
+    }
+
+    /**
+     * Cached values and the time they were last used.
+     * 
+     * @param <ValueType> type of the cached values
+     */
+    private static final class CacheEntry<ValueType> {
+
+        /** The cached values. */
+        private final List<ValueType> values;
+
+        /** Clock value at which the values were last used. */
+        private volatile long lastUsed;
+
+        /**
+         * Constructor.
+         * 
+         * @param cachedValues the cached values
+         * @param used clock value at which the values were stored
+         */
+        private CacheEntry(List<ValueType> cachedValues, long used) {
+            values = cachedValues;
+            lastUsed = used;
+        }
+    }
+
+    /** Cache key made of a message context's communication profile ID and inbound message issuer. */
+    private static final class CacheKey {
+
+        /** The communication profile ID, may be null. */
+        private final String profileId;
+
+        /** The inbound message issuer, may be null. */
+        private final String issuer;
+
+        /**
+         * Constructor.
+         * 
+         * @param messageContext the message context
+         */
+        private CacheKey(MessageContext messageContext) {
+            profileId = messageContext.getCommunicationProfileId();
+            issuer = messageContext.getInboundMessageIssuer();
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            int hash = profileId == null ? 0 : profileId.hashCode();
+            return 31 * hash + (issuer == null ? 0 : issuer.hashCode());
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) obj;
+            return DatatypeHelper.safeEquals(profileId, other.profileId)
+                    && DatatypeHelper.safeEquals(issuer, other.issuer);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+import org.opensaml.ws.message.MessageContext;
+
+/**
+ * A {@link Handler} which can process a message context without holding the invoking thread, for example while it
+ * waits on a metadata lookup, a remote replay check or a token validation callout.
+ * 
+ * <p>
+ * When run by an {@link AsyncHandlerChainExecutor} the handler is invoked through
+ * {@link #invokeAsync(MessageContext, HandlerCallback)} and the rest of the chain continues on whichever thread
+ * notifies the callback. When run as part of an ordinary, synchronous chain invocation {@link #invoke(MessageContext)}
+ * is used instead, and must block until processing is done; {@link BaseAsyncHandler} implements it that way.
+ * </p>
+ */
+public interface AsyncHandler extends Handler {
+
+    /**
+     * Start processing the specified message context. The handler must notify the callback exactly once, either
+     * before returning or later from another thread, and must not throw once it has arranged for the callback to be
+     * notified.
+     * 
+     * @param msgContext the message context on which to invoke the handler
+     * @param callback the callback to notify once processing is done
+     */
+    public void invokeAsync(MessageContext msgContext, HandlerCallback callback);
+
+}
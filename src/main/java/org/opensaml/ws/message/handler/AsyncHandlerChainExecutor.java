@@ -0,0 +1,255 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.opensaml.ws.message.MessageContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Invokes handler chains on a message context without blocking on {@link AsyncHandler}s.
+ * 
+ * <p>
+ * The effective handlers of the given chains are invoked in order. Ordinary handlers are invoked synchronously, on the
+ * current thread, exactly as by {@link HandlerChain#invoke(MessageContext)}. An {@link AsyncHandler} is started with
+ * {@link AsyncHandler#invokeAsync(MessageContext, HandlerCallback)} and, unless it completes immediately, the calling
+ * thread is released; the remaining handlers are then invoked on the thread which notifies the handler's callback.
+ * The outcome is reported through the returned future and an optional {@link HandlerCallback}. The first handler to
+ * fail ends execution. Cancelling the future stops execution before the next handler is invoked.
+ * </p>
+ * 
+ * <p>
+ * The handlers executing each chain are resolved by {@link #getHandlers(HandlerChain)} when execution starts. A chain
+ * without asynchronous handlers is executed by its own {@link HandlerChain#invoke(MessageContext)}, so its
+ * {@link HandlerMetrics} and, for a {@link ParallelPhasedHandlerChain}, its concurrent invocation of independent
+ * handlers apply as usual. A chain with asynchronous handlers is executed one effective handler at a time instead,
+ * without its metrics or concurrency.
+ * </p>
+ */
+@ThreadSafe
+public class AsyncHandlerChainExecutor {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AsyncHandlerChainExecutor.class);
+
+    /**
+     * Invokes the given handler chains, in order, on the specified message context.
+     * 
+     * @param handlerChains the handler chains to invoke, null chains are skipped; may be null
+     * @param msgContext the message context on which to invoke the handler chains
+     * @param callback callback notified when execution completes, may be null
+     * 
+     * @return future which completes with the message context once every handler has completed, or fails with the
+     *         {@link HandlerException} or runtime exception of the first handler to fail
+     */
+    public Future<MessageContext> execute(Iterable<HandlerChain> handlerChains, MessageContext msgContext,
+            HandlerCallback callback) {
+        List<Handler> handlers = new ArrayList<Handler>();
+        if (handlerChains != null) {
+            for (HandlerChain handlerChain : handlerChains) {
+                if (handlerChain != null) {
+                    handlers.addAll(getHandlers(handlerChain));
+                }
+            }
+        }
+
+        Execution execution = new Execution(handlers, msgContext, callback);
+        execution.proceed();
+        return execution;
+    }
+
+    /**
+     * Gets the handlers by which a handler chain is executed. If none of the chain's effective handlers is an
+     * {@link AsyncHandler} this is a single handler invoking the chain itself, otherwise it is the chain's effective
+     * handlers. Subclasses may override this to execute particular chains differently.
+     * 
+     * @param handlerChain the handler chain
+     * 
+     * @return the handlers executing the chain, in order
+     */
+    protected List<Handler> getHandlers(HandlerChain handlerChain) {
+        List<Handler> chainHandlers = handlerChain.getHandlers();
+        for (int i = 0; i < chainHandlers.size(); i++) {
+            if (chainHandlers.get(i) instanceof AsyncHandler) {
+                return chainHandlers;
+            }
+        }
+        return Collections.<Handler> singletonList(new ChainHandler(handlerChain));
+    }
+
+    /** Handler invoking a whole handler chain. */
+    private static final class ChainHandler implements Handler {
+
+        /** The handler chain. */
+        private final HandlerChain handlerChain;
+
+        /**
+         * Constructor.
+         * 
+         * @param chain the handler chain
+         */
+        private ChainHandler(HandlerChain chain) {
+            handlerChain = chain;
+        }
+
+        /** {@inheritDoc} */
+        public void invoke(MessageContext msgContext) throws HandlerException {
+            handlerChain.invoke(msgContext);
+        }
+    }
+
+    /** Execution of a list of handlers on a single message context. */
+    private final class Execution extends HandlerCallbackFuture {
+
+        /** Handlers to invoke, in order. */
+        private final List<Handler> handlers;
+
+        /** Index of the next handler to invoke. Only accessed by the thread currently driving the execution. */
+        private int next;
+
+        /**
+         * Constructor.
+         * 
+         * @param chainHandlers handlers to invoke, in order
+         * @param context the message context on which to invoke the handlers
+         * @param callback callback notified on completion, may be null
+         */
+        private Execution(List<Handler> chainHandlers, MessageContext context, HandlerCallback callback) {
+            super(context, callback);
+            handlers = chainHandlers;
+        }
+
+        /**
+         * Invokes handlers until all have completed, one fails, the execution is cancelled or an asynchronous handler
+         * does not complete immediately. In the last case the handler's callback resumes the execution.
+         */
+        private void proceed() {
+            MessageContext msgContext = getMessageContext();
+            while (!isDone()) {
+                if (next == handlers.size()) {
+                    complete();
+                    return;
+                }
+
+                Handler handler = handlers.get(next++);
+                if (log.isTraceEnabled()) {
+                    log.trace("Invoking handler: {}", handler.getClass().getName());
+                }
+
+                if (handler instanceof AsyncHandler) {
+                    Step step = new Step();
+                    try {
+                        ((AsyncHandler) handler).invokeAsync(msgContext, step);
+                    } catch (RuntimeException e) {
+                        step.onFailure(msgContext, e);
+                    }
+                    if (!step.release()) {
+                        return;
+                    }
+                    if (step.error != null) {
+                        fail(step.error);
+                        return;
+                    }
+                } else {
+                    try {
+                        handler.invoke(msgContext);
+                    } catch (HandlerException e) {
+                        fail(e);
+                        return;
+                    } catch (RuntimeException e) {
+                        fail(e);
+                        return;
+                    }
+                }
+            }
+        }
+
+        /** Callback of a single asynchronous handler invocation. */
+        private final class Step implements HandlerCallback {
+
+            /** Whether the handler is still being started. Guarded by the execution's monitor. */
+            private boolean starting = true;
+
+            /** Whether the handler has completed. Guarded by the execution's monitor. */
+            private boolean completed;
+
+            /** Failure reported by the handler, if any. Guarded by the execution's monitor. */
+            private Exception error;
+
+            /** {@inheritDoc} */
+            public void onSuccess(MessageContext msgContext) {
+                resume(null);
+            }
+
+            /** {@inheritDoc} */
+            public void onFailure(MessageContext msgContext, Exception failure) {
+                if (failure instanceof HandlerException || failure instanceof RuntimeException) {
+                    resume(failure);
+                } else {
+                    resume(new HandlerException("Asynchronous handler failed", failure));
+                }
+            }
+
+            /**
+             * Called by the starting thread once the handler's {@link AsyncHandler#invokeAsync} has returned.
+             * 
+             * @return true if the handler has already completed and the starting thread should continue the execution,
+             *         false if the handler's callback will continue it
+             */
+            private boolean release() {
+                synchronized (Execution.this) {
+                    starting = false;
+                    return completed;
+                }
+            }
+
+            /**
+             * Records the completion of the handler and, if the starting thread has already been released, continues
+             * the execution on the current thread.
+             * 
+             * @param failure the handler's failure, or null if it succeeded
+             */
+            private void resume(Exception failure) {
+                synchronized (Execution.this) {
+                    if (completed) {
+                        log.warn("Asynchronous handler notified its callback more than once");
+                        return;
+                    }
+                    completed = true;
+                    error = failure;
+                    if (starting) {
+                        return;
+                    }
+                }
+
+                if (failure != null) {
+                    fail(failure);
+                } else {
+                    proceed();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.opensaml.ws.message.MessageContext;
+
+/**
+ * Base class for {@link AsyncHandler}s whose synchronous {@link #invoke(MessageContext)} simply starts asynchronous
+ * processing and waits for it to complete.
+ */
+public abstract class BaseAsyncHandler implements AsyncHandler {
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Starts asynchronous processing and blocks the calling thread until the callback is notified.
+     * </p>
+     */
+    public void invoke(MessageContext msgContext) throws HandlerException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Exception[] failure = new Exception[1];
+        invokeAsync(msgContext, new HandlerCallback() {
+            public void onSuccess(MessageContext context) {
+                latch.countDown();
+            }
+
+            public void onFailure(MessageContext context, Exception error) {
+                failure[0] = error;
+                latch.countDown();
+            }
+        });
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HandlerException("Interrupted while waiting for asynchronous handler", e);
+        }
+
+        if (failure[0] instanceof HandlerException) {
+            throw (HandlerException) failure[0];
+        } else if (failure[0] instanceof RuntimeException) {
+            throw (RuntimeException) failure[0];
+        } else if (failure[0] != null) {
+            throw new HandlerException(failure[0]);
+        }
+    }
+
+}
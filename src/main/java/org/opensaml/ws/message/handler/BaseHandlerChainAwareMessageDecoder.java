@@ -17,6 +17,8 @@
 
 package org.opensaml.ws.message.handler;
 
+import java.util.concurrent.Future;
+
 import org.opensaml.ws.message.MessageContext;
 import org.opensaml.ws.message.decoder.BaseMessageDecoder;
 import org.opensaml.ws.message.decoder.MessageDecodingException;
@@ -33,12 +35,16 @@ public abstract class BaseHandlerChainAwareMessageDecoder extends BaseMessageDec
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(BaseHandlerChainAwareMessageDecoder.class);
     
+    /** Executor used to invoke the inbound handler chains when decoding asynchronously. */
+    private AsyncHandlerChainExecutor asyncHandlerChainExecutor;
+    
     /**
      * Constructor.
      *
      */
     public BaseHandlerChainAwareMessageDecoder() {
         super();
+        asyncHandlerChainExecutor = new AsyncHandlerChainExecutor();
     }
 
     /**
@@ -48,6 +54,28 @@ public abstract class BaseHandlerChainAwareMessageDecoder extends BaseMessageDec
      */
     public BaseHandlerChainAwareMessageDecoder(ParserPool pool) {
         super(pool);
+        asyncHandlerChainExecutor = new AsyncHandlerChainExecutor();
+    }
+
+    /**
+     * Gets the executor used to invoke the inbound handler chains when decoding asynchronously.
+     * 
+     * @return the executor
+     */
+    public AsyncHandlerChainExecutor getAsyncHandlerChainExecutor() {
+        return asyncHandlerChainExecutor;
+    }
+
+    /**
+     * Sets the executor used to invoke the inbound handler chains when decoding asynchronously.
+     * 
+     * @param executor the executor
+     */
+    public void setAsyncHandlerChainExecutor(AsyncHandlerChainExecutor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Handler chain executor may not be null");
+        }
+        asyncHandlerChainExecutor = executor;
     }
 
     /** {@inheritDoc} */
@@ -69,6 +97,31 @@ public abstract class BaseHandlerChainAwareMessageDecoder extends BaseMessageDec
         
         log.debug("Successfully decoded message.");
     }
+
+    /**
+     * Decodes a message in the same way as {@link #decode(MessageContext)}, but without blocking the calling thread on
+     * {@link AsyncHandler}s in the inbound handler chains.
+     * 
+     * <p>
+     * The message is decoded and any pre-SecurityPolicy inbound handler chains are started on the calling thread.
+     * Once those handler chains complete, the security policy is evaluated and the post-SecurityPolicy inbound handler
+     * chains are invoked, on whichever thread completed the last asynchronous handler. Ordinary handlers are invoked
+     * synchronously as before; if no handler is asynchronous the message has been completely decoded when this method
+     * returns. Handler chains are invoked by the configured {@link AsyncHandlerChainExecutor}, not by
+     * {@link #invokeHandlerChain(HandlerChain, MessageContext)}.
+     * </p>
+     * 
+     * @param messageContext the message context to decode
+     * @param callback callback notified when decoding completes, may be null
+     * 
+     * @return future which completes with the message context once it has been decoded, or fails with the
+     *         {@link MessageDecodingException} or {@link SecurityException} describing the problem
+     */
+    public Future<MessageContext> decodeAsync(MessageContext messageContext, HandlerCallback callback) {
+        AsyncDecode decode = new AsyncDecode(messageContext, callback);
+        decode.start();
+        return decode;
+    }
     
     /**
      * Process the pre-SecurityPolicy inbound {@link HandlerChain} for the message context, if any.
@@ -133,4 +186,98 @@ public abstract class BaseHandlerChainAwareMessageDecoder extends BaseMessageDec
         }
     }
 
+    /** Asynchronous decoding of a single message context. */
+    private final class AsyncDecode extends HandlerCallbackFuture implements HandlerCallback {
+
+        /** Whether the post-SecurityPolicy inbound handler chains have been started. */
+        private volatile boolean postSecurity;
+
+        /**
+         * Constructor.
+         * 
+         * @param messageContext the message context to decode
+         * @param callback callback notified on completion, may be null
+         */
+        private AsyncDecode(MessageContext messageContext, HandlerCallback callback) {
+            super(messageContext, callback);
+        }
+
+        /** Decodes the message and starts the pre-SecurityPolicy inbound handler chains. */
+        private void start() {
+            MessageContext messageContext = getMessageContext();
+            log.debug("Beginning to asynchronously decode message from inbound transport of type: {}", messageContext
+                    .getInboundMessageTransport().getClass().getName());
+            try {
+                doDecode(messageContext);
+            } catch (MessageDecodingException e) {
+                fail(e);
+                return;
+            }
+
+            logDecodedMessage(messageContext);
+
+            invokeHandlerChains(messageContext.getPreSecurityInboundHandlerChainResolver());
+        }
+
+        /**
+         * Resolves and starts the inbound handler chains of the current phase.
+         * 
+         * @param resolver resolver of the handler chains, may be null
+         */
+        private void invokeHandlerChains(HandlerChainResolver resolver) {
+            if (resolver == null) {
+                onSuccess(getMessageContext());
+                return;
+            }
+
+            Iterable<HandlerChain> handlerChains;
+            try {
+                handlerChains = resolver.resolve(getMessageContext());
+            } catch (HandlerException e) {
+                onFailure(getMessageContext(), e);
+                return;
+            }
+            log.debug("Invoking {}-SecurityPolicy inbound handler chain on message context",
+                    postSecurity ? "post" : "pre");
+            asyncHandlerChainExecutor.execute(handlerChains, getMessageContext(), this);
+        }
+
+        /** {@inheritDoc} */
+        public void onSuccess(MessageContext messageContext) {
+            if (postSecurity) {
+                log.debug("Successfully processed post-SecurityPolicy inbound handler chain.");
+                log.debug("Successfully decoded message.");
+                complete();
+                return;
+            }
+
+            log.debug("Successfully processed pre-SecurityPolicy inbound handler chain.");
+            try {
+                processSecurityPolicy(messageContext);
+            } catch (SecurityException e) {
+                fail(e);
+                return;
+            }
+
+            postSecurity = true;
+            invokeHandlerChains(messageContext.getPostSecurityInboundHandlerChainResolver());
+        }
+
+        /** {@inheritDoc} */
+        public void onFailure(MessageContext messageContext, Exception error) {
+            if (!(error instanceof HandlerException)) {
+                fail(error);
+            } else if (postSecurity) {
+                log.error("Encountered post-SecurityPolicy HandlerException when decoding message: {}",
+                        error.getMessage());
+                fail(new MessageDecodingException("Handler exception while decoding message", error));
+            } else {
+                log.error("Encountered pre-SecurityPolicy HandlerException when decoding message: {}",
+                        error.getMessage());
+                fail(new MessageDecodingException("Pre-SecurityPolicy Handler exception while decoding message",
+                        error));
+            }
+        }
+    }
+
 }
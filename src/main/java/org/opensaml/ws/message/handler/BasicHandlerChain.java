@@ -35,6 +35,9 @@ public class BasicHandlerChain implements HandlerChain {
     /** The handler chain. */
     private List<Handler> handlers;
 
+    /** Receiver of invocation latencies, invocations are not timed if null. */
+    private HandlerMetrics metrics;
+
     /** Constructor. */
     public BasicHandlerChain() {
         handlers = new LazyList<Handler>();
@@ -48,9 +51,77 @@ public class BasicHandlerChain implements HandlerChain {
     /** {@inheritDoc} */
     public void invoke(MessageContext msgContext) throws HandlerException {
         log.trace("Invoking handler chain");
-        for (Handler handler : getHandlers()) {
+        invokeHandlers(getHandlers(), msgContext);
+    }
+
+    /**
+     * Gets the receiver of invocation latencies.
+     * 
+     * @return receiver of invocation latencies, or null if invocations are not timed
+     */
+    public HandlerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the receiver of invocation latencies. Only when this is set are handler invocations, and for a
+     * {@link PhasedHandlerChain} phase invocations, timed and recorded. Invocations are not recorded when an
+     * {@link AsyncHandlerChainExecutor} executes a chain containing an {@link AsyncHandler}.
+     * 
+     * @param handlerMetrics receiver of invocation latencies, or null to stop timing invocations
+     */
+    public void setMetrics(HandlerMetrics handlerMetrics) {
+        metrics = handlerMetrics;
+    }
+
+    /**
+     * Compiles this chain into an immutable chain holding its current effective handlers and metrics. The compiled
+     * chain does not reflect later changes to this chain.
+     * 
+     * @return the compiled chain
+     */
+    public CompiledHandlerChain compile() {
+        return new CompiledHandlerChain(this, metrics);
+    }
+
+    /**
+     * Invokes each of the given handlers, in order, on the specified message context.
+     * 
+     * @param chainHandlers the handlers to invoke
+     * @param msgContext the message context on which to invoke the handlers
+     * @throws HandlerException if there is a problem handling the message context
+     */
+    protected void invokeHandlers(List<Handler> chainHandlers, MessageContext msgContext) throws HandlerException {
+        for (int i = 0; i < chainHandlers.size(); i++) {
+            invokeHandler(chainHandlers.get(i), msgContext);
+        }
+    }
+
+    /**
+     * Invokes a single handler on the specified message context, recording its latency if metrics are set.
+     * 
+     * @param handler the handler to invoke
+     * @param msgContext the message context on which to invoke the handler
+     * @throws HandlerException if there is a problem handling the message context
+     */
+    protected void invokeHandler(Handler handler, MessageContext msgContext) throws HandlerException {
+        if (log.isTraceEnabled()) {
             log.trace("Invoking handler: {}", handler.getClass().getName());
+        }
+
+        HandlerMetrics handlerMetrics = metrics;
+        if (handlerMetrics == null) {
+            handler.invoke(msgContext);
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
             handler.invoke(msgContext);
+            succeeded = true;
+        } finally {
+            handlerMetrics.recordHandlerInvocation(handler, System.nanoTime() - start, succeeded);
         }
     }
 
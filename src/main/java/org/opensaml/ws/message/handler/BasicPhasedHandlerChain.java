@@ -22,6 +22,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+import org.opensaml.ws.message.MessageContext;
 import org.opensaml.xml.util.LazyList;
 import org.opensaml.xml.util.LazyMap;
 import org.slf4j.Logger;
@@ -29,6 +30,11 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A basic implementation of {@link PhasedHandlerChain}.
+ * 
+ * <p>
+ * The phases are resolved each time the chain is invoked. Where the phases are fixed once configured, use
+ * {@link #compile()} to resolve them once into a {@link CompiledHandlerChain}.
+ * </p>
  */
 public class BasicPhasedHandlerChain extends BasicHandlerChain implements PhasedHandlerChain {
     
@@ -69,6 +75,56 @@ public class BasicPhasedHandlerChain extends BasicHandlerChain implements Phased
         return Collections.unmodifiableList(handlers);
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * The handlers of each phase are invoked directly, in phase order, without building the effective handler list.
+     * Phases named in the phase order but not present in the phase map are skipped.
+     * </p>
+     */
+    public void invoke(MessageContext msgContext) throws HandlerException {
+        log.trace("Invoking phased handler chain");
+        List<String> order = getPhaseOrder();
+        Map<String, HandlerChain> chains = getPhaseChains();
+        for (int i = 0; i < order.size(); i++) {
+            String phaseName = order.get(i);
+            HandlerChain phase = chains.get(phaseName);
+            if (phase != null) {
+                invokePhase(phaseName, phase, msgContext);
+            } else {
+                log.debug("Skipping phase '{}' which does not exist in PhasedHandlerChain", phaseName);
+            }
+        }
+    }
+
+    /**
+     * Invokes the handlers of a single phase on the specified message context, recording the phase's latency if
+     * metrics are set.
+     * 
+     * @param phaseName the name of the phase
+     * @param phase the phase's handler chain
+     * @param msgContext the message context on which to invoke the handlers
+     * @throws HandlerException if there is a problem handling the message context
+     */
+    protected void invokePhase(String phaseName, HandlerChain phase, MessageContext msgContext)
+            throws HandlerException {
+        HandlerMetrics handlerMetrics = getMetrics();
+        if (handlerMetrics == null) {
+            invokeHandlers(phase.getHandlers(), msgContext);
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            invokeHandlers(phase.getHandlers(), msgContext);
+            succeeded = true;
+        } finally {
+            handlerMetrics.recordPhaseInvocation(phaseName, System.nanoTime() - start, succeeded);
+        }
+    }
+
     /** {@inheritDoc} */
     public Map<String, HandlerChain> getPhaseChains() {
         return phaseChains;
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.opensaml.ws.message.MessageContext;
+import org.opensaml.ws.message.ProfileIssuerCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link HandlerChainResolver} which caches the handler chains resolved by another resolver, keyed by the message
+ * context's communication profile ID and inbound message issuer.
+ * 
+ * The wrapped resolver is consulted only the first time a given profile and issuer pair is seen, so it may rebuild its
+ * chains, for example from per-partner configuration, without that cost being paid for every message. The wrapped
+ * resolver must therefore resolve chains from nothing but the communication profile ID and inbound message issuer.
+ * Whenever the configuration from which it resolves chains is reloaded, {@link #invalidate()} or
+ * {@link #invalidate(String)} must be called so that later messages see the new chains.
+ * 
+ * Since the inbound message issuer is taken from the message, the number of cached entries is bounded; the least
+ * recently used entry, approximately, is discarded once the bound is reached. Cache hits take no lock. See
+ * {@link ProfileIssuerCache}.
+ */
+@ThreadSafe
+public class CachingHandlerChainResolver implements HandlerChainResolver {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(CachingHandlerChainResolver.class);
+
+    /** Cached handler chains. */
+    private final ProfileIssuerCache<HandlerChain> cache;
+
+    /** Adapter resolving handler chains through the wrapped resolver. */
+    private final ProfileIssuerCache.Resolver<HandlerChain, HandlerException> cacheResolver;
+
+    /**
+     * Constructor. At most 1,000 entries are cached.
+     * 
+     * @param wrappedResolver resolver whose results are cached
+     */
+    public CachingHandlerChainResolver(HandlerChainResolver wrappedResolver) {
+        this(wrappedResolver, 1000);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param wrappedResolver resolver whose results are cached
+     * @param maxEntries maximum number of cached entries, must be greater than zero
+     */
+    public CachingHandlerChainResolver(final HandlerChainResolver wrappedResolver, int maxEntries) {
+        if (wrappedResolver == null) {
+            throw new IllegalArgumentException("Handler chain resolver may not be null");
+        }
+        cache = new ProfileIssuerCache<HandlerChain>(maxEntries);
+        cacheResolver = new ProfileIssuerCache.Resolver<HandlerChain, HandlerException>() {
+            public Iterable<HandlerChain> resolve(MessageContext messageContext) throws HandlerException {
+                log.debug("Resolving handler chains for communication profile '{}' and issuer '{}'", messageContext
+                        .getCommunicationProfileId(), messageContext.getInboundMessageIssuer());
+                return wrappedResolver.resolve(messageContext);
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The returned chains are an unmodifiable snapshot of those returned by the wrapped resolver; if it returned null,
+     * an empty list is returned.
+     */
+    public Iterable<HandlerChain> resolve(MessageContext messageContext) throws HandlerException {
+        return cache.get(messageContext, cacheResolver);
+    }
+
+    /** Discards all cached handler chains. Must be called whenever the wrapped resolver's configuration changes. */
+    public void invalidate() {
+        log.debug("Discarding all cached handler chains");
+        cache.invalidate();
+    }
+
+    /**
+     * Discards the cached handler chains of a single communication profile.
+     * 
+     * @param communicationProfileId the communication profile ID, may be null
+     */
+    public void invalidate(String communicationProfileId) {
+        log.debug("Discarding cached handler chains of communication profile '{}'", communicationProfileId);
+        cache.invalidate(communicationProfileId);
+    }
+
+    /**
+     * Gets the number of cached entries.
+     * 
+     * @return number of cached entries
+     */
+    public int size() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.opensaml.ws.message.MessageContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable {@link HandlerChain} holding a snapshot of the effective handlers of another chain.
+ * 
+ * The handlers are resolved once, when the chain is compiled, and held in an array, so invoking the chain neither
+ * resolves phases nor allocates. This makes a compiled chain suited to being built once, for example by a
+ * {@link HandlerChainResolver}, and then invoked on every message. Changes made to the source chain, or to its
+ * phases, after compilation are not reflected; compile the chain again to pick them up.
+ */
+@ThreadSafe
+public class CompiledHandlerChain implements HandlerChain {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(CompiledHandlerChain.class);
+
+    /** The effective handlers, in invocation order. */
+    private final Handler[] handlers;
+
+    /** Unmodifiable view of {@link #handlers}. */
+    private final List<Handler> handlerList;
+
+    /** Receiver of handler invocation latencies, invocations are not timed if null. */
+    private final HandlerMetrics metrics;
+
+    /**
+     * Constructor.
+     * 
+     * @param chain the chain whose effective handlers are compiled; for a {@link PhasedHandlerChain} these are the
+     *            handlers of each phase in phase order
+     */
+    public CompiledHandlerChain(HandlerChain chain) {
+        this(chain, null);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param chain the chain whose effective handlers are compiled; for a {@link PhasedHandlerChain} these are the
+     *            handlers of each phase in phase order
+     * @param handlerMetrics receiver of handler invocation latencies, may be null; phase latencies are not recorded
+     *            since a compiled chain no longer has phases, and no latencies are recorded when an
+     *            {@link AsyncHandlerChainExecutor} executes a chain containing an {@link AsyncHandler}
+     */
+    public CompiledHandlerChain(HandlerChain chain, HandlerMetrics handlerMetrics) {
+        if (chain == null) {
+            throw new IllegalArgumentException("Handler chain may not be null");
+        }
+        List<Handler> chainHandlers = chain.getHandlers();
+        handlers = chainHandlers.toArray(new Handler[chainHandlers.size()]);
+        for (Handler handler : handlers) {
+            if (handler == null) {
+                throw new IllegalArgumentException("Handler chain may not contain null handlers");
+            }
+        }
+        handlerList = Collections.unmodifiableList(Arrays.asList(handlers));
+        metrics = handlerMetrics;
+    }
+
+    /**
+     * Gets the effective handlers of this chain. The returned list is <b>NOT</b> modifiable.
+     * 
+     * @return list of handlers
+     */
+    public List<Handler> getHandlers() {
+        return handlerList;
+    }
+
+    /** {@inheritDoc} */
+    public void invoke(MessageContext msgContext) throws HandlerException {
+        boolean trace = log.isTraceEnabled();
+        for (int i = 0; i < handlers.length; i++) {
+            if (trace) {
+                log.trace("Invoking handler: {}", handlers[i].getClass().getName());
+            }
+            if (metrics == null) {
+                handlers[i].invoke(msgContext);
+            } else {
+                invokeTimed(handlers[i], msgContext);
+            }
+        }
+    }
+
+    /**
+     * Invokes a single handler on the specified message context and records its latency.
+     * 
+     * @param handler the handler to invoke
+     * @param msgContext the message context on which to invoke the handler
+     * @throws HandlerException if there is a problem handling the message context
+     */
+    private void invokeTimed(Handler handler, MessageContext msgContext) throws HandlerException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            handler.invoke(msgContext);
+            succeeded = true;
+        } finally {
+            metrics.recordHandlerInvocation(handler, System.nanoTime() - start, succeeded);
+        }
+    }
+}
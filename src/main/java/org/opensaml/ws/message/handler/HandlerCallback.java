@@ -0,0 +1,47 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+import org.opensaml.ws.message.MessageContext;
+
+/**
+ * Callback notified when asynchronous processing of a message context completes.
+ * 
+ * It is used both by {@link AsyncHandler}s, to signal that their processing of a message context is done, and by
+ * {@link AsyncHandlerChainExecutor} and
+ * {@link BaseHandlerChainAwareMessageDecoder#decodeAsync(MessageContext, HandlerCallback)} to report the outcome of a
+ * whole chain or decode. Callbacks may be invoked on any thread, including the thread which started the processing,
+ * and so should not block.
+ */
+public interface HandlerCallback {
+
+    /**
+     * Called when processing of the message context completed successfully.
+     * 
+     * @param msgContext the message context
+     */
+    public void onSuccess(MessageContext msgContext);
+
+    /**
+     * Called when processing of the message context failed.
+     * 
+     * @param msgContext the message context
+     * @param error the exception describing the failure, a {@link HandlerException} when reported by a handler
+     */
+    public void onFailure(MessageContext msgContext, Exception error);
+}
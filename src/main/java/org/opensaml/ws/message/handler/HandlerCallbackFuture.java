@@ -0,0 +1,177 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.opensaml.ws.message.MessageContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A future for the asynchronous processing of a message context, completed explicitly by the processing code, which
+ * notifies an optional {@link HandlerCallback} when it completes. The first of {@link #complete()},
+ * {@link #fail(Throwable)} and {@link #cancel(boolean)} to be called determines the outcome; later calls have no
+ * effect. The callback is not notified of cancellation.
+ */
+class HandlerCallbackFuture implements Future<MessageContext> {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(HandlerCallbackFuture.class);
+
+    /** The message context being processed. */
+    private final MessageContext messageContext;
+
+    /** Callback notified on completion, may be null. */
+    private final HandlerCallback callback;
+
+    /** Whether processing has completed, successfully or not. Guarded by this instance's monitor. */
+    private boolean done;
+
+    /** Whether processing was cancelled. Guarded by this instance's monitor. */
+    private boolean cancelled;
+
+    /** Cause of the failure, or null if processing has not failed. Guarded by this instance's monitor. */
+    private Throwable failure;
+
+    /**
+     * Constructor.
+     * 
+     * @param context the message context being processed
+     * @param completionCallback callback notified on completion, may be null
+     */
+    HandlerCallbackFuture(MessageContext context, HandlerCallback completionCallback) {
+        messageContext = context;
+        callback = completionCallback;
+    }
+
+    /**
+     * Gets the message context being processed.
+     * 
+     * @return the message context
+     */
+    MessageContext getMessageContext() {
+        return messageContext;
+    }
+
+    /** Completes processing successfully. Has no effect if processing has already completed. */
+    void complete() {
+        if (!finish(false, null) || callback == null) {
+            return;
+        }
+        callback.onSuccess(messageContext);
+    }
+
+    /**
+     * Completes processing with a failure. Has no effect if processing has already completed.
+     * 
+     * @param error the cause of the failure
+     */
+    void fail(Throwable error) {
+        if (!finish(false, error) || callback == null) {
+            return;
+        }
+        if (error instanceof Exception) {
+            callback.onFailure(messageContext, (Exception) error);
+        } else {
+            log.error("Error processing message context", error);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Processing stops before its next step; a step already running is not interrupted.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(true, null);
+    }
+
+    /** {@inheritDoc} */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized MessageContext get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return getResult();
+    }
+
+    /** {@inheritDoc} */
+    public synchronized MessageContext get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while (!done) {
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return getResult();
+    }
+
+    /**
+     * Records the outcome of processing and wakes up waiting threads, unless processing has already completed.
+     * 
+     * @param cancel whether processing was cancelled
+     * @param error the cause of the failure, or null if processing did not fail
+     * 
+     * @return true if the outcome was recorded, false if processing had already completed
+     */
+    private synchronized boolean finish(boolean cancel, Throwable error) {
+        if (done) {
+            return false;
+        }
+        done = true;
+        cancelled = cancel;
+        failure = error;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Gets the result of completed processing. Must be called while holding this instance's monitor.
+     * 
+     * @return the message context
+     * 
+     * @throws ExecutionException thrown if processing failed
+     */
+    private MessageContext getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return messageContext;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+/**
+ * Receives the latency of handler and phase invocations made by a handler chain.
+ * 
+ * <p>
+ * A chain only measures invocations when it has been given a metrics instance, for example through
+ * {@link BasicHandlerChain#setMetrics(HandlerMetrics)}; otherwise no timing is performed at all. Implementations are
+ * called on the thread invoking the handler, once per invocation, and so must be thread safe and cheap.
+ * {@link InMemoryHandlerMetrics} is a default implementation; others may forward the measurements to an external
+ * metrics system.
+ * </p>
+ */
+public interface HandlerMetrics {
+
+    /**
+     * Records a single handler invocation.
+     * 
+     * @param handler the handler invoked
+     * @param duration time, in nanoseconds, the invocation took
+     * @param succeeded whether the handler completed without throwing
+     */
+    public void recordHandlerInvocation(Handler handler, long duration, boolean succeeded);
+
+    /**
+     * Records the invocation of all handlers of a single phase of a {@link PhasedHandlerChain}.
+     * 
+     * @param phaseName the name of the phase
+     * @param duration time, in nanoseconds, the invocation took
+     * @param succeeded whether all handlers of the phase completed without throwing
+     */
+    public void recordPhaseInvocation(String phaseName, long duration, boolean succeeded);
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A {@link HandlerMetrics} which keeps a {@link LatencyHistogram} for each handler class and each phase name.
+ * 
+ * Handlers are keyed by class name, so the invocations of every instance of a handler class, in every chain sharing
+ * this metrics instance, are recorded together.
+ */
+@ThreadSafe
+public class InMemoryHandlerMetrics implements HandlerMetrics {
+
+    /** Latencies of handler invocations, keyed by handler class name. */
+    private final ConcurrentMap<String, LatencyHistogram> handlerLatencies;
+
+    /** Latencies of phase invocations, keyed by phase name. */
+    private final ConcurrentMap<String, LatencyHistogram> phaseLatencies;
+
+    /** Constructor. */
+    public InMemoryHandlerMetrics() {
+        handlerLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+        phaseLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+    }
+
+    /** {@inheritDoc} */
+    public void recordHandlerInvocation(Handler handler, long duration, boolean succeeded) {
+        getHistogram(handlerLatencies, handler.getClass().getName()).record(duration, succeeded);
+    }
+
+    /** {@inheritDoc} */
+    public void recordPhaseInvocation(String phaseName, long duration, boolean succeeded) {
+        getHistogram(phaseLatencies, phaseName).record(duration, succeeded);
+    }
+
+    /**
+     * Gets the latencies of handler invocations, keyed by handler class name. The returned map is a live,
+     * unmodifiable view.
+     * 
+     * @return latencies of handler invocations
+     */
+    public Map<String, LatencyHistogram> getHandlerLatencies() {
+        return Collections.unmodifiableMap(handlerLatencies);
+    }
+
+    /**
+     * Gets the latencies of the given handler class's invocations.
+     * 
+     * @param handlerClass the handler class
+     * 
+     * @return the latencies, or null if no invocation of the class has been recorded
+     */
+    public LatencyHistogram getHandlerLatency(Class<? extends Handler> handlerClass) {
+        return handlerLatencies.get(handlerClass.getName());
+    }
+
+    /**
+     * Gets the latencies of phase invocations, keyed by phase name. The returned map is a live, unmodifiable view.
+     * 
+     * @return latencies of phase invocations
+     */
+    public Map<String, LatencyHistogram> getPhaseLatencies() {
+        return Collections.unmodifiableMap(phaseLatencies);
+    }
+
+    /**
+     * Gets the latencies of the given phase's invocations.
+     * 
+     * @param phaseName the phase name
+     * 
+     * @return the latencies, or null if no invocation of the phase has been recorded
+     */
+    public LatencyHistogram getPhaseLatency(String phaseName) {
+        return phaseLatencies.get(phaseName);
+    }
+
+    /** Discards all recorded latencies. */
+    public void clear() {
+        handlerLatencies.clear();
+        phaseLatencies.clear();
+    }
+
+    /**
+     * Gets the histogram for a key, creating it if necessary.
+     * 
+     * @param histograms the histograms
+     * @param key the key
+     * 
+     * @return the key's histogram
+     */
+    private LatencyHistogram getHistogram(ConcurrentMap<String, LatencyHistogram> histograms, String key) {
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(key, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+/**
+ * Marker for a {@link Handler} which may run concurrently with other independent handlers of the same phase.
+ * 
+ * <p>
+ * An independent handler only reads the message context, for example to validate the message or to extract audit
+ * information, and does not depend on the effects of any other handler in its phase. A
+ * {@link ParallelPhasedHandlerChain} may therefore invoke adjacent independent handlers of a phase at the same time,
+ * on different threads. Since message contexts are not thread safe, an independent handler must not modify the
+ * message context or anything reachable from it, including lazily built state such as an XMLObject's cached DOM.
+ * </p>
+ */
+public interface IndependentHandler extends Handler {
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A histogram of latencies with power-of-two buckets.
+ * 
+ * Each latency is counted in the bucket covering durations from the highest power of two not exceeding it up to the
+ * next power of two, so recording is a handful of atomic updates with no allocation or locking, and percentiles are
+ * accurate to within a factor of two. Latencies are in nanoseconds.
+ */
+@ThreadSafe
+public class LatencyHistogram {
+
+    /** Number of buckets, enough for any non-negative long. */
+    private static final int BUCKETS = 64;
+
+    /** Count of latencies in each bucket; bucket i holds latencies below 2^i and, for i > 0, at least 2^(i-1). */
+    private final AtomicLongArray buckets;
+
+    /** Number of latencies recorded. */
+    private final AtomicLong count;
+
+    /** Number of recorded invocations which failed. */
+    private final AtomicLong failures;
+
+    /** Sum of the latencies recorded. */
+    private final AtomicLong total;
+
+    /** Largest latency recorded. */
+    private final AtomicLong max;
+
+    /** Constructor. */
+    public LatencyHistogram() {
+        buckets = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        failures = new AtomicLong();
+        total = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /**
+     * Records a latency.
+     * 
+     * @param duration the latency, in nanoseconds; negative values are recorded as zero
+     * @param succeeded whether the measured invocation succeeded
+     */
+    public void record(long duration, boolean succeeded) {
+        long latency = Math.max(0, duration);
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(latency));
+        count.incrementAndGet();
+        if (!succeeded) {
+            failures.incrementAndGet();
+        }
+        total.addAndGet(latency);
+        long currentMax = max.get();
+        while (latency > currentMax && !max.compareAndSet(currentMax, latency)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Gets the number of latencies recorded.
+     * 
+     * @return number of latencies recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets the number of recorded invocations which failed.
+     * 
+     * @return number of failed invocations
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Gets the sum, in nanoseconds, of the latencies recorded.
+     * 
+     * @return total latency
+     */
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * Gets the largest latency, in nanoseconds, recorded.
+     * 
+     * @return largest latency
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets the mean latency, in nanoseconds.
+     * 
+     * @return mean latency, or 0 if nothing has been recorded
+     */
+    public double getMean() {
+        long recorded = count.get();
+        return recorded == 0 ? 0 : (double) total.get() / recorded;
+    }
+
+    /**
+     * Gets an upper bound, in nanoseconds, of the given percentile of the latencies recorded. The bound is at most
+     * twice the true percentile and never more than the largest latency recorded.
+     * 
+     * @param percentile the percentile, between 0 and 1
+     * 
+     * @return upper bound of the percentile, or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 1) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 1");
+        }
+
+        long[] counts = new long[BUCKETS];
+        long recorded = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            recorded += counts[i];
+        }
+        if (recorded == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile * recorded));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min((1L << i) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        return "count: " + getCount() + "; failures: " + getFailureCount() + "; mean: "
+                + Math.round(getMean() / 1000) + "us; p50: " + getPercentile(0.5) / 1000 + "us; p99: "
+                + getPercentile(0.99) / 1000 + "us; max: " + getMax() / 1000 + "us";
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.opensaml.ws.message.MessageContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link PhasedHandlerChain} which invokes adjacent {@link IndependentHandler}s of a phase concurrently.
+ * 
+ * <p>
+ * Within each phase, every run of two or more adjacent independent handlers is invoked at once: the first on the
+ * calling thread and the others on the configured executor. All handlers of the run complete before the next handler
+ * or phase is invoked, so other handlers still see the effects of every handler before them, in order. If any handler
+ * of a run fails, the failure of the earliest failing handler in chain order is thrown, regardless of which finished
+ * first; the remaining failures are logged. If the executor rejects a handler it is invoked on the calling thread.
+ * </p>
+ * 
+ * <p>
+ * Note that {@link #compile()} produces a chain which invokes every handler sequentially, as does an
+ * {@link AsyncHandlerChainExecutor} if the chain contains an {@link AsyncHandler}.
+ * </p>
+ */
+public class ParallelPhasedHandlerChain extends BasicPhasedHandlerChain {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ParallelPhasedHandlerChain.class);
+
+    /** Executor on which independent handlers are invoked. */
+    private final Executor executor;
+
+    /**
+     * Constructor.
+     * 
+     * @param handlerExecutor executor on which independent handlers are invoked
+     */
+    public ParallelPhasedHandlerChain(Executor handlerExecutor) {
+        super();
+        if (handlerExecutor == null) {
+            throw new IllegalArgumentException("Executor may not be null");
+        }
+        executor = handlerExecutor;
+    }
+
+    /**
+     * Gets the executor on which independent handlers are invoked.
+     * 
+     * @return the executor
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /** {@inheritDoc} */
+    protected void invokeHandlers(List<Handler> chainHandlers, MessageContext msgContext) throws HandlerException {
+        int size = chainHandlers.size();
+        int start = 0;
+        while (start < size) {
+            int end = start;
+            while (end < size && chainHandlers.get(end) instanceof IndependentHandler) {
+                end++;
+            }
+
+            if (end - start > 1) {
+                invokeConcurrently(chainHandlers.subList(start, end), msgContext);
+                start = end;
+            } else {
+                invokeHandler(chainHandlers.get(start), msgContext);
+                start++;
+            }
+        }
+    }
+
+    /**
+     * Invokes independent handlers concurrently and waits for all of them to complete.
+     * 
+     * @param handlers the handlers to invoke
+     * @param msgContext the message context on which to invoke the handlers
+     * @throws HandlerException if there is a problem handling the message context
+     */
+    private void invokeConcurrently(List<Handler> handlers, MessageContext msgContext) throws HandlerException {
+        int count = handlers.size();
+        log.trace("Invoking {} independent handlers concurrently", count);
+
+        List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>(count - 1);
+        for (int i = 1; i < count; i++) {
+            FutureTask<Object> task = new FutureTask<Object>(new HandlerTask(handlers.get(i), msgContext));
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                log.debug("Executor rejected handler {}, invoking it on the calling thread", handlers.get(i)
+                        .getClass().getName());
+                task.run();
+            }
+        }
+
+        Throwable[] failures = new Throwable[count];
+        try {
+            invokeHandler(handlers.get(0), msgContext);
+        } catch (Throwable t) {
+            failures[0] = t;
+        }
+
+        boolean interrupted = false;
+        for (int i = 1; i < count; i++) {
+            FutureTask<Object> task = tasks.get(i - 1);
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    failures[i] = e.getCause();
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        rethrowFirstFailure(handlers, failures);
+    }
+
+    /**
+     * Throws the failure of the earliest failing handler, in chain order, and logs any other failures.
+     * 
+     * @param handlers the handlers invoked
+     * @param failures the failure of each handler, or null where the handler succeeded
+     * @throws HandlerException if the earliest failure is a handler exception, or wraps a checked exception
+     */
+    private void rethrowFirstFailure(List<Handler> handlers, Throwable[] failures) throws HandlerException {
+        Throwable first = null;
+        for (int i = 0; i < failures.length; i++) {
+            if (failures[i] == null) {
+                continue;
+            }
+            if (first == null) {
+                first = failures[i];
+            } else {
+                log.warn("Independent handler " + handlers.get(i).getClass().getName()
+                        + " also failed while handling message context", failures[i]);
+            }
+        }
+
+        if (first == null) {
+            return;
+        } else if (first instanceof HandlerException) {
+            throw (HandlerException) first;
+        } else if (first instanceof RuntimeException) {
+            throw (RuntimeException) first;
+        } else if (first instanceof Error) {
+            throw (Error) first;
+        }
+        throw new HandlerException("Independent handler failed", (Exception) first);
+    }
+
+    /** Invocation of a single handler. */
+    private final class HandlerTask implements Callable<Object> {
+
+        /** The handler to invoke. */
+        private final Handler handler;
+
+        /** The message context on which to invoke the handler. */
+        private final MessageContext messageContext;
+
+        /**
+         * Constructor.
+         * 
+         * @param taskHandler the handler to invoke
+         * @param context the message context on which to invoke the handler
+         */
+        private HandlerTask(Handler taskHandler, MessageContext context) {
+            handler = taskHandler;
+            messageContext = context;
+        }
+
+        /** {@inheritDoc} */
+        public Object call() throws HandlerException {
+            invokeHandler(handler, messageContext);
+            return null;
+        }
+    }
+}
@@ -26,8 +26,8 @@ import org.opensaml.xml.util.LazyList;
 /** A simple handler chain resolver implementation that returns a static list of handler chains. */
 public class StaticHandlerChainResolver implements HandlerChainResolver {
     
-    /** Registered handler chains. */
-    private List<HandlerChain> handlerChains;
+    /** Registered handler chains, unmodifiable. */
+    private final List<HandlerChain> handlerChains;
 
     /**
      * Constructor.
@@ -35,10 +35,11 @@ public class StaticHandlerChainResolver implements HandlerChainResolver {
      * @param newHandlerChain the static handler chain returned by this resolver
      */
     public StaticHandlerChainResolver(HandlerChain newHandlerChain) {
-        handlerChains = new LazyList<HandlerChain>();
+        List<HandlerChain> registered = new LazyList<HandlerChain>();
         if(newHandlerChain != null){
-            handlerChains.add(newHandlerChain);
+            registered.add(newHandlerChain);
         }
+        handlerChains = Collections.unmodifiableList(registered);
     }
     
     /**
@@ -47,15 +48,16 @@ public class StaticHandlerChainResolver implements HandlerChainResolver {
      * @param newHandlerChains the static list of handler chains returned by this resolver
      */
     public StaticHandlerChainResolver(List<HandlerChain> newHandlerChains) {
-        handlerChains = new LazyList<HandlerChain>();
+        List<HandlerChain> registered = new LazyList<HandlerChain>();
         if(newHandlerChains != null){
-            handlerChains.addAll(newHandlerChains);
+            registered.addAll(newHandlerChains);
         }
+        handlerChains = Collections.unmodifiableList(registered);
     }
 
     /** {@inheritDoc} */
     public Iterable<HandlerChain> resolve(MessageContext messageContext) throws HandlerException {
-        return Collections.unmodifiableList(handlerChains);
+        return handlerChains;
     }
 
 }
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.security.provider;
+
+import java.util.List;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.opensaml.ws.message.MessageContext;
+import org.opensaml.ws.message.ProfileIssuerCache;
+import org.opensaml.ws.security.SecurityPolicy;
+import org.opensaml.ws.security.SecurityPolicyResolver;
+import org.opensaml.xml.security.SecurityException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link SecurityPolicyResolver} which caches, per communication profile ID and inbound message issuer, the
+ * security policies resolved by another resolver.
+ * 
+ * This is the security policy counterpart of {@link org.opensaml.ws.message.handler.CachingHandlerChainResolver} and
+ * has the same requirements: the wrapped resolver may only depend upon the profile ID and issuer of the message
+ * context, and {@link #invalidate()} must be called when its configuration is reloaded. At most a bounded number of
+ * entries, approximately least recently used first, is kept. Cache hits take no lock. See {@link ProfileIssuerCache}.
+ */
+@ThreadSafe
+public class CachingSecurityPolicyResolver implements SecurityPolicyResolver {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(CachingSecurityPolicyResolver.class);
+
+    /** Cached security policies. */
+    private final ProfileIssuerCache<SecurityPolicy> cache;
+
+    /** Adapter resolving security policies through the wrapped resolver. */
+    private final ProfileIssuerCache.Resolver<SecurityPolicy, SecurityException> cacheResolver;
+
+    /**
+     * Constructor. At most 1,000 entries are cached.
+     * 
+     * @param wrappedResolver resolver whose results are cached
+     */
+    public CachingSecurityPolicyResolver(SecurityPolicyResolver wrappedResolver) {
+        this(wrappedResolver, 1000);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param wrappedResolver resolver whose results are cached
+     * @param maxEntries maximum number of cached entries, must be greater than zero
+     */
+    public CachingSecurityPolicyResolver(final SecurityPolicyResolver wrappedResolver, int maxEntries) {
+        if (wrappedResolver == null) {
+            throw new IllegalArgumentException("Security policy resolver may not be null");
+        }
+        cache = new ProfileIssuerCache<SecurityPolicy>(maxEntries);
+        cacheResolver = new ProfileIssuerCache.Resolver<SecurityPolicy, SecurityException>() {
+            public Iterable<SecurityPolicy> resolve(MessageContext messageContext) throws SecurityException {
+                log.debug("Resolving security policies for communication profile '{}' and issuer '{}'",
+                        messageContext.getCommunicationProfileId(), messageContext.getInboundMessageIssuer());
+                return wrappedResolver.resolve(messageContext);
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * The returned policies are an unmodifiable snapshot of those returned by the wrapped resolver; if it returned
+     * null, an empty list is returned.
+     */
+    public Iterable<SecurityPolicy> resolve(MessageContext messageContext) throws SecurityException {
+        return cache.get(messageContext, cacheResolver);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * This is the first of the policies returned by {@link #resolve(MessageContext)}, or null if there are none.
+     */
+    public SecurityPolicy resolveSingle(MessageContext messageContext) throws SecurityException {
+        List<SecurityPolicy> policies = cache.get(messageContext, cacheResolver);
+        if (policies.isEmpty()) {
+            return null;
+        }
+        return policies.get(0);
+    }
+
+    /** Discards all cached security policies. Must be called whenever the wrapped resolver's configuration changes. */
+    public void invalidate() {
+        log.debug("Discarding all cached security policies");
+        cache.invalidate();
+    }
+
+    /**
+     * Discards the cached security policies of a single communication profile.
+     * 
+     * @param communicationProfileId the communication profile ID, may be null
+     */
+    public void invalidate(String communicationProfileId) {
+        log.debug("Discarding cached security policies of communication profile '{}'", communicationProfileId);
+        cache.invalidate(communicationProfileId);
+    }
+
+    /**
+     * Gets the number of cached entries.
+     * 
+     * @return number of cached entries
+     */
+    public int size() {
+        return cache.size();
+    }
+}
@@ -29,8 +29,8 @@ import org.opensaml.xml.util.LazyList;
 /** A simple security policy resolver implementation that returns a static list of policies. */
 public class StaticSecurityPolicyResolver implements SecurityPolicyResolver {
 
-    /** Registered security policies. */
-    private List<SecurityPolicy> securityPolicies;
+    /** Registered security policies, unmodifiable. */
+    private final List<SecurityPolicy> securityPolicies;
 
     /**
      * Constructor.
@@ -38,10 +38,11 @@ public class StaticSecurityPolicyResolver implements SecurityPolicyResolver {
      * @param policy the static policy returned by this resolver
      */
     public StaticSecurityPolicyResolver(SecurityPolicy policy) {
-        securityPolicies = new LazyList<SecurityPolicy>();
+        List<SecurityPolicy> registered = new LazyList<SecurityPolicy>();
         if(policy != null){
-            securityPolicies.add(policy);
+            registered.add(policy);
         }
+        securityPolicies = Collections.unmodifiableList(registered);
     }
     
     /**
@@ -50,15 +51,16 @@ public class StaticSecurityPolicyResolver implements SecurityPolicyResolver {
      * @param policies the static list of policies returned by this resolver
      */
     public StaticSecurityPolicyResolver(List<SecurityPolicy> policies) {
-        securityPolicies = new LazyList<SecurityPolicy>();
+        List<SecurityPolicy> registered = new LazyList<SecurityPolicy>();
         if(policies != null){
-            securityPolicies.addAll(policies);
+            registered.addAll(policies);
         }
+        securityPolicies = Collections.unmodifiableList(registered);
     }
 
     /** {@inheritDoc} */
     public Iterable<SecurityPolicy> resolve(MessageContext criteria) throws SecurityException {
-        return Collections.unmodifiableList(securityPolicies);
+        return securityPolicies;
     }
 
     /**
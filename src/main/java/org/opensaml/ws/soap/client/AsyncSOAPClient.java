@@ -0,0 +1,426 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.opensaml.ws.soap.common.SOAPException;
+import org.opensaml.xml.security.SecurityException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link SOAPClient} which sends requests asynchronously, returning a {@link Future} for the completed message
+ * context and optionally notifying a {@link SOAPClientCallback}.
+ * 
+ * Requests are performed by a wrapped client, such as {@link org.opensaml.ws.soap.client.http.HttpSOAPClient}, on
+ * threads supplied by an {@link Executor}, so response processing, including security policy evaluation, is exactly
+ * that of the wrapped client. The number of requests in flight to any one endpoint is bounded. Requests beyond that
+ * bound are queued, without occupying a thread, and dispatched as earlier requests to the same endpoint complete. The
+ * number of threads used is therefore bounded by the executor and by the per-endpoint limit rather than by the number
+ * of outstanding requests.
+ * 
+ * A request holds its endpoint's slot until the wrapped client returns, even if its future is cancelled first, since
+ * cancellation does not necessarily stop a blocking send. The number of queued requests per endpoint is also bounded;
+ * a request which would exceed that bound fails immediately rather than waiting.
+ */
+@ThreadSafe
+public class AsyncSOAPClient implements SOAPClient {
+
+    /** Default maximum number of requests queued for a single endpoint. */
+    public static final int DEFAULT_MAX_QUEUED_PER_ENDPOINT = 1000;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AsyncSOAPClient.class);
+
+    /** Client used to perform each request. */
+    private final SOAPClient soapClient;
+
+    /** Executor on which requests are performed. */
+    private final Executor executor;
+
+    /** Maximum number of requests in flight to a single endpoint. */
+    private final int maxRequestsPerEndpoint;
+
+    /** Maximum number of requests queued for a single endpoint. */
+    private final int maxQueuedPerEndpoint;
+
+    /** Dispatch state for each endpoint, keyed by endpoint. */
+    private final ConcurrentMap<String, EndpointState> endpoints;
+
+    /**
+     * Constructor.
+     * 
+     * @param client client used to perform each request
+     * @param requestExecutor executor on which requests are performed
+     * @param maxPerEndpoint maximum number of requests in flight to a single endpoint
+     */
+    public AsyncSOAPClient(SOAPClient client, Executor requestExecutor, int maxPerEndpoint) {
+        this(client, requestExecutor, maxPerEndpoint, DEFAULT_MAX_QUEUED_PER_ENDPOINT);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param client client used to perform each request
+     * @param requestExecutor executor on which requests are performed
+     * @param maxPerEndpoint maximum number of requests in flight to a single endpoint
+     * @param maxQueued maximum number of requests queued for a single endpoint, may be zero
+     */
+    public AsyncSOAPClient(SOAPClient client, Executor requestExecutor, int maxPerEndpoint, int maxQueued) {
+        if (client == null) {
+            throw new IllegalArgumentException("SOAP client may not be null");
+        }
+        if (requestExecutor == null) {
+            throw new IllegalArgumentException("Executor may not be null");
+        }
+        if (maxPerEndpoint < 1) {
+            throw new IllegalArgumentException("Maximum requests per endpoint must be greater than zero");
+        }
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("Maximum queued requests per endpoint may not be negative");
+        }
+        soapClient = client;
+        executor = requestExecutor;
+        maxRequestsPerEndpoint = maxPerEndpoint;
+        maxQueuedPerEndpoint = maxQueued;
+        endpoints = new ConcurrentHashMap<String, EndpointState>();
+    }
+
+    /**
+     * Sends a message and waits for the response. The request is subject to the same per-endpoint limit as
+     * asynchronous requests.
+     * 
+     * @param endpoint the endpoint to which to send the message
+     * @param messageContext the message context containing the outbound SOAP message
+     * 
+     * @throws SOAPClientException thrown if there is a problem sending the message or receiving the response, if the
+     *             response is a SOAP fault or if the calling thread is interrupted
+     * @throws SecurityException thrown if the response does not meet any security policy associated with the message
+     *             context
+     */
+    public void send(String endpoint, SOAPMessageContext messageContext) throws SOAPException, SecurityException {
+        Future<SOAPMessageContext> result = sendAsync(endpoint, messageContext, null);
+        try {
+            result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new SOAPClientException("Interrupted while waiting for response from " + endpoint, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SOAPException) {
+                throw (SOAPException) cause;
+            } else if (cause instanceof SecurityException) {
+                throw (SecurityException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SOAPClientException("Unable to send request to " + endpoint, (Exception) cause);
+        }
+    }
+
+    /**
+     * Sends a message without waiting for the response.
+     * 
+     * @param endpoint the endpoint to which to send the message
+     * @param messageContext the message context containing the outbound SOAP message
+     * 
+     * @return future which completes with the message context once the response has been received and processed
+     */
+    public Future<SOAPMessageContext> sendAsync(String endpoint, SOAPMessageContext messageContext) {
+        return sendAsync(endpoint, messageContext, null);
+    }
+
+    /**
+     * Sends a message without waiting for the response.
+     * 
+     * @param endpoint the endpoint to which to send the message
+     * @param messageContext the message context containing the outbound SOAP message
+     * @param callback callback notified when the request completes, may be null
+     * 
+     * @return future which completes with the message context once the response has been received and processed, or
+     *         fails with a {@link SOAPClientException} if the endpoint's queue is full
+     */
+    public Future<SOAPMessageContext> sendAsync(String endpoint, SOAPMessageContext messageContext,
+            SOAPClientCallback callback) {
+        EndpointState state = getEndpointState(endpoint);
+        RequestTask task = new RequestTask(state, endpoint, messageContext, callback);
+
+        boolean dispatch;
+        boolean queued = false;
+        synchronized (state) {
+            dispatch = state.inFlight < maxRequestsPerEndpoint;
+            if (dispatch) {
+                state.inFlight++;
+                task.dispatched = true;
+            } else if (state.pending.size() < maxQueuedPerEndpoint) {
+                log.debug("Maximum requests in flight to {} reached, queueing request", endpoint);
+                state.pending.add(task);
+                queued = true;
+            }
+        }
+
+        if (dispatch) {
+            execute(task);
+        } else if (!queued) {
+            log.warn("Maximum requests queued for {} reached, failing request", endpoint);
+            task.reject(new SOAPClientException("Too many requests queued for " + endpoint));
+        }
+        return task;
+    }
+
+    /**
+     * Gets the number of requests currently in flight to the given endpoint.
+     * 
+     * @param endpoint the endpoint
+     * 
+     * @return number of requests in flight
+     */
+    public int getInFlightRequests(String endpoint) {
+        EndpointState state = endpoints.get(endpoint);
+        if (state == null) {
+            return 0;
+        }
+        synchronized (state) {
+            return state.inFlight;
+        }
+    }
+
+    /**
+     * Gets the number of requests to the given endpoint waiting for an earlier request to complete.
+     * 
+     * @param endpoint the endpoint
+     * 
+     * @return number of queued requests
+     */
+    public int getQueuedRequests(String endpoint) {
+        EndpointState state = endpoints.get(endpoint);
+        if (state == null) {
+            return 0;
+        }
+        synchronized (state) {
+            return state.pending.size();
+        }
+    }
+
+    /**
+     * Gets the dispatch state for an endpoint, creating it if necessary.
+     * 
+     * @param endpoint the endpoint
+     * 
+     * @return the endpoint's dispatch state
+     */
+    private EndpointState getEndpointState(String endpoint) {
+        EndpointState state = endpoints.get(endpoint);
+        if (state == null) {
+            EndpointState newState = new EndpointState();
+            state = endpoints.putIfAbsent(endpoint, newState);
+            if (state == null) {
+                state = newState;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Hands a dispatched task to the executor, failing the task if the executor rejects it.
+     * 
+     * @param task the task to execute
+     */
+    private void execute(RequestTask task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            log.error("Executor rejected SOAP request to " + task.endpoint, e);
+            task.reject(new SOAPClientException("Executor rejected request to " + task.endpoint, e));
+        }
+    }
+
+    /**
+     * Called when a task completes, in any manner, to free its slot or remove it from the queue. A dispatched task's
+     * slot is only freed once the task has stopped running, so a task cancelled while its request is being sent keeps
+     * its slot until the wrapped client returns. Once a task's slot has been freed, or the task removed from the
+     * queue, further calls for it have no effect.
+     * 
+     * @param task the completed task
+     * @param stopped whether the task has stopped running, or was never run
+     */
+    private void complete(RequestTask task, boolean stopped) {
+        RequestTask next = null;
+        EndpointState state = task.state;
+        synchronized (state) {
+            if (task.completed || (task.dispatched && !stopped)) {
+                return;
+            }
+            task.completed = true;
+            if (!task.dispatched) {
+                state.pending.remove(task);
+                return;
+            }
+            while (next == null && !state.pending.isEmpty()) {
+                next = state.pending.removeFirst();
+                if (next.isDone()) {
+                    next = null;
+                }
+            }
+            if (next == null) {
+                state.inFlight--;
+            } else {
+                next.dispatched = true;
+            }
+        }
+
+        if (next != null) {
+            execute(next);
+        }
+    }
+
+    /** Dispatch state of a single endpoint. Guarded by the instance's monitor. */
+    private static final class EndpointState {
+
+        /** Number of dispatched requests which have not yet completed. */
+        private int inFlight;
+
+        /** Requests waiting for a dispatch slot. */
+        private final LinkedList<RequestTask> pending = new LinkedList<RequestTask>();
+    }
+
+    /** A single request to an endpoint. */
+    private final class RequestTask extends FutureTask<SOAPMessageContext> {
+
+        /** Dispatch state of the request's endpoint. */
+        private final EndpointState state;
+
+        /** Endpoint to which the message is sent. */
+        private final String endpoint;
+
+        /** Context of the message being sent. */
+        private final SOAPMessageContext messageContext;
+
+        /** Callback notified on completion, may be null. */
+        private final SOAPClientCallback callback;
+
+        /** Whether the task holds one of its endpoint's dispatch slots. Guarded by the endpoint state's monitor. */
+        private boolean dispatched;
+
+        /** Whether the task's completion has been processed. Guarded by the endpoint state's monitor. */
+        private boolean completed;
+
+        /**
+         * Constructor.
+         * 
+         * @param endpointState dispatch state of the request's endpoint
+         * @param target endpoint to which the message is sent
+         * @param context context of the message being sent
+         * @param completionCallback callback notified on completion, may be null
+         */
+        private RequestTask(EndpointState endpointState, final String target, final SOAPMessageContext context,
+                SOAPClientCallback completionCallback) {
+            super(new Callable<SOAPMessageContext>() {
+                public SOAPMessageContext call() throws Exception {
+                    soapClient.send(target, context);
+                    return context;
+                }
+            });
+            state = endpointState;
+            endpoint = target;
+            messageContext = context;
+            callback = completionCallback;
+        }
+
+        /**
+         * Fails this task without running it.
+         * 
+         * @param error the cause of the failure
+         */
+        private void reject(Exception error) {
+            setException(error);
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * The task's slot is released once it stops running, including when it was cancelled before it started.
+         */
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                complete(this, true);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * The task's slot is released before the result becomes visible to callers waiting on the future.
+         */
+        protected void set(SOAPMessageContext result) {
+            complete(this, true);
+            super.set(result);
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * The task's slot is released before the failure becomes visible to callers waiting on the future.
+         */
+        protected void setException(Throwable error) {
+            complete(this, true);
+            super.setException(error);
+        }
+
+        /**
+         * {@inheritDoc}
+         * 
+         * A queued task is removed from the queue. A dispatched task keeps its slot until it stops running.
+         */
+        protected void done() {
+            complete(this, false);
+
+            if (callback == null || isCancelled()) {
+                return;
+            }
+            try {
+                callback.onSuccess(get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    callback.onFailure(messageContext, (Exception) cause);
+                } else {
+                    log.error("Error sending SOAP request to " + endpoint, cause);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client;
+
+/**
+ * Callback notified when a request sent through an {@link AsyncSOAPClient} completes.
+ * 
+ * Callbacks are invoked on the thread which performed the request and so should not block.
+ */
+public interface SOAPClientCallback {
+
+    /**
+     * Called when a response has been received and has met any security policy associated with the message context.
+     * 
+     * @param messageContext the message context, containing the inbound response
+     */
+    public void onSuccess(SOAPMessageContext messageContext);
+
+    /**
+     * Called when sending the request, receiving the response or evaluating the security policy failed.
+     * 
+     * @param messageContext the message context
+     * @param error the {@link org.opensaml.ws.soap.common.SOAPException} or
+     *            {@link org.opensaml.xml.security.SecurityException} describing the failure
+     */
+    public void onFailure(SOAPMessageContext messageContext, Exception error);
+}
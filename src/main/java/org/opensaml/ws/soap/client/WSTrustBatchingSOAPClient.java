@@ -0,0 +1,623 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.opensaml.ws.security.SecurityPolicyResolver;
+import org.opensaml.ws.soap.client.SOAPClient.SOAPRequestParameters;
+import org.opensaml.ws.soap.client.http.HttpSOAPRequestParameters;
+import org.opensaml.ws.soap.common.SOAPException;
+import org.opensaml.ws.soap.soap11.Body;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.ws.soap.soap11.Header;
+import org.opensaml.ws.wstrust.RequestSecurityToken;
+import org.opensaml.ws.wstrust.RequestSecurityTokenCollection;
+import org.opensaml.ws.wstrust.RequestSecurityTokenResponse;
+import org.opensaml.ws.wstrust.RequestSecurityTokenResponseCollection;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.security.SecurityException;
+import org.opensaml.xml.util.DatatypeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link SOAPClient} which coalesces concurrent WS-Trust requests to the same endpoint into a single
+ * RequestSecurityTokenCollection request.
+ * 
+ * A request is eligible for batching if its outbound message is a SOAP envelope without header blocks whose body
+ * carries nothing but a single RequestSecurityToken with a Context attribute. The first eligible request to an
+ * endpoint opens a batch and waits up to the configured delay for further requests to the same endpoint, with the
+ * same SOAP action, communication profile, outbound issuer and security policy resolver, to join it. The batch is
+ * sent by the wrapped client as soon as it is full or the delay has elapsed, and each RequestSecurityTokenResponse in
+ * the returned RequestSecurityTokenResponseCollection is delivered to the message context of the request it answers,
+ * wrapped in its own envelope. A batch of one request is sent unchanged.
+ * 
+ * Responses are matched to requests by their Context attribute alone, since WS-Trust does not require a collection
+ * response to list its responses in request order. Requests without a Context are therefore never batched, and a
+ * request whose Context is already used by a request in the open batch is sent on its own.
+ * 
+ * All requests in a batch share one round trip and one security policy evaluation, performed by the wrapped client
+ * against the collection response; the resulting inbound message issuer is copied to each request's message context.
+ * If the batch fails, every request in it fails with the same exception. Requests which are not eligible are passed
+ * to the wrapped client unchanged.
+ * 
+ * The peer must support WS-Trust request collections. Since the requesting threads wait for their batch to be sent,
+ * batching only pays off where many threads issue requests to the same endpoint concurrently.
+ */
+@ThreadSafe
+public class WSTrustBatchingSOAPClient implements SOAPClient {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(WSTrustBatchingSOAPClient.class);
+
+    /** Client used to send each batch. */
+    private final SOAPClient soapClient;
+
+    /** Maximum number of requests in a batch. */
+    private final int maxBatchSize;
+
+    /** Maximum time, in milliseconds, the first request of a batch waits for others to join it. */
+    private final long maxBatchDelay;
+
+    /** Lock guarding {@link #openBatches}. */
+    private final Object lock;
+
+    /** Batches still accepting requests. Guarded by {@link #lock}. */
+    private final Map<BatchKey, Batch> openBatches;
+
+    /** Number of collection requests sent. */
+    private final AtomicLong batchCount;
+
+    /** Number of requests sent as part of a collection request. */
+    private final AtomicLong batchedRequestCount;
+
+    /**
+     * Constructor.
+     * 
+     * @param client client used to send each batch
+     * @param maxSize maximum number of requests in a batch, must be greater than zero
+     * @param maxDelay maximum time, in milliseconds, the first request of a batch waits for others to join it
+     */
+    public WSTrustBatchingSOAPClient(SOAPClient client, int maxSize, long maxDelay) {
+        if (client == null) {
+            throw new IllegalArgumentException("SOAP client may not be null");
+        }
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Maximum batch size must be greater than zero");
+        }
+        if (maxDelay < 0) {
+            throw new IllegalArgumentException("Maximum batch delay may not be negative");
+        }
+        soapClient = client;
+        maxBatchSize = maxSize;
+        maxBatchDelay = maxDelay;
+        lock = new Object();
+        openBatches = new HashMap<BatchKey, Batch>();
+        batchCount = new AtomicLong();
+        batchedRequestCount = new AtomicLong();
+    }
+
+    /**
+     * Sends a message and waits for a response. If the message is eligible for batching the calling thread waits,
+     * for at most the configured delay, for other requests to join its batch before the batch is sent.
+     * 
+     * @param endpoint the endpoint to which to send the message
+     * @param messageContext the message context containing the outbound SOAP message
+     * 
+     * @throws SOAPClientException thrown if there is a problem sending the message or receiving the response, if the
+     *             response is a SOAP fault or if a collection response can not be matched to its requests
+     * @throws SecurityException thrown if the response does not meet any security policy associated with the message
+     *             context
+     */
+    public void send(String endpoint, SOAPMessageContext messageContext) throws SOAPException, SecurityException {
+        RequestSecurityToken token = getBatchableToken(messageContext);
+        if (maxBatchSize < 2 || token == null) {
+            soapClient.send(endpoint, messageContext);
+            return;
+        }
+
+        BatchKey key = new BatchKey(endpoint, messageContext);
+        BatchEntry entry = new BatchEntry(messageContext, token);
+        Batch batch;
+        boolean leader;
+        boolean full;
+        synchronized (lock) {
+            batch = openBatches.get(key);
+            if (batch != null && batch.contexts.contains(entry.context)) {
+                batch = null;
+                leader = false;
+                full = false;
+            } else {
+                leader = batch == null;
+                if (leader) {
+                    batch = new Batch(endpoint);
+                    openBatches.put(key, batch);
+                }
+                batch.entries.add(entry);
+                batch.contexts.add(entry.context);
+                full = batch.entries.size() >= maxBatchSize;
+                if (full) {
+                    openBatches.remove(key);
+                }
+            }
+        }
+
+        if (batch == null) {
+            log.debug("Context {} is already used by a request in the open batch, sending the request on its own",
+                    entry.context);
+            soapClient.send(endpoint, messageContext);
+            return;
+        }
+
+        if (leader) {
+            if (!full) {
+                awaitBatch(key, batch);
+            }
+            sendBatch(batch);
+        } else {
+            if (full) {
+                synchronized (batch) {
+                    batch.closed = true;
+                    batch.notifyAll();
+                }
+            }
+            awaitCompletion(batch);
+        }
+
+        if (batch.failure != null) {
+            rethrow(batch.failure);
+        }
+    }
+
+    /**
+     * Gets the number of collection requests sent.
+     * 
+     * @return number of collection requests sent
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Gets the number of requests sent as part of a collection request.
+     * 
+     * @return number of batched requests
+     */
+    public long getBatchedRequestCount() {
+        return batchedRequestCount.get();
+    }
+
+    /**
+     * Gets the RequestSecurityToken carried by a message if the message is eligible for batching.
+     * 
+     * @param messageContext the message context containing the outbound SOAP message
+     * 
+     * @return the RequestSecurityToken, or null if the message is not eligible for batching; a returned token must
+     *         carry a Context attribute
+     */
+    protected RequestSecurityToken getBatchableToken(SOAPMessageContext messageContext) {
+        SOAPRequestParameters parameters = messageContext.getSOAPRequestParameters();
+        if (parameters != null && !(parameters instanceof HttpSOAPRequestParameters)) {
+            return null;
+        }
+
+        XMLObject message = messageContext.getOutboundMessage();
+        if (!(message instanceof Envelope)) {
+            return null;
+        }
+        Envelope envelope = (Envelope) message;
+        Header header = envelope.getHeader();
+        if (header != null && !header.getUnknownXMLObjects().isEmpty()) {
+            return null;
+        }
+        Body body = envelope.getBody();
+        if (body == null || !body.getUnknownAttributes().isEmpty()) {
+            return null;
+        }
+        List<XMLObject> children = body.getUnknownXMLObjects();
+        if (children.size() != 1 || !(children.get(0) instanceof RequestSecurityToken)) {
+            return null;
+        }
+        RequestSecurityToken token = (RequestSecurityToken) children.get(0);
+        if (DatatypeHelper.safeTrimOrNullString(token.getContext()) == null) {
+            return null;
+        }
+        return token;
+    }
+
+    /**
+     * Waits, as the first request of a batch, for the batch to fill or for the batch delay to elapse, and closes the
+     * batch to further requests.
+     * 
+     * @param key the batch's key
+     * @param batch the batch
+     */
+    private void awaitBatch(BatchKey key, Batch batch) {
+        boolean interrupted = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBatchDelay);
+        synchronized (batch) {
+            long remaining = deadline - System.nanoTime();
+            while (!batch.closed && remaining > 0 && !interrupted) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(batch, remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+        }
+
+        synchronized (lock) {
+            if (openBatches.get(key) == batch) {
+                openBatches.remove(key);
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for a batch to be sent and its responses to be delivered.
+     * 
+     * @param batch the batch
+     */
+    private void awaitCompletion(Batch batch) {
+        boolean interrupted = false;
+        synchronized (batch) {
+            while (!batch.done) {
+                try {
+                    batch.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends a closed batch, delivers its responses and wakes the requests waiting for it.
+     * 
+     * @param batch the batch
+     */
+    private void sendBatch(Batch batch) {
+        Throwable failure = null;
+        try {
+            if (batch.entries.size() == 1) {
+                soapClient.send(batch.endpoint, batch.entries.get(0).messageContext);
+            } else {
+                sendCollection(batch);
+            }
+        } catch (Throwable t) {
+            failure = t;
+        }
+
+        synchronized (batch) {
+            batch.failure = failure;
+            batch.done = true;
+            batch.notifyAll();
+        }
+    }
+
+    /**
+     * Sends the requests of a batch as a single RequestSecurityTokenCollection and delivers each response to the
+     * message context of the request it answers. The RequestSecurityTokens are moved into the collection for the
+     * duration of the request and returned to their original messages afterwards.
+     * 
+     * @param batch the batch
+     * 
+     * @throws SOAPException thrown if the collection can not be sent, its response is a SOAP fault or its responses
+     *             can not be matched to its requests
+     * @throws SecurityException thrown if the response does not meet the security policy
+     */
+    private void sendCollection(Batch batch) throws SOAPException, SecurityException {
+        List<BatchEntry> entries = batch.entries;
+        log.debug("Sending {} WS-Trust requests to {} as a single collection", entries.size(), batch.endpoint);
+
+        SOAPMessageContext first = entries.get(0).messageContext;
+        BasicSOAPMessageContext batchContext = new BasicSOAPMessageContext();
+        batchContext.setCommunicationProfileId(first.getCommunicationProfileId());
+        batchContext.setOutboundMessageIssuer(first.getOutboundMessageIssuer());
+        batchContext.setSecurityPolicyResolver(first.getSecurityPolicyResolver());
+        batchContext.setSOAPRequestParameters(first.getSOAPRequestParameters());
+
+        RequestSecurityTokenCollection collection = (RequestSecurityTokenCollection) buildXMLObject(
+                RequestSecurityTokenCollection.ELEMENT_NAME);
+        batchContext.setOutboundMessage(buildEnvelope(collection));
+
+        try {
+            for (BatchEntry entry : entries) {
+                entry.body.getUnknownXMLObjects().remove(entry.token);
+                collection.getRequestSecurityTokens().add(entry.token);
+            }
+
+            batchCount.incrementAndGet();
+            batchedRequestCount.addAndGet(entries.size());
+            soapClient.send(batch.endpoint, batchContext);
+        } finally {
+            for (BatchEntry entry : entries) {
+                if (entry.token.getParent() == collection) {
+                    collection.getRequestSecurityTokens().remove(entry.token);
+                }
+                if (entry.token.getParent() == null) {
+                    entry.body.getUnknownXMLObjects().add(entry.token);
+                }
+            }
+        }
+
+        deliverResponses(batch, batchContext);
+    }
+
+    /**
+     * Delivers each RequestSecurityTokenResponse of a collection response to the message context of the request it
+     * answers.
+     * 
+     * @param batch the batch
+     * @param batchContext the message context of the collection request
+     * 
+     * @throws SOAPClientException thrown if the response is not a RequestSecurityTokenResponseCollection or its
+     *             responses can not be matched to the requests
+     */
+    private void deliverResponses(Batch batch, SOAPMessageContext batchContext) throws SOAPClientException {
+        RequestSecurityTokenResponseCollection responseCollection = getResponseCollection(batchContext);
+        if (responseCollection == null) {
+            throw new SOAPClientException("Response from " + batch.endpoint
+                    + " to a batched request did not contain a RequestSecurityTokenResponseCollection");
+        }
+
+        List<BatchEntry> entries = batch.entries;
+        List<RequestSecurityTokenResponse> responses = new ArrayList<RequestSecurityTokenResponse>(
+                responseCollection.getRequestSecurityTokenResponses());
+        if (responses.size() != entries.size()) {
+            throw new SOAPClientException("Response from " + batch.endpoint + " contained " + responses.size()
+                    + " responses to " + entries.size() + " batched requests");
+        }
+
+        Map<String, RequestSecurityTokenResponse> byContext = new HashMap<String, RequestSecurityTokenResponse>();
+        for (RequestSecurityTokenResponse response : responses) {
+            String context = DatatypeHelper.safeTrimOrNullString(response.getContext());
+            if (context != null && byContext.put(context, response) != null) {
+                throw new SOAPClientException("Response from " + batch.endpoint
+                        + " contained more than one response with context " + context);
+            }
+        }
+
+        List<RequestSecurityTokenResponse> matched = new ArrayList<RequestSecurityTokenResponse>(entries.size());
+        for (BatchEntry entry : entries) {
+            RequestSecurityTokenResponse response = byContext.get(entry.context);
+            if (response == null) {
+                throw new SOAPClientException("Response from " + batch.endpoint
+                        + " contained no response with context " + entry.context);
+            }
+            matched.add(response);
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+            RequestSecurityTokenResponse response = matched.get(i);
+            responseCollection.getRequestSecurityTokenResponses().remove(response);
+
+            SOAPMessageContext messageContext = entries.get(i).messageContext;
+            messageContext.setInboundMessage(buildEnvelope(response));
+            messageContext.setInboundMessageIssuer(batchContext.getInboundMessageIssuer());
+        }
+    }
+
+    /**
+     * Gets the RequestSecurityTokenResponseCollection carried by the inbound message of a message context.
+     * 
+     * @param messageContext the message context
+     * 
+     * @return the collection, or null if the inbound message does not carry one
+     */
+    private RequestSecurityTokenResponseCollection getResponseCollection(SOAPMessageContext messageContext) {
+        XMLObject message = messageContext.getInboundMessage();
+        if (!(message instanceof Envelope) || ((Envelope) message).getBody() == null) {
+            return null;
+        }
+        for (XMLObject child : ((Envelope) message).getBody().getUnknownXMLObjects()) {
+            if (child instanceof RequestSecurityTokenResponseCollection) {
+                return (RequestSecurityTokenResponseCollection) child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds a SOAP envelope whose body carries the given element.
+     * 
+     * @param content the body content
+     * 
+     * @return the envelope
+     */
+    private Envelope buildEnvelope(XMLObject content) {
+        Envelope envelope = (Envelope) buildXMLObject(Envelope.DEFAULT_ELEMENT_NAME);
+        Body body = (Body) buildXMLObject(Body.DEFAULT_ELEMENT_NAME);
+        body.getUnknownXMLObjects().add(content);
+        envelope.setBody(body);
+        return envelope;
+    }
+
+    /**
+     * Builds an XMLObject using the globally registered builder.
+     * 
+     * @param name the element name
+     * 
+     * @return the built object
+     */
+    private XMLObject buildXMLObject(QName name) {
+        return Configuration.getBuilderFactory().getBuilder(name).buildObject(name);
+    }
+
+    /**
+     * Rethrows the failure of a batch.
+     * 
+     * @param failure the failure
+     * 
+     * @throws SOAPException thrown if the failure is a SOAP exception
+     * @throws SecurityException thrown if the failure is a security exception
+     */
+    private void rethrow(Throwable failure) throws SOAPException, SecurityException {
+        if (failure instanceof SOAPException) {
+            throw (SOAPException) failure;
+        } else if (failure instanceof SecurityException) {
+            throw (SecurityException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new SOAPClientException("Unable to send batched request", (Exception) failure);
+    }
+
+    /** Identifies the requests which may share a batch. */
+    private static final class BatchKey {
+
+        /** The endpoint. */
+        private final String endpoint;
+
+        /** The SOAP action, may be null. */
+        private final String soapAction;
+
+        /** The communication profile, may be null. */
+        private final String profileId;
+
+        /** The outbound message issuer, may be null. */
+        private final String issuer;
+
+        /** The security policy resolver, compared by identity, may be null. */
+        private final SecurityPolicyResolver resolver;
+
+        /**
+         * Constructor.
+         * 
+         * @param requestEndpoint the endpoint
+         * @param messageContext the message context of the request
+         */
+        private BatchKey(String requestEndpoint, SOAPMessageContext messageContext) {
+            endpoint = requestEndpoint;
+            SOAPRequestParameters parameters = messageContext.getSOAPRequestParameters();
+            soapAction = parameters == null ? null : ((HttpSOAPRequestParameters) parameters).getSoapAction();
+            profileId = messageContext.getCommunicationProfileId();
+            issuer = messageContext.getOutboundMessageIssuer();
+            resolver = messageContext.getSecurityPolicyResolver();
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            int hash = endpoint == null ? 0 : endpoint.hashCode();
+            hash = 31 * hash + (soapAction == null ? 0 : soapAction.hashCode());
+            hash = 31 * hash + (profileId == null ? 0 : profileId.hashCode());
+            hash = 31 * hash + (issuer == null ? 0 : issuer.hashCode());
+            return 31 * hash + System.identityHashCode(resolver);
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey other = (BatchKey) obj;
+            return resolver == other.resolver && DatatypeHelper.safeEquals(endpoint, other.endpoint)
+                    && DatatypeHelper.safeEquals(soapAction, other.soapAction)
+                    && DatatypeHelper.safeEquals(profileId, other.profileId)
+                    && DatatypeHelper.safeEquals(issuer, other.issuer);
+        }
+    }
+
+    /** A single request within a batch. */
+    private static final class BatchEntry {
+
+        /** Message context of the request. */
+        private final SOAPMessageContext messageContext;
+
+        /** Body of the outbound message. */
+        private final Body body;
+
+        /** RequestSecurityToken carried by the outbound message. */
+        private final RequestSecurityToken token;
+
+        /** Trimmed Context attribute of the RequestSecurityToken. */
+        private final String context;
+
+        /**
+         * Constructor.
+         * 
+         * @param msgContext message context of the request
+         * @param requestToken RequestSecurityToken carried by the outbound message
+         */
+        private BatchEntry(SOAPMessageContext msgContext, RequestSecurityToken requestToken) {
+            messageContext = msgContext;
+            body = (Body) requestToken.getParent();
+            token = requestToken;
+            context = DatatypeHelper.safeTrimOrNullString(requestToken.getContext());
+        }
+    }
+
+    /** Requests to one endpoint sent together. */
+    private static final class Batch {
+
+        /** The endpoint. */
+        private final String endpoint;
+
+        /** Requests in the batch. Guarded by the client's lock until the batch is closed. */
+        private final List<BatchEntry> entries;
+
+        /** Contexts of the requests in the batch. Guarded by the client's lock. */
+        private final Set<String> contexts;
+
+        /** Whether the batch is full. Guarded by this instance's monitor. */
+        private boolean closed;
+
+        /** Whether the batch has been sent and its responses delivered. Guarded by this instance's monitor. */
+        private boolean done;
+
+        /** Failure of the batch, if any. Guarded by this instance's monitor until the batch is done. */
+        private Throwable failure;
+
+        /**
+         * Constructor.
+         * 
+         * @param batchEndpoint the endpoint
+         */
+        private Batch(String batchEndpoint) {
+            endpoint = batchEndpoint;
+            entries = new ArrayList<BatchEntry>();
+            contexts = new HashSet<String>();
+        }
+    }
+}
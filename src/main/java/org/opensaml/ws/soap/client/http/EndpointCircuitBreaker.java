@@ -0,0 +1,140 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client.http;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Circuit breaker guarding a single endpoint.
+ * 
+ * The breaker is closed while requests succeed. Once the configured number of consecutive requests have failed it
+ * opens, and requests are rejected without being sent until the open interval has elapsed. A single trial request is
+ * then let through: if it succeeds the breaker closes, otherwise it opens again for another interval. Requests which
+ * fail before reaching the endpoint, such as those waiting too long for a pooled connection, should be recorded with
+ * {@link #recordNotSent()} so that local resource exhaustion does not open the breaker.
+ */
+@ThreadSafe
+public class EndpointCircuitBreaker {
+
+    /** States of a circuit breaker. */
+    public enum State {
+        /** Requests are sent. */
+        CLOSED,
+
+        /** Requests are rejected. */
+        OPEN,
+
+        /** A single trial request has been let through and its outcome is awaited. */
+        HALF_OPEN
+    }
+
+    /** Number of consecutive failures after which the breaker opens. */
+    private final int failureThreshold;
+
+    /** Time, in milliseconds, for which the breaker stays open. */
+    private final long openInterval;
+
+    /** Current state. Guarded by this instance's monitor. */
+    private State state;
+
+    /** Number of consecutive failures. Guarded by this instance's monitor. */
+    private int failures;
+
+    /** Time, in milliseconds since the epoch, at which the breaker last opened. Guarded by this instance's monitor. */
+    private long openedAt;
+
+    /**
+     * Constructor.
+     * 
+     * @param threshold number of consecutive failures after which the breaker opens, must be greater than zero
+     * @param interval time, in milliseconds, for which the breaker stays open
+     */
+    public EndpointCircuitBreaker(int threshold, long interval) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be greater than zero");
+        }
+        failureThreshold = threshold;
+        openInterval = interval;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Gets the current state of the breaker.
+     * 
+     * @return the current state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Checks whether a request may be sent. If the breaker is open and its open interval has elapsed, the calling
+     * request becomes the trial request and the breaker moves to {@link State#HALF_OPEN}.
+     * 
+     * @return true if the request may be sent, false if it should be rejected
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (currentTime() - openedAt >= openInterval) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /** Records a request which reached the endpoint and received a response, closing the breaker. */
+    public synchronized void recordSuccess() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    /** Records a request which failed, opening the breaker if the failure threshold is reached. */
+    public synchronized void recordFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = currentTime();
+        }
+    }
+
+    /**
+     * Records a request which was never sent, for instance because no pooled connection could be leased. The
+     * failure count is unchanged; if the request was the trial request the breaker returns to {@link State#OPEN} with
+     * its open interval already elapsed, so the next request becomes the trial request.
+     */
+    public synchronized void recordNotSent() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+    /**
+     * Gets the current time in milliseconds.
+     * 
+     * @return the current time
+     */
+    protected long currentTime() {
+        return System.currentTimeMillis();
+    }
+}
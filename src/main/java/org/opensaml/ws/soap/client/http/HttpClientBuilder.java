@@ -20,19 +20,35 @@ package org.opensaml.ws.soap.client.http;
 import net.jcip.annotations.NotThreadSafe;
 
 import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.utils.URIUtils;
 import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.RegistryBuilder;
 import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
 import org.opensaml.xml.util.DatatypeHelper;
 
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A builder for {@link CloseableHttpClient}s.
@@ -40,6 +56,10 @@ import java.nio.charset.Charset;
  * This builder will produce clients that employ the {@link PoolingHttpClientConnectionManager} and as such users of the
  * clients MUST be sure to invoke {@link org.apache.commons.httpclient.HttpMethod#releaseConnection()} after they have
  * finished with the method.
+ * 
+ * The pool may be tuned per endpoint, idle and expired connections are evicted by a background thread, and the
+ * connection manager returned by {@link #buildConnectionManager()} reports the leased, pending and available
+ * connections and the lease wait times of each route.
  */
 @NotThreadSafe
 public class HttpClientBuilder {
@@ -89,6 +109,24 @@ public class HttpClientBuilder {
     /** Socket factory used for the 'https' scheme. */
     private SSLConnectionSocketFactory socketFactory;
 
+    /** Whether pooled connections are shared regardless of the TLS client identity that established them. */
+    private boolean connectionSharing;
+
+    /** Maximum number of connections to specific endpoints, keyed by endpoint URL. */
+    private Map<String, Integer> maxConnectionsPerEndpoint;
+
+    /** Time, in milliseconds, after which idle pooled connections are closed, defaults to 60,000. */
+    private long idleConnectionTimeout;
+
+    /** Time, in milliseconds, after which a pooled connection is checked before it is reused, defaults to 2,000. */
+    private int validateAfterInactivity;
+
+    /** Maximum lifetime, in milliseconds, of a pooled connection, defaults to -1 (unlimited). */
+    private long connectionTimeToLive;
+
+    /** Time, in milliseconds, to keep a connection alive if the server does not say, defaults to 30,000. */
+    private long defaultKeepAlive;
+
     /** Constructor. */
     public HttpClientBuilder() {
         resetDefaults();
@@ -107,6 +145,12 @@ public class HttpClientBuilder {
         maxTotalConnectons = 20;
         connectionRetryAttempts = 0;
         socketTimeout = 90*1000;
+        connectionSharing = true;
+        maxConnectionsPerEndpoint = new LinkedHashMap<String, Integer>();
+        idleConnectionTimeout = 60 * 1000;
+        validateAfterInactivity = 2000;
+        connectionTimeToLive = -1;
+        defaultKeepAlive = 30 * 1000;
     }
 
     /**
@@ -116,11 +160,32 @@ public class HttpClientBuilder {
      * @return the created client.
      */
     public CloseableHttpClient buildClient() {
-        //clientParams.setAuthenticationPreemptive(isPreemptiveAuthentication()); ? redundant
+        return buildClient(buildConnectionManager());
+    }
 
-        PoolingHttpClientConnectionManager connMgr = new PoolingHttpClientConnectionManager();
+    /**
+     * Builds a pooling connection manager with the given settings. The returned manager may be passed to
+     * {@link #buildClient(HttpClientConnectionManager)} and then queried for per-route pool statistics.
+     * 
+     * @return the created connection manager
+     */
+    public InstrumentedHttpClientConnectionManager buildConnectionManager() {
+        RegistryBuilder<ConnectionSocketFactory> registryBuilder = RegistryBuilder.<ConnectionSocketFactory> create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory());
+        if (socketFactory != null) {
+            registryBuilder.register("https", socketFactory);
+        } else {
+            registryBuilder.register("https", SSLConnectionSocketFactory.getSocketFactory());
+        }
+
+        PoolingHttpClientConnectionManager connMgr = new PoolingHttpClientConnectionManager(registryBuilder.build(),
+                null, null, null, connectionTimeToLive, TimeUnit.MILLISECONDS);
         connMgr.setMaxTotal(getMaxTotalConnections());
         connMgr.setDefaultMaxPerRoute(getMaxConnectionsPerHost());
+        for (Map.Entry<String, Integer> endpointMax : maxConnectionsPerEndpoint.entrySet()) {
+            connMgr.setMaxPerRoute(buildRoute(endpointMax.getKey()), endpointMax.getValue());
+        }
+        connMgr.setValidateAfterInactivity(validateAfterInactivity);
         connMgr.setDefaultConnectionConfig(ConnectionConfig.custom()
                 .setCharset(Charset.forName(getContentCharSet()))
                 .build());
@@ -131,6 +196,21 @@ public class HttpClientBuilder {
                 .setRcvBufSize(getReceiveBufferSize())
                 .build());
 
+        return new InstrumentedHttpClientConnectionManager(connMgr);
+    }
+
+    /**
+     * Builds an HTTP client with the given settings which uses the given connection manager. The client takes
+     * ownership of the connection manager and shuts it down when it is closed. Settings are NOT reset to their default
+     * values after a client has been created.
+     * 
+     * @param connMgr the connection manager used by the client
+     * 
+     * @return the created client.
+     */
+    public CloseableHttpClient buildClient(HttpClientConnectionManager connMgr) {
+        //clientParams.setAuthenticationPreemptive(isPreemptiveAuthentication()); ? redundant
+
         final org.apache.http.impl.client.HttpClientBuilder httpClientBuilder = HttpClients.custom()
                 .setConnectionManager(connMgr)
                 .setRetryHandler(new DefaultHttpRequestRetryHandler(connectionRetryAttempts, false))
@@ -138,6 +218,26 @@ public class HttpClientBuilder {
                         .setConnectTimeout(getConnectionTimeout())
                         .build());
 
+        if (connectionSharing) {
+            httpClientBuilder.disableConnectionState();
+        }
+
+        if (idleConnectionTimeout > 0) {
+            httpClientBuilder.evictExpiredConnections();
+            httpClientBuilder.evictIdleConnections(idleConnectionTimeout, TimeUnit.MILLISECONDS);
+        }
+
+        if (defaultKeepAlive > 0) {
+            final long keepAlive = defaultKeepAlive;
+            httpClientBuilder.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                    long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response,
+                            context);
+                    return duration > 0 ? duration : keepAlive;
+                }
+            });
+        }
+
         if (proxyHost != null) {
             httpClientBuilder.setProxy(new HttpHost(proxyHost, proxyPort));
 
@@ -149,20 +249,32 @@ public class HttpClientBuilder {
             }
         }
 
-        if (this.socketFactory != null) {
-            httpClientBuilder.setSSLSocketFactory(socketFactory);
-        }
-//        if (httpsProtocolSocketFactory != null) {
-//            Protocol.registerProtocol("https", new Protocol("https", httpsProtocolSocketFactory, 443));
-//        }
-
-
         final CloseableHttpClient client = httpClientBuilder.build();
 
 
         return client;
     }
 
+    /**
+     * Builds the route the client will use to connect to the given endpoint, taking into account the proxy settings.
+     * 
+     * @param endpoint the endpoint URL
+     * 
+     * @return the route to the endpoint
+     */
+    public HttpRoute buildRoute(String endpoint) {
+        HttpHost target = getEndpointHost(endpoint);
+        boolean secure = "https".equalsIgnoreCase(target.getSchemeName());
+        if (target.getPort() <= 0) {
+            target = new HttpHost(target.getHostName(), secure ? 443 : 80, target.getSchemeName());
+        }
+
+        if (proxyHost != null) {
+            return new HttpRoute(target, null, new HttpHost(proxyHost, proxyPort), secure);
+        }
+        return new HttpRoute(target, null, secure);
+    }
+
     /**
      * Gets the host name of the HTTP proxy server through which connections will be made.
      * 
@@ -404,6 +516,138 @@ public class HttpClientBuilder {
         connectionRetryAttempts = attempts;
     }
 
+    /**
+     * Gets whether pooled connections are shared between requests regardless of the TLS client identity that
+     * established them. Default value is <code>true</code>.
+     * 
+     * HTTP/2 multiplexing is not available from the underlying HTTP client, so this is how concurrent calls to one
+     * endpoint share a small pool of warm connections. Without it, a connection established with a client
+     * certificate is tagged with that principal and is only leased to requests presenting the same state, so each
+     * request performs a new TLS handshake. Disable this only if a client instance is used with several client
+     * identities against the same endpoint and connections must not be shared between them.
+     * 
+     * @return whether pooled connections are shared regardless of TLS client identity
+     */
+    public boolean isConnectionSharing() {
+        return connectionSharing;
+    }
+
+    /**
+     * Sets whether pooled connections are shared between requests regardless of the TLS client identity that
+     * established them.
+     * 
+     * @param sharing whether pooled connections are shared regardless of TLS client identity
+     */
+    public void setConnectionSharing(boolean sharing) {
+        connectionSharing = sharing;
+    }
+
+    /**
+     * Gets the maximum number of connections to specific endpoints, keyed by endpoint URL. Endpoints not listed are
+     * limited by {@link #getMaxConnectionsPerHost()}.
+     * 
+     * @return maximum number of connections to specific endpoints
+     */
+    public Map<String, Integer> getMaxConnectionsPerEndpoint() {
+        return Collections.unmodifiableMap(maxConnectionsPerEndpoint);
+    }
+
+    /**
+     * Sets the maximum number of connections the client will create to the host and port of the given endpoint. This
+     * overrides {@link #setMaxConnectionsPerHost(int)} for that endpoint.
+     * 
+     * @param endpoint the endpoint URL
+     * @param max maximum number of connections to the endpoint, must be greater than zero
+     */
+    public void setMaxConnectionsPerEndpoint(String endpoint, int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Maximum number of connections must be greater than zero.");
+        }
+        getEndpointHost(endpoint);
+        maxConnectionsPerEndpoint.put(endpoint, max);
+    }
+
+    /**
+     * Gets the time, in milliseconds, after which idle pooled connections are closed. Expired connections are closed
+     * at the same time. Default value is 60,000. A value of 0 or less disables eviction.
+     * 
+     * @return time, in milliseconds, after which idle pooled connections are closed
+     */
+    public long getIdleConnectionTimeout() {
+        return idleConnectionTimeout;
+    }
+
+    /**
+     * Sets the time, in milliseconds, after which idle pooled connections are closed. A value of 0 or less disables
+     * eviction.
+     * 
+     * @param timeout time, in milliseconds, after which idle pooled connections are closed
+     */
+    public void setIdleConnectionTimeout(long timeout) {
+        idleConnectionTimeout = timeout;
+    }
+
+    /**
+     * Gets the time, in milliseconds, a pooled connection may be inactive before it is checked for staleness prior to
+     * reuse. Default value is 2,000. A value of 0 or less disables the check.
+     * 
+     * @return time, in milliseconds, after which a pooled connection is checked before it is reused
+     */
+    public int getValidateAfterInactivity() {
+        return validateAfterInactivity;
+    }
+
+    /**
+     * Sets the time, in milliseconds, a pooled connection may be inactive before it is checked for staleness prior to
+     * reuse. A value of 0 or less disables the check.
+     * 
+     * @param inactivity time, in milliseconds, after which a pooled connection is checked before it is reused
+     */
+    public void setValidateAfterInactivity(int inactivity) {
+        validateAfterInactivity = inactivity;
+    }
+
+    /**
+     * Gets the maximum lifetime, in milliseconds, of a pooled connection. Default value is -1. A value of 0 or less
+     * indicates connections may be reused indefinitely.
+     * 
+     * @return maximum lifetime, in milliseconds, of a pooled connection
+     */
+    public long getConnectionTimeToLive() {
+        return connectionTimeToLive;
+    }
+
+    /**
+     * Sets the maximum lifetime, in milliseconds, of a pooled connection. A value of 0 or less indicates connections
+     * may be reused indefinitely.
+     * 
+     * @param ttl maximum lifetime, in milliseconds, of a pooled connection
+     */
+    public void setConnectionTimeToLive(long ttl) {
+        connectionTimeToLive = ttl;
+    }
+
+    /**
+     * Gets the time, in milliseconds, a connection is kept alive if the server's response does not carry a
+     * <code>Keep-Alive</code> timeout. Default value is 30,000. A value of 0 or less keeps such connections alive
+     * indefinitely.
+     * 
+     * @return time, in milliseconds, to keep a connection alive if the server does not say
+     */
+    public long getDefaultKeepAlive() {
+        return defaultKeepAlive;
+    }
+
+    /**
+     * Sets the time, in milliseconds, a connection is kept alive if the server's response does not carry a
+     * <code>Keep-Alive</code> timeout. A value of 0 or less keeps such connections alive indefinitely.
+     * 
+     * @param keepAlive time, in milliseconds, to keep a connection alive if the server does not say
+     */
+    public void setDefaultKeepAlive(long keepAlive) {
+        defaultKeepAlive = keepAlive;
+    }
+
     /**
      * Gets the protocol socket factory used for the https scheme.
      * 
@@ -421,4 +665,28 @@ public class HttpClientBuilder {
     public void setSSLConnectionSocketFactory(SSLConnectionSocketFactory factory) {
         this.socketFactory = factory;
     }
+
+    /**
+     * Gets the target host of an endpoint URL.
+     * 
+     * @param endpoint the endpoint URL
+     * 
+     * @return the endpoint's target host
+     */
+    private HttpHost getEndpointHost(String endpoint) {
+        if (DatatypeHelper.isEmpty(endpoint)) {
+            throw new IllegalArgumentException("Endpoint URL may not be null or empty");
+        }
+
+        HttpHost target = null;
+        try {
+            target = URIUtils.extractHost(new URI(endpoint.trim()));
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid endpoint URL " + endpoint);
+        }
+        if (target == null) {
+            throw new IllegalArgumentException("Endpoint URL " + endpoint + " does not contain a host");
+        }
+        return target;
+    }
 }
\ No newline at end of file
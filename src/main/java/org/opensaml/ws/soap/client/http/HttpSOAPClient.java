@@ -20,9 +20,25 @@ package org.opensaml.ws.soap.client.http;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLException;
 
 import net.jcip.annotations.ThreadSafe;
 
@@ -32,11 +48,17 @@ import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.RequestEntity;
 import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.opensaml.ws.message.decoder.MessageDecodingException;
 import org.opensaml.ws.security.SecurityPolicy;
 import org.opensaml.ws.security.SecurityPolicyResolver;
 import org.opensaml.ws.soap.client.SOAPClient;
@@ -46,6 +68,8 @@ import org.opensaml.ws.soap.client.SOAPMessageContext;
 import org.opensaml.ws.soap.common.SOAPException;
 import org.opensaml.ws.soap.soap11.Envelope;
 import org.opensaml.ws.soap.soap11.Fault;
+import org.opensaml.ws.soap.soap11.decoder.SOAP11StreamingUnmarshaller;
+import org.opensaml.ws.soap.soap11.encoder.SOAP11StreamingSerializer;
 import org.opensaml.xml.Configuration;
 import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.io.Marshaller;
@@ -70,6 +94,12 @@ import org.w3c.dom.Element;
 @ThreadSafe
 public class HttpSOAPClient implements SOAPClient {
 
+    /** Maximum number of unread response bytes read when releasing a response in order to reuse its connection. */
+    public static final int RESPONSE_DRAIN_LIMIT = 8192;
+
+    /** Number of recent response times kept for each endpoint in order to compute hedging delays. */
+    public static final int LATENCY_WINDOW_SIZE = 128;
+
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(HttpSOAPClient.class);
 
@@ -79,6 +109,51 @@ public class HttpSOAPClient implements SOAPClient {
     /** Pool of XML parsers used to parser incoming responses. */
     private ParserPool parserPool;
 
+    /** Serializer used to write outbound requests. */
+    private final SOAP11StreamingSerializer requestSerializer = new SOAP11StreamingSerializer();
+
+    /** Whether requests are streamed with chunked transfer coding rather than buffered to compute their length. */
+    private boolean chunkedRequests = true;
+
+    /** Whether request bodies are gzip compressed. */
+    private boolean compressRequests;
+
+    /** Maximum size, in bytes, of a response body, or a negative value if unlimited. */
+    private long maxResponseSize = -1;
+
+    /** Whether responses are read with the streaming unmarshaller rather than parsed into a single DOM. */
+    private boolean streamingResponses;
+
+    /** Unmarshaller used when streaming responses is enabled. */
+    private final SOAP11StreamingUnmarshaller responseUnmarshaller = new SOAP11StreamingUnmarshaller();
+
+    /** Number of responses read. */
+    private final AtomicLong responseCount = new AtomicLong();
+
+    /** Total number of response body bytes read. */
+    private final AtomicLong responseBytesRead = new AtomicLong();
+
+    /** Largest number of bytes read for a single response. */
+    private final AtomicLong largestResponse = new AtomicLong();
+
+    /** Number of responses rejected for exceeding the maximum response size. */
+    private final AtomicLong oversizedResponseCount = new AtomicLong();
+
+    /** Retry, hedging and circuit breaking policy, or null if requests are sent once. */
+    private HttpSOAPRequestPolicy requestPolicy;
+
+    /** Circuit breaker and response time state of each endpoint, used when a request policy is set. */
+    private final ConcurrentMap<String, EndpointState> endpointStates = new ConcurrentHashMap<String, EndpointState>();
+
+    /** Number of requests retried. */
+    private final AtomicLong retryCount = new AtomicLong();
+
+    /** Number of hedged requests sent. */
+    private final AtomicLong hedgedRequestCount = new AtomicLong();
+
+    /** Number of requests rejected because the endpoint's circuit was open. */
+    private final AtomicLong rejectedRequestCount = new AtomicLong();
+
     /**
      * Constructor.
      * 
@@ -99,33 +174,525 @@ public class HttpSOAPClient implements SOAPClient {
         parserPool = parser;
     }
 
+    /**
+     * Gets whether requests are streamed onto the connection using chunked transfer coding. If false, each request is
+     * serialized into memory first so that its length can be sent. Defaults to true.
+     * 
+     * @return whether requests are streamed using chunked transfer coding
+     */
+    public boolean isChunkedRequests() {
+        return chunkedRequests;
+    }
+
+    /**
+     * Sets whether requests are streamed onto the connection using chunked transfer coding. If false, each request is
+     * serialized into memory first so that its length can be sent.
+     * 
+     * @param chunked whether requests are streamed using chunked transfer coding
+     */
+    public void setChunkedRequests(boolean chunked) {
+        chunkedRequests = chunked;
+    }
+
+    /**
+     * Gets whether request bodies are gzip compressed. The peer must accept a gzip content coding. Defaults to false.
+     * 
+     * @return whether request bodies are gzip compressed
+     */
+    public boolean isCompressRequests() {
+        return compressRequests;
+    }
+
+    /**
+     * Sets whether request bodies are gzip compressed. The peer must accept a gzip content coding.
+     * 
+     * @param compress whether request bodies are gzip compressed
+     */
+    public void setCompressRequests(boolean compress) {
+        compressRequests = compress;
+    }
+
+    /**
+     * Gets the maximum size, in bytes, of a response body. Responses declaring, or found while reading to have, a
+     * larger body are rejected. Defaults to -1, unlimited.
+     * 
+     * @return maximum response body size, or a negative value if unlimited
+     */
+    public long getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    /**
+     * Sets the maximum size, in bytes, of a response body.
+     * 
+     * @param size maximum response body size, or a negative value if unlimited
+     */
+    public void setMaxResponseSize(long size) {
+        maxResponseSize = size;
+    }
+
+    /**
+     * Gets whether responses are read incrementally, materializing only individual header blocks and body children
+     * as DOM, rather than parsed into a DOM of the entire message. When enabled, reading a fault response stops as
+     * soon as the fault has been read. Defaults to false.
+     * 
+     * @return whether responses are read incrementally
+     */
+    public boolean isStreamingResponses() {
+        return streamingResponses;
+    }
+
+    /**
+     * Sets whether responses are read incrementally, materializing only individual header blocks and body children
+     * as DOM, rather than parsed into a DOM of the entire message.
+     * 
+     * @param streaming whether responses are read incrementally
+     */
+    public void setStreamingResponses(boolean streaming) {
+        streamingResponses = streaming;
+    }
+
+    /**
+     * Gets the number of responses read by this client.
+     * 
+     * @return number of responses read
+     */
+    public long getResponseCount() {
+        return responseCount.get();
+    }
+
+    /**
+     * Gets the total number of response body bytes read by this client.
+     * 
+     * @return number of response body bytes read
+     */
+    public long getResponseBytesRead() {
+        return responseBytesRead.get();
+    }
+
+    /**
+     * Gets the largest number of body bytes read for a single response.
+     * 
+     * @return largest number of bytes read for a single response
+     */
+    public long getLargestResponseSize() {
+        return largestResponse.get();
+    }
+
+    /**
+     * Gets the number of responses rejected for exceeding the maximum response size.
+     * 
+     * @return number of oversized responses
+     */
+    public long getOversizedResponseCount() {
+        return oversizedResponseCount.get();
+    }
+
+    /**
+     * Gets the retry, hedging and circuit breaking policy. Defaults to null, in which case each request is sent once.
+     * 
+     * @return the request policy, or null
+     */
+    public HttpSOAPRequestPolicy getRequestPolicy() {
+        return requestPolicy;
+    }
+
+    /**
+     * Sets the retry, hedging and circuit breaking policy. Any per-endpoint state held under a previous policy is
+     * discarded.
+     * 
+     * @param policy the request policy, or null to send each request once
+     */
+    public void setRequestPolicy(HttpSOAPRequestPolicy policy) {
+        requestPolicy = policy;
+        endpointStates.clear();
+    }
+
+    /**
+     * Gets the circuit breaker guarding the given endpoint.
+     * 
+     * @param endpoint the endpoint
+     * 
+     * @return the endpoint's circuit breaker, or null if no request policy is set, circuit breaking is disabled or no
+     *         request has been sent to the endpoint
+     */
+    public EndpointCircuitBreaker getCircuitBreaker(String endpoint) {
+        EndpointState state = endpointStates.get(endpoint);
+        if (state == null) {
+            return null;
+        }
+        return state.circuitBreaker;
+    }
+
+    /**
+     * Gets the number of requests retried by this client.
+     * 
+     * @return number of retries
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * Gets the number of hedged requests sent by this client.
+     * 
+     * @return number of hedged requests
+     */
+    public long getHedgedRequestCount() {
+        return hedgedRequestCount.get();
+    }
+
+    /**
+     * Gets the number of requests rejected because the endpoint's circuit was open.
+     * 
+     * @return number of rejected requests
+     */
+    public long getRejectedRequestCount() {
+        return rejectedRequestCount.get();
+    }
+
     /** {@inheritDoc} */
     public void send(String endpoint, SOAPMessageContext messageContext) throws SOAPException, SecurityException {
+        HttpSOAPRequestPolicy policy = requestPolicy;
+        if (policy != null) {
+            sendWithPolicy(endpoint, messageContext, policy);
+            return;
+        }
+
         HttpPost post = null;
+        CloseableHttpResponse response = null;
         try {
             post = createPostMethod(endpoint, (HttpSOAPRequestParameters) messageContext.getSOAPRequestParameters(),
                     (Envelope) messageContext.getOutboundMessage());
 
-            final CloseableHttpResponse response = httpClient.execute(post);
-            log.debug("Received HTTP status code of {} when POSTing SOAP message to {}", response.getStatusLine().getStatusCode(), endpoint);
-
-            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                processSuccessfulResponse(response, messageContext);
-            } else if (response.getStatusLine().getStatusCode() == HttpStatus.SC_INTERNAL_SERVER_ERROR) {
-                processFaultResponse(response, messageContext);
-            } else {
-                throw new SOAPClientException("Received " + response.getStatusLine().getStatusCode() + " HTTP response status code from HTTP request to "
-                        + endpoint);
-            }
+            response = httpClient.execute(post);
+            processResponse(endpoint, response, messageContext);
         } catch (IOException e) {
             throw new SOAPClientException("Unable to send request to " + endpoint, e);
         } finally {
+            if (response != null) {
+                releaseResponse(response);
+            }
             if (post != null) {
                 post.releaseConnection();
             }
         }
     }
 
+    /**
+     * Processes the response to a request according to its HTTP status code.
+     * 
+     * @param endpoint the endpoint to which the request was sent
+     * @param response the HTTP response
+     * @param messageContext current message context
+     * 
+     * @throws SOAPClientException thrown if the response can not be processed or has an unexpected HTTP status code
+     * @throws SOAPFaultException thrown if the response is a SOAP fault
+     */
+    protected void processResponse(String endpoint, CloseableHttpResponse response, SOAPMessageContext messageContext)
+            throws SOAPClientException, SOAPFaultException {
+        int status = response.getStatusLine().getStatusCode();
+        log.debug("Received HTTP status code of {} when POSTing SOAP message to {}", status, endpoint);
+
+        if (status == HttpStatus.SC_OK) {
+            processSuccessfulResponse(response, messageContext);
+        } else if (status == HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+            processFaultResponse(response, messageContext);
+        } else {
+            throw new SOAPClientException("Received " + status + " HTTP response status code from HTTP request to "
+                    + endpoint);
+        }
+    }
+
+    /**
+     * Sends a request according to the given retry, hedging and circuit breaking policy. The request is marshalled
+     * once and the same entity is sent by every attempt. Attempts which could not lease a pooled connection are not
+     * counted against the endpoint's circuit breaker.
+     * 
+     * @param endpoint the endpoint to which to send the message
+     * @param messageContext the message context containing the outbound SOAP message
+     * @param policy the request policy
+     * 
+     * @throws SOAPClientException thrown if the endpoint's circuit is open or if no attempt succeeds
+     * @throws SOAPFaultException thrown if the response is a SOAP fault
+     */
+    protected void sendWithPolicy(String endpoint, SOAPMessageContext messageContext, HttpSOAPRequestPolicy policy)
+            throws SOAPClientException, SOAPFaultException {
+        HttpSOAPRequestParameters requestParams = (HttpSOAPRequestParameters) messageContext
+                .getSOAPRequestParameters();
+        boolean idempotent = requestParams != null && requestParams.isIdempotent();
+        boolean hedging = idempotent && policy.getHedgeExecutor() != null;
+        EndpointState state = getEndpointState(endpoint, policy);
+
+        HttpEntity entity = createRequestEntity((Envelope) messageContext.getOutboundMessage(),
+                Charset.forName("UTF-8"));
+        if (hedging) {
+            // concurrent attempts must not serialize the same DOM at the same time
+            entity = new ExclusiveHttpEntity(entity);
+        }
+
+        for (int attempt = 1;; attempt++) {
+            if (state.circuitBreaker != null && !state.circuitBreaker.allowRequest()) {
+                rejectedRequestCount.incrementAndGet();
+                throw new SOAPClientException("Circuit for endpoint " + endpoint + " is open, request not sent");
+            }
+
+            RequestAttempt request = null;
+            boolean outcomeRecorded = false;
+            try {
+                if (hedging) {
+                    request = executeHedged(endpoint, requestParams, entity, state, policy);
+                } else {
+                    request = executeAttempt(createPostMethod(endpoint, requestParams, entity));
+                }
+
+                int status = request.response.getStatusLine().getStatusCode();
+                if (status == HttpStatus.SC_OK || status == HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                    state.recordSuccess(request.latency);
+                    outcomeRecorded = true;
+                    processResponse(endpoint, request.response, messageContext);
+                    return;
+                }
+
+                state.recordFailure();
+                outcomeRecorded = true;
+                if (!idempotent || attempt >= policy.getMaxAttempts() || !policy.isRetryableStatus(status)) {
+                    processResponse(endpoint, request.response, messageContext);
+                    return;
+                }
+                log.debug("Received retryable HTTP status code {} from {}", status, endpoint);
+            } catch (ConnectionPoolTimeoutException e) {
+                // the local connection pool is exhausted, which says nothing about the endpoint
+                state.recordNotSent();
+                outcomeRecorded = true;
+                if (attempt >= policy.getMaxAttempts() || !isRetryable(e, idempotent)) {
+                    throw new SOAPClientException("Unable to send request to " + endpoint, e);
+                }
+                log.debug("Attempt " + attempt + " to send request to " + endpoint + " failed", e);
+            } catch (IOException e) {
+                state.recordFailure();
+                outcomeRecorded = true;
+                if (attempt >= policy.getMaxAttempts() || !isRetryable(e, idempotent)) {
+                    throw new SOAPClientException("Unable to send request to " + endpoint, e);
+                }
+                log.debug("Attempt " + attempt + " to send request to " + endpoint + " failed", e);
+            } finally {
+                if (!outcomeRecorded) {
+                    state.recordFailure();
+                }
+                if (request != null) {
+                    releaseResponse(request.response);
+                    request.post.releaseConnection();
+                }
+            }
+
+            long delay = policy.getBackoffDelay(attempt);
+            log.debug("Retrying request to {} in {}ms", endpoint, delay);
+            retryCount.incrementAndGet();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SOAPClientException("Interrupted while waiting to retry request to " + endpoint, e);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a request which failed with the given error may be retried. Requests which are not idempotent are
+     * only retried if the error shows the request was not sent.
+     * 
+     * @param error the error
+     * @param idempotent whether the request is idempotent
+     * 
+     * @return true if the request may be retried
+     */
+    protected boolean isRetryable(IOException error, boolean idempotent) {
+        if (error instanceof UnknownHostException || error instanceof SSLException) {
+            return false;
+        }
+        if (error instanceof ConnectException || error instanceof ConnectTimeoutException) {
+            return true;
+        }
+        return idempotent;
+    }
+
+    /**
+     * Sends a request on the calling thread.
+     * 
+     * @param post the request
+     * 
+     * @return the attempt, carrying the response
+     * 
+     * @throws IOException thrown if the request fails
+     */
+    private RequestAttempt executeAttempt(HttpPost post) throws IOException {
+        long start = System.nanoTime();
+        boolean executed = false;
+        try {
+            CloseableHttpResponse response = httpClient.execute(post);
+            executed = true;
+            return new RequestAttempt(post, response, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } finally {
+            if (!executed) {
+                post.releaseConnection();
+            }
+        }
+    }
+
+    /**
+     * Sends a request and, if no response has arrived once the hedging delay for the endpoint has passed, sends a
+     * second copy. The first successful response is returned and the other request is aborted. If not enough response
+     * times have been recorded for the endpoint the request is sent once, on the calling thread.
+     * 
+     * @param endpoint the endpoint to which to send the message
+     * @param requestParams HTTP request parameters
+     * @param entity the request entity, which must be safe to write concurrently
+     * @param state the endpoint's state
+     * @param policy the request policy
+     * 
+     * @return the winning attempt, carrying the response
+     * 
+     * @throws IOException thrown if every attempt fails
+     * @throws SOAPClientException thrown if the calling thread is interrupted
+     */
+    private RequestAttempt executeHedged(String endpoint, HttpSOAPRequestParameters requestParams, HttpEntity entity,
+            EndpointState state, HttpSOAPRequestPolicy policy) throws IOException, SOAPClientException {
+        long hedgeDelay = state.getLatencyPercentile(policy.getHedgePercentile(), policy.getMinHedgeSamples());
+        if (hedgeDelay < 0) {
+            return executeAttempt(createPostMethod(endpoint, requestParams, entity));
+        }
+        hedgeDelay = Math.max(hedgeDelay, policy.getMinHedgeDelay());
+
+        CompletionService<RequestAttempt> completion = new ExecutorCompletionService<RequestAttempt>(policy
+                .getHedgeExecutor());
+        List<HttpPost> posts = new ArrayList<HttpPost>(2);
+        RequestAttempt winner = null;
+        try {
+            HttpPost primary = createPostMethod(endpoint, requestParams, entity);
+            try {
+                completion.submit(new AttemptTask(primary));
+            } catch (RejectedExecutionException e) {
+                log.debug("Hedge executor rejected request to {}, sending request without hedging", endpoint);
+                return executeAttempt(primary);
+            }
+            posts.add(primary);
+
+            Future<RequestAttempt> done = completion.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+            if (done == null) {
+                HttpPost hedge = createPostMethod(endpoint, requestParams, entity);
+                try {
+                    completion.submit(new AttemptTask(hedge));
+                    posts.add(hedge);
+                    hedgedRequestCount.incrementAndGet();
+                    log.debug("No response from {} after {}ms, sent hedged request", endpoint, hedgeDelay);
+                } catch (RejectedExecutionException e) {
+                    log.debug("Hedge executor rejected hedged request to {}", endpoint);
+                }
+                done = completion.take();
+            }
+
+            for (int outstanding = posts.size() - 1;; outstanding--) {
+                try {
+                    winner = done.get();
+                    return winner;
+                } catch (ExecutionException e) {
+                    if (outstanding == 0) {
+                        throw rethrow(e.getCause());
+                    }
+                    log.debug("Request to " + endpoint + " failed, waiting for hedged request", e.getCause());
+                    done = completion.take();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SOAPClientException("Interrupted while waiting for response from " + endpoint, e);
+        } finally {
+            for (HttpPost post : posts) {
+                if (winner == null || post != winner.post) {
+                    post.abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * Rethrows the cause of a failed attempt.
+     * 
+     * @param cause the cause of the failure
+     * 
+     * @return never returns normally
+     * 
+     * @throws IOException thrown if the cause is an I/O error
+     */
+    private IOException rethrow(Throwable cause) throws IOException {
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        IOException ioe = new IOException("Request failed");
+        ioe.initCause(cause);
+        throw ioe;
+    }
+
+    /**
+     * Gets the state of an endpoint, creating it if necessary.
+     * 
+     * @param endpoint the endpoint
+     * @param policy the request policy
+     * 
+     * @return the endpoint's state
+     */
+    private EndpointState getEndpointState(String endpoint, HttpSOAPRequestPolicy policy) {
+        EndpointState state = endpointStates.get(endpoint);
+        if (state == null) {
+            EndpointState newState = new EndpointState(policy.createCircuitBreaker());
+            state = endpointStates.putIfAbsent(endpoint, newState);
+            if (state == null) {
+                state = newState;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Releases the response so that, where possible, its connection is returned to the pool for reuse rather than
+     * being closed. XML parsers usually stop reading at the end of the document element, which leaves trailing
+     * whitespace or the final chunk of the body unread. Up to {@link #RESPONSE_DRAIN_LIMIT} remaining bytes are read
+     * so that the connection can be reused; if more remain the connection is closed instead.
+     * 
+     * @param response the response to release
+     */
+    protected void releaseResponse(CloseableHttpResponse response) {
+        try {
+            HttpEntity entity = response.getEntity();
+            if (entity != null && entity.isStreaming()) {
+                InputStream content = entity.getContent();
+                byte[] buffer = new byte[1024];
+                long drained = 0;
+                int read = 0;
+                while (drained <= RESPONSE_DRAIN_LIMIT && (read = content.read(buffer)) != -1) {
+                    drained += read;
+                }
+                if (read != -1) {
+                    log.debug("Response contained more than {} unread bytes, closing connection",
+                            RESPONSE_DRAIN_LIMIT);
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Unable to read remainder of response", e);
+        } finally {
+            try {
+                response.close();
+            } catch (IOException e) {
+                log.debug("Unable to close response", e);
+            }
+        }
+    }
+
     /**
      * Creates the post method used to send the SOAP request.
      * 
@@ -139,11 +706,24 @@ public class HttpSOAPClient implements SOAPClient {
      */
     protected HttpPost createPostMethod(String endpoint, HttpSOAPRequestParameters requestParams, Envelope message)
             throws SOAPClientException {
+        return createPostMethod(endpoint, requestParams, createRequestEntity(message, Charset.forName("UTF-8")));
+    }
+
+    /**
+     * Creates the post method used to send the SOAP request.
+     * 
+     * @param endpoint endpoint to which the message is sent
+     * @param requestParams HTTP request parameters
+     * @param entity request entity carrying the message
+     * 
+     * @return the post method to be used to send this message
+     */
+    protected HttpPost createPostMethod(String endpoint, HttpSOAPRequestParameters requestParams, HttpEntity entity) {
         log.debug("POSTing SOAP message to {}", endpoint);
 
         HttpPost post = new HttpPost(endpoint);
 
-        post.setEntity(createRequestEntity(message, Charset.forName("UTF-8")));
+        post.setEntity(entity);
         if (requestParams != null && requestParams.getSoapAction() != null) {
             post.setHeader(HttpSOAPRequestParameters.SOAP_ACTION_HEADER, requestParams.getSoapAction());
         }
@@ -152,7 +732,8 @@ public class HttpSOAPClient implements SOAPClient {
     }
 
     /**
-     * Creates the request entity that makes up the POST message body.
+     * Creates the request entity that makes up the POST message body. The message is marshalled once and, unless
+     * chunked requests are disabled, serialized directly onto the connection as the request is sent.
      * 
      * @param message message to be sent
      * @param charset character set used for the message
@@ -162,20 +743,31 @@ public class HttpSOAPClient implements SOAPClient {
      * @throws SOAPClientException thrown if the message could not be marshalled
      */
     protected HttpEntity createRequestEntity(Envelope message, Charset charset) throws SOAPClientException {
+        Element messageElem;
         try {
             Marshaller marshaller = Configuration.getMarshallerFactory().getMarshaller(message);
-            ByteArrayOutputStream arrayOut = new ByteArrayOutputStream();
-            OutputStreamWriter writer = new OutputStreamWriter(arrayOut, charset);
-
-            if (log.isDebugEnabled()) {
-                log.debug("Outbound SOAP message is:\n" + XMLHelper.prettyPrintXML(marshaller.marshall(message)));
-            }
-            XMLHelper.writeNode(marshaller.marshall(message), writer);
-            HttpEntity entity = new ByteArrayEntity(arrayOut.toByteArray(), ContentType.TEXT_XML);
-            return entity;
+            messageElem = marshaller.marshall(message);
         } catch (MarshallingException e) {
             throw new SOAPClientException("Unable to marshall SOAP envelope", e);
         }
+        if (log.isDebugEnabled()) {
+            log.debug("Outbound SOAP message is:\n" + XMLHelper.prettyPrintXML(messageElem));
+        }
+
+        AbstractHttpEntity entity = new SOAPRequestEntity(messageElem, charset, requestSerializer);
+        if (!chunkedRequests) {
+            try {
+                ByteArrayOutputStream arrayOut = new ByteArrayOutputStream();
+                entity.writeTo(arrayOut);
+                entity = new ByteArrayEntity(arrayOut.toByteArray(), ContentType.create("text/xml", charset));
+            } catch (IOException e) {
+                throw new SOAPClientException("Unable to serialize SOAP envelope", e);
+            }
+        }
+        if (compressRequests) {
+            return new GzipCompressingEntity(entity);
+        }
+        return entity;
     }
 
     /**
@@ -188,13 +780,9 @@ public class HttpSOAPClient implements SOAPClient {
      */
     protected void processSuccessfulResponse(CloseableHttpResponse response, SOAPMessageContext messageContext)
             throws SOAPClientException {
-        try {
-            Envelope res = unmarshallResponse(response.getEntity().getContent());
-            messageContext.setInboundMessage(res);
-            evaluateSecurityPolicy(messageContext);
-        } catch (IOException e) {
-            throw new SOAPClientException("Unable to read response", e);
-        }
+        Envelope res = readResponse(response, false);
+        messageContext.setInboundMessage(res);
+        evaluateSecurityPolicy(messageContext);
     }
 
     /**
@@ -208,26 +796,89 @@ public class HttpSOAPClient implements SOAPClient {
      */
     protected void processFaultResponse(CloseableHttpResponse response, SOAPMessageContext messageContext)
             throws SOAPClientException, SOAPFaultException {
-        try {
-            Envelope res = unmarshallResponse(response.getEntity().getContent());
-            messageContext.setInboundMessage(res);
+        Envelope res = readResponse(response, true);
+        messageContext.setInboundMessage(res);
 
-            List<XMLObject> faults = res.getBody().getUnknownXMLObjects(Fault.DEFAULT_ELEMENT_NAME);
-            if (faults.size() < 1) {
-                throw new SOAPClientException("HTTP status code was 500 but SOAP response did not contain a Fault");
-            }
-            Fault fault = (Fault) faults.get(0);
+        List<XMLObject> faults = res.getBody().getUnknownXMLObjects(Fault.DEFAULT_ELEMENT_NAME);
+        if (faults.size() < 1) {
+            throw new SOAPClientException("HTTP status code was 500 but SOAP response did not contain a Fault");
+        }
+        Fault fault = (Fault) faults.get(0);
+
+        log.debug("SOAP fault code {} with message {}", fault.getCode().getValue(), fault.getMessage().getValue());
+        SOAPFaultException faultException = new SOAPFaultException("SOAP Fault: " + fault.getCode().getValue()
+                + " Fault Message: " + fault.getMessage().getValue());
+        faultException.setFault(fault);
+        throw faultException;
+    }
+
+    /**
+     * Reads the response envelope, enforcing the maximum response size and recording the number of bytes read.
+     * 
+     * @param response the HTTP response
+     * @param fault whether the response is expected to contain a SOAP fault, in which case a streaming read stops
+     *            once the fault has been read
+     * 
+     * @return the response envelope
+     * 
+     * @throws SOAPClientException thrown if the response has no body, is too large or can not be unmarshalled
+     */
+    protected Envelope readResponse(CloseableHttpResponse response, boolean fault) throws SOAPClientException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            throw new SOAPClientException("Response did not contain a body");
+        }
+        if (maxResponseSize >= 0 && entity.getContentLength() > maxResponseSize) {
+            oversizedResponseCount.incrementAndGet();
+            throw new SOAPClientException("Response body of " + entity.getContentLength()
+                    + " bytes exceeds maximum size of " + maxResponseSize + " bytes");
+        }
 
-            log.debug("SOAP fault code {} with message {}", fault.getCode().getValue(), fault.getMessage().getValue());
-            SOAPFaultException faultException = new SOAPFaultException("SOAP Fault: " + fault.getCode().getValue()
-                    + " Fault Message: " + fault.getMessage().getValue());
-            faultException.setFault(fault);
-            throw faultException;
+        SizeLimitedInputStream responseStream = null;
+        try {
+            responseStream = new SizeLimitedInputStream(entity.getContent(), maxResponseSize);
+            if (streamingResponses) {
+                return responseUnmarshaller.unmarshall(parserPool, responseStream, fault);
+            }
+            return unmarshallResponse(responseStream);
+        } catch (MessageDecodingException e) {
+            throw checkResponseSize(responseStream, new SOAPClientException("Unable to read the response", e));
+        } catch (SOAPClientException e) {
+            throw checkResponseSize(responseStream, e);
         } catch (IOException e) {
             throw new SOAPClientException("Unable to read response", e);
+        } finally {
+            if (responseStream != null) {
+                long bytesRead = responseStream.getBytesRead();
+                log.debug("Read {} bytes of SOAP response", bytesRead);
+                responseCount.incrementAndGet();
+                responseBytesRead.addAndGet(bytesRead);
+                long largest = largestResponse.get();
+                while (bytesRead > largest && !largestResponse.compareAndSet(largest, bytesRead)) {
+                    largest = largestResponse.get();
+                }
+            }
         }
     }
 
+    /**
+     * Replaces a response processing error with a size error if the failure was caused by the response exceeding the
+     * maximum response size.
+     * 
+     * @param responseStream the response stream, may be null
+     * @param error the error raised while processing the response
+     * 
+     * @return the exception to throw
+     */
+    private SOAPClientException checkResponseSize(SizeLimitedInputStream responseStream, SOAPClientException error) {
+        if (responseStream != null && responseStream.isLimitExceeded()) {
+            oversizedResponseCount.incrementAndGet();
+            return new SOAPClientException("Response body exceeds maximum size of " + maxResponseSize + " bytes",
+                    error);
+        }
+        return error;
+    }
+
     /**
      * Unmarshalls the incoming response from a POST request.
      * 
@@ -240,8 +891,8 @@ public class HttpSOAPClient implements SOAPClient {
     protected Envelope unmarshallResponse(InputStream responseStream) throws SOAPClientException {
         try {
             Element responseElem = parserPool.parse(responseStream).getDocumentElement();
-            if (log.isDebugEnabled()) {
-                log.debug("Inbound SOAP message was:\n" + XMLHelper.prettyPrintXML(responseElem));
+            if (log.isTraceEnabled()) {
+                log.trace("Inbound SOAP message was:\n" + XMLHelper.prettyPrintXML(responseElem));
             }
             Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(responseElem);
             return (Envelope) unmarshaller.unmarshall(responseElem);
@@ -284,4 +935,156 @@ public class HttpSOAPClient implements SOAPClient {
             throw new SOAPClientException("Inbound SOAP response does not meet security policy", e);
         }
     }
+
+    /** A sent request and its response. */
+    private static final class RequestAttempt {
+
+        /** The request. */
+        private final HttpPost post;
+
+        /** The response. */
+        private final CloseableHttpResponse response;
+
+        /** Time, in milliseconds, taken to receive the response headers. */
+        private final long latency;
+
+        /**
+         * Constructor.
+         * 
+         * @param request the request
+         * @param httpResponse the response
+         * @param responseTime time, in milliseconds, taken to receive the response headers
+         */
+        private RequestAttempt(HttpPost request, CloseableHttpResponse httpResponse, long responseTime) {
+            post = request;
+            response = httpResponse;
+            latency = responseTime;
+        }
+    }
+
+    /**
+     * Entity which lets only one request at a time write the wrapped entity, so that a request and its hedge can share
+     * one streaming entity without serializing the same DOM concurrently. A hedge is only sent once the original
+     * request has been outstanding for a while, by which time its body has usually been written, so the hedge rarely
+     * waits.
+     */
+    private static final class ExclusiveHttpEntity extends HttpEntityWrapper {
+
+        /**
+         * Constructor.
+         * 
+         * @param entity the wrapped entity
+         */
+        private ExclusiveHttpEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        /** {@inheritDoc} */
+        public synchronized InputStream getContent() throws IOException {
+            return super.getContent();
+        }
+
+        /** {@inheritDoc} */
+        public synchronized void writeTo(OutputStream outstream) throws IOException {
+            super.writeTo(outstream);
+        }
+    }
+
+    /** Task sending a request on the hedge executor. */
+    private final class AttemptTask implements Callable<RequestAttempt> {
+
+        /** The request. */
+        private final HttpPost post;
+
+        /**
+         * Constructor.
+         * 
+         * @param request the request
+         */
+        private AttemptTask(HttpPost request) {
+            post = request;
+        }
+
+        /** {@inheritDoc} */
+        public RequestAttempt call() throws IOException {
+            return executeAttempt(post);
+        }
+    }
+
+    /** Circuit breaker and recent response times of a single endpoint. */
+    private static final class EndpointState {
+
+        /** The endpoint's circuit breaker, or null if circuit breaking is disabled. */
+        private final EndpointCircuitBreaker circuitBreaker;
+
+        /** Recent response times, in milliseconds, used as a ring buffer. Guarded by this instance's monitor. */
+        private final long[] latencies = new long[LATENCY_WINDOW_SIZE];
+
+        /** Number of response times recorded, up to the window size. Guarded by this instance's monitor. */
+        private int latencyCount;
+
+        /** Index at which the next response time is recorded. Guarded by this instance's monitor. */
+        private int nextLatency;
+
+        /**
+         * Constructor.
+         * 
+         * @param breaker the endpoint's circuit breaker, or null if circuit breaking is disabled
+         */
+        private EndpointState(EndpointCircuitBreaker breaker) {
+            circuitBreaker = breaker;
+        }
+
+        /**
+         * Records a request which received a response.
+         * 
+         * @param latency time, in milliseconds, taken to receive the response
+         */
+        private void recordSuccess(long latency) {
+            if (circuitBreaker != null) {
+                circuitBreaker.recordSuccess();
+            }
+            synchronized (this) {
+                latencies[nextLatency] = latency;
+                nextLatency = (nextLatency + 1) % latencies.length;
+                if (latencyCount < latencies.length) {
+                    latencyCount++;
+                }
+            }
+        }
+
+        /** Records a request which failed. */
+        private void recordFailure() {
+            if (circuitBreaker != null) {
+                circuitBreaker.recordFailure();
+            }
+        }
+
+        /** Records a request which was never sent. */
+        private void recordNotSent() {
+            if (circuitBreaker != null) {
+                circuitBreaker.recordNotSent();
+            }
+        }
+
+        /**
+         * Gets the given percentile of the recent response times.
+         * 
+         * @param percentile the percentile, between 0 and 1
+         * @param minSamples minimum number of response times required
+         * 
+         * @return the percentile, in milliseconds, or -1 if fewer than the minimum number of response times have been
+         *         recorded
+         */
+        private synchronized long getLatencyPercentile(double percentile, int minSamples) {
+            if (latencyCount == 0 || latencyCount < minSamples) {
+                return -1;
+            }
+            long[] sorted = new long[latencyCount];
+            System.arraycopy(latencies, 0, sorted, 0, latencyCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile * latencyCount) - 1;
+            return sorted[Math.min(Math.max(index, 0), latencyCount - 1)];
+        }
+    }
 }
\ No newline at end of file
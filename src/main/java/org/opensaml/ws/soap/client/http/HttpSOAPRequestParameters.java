@@ -32,13 +32,28 @@ public class HttpSOAPRequestParameters implements SOAPRequestParameters {
     /** HTTP SOAPAction header. */
     private String soapAction;
 
+    /** Whether the request may safely be sent more than once. */
+    private boolean idempotent;
+
     /**
      * Constructor.
      * 
      * @param action value for the SOAPAction HTTP header
      */
     public HttpSOAPRequestParameters(String action) {
+        this(action, false);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param action value for the SOAPAction HTTP header
+     * @param isIdempotent whether the request may safely be sent more than once, for example an artifact resolution or
+     *            attribute query, and so may be retried after it has been sent or hedged
+     */
+    public HttpSOAPRequestParameters(String action, boolean isIdempotent) {
         soapAction = DatatypeHelper.safeTrimOrNullString(action);
+        idempotent = isIdempotent;
     }
 
     /**
@@ -49,4 +64,14 @@ public class HttpSOAPRequestParameters implements SOAPRequestParameters {
     public String getSoapAction() {
         return soapAction;
     }
+
+    /**
+     * Gets whether the request may safely be sent more than once. Requests which are not idempotent are only retried
+     * if they could not be sent, and are never hedged.
+     * 
+     * @return whether the request may safely be sent more than once
+     */
+    public boolean isIdempotent() {
+        return idempotent;
+    }
 }
\ No newline at end of file
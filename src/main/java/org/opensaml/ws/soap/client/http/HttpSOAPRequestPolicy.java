@@ -0,0 +1,373 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client.http;
+
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * Retry, hedging and circuit breaking settings used by {@link HttpSOAPClient}.
+ * 
+ * Requests which could not be sent, because a connection could not be established or leased, are retried up to
+ * {@link #getMaxAttempts()} times with exponential backoff and jitter. Requests marked idempotent through
+ * {@link HttpSOAPRequestParameters#isIdempotent()} are also retried after any I/O error or a retryable HTTP status,
+ * and, if a hedge executor is configured, hedged: if no response has arrived once the request has been outstanding for
+ * longer than the configured percentile of the endpoint's recent response times, a second copy is sent and the first
+ * response received is used. SOAP faults are never retried.
+ * 
+ * Each endpoint is guarded by an {@link EndpointCircuitBreaker}, so requests to an endpoint which has repeatedly failed
+ * fail immediately rather than waiting for a connection timeout. Requests which could not lease a pooled connection
+ * are not counted as failures of the endpoint.
+ * 
+ * A policy should not be modified once it is in use by a client.
+ */
+public class HttpSOAPRequestPolicy {
+
+    /** Source of backoff jitter. */
+    private final Random random = new Random();
+
+    /** Maximum number of times a request is sent, including the first, defaults to 3. */
+    private int maxAttempts;
+
+    /** Delay, in milliseconds, before the first retry, defaults to 100. */
+    private long initialBackoff;
+
+    /** Maximum delay, in milliseconds, before a retry, defaults to 2,000. */
+    private long maxBackoff;
+
+    /** Factor by which the delay grows with each retry, defaults to 2. */
+    private double backoffMultiplier;
+
+    /** Fraction of each delay which is randomized, defaults to 0.5. */
+    private double jitter;
+
+    /** HTTP status codes after which idempotent requests are retried, defaults to 502, 503 and 504. */
+    private int[] retryableStatusCodes;
+
+    /** Executor on which hedged requests are sent, hedging is disabled if null. */
+    private Executor hedgeExecutor;
+
+    /** Percentile of recent response times after which a request is hedged, defaults to 0.95. */
+    private double hedgePercentile;
+
+    /** Minimum number of recent response times required before requests to an endpoint are hedged, defaults to 20. */
+    private int minHedgeSamples;
+
+    /** Minimum time, in milliseconds, a request is outstanding before it is hedged, defaults to 10. */
+    private long minHedgeDelay;
+
+    /** Number of consecutive failures after which an endpoint's circuit opens, defaults to 5. */
+    private int circuitFailureThreshold;
+
+    /** Time, in milliseconds, for which an endpoint's circuit stays open, defaults to 30,000. */
+    private long circuitOpenInterval;
+
+    /** Constructor. */
+    public HttpSOAPRequestPolicy() {
+        maxAttempts = 3;
+        initialBackoff = 100;
+        maxBackoff = 2000;
+        backoffMultiplier = 2;
+        jitter = 0.5;
+        retryableStatusCodes = new int[] {502, 503, 504};
+        hedgePercentile = 0.95;
+        minHedgeSamples = 20;
+        minHedgeDelay = 10;
+        circuitFailureThreshold = 5;
+        circuitOpenInterval = 30 * 1000;
+    }
+
+    /**
+     * Computes the delay before the given retry: the initial backoff multiplied by the backoff multiplier for each
+     * earlier retry, capped at the maximum backoff, and reduced by a random amount up to the jitter fraction.
+     * 
+     * @param retry the retry, starting at 1 for the second attempt
+     * 
+     * @return delay, in milliseconds, before the retry
+     */
+    public long getBackoffDelay(int retry) {
+        double delay = initialBackoff * Math.pow(backoffMultiplier, Math.max(0, retry - 1));
+        delay = Math.min(delay, maxBackoff);
+        return Math.round(delay - delay * jitter * random.nextDouble());
+    }
+
+    /**
+     * Checks whether idempotent requests are retried after the given HTTP status code.
+     * 
+     * @param statusCode the HTTP status code
+     * 
+     * @return true if the status code is retryable
+     */
+    public boolean isRetryableStatus(int statusCode) {
+        for (int retryable : retryableStatusCodes) {
+            if (retryable == statusCode) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a circuit breaker for an endpoint according to this policy.
+     * 
+     * @return the circuit breaker, or null if circuit breaking is disabled
+     */
+    public EndpointCircuitBreaker createCircuitBreaker() {
+        if (circuitFailureThreshold < 1) {
+            return null;
+        }
+        return new EndpointCircuitBreaker(circuitFailureThreshold, circuitOpenInterval);
+    }
+
+    /**
+     * Gets the maximum number of times a request is sent, including the first. Default value is 3.
+     * 
+     * @return maximum number of times a request is sent
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Sets the maximum number of times a request is sent, including the first.
+     * 
+     * @param attempts maximum number of times a request is sent, must be greater than zero
+     */
+    public void setMaxAttempts(int attempts) {
+        if (attempts < 1) {
+            throw new IllegalArgumentException("Maximum attempts must be greater than zero");
+        }
+        maxAttempts = attempts;
+    }
+
+    /**
+     * Gets the delay, in milliseconds, before the first retry. Default value is 100.
+     * 
+     * @return delay before the first retry
+     */
+    public long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    /**
+     * Sets the delay, in milliseconds, before the first retry.
+     * 
+     * @param backoff delay before the first retry
+     */
+    public void setInitialBackoff(long backoff) {
+        initialBackoff = backoff;
+    }
+
+    /**
+     * Gets the maximum delay, in milliseconds, before a retry. Default value is 2,000.
+     * 
+     * @return maximum delay before a retry
+     */
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * Sets the maximum delay, in milliseconds, before a retry.
+     * 
+     * @param backoff maximum delay before a retry
+     */
+    public void setMaxBackoff(long backoff) {
+        maxBackoff = backoff;
+    }
+
+    /**
+     * Gets the factor by which the delay grows with each retry. Default value is 2.
+     * 
+     * @return factor by which the delay grows with each retry
+     */
+    public double getBackoffMultiplier() {
+        return backoffMultiplier;
+    }
+
+    /**
+     * Sets the factor by which the delay grows with each retry.
+     * 
+     * @param multiplier factor by which the delay grows with each retry, must be at least 1
+     */
+    public void setBackoffMultiplier(double multiplier) {
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("Backoff multiplier must be at least 1");
+        }
+        backoffMultiplier = multiplier;
+    }
+
+    /**
+     * Gets the fraction of each delay which is randomized. Default value is 0.5.
+     * 
+     * @return fraction of each delay which is randomized
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Sets the fraction of each delay which is randomized.
+     * 
+     * @param fraction fraction of each delay which is randomized, between 0 and 1
+     */
+    public void setJitter(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1");
+        }
+        jitter = fraction;
+    }
+
+    /**
+     * Gets the HTTP status codes after which idempotent requests are retried. Default value is 502, 503 and 504.
+     * 
+     * @return retryable HTTP status codes
+     */
+    public int[] getRetryableStatusCodes() {
+        return retryableStatusCodes.clone();
+    }
+
+    /**
+     * Sets the HTTP status codes after which idempotent requests are retried.
+     * 
+     * @param statusCodes retryable HTTP status codes
+     */
+    public void setRetryableStatusCodes(int[] statusCodes) {
+        retryableStatusCodes = statusCodes == null ? new int[0] : statusCodes.clone();
+    }
+
+    /**
+     * Gets the executor on which hedged requests are sent. Hedging is disabled if this is null, which is the default.
+     * 
+     * @return executor on which hedged requests are sent
+     */
+    public Executor getHedgeExecutor() {
+        return hedgeExecutor;
+    }
+
+    /**
+     * Sets the executor on which hedged requests are sent. Both the original request and its hedge are sent on this
+     * executor, so it should allow at least twice as many threads as there are concurrent idempotent requests. The
+     * request body is not buffered for hedging: the original request and its hedge share the streaming entity and
+     * take turns writing it, so a hedge starts sending its body only once the original request has sent its own.
+     * 
+     * @param executor executor on which hedged requests are sent, or null to disable hedging
+     */
+    public void setHedgeExecutor(Executor executor) {
+        hedgeExecutor = executor;
+    }
+
+    /**
+     * Gets the percentile of an endpoint's recent response times after which a request is hedged. Default value is
+     * 0.95.
+     * 
+     * @return percentile after which a request is hedged
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Sets the percentile of an endpoint's recent response times after which a request is hedged.
+     * 
+     * @param percentile percentile after which a request is hedged, between 0 and 1
+     */
+    public void setHedgePercentile(double percentile) {
+        if (percentile < 0 || percentile > 1) {
+            throw new IllegalArgumentException("Hedge percentile must be between 0 and 1");
+        }
+        hedgePercentile = percentile;
+    }
+
+    /**
+     * Gets the minimum number of recent response times required before requests to an endpoint are hedged. Default
+     * value is 20.
+     * 
+     * @return minimum number of response times required for hedging
+     */
+    public int getMinHedgeSamples() {
+        return minHedgeSamples;
+    }
+
+    /**
+     * Sets the minimum number of recent response times required before requests to an endpoint are hedged.
+     * 
+     * @param samples minimum number of response times required for hedging
+     */
+    public void setMinHedgeSamples(int samples) {
+        minHedgeSamples = samples;
+    }
+
+    /**
+     * Gets the minimum time, in milliseconds, a request is outstanding before it is hedged. Default value is 10.
+     * 
+     * @return minimum time before a request is hedged
+     */
+    public long getMinHedgeDelay() {
+        return minHedgeDelay;
+    }
+
+    /**
+     * Sets the minimum time, in milliseconds, a request is outstanding before it is hedged.
+     * 
+     * @param delay minimum time before a request is hedged
+     */
+    public void setMinHedgeDelay(long delay) {
+        minHedgeDelay = delay;
+    }
+
+    /**
+     * Gets the number of consecutive failures after which an endpoint's circuit opens. Default value is 5. A value of
+     * 0 disables circuit breaking.
+     * 
+     * @return number of consecutive failures after which an endpoint's circuit opens
+     */
+    public int getCircuitFailureThreshold() {
+        return circuitFailureThreshold;
+    }
+
+    /**
+     * Sets the number of consecutive failures after which an endpoint's circuit opens. A value of 0 disables circuit
+     * breaking.
+     * 
+     * @param threshold number of consecutive failures after which an endpoint's circuit opens
+     */
+    public void setCircuitFailureThreshold(int threshold) {
+        circuitFailureThreshold = threshold;
+    }
+
+    /**
+     * Gets the time, in milliseconds, for which an endpoint's circuit stays open before a trial request is let
+     * through. Default value is 30,000.
+     * 
+     * @return time for which an endpoint's circuit stays open
+     */
+    public long getCircuitOpenInterval() {
+        return circuitOpenInterval;
+    }
+
+    /**
+     * Sets the time, in milliseconds, for which an endpoint's circuit stays open before a trial request is let
+     * through.
+     * 
+     * @param interval time for which an endpoint's circuit stays open
+     */
+    public void setCircuitOpenInterval(long interval) {
+        circuitOpenInterval = interval;
+    }
+}
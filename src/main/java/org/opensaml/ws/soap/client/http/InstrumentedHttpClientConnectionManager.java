@@ -0,0 +1,402 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client.http;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Connection manager which wraps a {@link PoolingHttpClientConnectionManager} and records, for each route, how many
+ * connections were leased and how long callers waited for them.
+ * 
+ * Together with the pool's own leased, pending and available counts these are reported by
+ * {@link #getRouteStatistics(HttpRoute)}, so that an exhausted or stalled pool is visible before it shows up as
+ * request timeouts.
+ */
+@ThreadSafe
+public class InstrumentedHttpClientConnectionManager implements HttpClientConnectionManager,
+        ConnPoolControl<HttpRoute> {
+
+    /** The wrapped connection manager. */
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    /** Lease counters for each route. */
+    private final ConcurrentMap<HttpRoute, LeaseCounters> leaseCounters;
+
+    /**
+     * Constructor.
+     * 
+     * @param manager the connection manager to wrap
+     */
+    public InstrumentedHttpClientConnectionManager(PoolingHttpClientConnectionManager manager) {
+        if (manager == null) {
+            throw new IllegalArgumentException("Connection manager may not be null");
+        }
+        connectionManager = manager;
+        leaseCounters = new ConcurrentHashMap<HttpRoute, LeaseCounters>();
+    }
+
+    /**
+     * Gets the wrapped connection manager.
+     * 
+     * @return the wrapped connection manager
+     */
+    public PoolingHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * Gets the routes for which the pool currently holds state.
+     * 
+     * @return the routes known to the pool
+     */
+    public Set<HttpRoute> getRoutes() {
+        return connectionManager.getRoutes();
+    }
+
+    /**
+     * Gets a snapshot of the pool usage and lease statistics for the given route.
+     * 
+     * @param route the route
+     * 
+     * @return the route's statistics
+     */
+    public RouteStatistics getRouteStatistics(HttpRoute route) {
+        PoolStats poolStats = connectionManager.getStats(route);
+        LeaseCounters counters = leaseCounters.get(route);
+        if (counters == null) {
+            return new RouteStatistics(route, poolStats, 0, 0, 0, 0);
+        }
+        return new RouteStatistics(route, poolStats, counters.leases.get(), counters.timeouts.get(),
+                TimeUnit.NANOSECONDS.toMillis(counters.totalWait.get()),
+                TimeUnit.NANOSECONDS.toMillis(counters.maxWait.get()));
+    }
+
+    /** {@inheritDoc} */
+    public ConnectionRequest requestConnection(final HttpRoute route, Object state) {
+        final ConnectionRequest request = connectionManager.requestConnection(route, state);
+        final LeaseCounters counters = getLeaseCounters(route);
+        return new ConnectionRequest() {
+
+            /** {@inheritDoc} */
+            public HttpClientConnection get(long timeout, TimeUnit tunit) throws InterruptedException,
+                    ExecutionException, ConnectionPoolTimeoutException {
+                long start = System.nanoTime();
+                try {
+                    HttpClientConnection connection = request.get(timeout, tunit);
+                    counters.leases.incrementAndGet();
+                    return connection;
+                } catch (ConnectionPoolTimeoutException e) {
+                    counters.timeouts.incrementAndGet();
+                    throw e;
+                } finally {
+                    counters.recordWait(System.nanoTime() - start);
+                }
+            }
+
+            /** {@inheritDoc} */
+            public boolean cancel() {
+                return request.cancel();
+            }
+        };
+    }
+
+    /** {@inheritDoc} */
+    public void releaseConnection(HttpClientConnection conn, Object newState, long validDuration, TimeUnit timeUnit) {
+        connectionManager.releaseConnection(conn, newState, validDuration, timeUnit);
+    }
+
+    /** {@inheritDoc} */
+    public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context)
+            throws IOException {
+        connectionManager.connect(conn, route, connectTimeout, context);
+    }
+
+    /** {@inheritDoc} */
+    public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        connectionManager.upgrade(conn, route, context);
+    }
+
+    /** {@inheritDoc} */
+    public void routeComplete(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        connectionManager.routeComplete(conn, route, context);
+    }
+
+    /** {@inheritDoc} */
+    public void closeIdleConnections(long idletime, TimeUnit tunit) {
+        connectionManager.closeIdleConnections(idletime, tunit);
+    }
+
+    /** {@inheritDoc} */
+    public void closeExpiredConnections() {
+        connectionManager.closeExpiredConnections();
+    }
+
+    /** {@inheritDoc} */
+    public void shutdown() {
+        connectionManager.shutdown();
+    }
+
+    /** {@inheritDoc} */
+    public void setMaxTotal(int max) {
+        connectionManager.setMaxTotal(max);
+    }
+
+    /** {@inheritDoc} */
+    public int getMaxTotal() {
+        return connectionManager.getMaxTotal();
+    }
+
+    /** {@inheritDoc} */
+    public void setDefaultMaxPerRoute(int max) {
+        connectionManager.setDefaultMaxPerRoute(max);
+    }
+
+    /** {@inheritDoc} */
+    public int getDefaultMaxPerRoute() {
+        return connectionManager.getDefaultMaxPerRoute();
+    }
+
+    /** {@inheritDoc} */
+    public void setMaxPerRoute(HttpRoute route, int max) {
+        connectionManager.setMaxPerRoute(route, max);
+    }
+
+    /** {@inheritDoc} */
+    public int getMaxPerRoute(HttpRoute route) {
+        return connectionManager.getMaxPerRoute(route);
+    }
+
+    /** {@inheritDoc} */
+    public PoolStats getTotalStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /** {@inheritDoc} */
+    public PoolStats getStats(HttpRoute route) {
+        return connectionManager.getStats(route);
+    }
+
+    /**
+     * Gets the lease counters for a route, creating them if necessary.
+     * 
+     * @param route the route
+     * 
+     * @return the route's lease counters
+     */
+    private LeaseCounters getLeaseCounters(HttpRoute route) {
+        LeaseCounters counters = leaseCounters.get(route);
+        if (counters == null) {
+            LeaseCounters newCounters = new LeaseCounters();
+            counters = leaseCounters.putIfAbsent(route, newCounters);
+            if (counters == null) {
+                counters = newCounters;
+            }
+        }
+        return counters;
+    }
+
+    /** Lease counters for a single route. */
+    private static final class LeaseCounters {
+
+        /** Number of connections leased. */
+        private final AtomicLong leases = new AtomicLong();
+
+        /** Number of lease requests which timed out. */
+        private final AtomicLong timeouts = new AtomicLong();
+
+        /** Total time, in nanoseconds, spent waiting for leases. */
+        private final AtomicLong totalWait = new AtomicLong();
+
+        /** Longest time, in nanoseconds, spent waiting for a lease. */
+        private final AtomicLong maxWait = new AtomicLong();
+
+        /**
+         * Records the time spent waiting for a lease.
+         * 
+         * @param waitNanos time, in nanoseconds, spent waiting
+         */
+        private void recordWait(long waitNanos) {
+            totalWait.addAndGet(waitNanos);
+            long max = maxWait.get();
+            while (waitNanos > max && !maxWait.compareAndSet(max, waitNanos)) {
+                max = maxWait.get();
+            }
+        }
+    }
+
+    /** Snapshot of the pool usage and lease statistics of a single route. */
+    public static class RouteStatistics {
+
+        /** The route. */
+        private final HttpRoute route;
+
+        /** Pool statistics of the route. */
+        private final PoolStats poolStats;
+
+        /** Number of connections leased. */
+        private final long leaseCount;
+
+        /** Number of lease requests which timed out. */
+        private final long leaseTimeoutCount;
+
+        /** Total time, in milliseconds, spent waiting for leases. */
+        private final long totalLeaseWait;
+
+        /** Longest time, in milliseconds, spent waiting for a lease. */
+        private final long maxLeaseWait;
+
+        /**
+         * Constructor.
+         * 
+         * @param httpRoute the route
+         * @param stats pool statistics of the route
+         * @param leases number of connections leased
+         * @param timeouts number of lease requests which timed out
+         * @param totalWait total time, in milliseconds, spent waiting for leases
+         * @param maxWait longest time, in milliseconds, spent waiting for a lease
+         */
+        public RouteStatistics(HttpRoute httpRoute, PoolStats stats, long leases, long timeouts, long totalWait,
+                long maxWait) {
+            route = httpRoute;
+            poolStats = stats;
+            leaseCount = leases;
+            leaseTimeoutCount = timeouts;
+            totalLeaseWait = totalWait;
+            maxLeaseWait = maxWait;
+        }
+
+        /**
+         * Gets the route.
+         * 
+         * @return the route
+         */
+        public HttpRoute getRoute() {
+            return route;
+        }
+
+        /**
+         * Gets the number of connections currently leased.
+         * 
+         * @return number of leased connections
+         */
+        public int getLeased() {
+            return poolStats.getLeased();
+        }
+
+        /**
+         * Gets the number of requests currently waiting for a connection.
+         * 
+         * @return number of pending connection requests
+         */
+        public int getPending() {
+            return poolStats.getPending();
+        }
+
+        /**
+         * Gets the number of idle connections available for lease.
+         * 
+         * @return number of available connections
+         */
+        public int getAvailable() {
+            return poolStats.getAvailable();
+        }
+
+        /**
+         * Gets the maximum number of connections allowed for the route.
+         * 
+         * @return maximum number of connections
+         */
+        public int getMax() {
+            return poolStats.getMax();
+        }
+
+        /**
+         * Gets the number of connections leased since the manager was created.
+         * 
+         * @return number of leases
+         */
+        public long getLeaseCount() {
+            return leaseCount;
+        }
+
+        /**
+         * Gets the number of lease requests which timed out waiting for a connection.
+         * 
+         * @return number of lease timeouts
+         */
+        public long getLeaseTimeoutCount() {
+            return leaseTimeoutCount;
+        }
+
+        /**
+         * Gets the total time, in milliseconds, spent waiting for leases.
+         * 
+         * @return total lease wait time
+         */
+        public long getTotalLeaseWait() {
+            return totalLeaseWait;
+        }
+
+        /**
+         * Gets the longest time, in milliseconds, spent waiting for a lease.
+         * 
+         * @return longest lease wait time
+         */
+        public long getMaxLeaseWait() {
+            return maxLeaseWait;
+        }
+
+        /**
+         * Gets the average time, in milliseconds, spent waiting for a lease.
+         * 
+         * @return average lease wait time
+         */
+        public double getAverageLeaseWait() {
+            long requests = leaseCount + leaseTimeoutCount;
+            if (requests == 0) {
+                return 0;
+            }
+            return (double) totalLeaseWait / requests;
+        }
+
+        /** {@inheritDoc} */
+        public String toString() {
+            return route + " [leased: " + getLeased() + "; pending: " + getPending() + "; available: "
+                    + getAvailable() + "; max: " + getMax() + "; leases: " + leaseCount + "; timeouts: "
+                    + leaseTimeoutCount + "; max wait: " + maxLeaseWait + "ms]";
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client.http;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.opensaml.ws.soap.soap11.encoder.SOAP11StreamingSerializer;
+import org.opensaml.xml.util.XMLConstants;
+import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.Element;
+
+/**
+ * HTTP entity which serializes a marshalled SOAP envelope directly onto the connection as the request is sent,
+ * rather than into an intermediate byte array.
+ * 
+ * UTF-8 encoded envelopes which do not contain an XML signature are written with a
+ * {@link SOAP11StreamingSerializer}; all others are written with the DOM serializer. The entity is repeatable since
+ * the marshalled envelope is retained. Its length is not known in advance, so it is sent with chunked transfer coding.
+ */
+public class SOAPRequestEntity extends AbstractHttpEntity {
+
+    /** UTF-8 character set. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The marshalled envelope. */
+    private final Element envelopeElem;
+
+    /** Character set used to encode the envelope. */
+    private final Charset charset;
+
+    /** Serializer used for UTF-8 encoded, unsigned envelopes. */
+    private final SOAP11StreamingSerializer serializer;
+
+    /**
+     * Constructor.
+     * 
+     * @param envelope the marshalled envelope
+     * @param encoding character set used to encode the envelope
+     * @param streamingSerializer serializer used for UTF-8 encoded, unsigned envelopes
+     */
+    public SOAPRequestEntity(Element envelope, Charset encoding, SOAP11StreamingSerializer streamingSerializer) {
+        envelopeElem = envelope;
+        charset = encoding;
+        serializer = streamingSerializer;
+        setContentType(ContentType.create("text/xml", encoding).toString());
+        setChunked(true);
+    }
+
+    /** {@inheritDoc} */
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    public long getContentLength() {
+        return -1;
+    }
+
+    /** {@inheritDoc} */
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        writeTo(content);
+        return new ByteArrayInputStream(content.toByteArray());
+    }
+
+    /** {@inheritDoc} */
+    public void writeTo(OutputStream output) throws IOException {
+        if (output == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+
+        if (UTF8.equals(charset)
+                && envelopeElem.getElementsByTagNameNS(XMLConstants.XMLSIG_NS, "Signature").getLength() == 0) {
+            try {
+                serializer.serialize(envelopeElem, output);
+            } catch (XMLStreamException e) {
+                IOException ioe = new IOException("Unable to serialize SOAP envelope");
+                ioe.initCause(e);
+                throw ioe;
+            }
+        } else {
+            Writer writer = new OutputStreamWriter(new BufferedOutputStream(output,
+                    SOAP11StreamingSerializer.BUFFER_SIZE), charset);
+            XMLHelper.writeNode(envelopeElem, writer);
+            writer.flush();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean isStreaming() {
+        return false;
+    }
+}
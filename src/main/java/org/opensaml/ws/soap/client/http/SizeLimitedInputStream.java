@@ -0,0 +1,114 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream which counts the bytes read from the wrapped stream and fails once more than a given number of bytes
+ * have been read.
+ */
+public class SizeLimitedInputStream extends FilterInputStream {
+
+    /** Maximum number of bytes which may be read, or a negative value if unlimited. */
+    private final long maxBytes;
+
+    /** Number of bytes read so far. */
+    private long bytesRead;
+
+    /** Whether the limit has been exceeded. */
+    private boolean limitExceeded;
+
+    /**
+     * Constructor.
+     * 
+     * @param in the wrapped stream
+     * @param limit maximum number of bytes which may be read, or a negative value if unlimited
+     */
+    public SizeLimitedInputStream(InputStream in, long limit) {
+        super(in);
+        maxBytes = limit;
+    }
+
+    /**
+     * Gets the number of bytes read so far.
+     * 
+     * @return number of bytes read
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Gets whether a read failed because the limit was exceeded.
+     * 
+     * @return whether the limit was exceeded
+     */
+    public boolean isLimitExceeded() {
+        return limitExceeded;
+    }
+
+    /** {@inheritDoc} */
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            count(1);
+        }
+        return b;
+    }
+
+    /** {@inheritDoc} */
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+            count(read);
+        }
+        return read;
+    }
+
+    /** {@inheritDoc} */
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        if (skipped > 0) {
+            count(skipped);
+        }
+        return skipped;
+    }
+
+    /** {@inheritDoc} */
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Adds to the number of bytes read and checks the limit.
+     * 
+     * @param n number of bytes just read
+     * 
+     * @throws IOException thrown if the limit has been exceeded
+     */
+    private void count(long n) throws IOException {
+        bytesRead += n;
+        if (maxBytes >= 0 && bytesRead > maxBytes) {
+            limitExceeded = true;
+            throw new IOException("Stream exceeded maximum size of " + maxBytes + " bytes");
+        }
+    }
+}
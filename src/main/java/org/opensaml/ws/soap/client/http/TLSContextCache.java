@@ -0,0 +1,380 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client.http;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of initialized {@link SSLContext}s keyed by the identity of the key managers, trust managers and secure
+ * random used to initialize them.
+ * 
+ * JSSE caches client TLS sessions per context, so a TLS session can only be resumed by a socket created from the
+ * context that established it. Sharing one context among all socket factories, and therefore all HTTP clients, built
+ * from the same key and trust material allows back-channel connections to a peer to resume an earlier session rather
+ * than perform a full handshake. Sessions are never shared between different key managers, so a session established
+ * with one client identity is not resumed under another.
+ * 
+ * The number of cached contexts is bounded; the least recently used context is discarded once the bound is reached.
+ */
+@ThreadSafe
+public class TLSContextCache {
+
+    /** Protocols enabled by default, in order of preference, where supported by the JSSE provider. */
+    public static final String[] DEFAULT_PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+
+    /** Cache shared by socket factories that are not given a cache explicitly. */
+    private static final TLSContextCache DEFAULT_CACHE = new TLSContextCache();
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(TLSContextCache.class);
+
+    /** Cached contexts, in access order. Guarded by this instance's monitor. */
+    private final LinkedHashMap<ContextKey, SSLContext> contexts;
+
+    /** Maximum number of cached contexts, defaults to 32. Guarded by this instance's monitor. */
+    private int maxContexts;
+
+    /** Maximum number of client sessions cached by each context, defaults to 1,000. */
+    private volatile int sessionCacheSize;
+
+    /** Time, in seconds, after which a cached client session may no longer be resumed, defaults to 3,600. */
+    private volatile int sessionTimeout;
+
+    /** Protocols to enable on sockets, in order of preference. */
+    private volatile String[] protocols;
+
+    /** Constructor. */
+    public TLSContextCache() {
+        contexts = new LinkedHashMap<ContextKey, SSLContext>(16, 0.75f, true) {
+
+            /** Serial version UID. */
+            private static final long serialVersionUID = -4353097457183428052L;
+
+            /** {@inheritDoc} */
+            protected boolean removeEldestEntry(Map.Entry<ContextKey, SSLContext> eldest) {
+                return size() > maxContexts;
+            }
+        };
+        maxContexts = 32;
+        sessionCacheSize = 1000;
+        sessionTimeout = 3600;
+        protocols = DEFAULT_PROTOCOLS.clone();
+    }
+
+    /**
+     * Gets the cache shared by socket factories that are not given a cache explicitly.
+     * 
+     * @return the default cache
+     */
+    public static TLSContextCache getDefaultCache() {
+        return DEFAULT_CACHE;
+    }
+
+    /**
+     * Gets the context initialized with the given key managers, trust managers and secure random, creating and
+     * caching it if necessary.
+     * 
+     * The managers and the secure random are compared by instance identity, not by the key and trust material they
+     * hold. Equivalent managers built anew, for example from a newly created or re-initialized
+     * {@link javax.net.ssl.KeyManagerFactory} or wrapped afresh for each client, never match a cached context, so every
+     * such call creates a context whose sessions no later connection resumes. Callers should build their managers once
+     * and pass the same manager instances on every call.
+     * 
+     * @param keyManagers the key managers, may be null
+     * @param trustManagers the trust managers, may be null
+     * @param random the secure random, may be null
+     * 
+     * @return the initialized context
+     * 
+     * @throws GeneralSecurityException thrown if the context can not be created or initialized
+     */
+    public synchronized SSLContext getContext(KeyManager[] keyManagers, TrustManager[] trustManagers,
+            SecureRandom random) throws GeneralSecurityException {
+        ContextKey key = new ContextKey(keyManagers, trustManagers, random);
+        SSLContext context = contexts.get(key);
+        if (context == null) {
+            log.debug("Creating new TLS context");
+            context = SSLContext.getInstance("TLS");
+            context.init(keyManagers, trustManagers, random);
+            configureSessionContext(context.getClientSessionContext());
+            contexts.put(key, context);
+        }
+        return context;
+    }
+
+    /**
+     * Gets the configured protocols which are supported by the given context, in order of preference.
+     * 
+     * @param context the context
+     * 
+     * @return the protocols to enable, or null if none of the configured protocols are supported, in which case the
+     *         provider's defaults should be used
+     */
+    public String[] getEnabledProtocols(SSLContext context) {
+        String[] configured = protocols;
+        if (configured == null) {
+            return null;
+        }
+
+        List<String> supported = Arrays.asList(context.getSupportedSSLParameters().getProtocols());
+        List<String> enabled = new ArrayList<String>();
+        for (String protocol : configured) {
+            if (supported.contains(protocol)) {
+                enabled.add(protocol);
+            }
+        }
+        if (enabled.isEmpty()) {
+            log.warn("None of the configured TLS protocols {} are supported, using provider defaults",
+                    Arrays.toString(configured));
+            return null;
+        }
+        return enabled.toArray(new String[enabled.size()]);
+    }
+
+    /** Removes all cached contexts. Sessions cached by the removed contexts can no longer be resumed. */
+    public synchronized void clear() {
+        contexts.clear();
+    }
+
+    /**
+     * Gets the number of cached contexts.
+     * 
+     * @return number of cached contexts
+     */
+    public synchronized int size() {
+        return contexts.size();
+    }
+
+    /**
+     * Gets the maximum number of cached contexts. Default value is 32.
+     * 
+     * @return maximum number of cached contexts
+     */
+    public synchronized int getMaxContexts() {
+        return maxContexts;
+    }
+
+    /**
+     * Sets the maximum number of cached contexts.
+     * 
+     * @param max maximum number of cached contexts, must be greater than zero
+     */
+    public synchronized void setMaxContexts(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("Maximum number of contexts must be greater than zero");
+        }
+        maxContexts = max;
+
+        Iterator<ContextKey> keys = contexts.keySet().iterator();
+        while (contexts.size() > maxContexts) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    /**
+     * Gets the maximum number of client sessions cached by each context. Default value is 1,000. A value of 0
+     * indicates there is no maximum.
+     * 
+     * @return maximum number of client sessions cached by each context
+     */
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of client sessions cached by each context, including those already cached. A value of 0
+     * indicates there is no maximum.
+     * 
+     * @param size maximum number of client sessions cached by each context
+     */
+    public synchronized void setSessionCacheSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Session cache size may not be negative");
+        }
+        sessionCacheSize = size;
+        reconfigureSessionContexts();
+    }
+
+    /**
+     * Gets the time, in seconds, after which a cached client session may no longer be resumed. Default value is 3,600.
+     * A value of 0 indicates there is no timeout.
+     * 
+     * @return time, in seconds, after which a cached client session may no longer be resumed
+     */
+    public int getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    /**
+     * Sets the time, in seconds, after which a cached client session may no longer be resumed, including in contexts
+     * already cached. A value of 0 indicates there is no timeout.
+     * 
+     * @param timeout time, in seconds, after which a cached client session may no longer be resumed
+     */
+    public synchronized void setSessionTimeout(int timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Session timeout may not be negative");
+        }
+        sessionTimeout = timeout;
+        reconfigureSessionContexts();
+    }
+
+    /**
+     * Gets the protocols enabled on sockets, in order of preference. Default value is {@link #DEFAULT_PROTOCOLS}.
+     * 
+     * @return protocols enabled on sockets, or null if the provider's defaults are used
+     */
+    public String[] getProtocols() {
+        String[] configured = protocols;
+        return configured == null ? null : configured.clone();
+    }
+
+    /**
+     * Sets the protocols enabled on sockets, in order of preference. Protocols not supported by the JSSE provider are
+     * ignored. Only socket factories created after this call are affected.
+     * 
+     * @param enabledProtocols protocols enabled on sockets, or null to use the provider's defaults
+     */
+    public void setProtocols(String[] enabledProtocols) {
+        protocols = enabledProtocols == null ? null : enabledProtocols.clone();
+    }
+
+    /** Applies the session cache size and timeout to the client session context of each cached context. */
+    private void reconfigureSessionContexts() {
+        for (SSLContext context : contexts.values()) {
+            configureSessionContext(context.getClientSessionContext());
+        }
+    }
+
+    /**
+     * Applies the session cache size and timeout to a session context.
+     * 
+     * @param sessionContext the session context, may be null if the provider does not support one
+     */
+    private void configureSessionContext(SSLSessionContext sessionContext) {
+        if (sessionContext != null) {
+            sessionContext.setSessionCacheSize(sessionCacheSize);
+            sessionContext.setSessionTimeout(sessionTimeout);
+        }
+    }
+
+    /** Cache key comparing key managers, trust managers and secure random by identity. */
+    private static final class ContextKey {
+
+        /** Key managers, may be null. */
+        private final Object[] keyManagers;
+
+        /** Trust managers, may be null. */
+        private final Object[] trustManagers;
+
+        /** Secure random, may be null. */
+        private final SecureRandom random;
+
+        /**
+         * Constructor.
+         * 
+         * @param keyMgrs key managers, may be null
+         * @param trustMgrs trust managers, may be null
+         * @param secureRandom secure random, may be null
+         */
+        private ContextKey(KeyManager[] keyMgrs, TrustManager[] trustMgrs, SecureRandom secureRandom) {
+            keyManagers = keyMgrs == null ? null : keyMgrs.clone();
+            trustManagers = trustMgrs == null ? null : trustMgrs.clone();
+            random = secureRandom;
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            int hash = identityHashCode(keyManagers);
+            hash = 31 * hash + identityHashCode(trustManagers);
+            return 31 * hash + System.identityHashCode(random);
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof ContextKey)) {
+                return false;
+            }
+            ContextKey other = (ContextKey) obj;
+            return random == other.random && identityEquals(keyManagers, other.keyManagers)
+                    && identityEquals(trustManagers, other.trustManagers);
+        }
+
+        /**
+         * Computes a hash code of an array from the identity hash codes of its elements.
+         * 
+         * @param managers the array, may be null
+         * 
+         * @return the hash code
+         */
+        private static int identityHashCode(Object[] managers) {
+            if (managers == null) {
+                return 0;
+            }
+            int hash = 1;
+            for (Object manager : managers) {
+                hash = 31 * hash + System.identityHashCode(manager);
+            }
+            return hash;
+        }
+
+        /**
+         * Checks whether two arrays contain the same objects in the same order.
+         * 
+         * @param managers the first array, may be null
+         * @param otherManagers the second array, may be null
+         * 
+         * @return true if the arrays contain the same objects in the same order
+         */
+        private static boolean identityEquals(Object[] managers, Object[] otherManagers) {
+            if (managers == null || otherManagers == null) {
+                return managers == otherManagers;
+            }
+            if (managers.length != otherManagers.length) {
+                return false;
+            }
+            for (int i = 0; i < managers.length; i++) {
+                if (managers[i] != otherManagers[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
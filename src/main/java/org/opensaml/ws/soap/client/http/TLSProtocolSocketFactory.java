@@ -41,12 +41,25 @@ import org.apache.commons.httpclient.params.HttpConnectionParams;
 import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 
-/** An SSL/TLS socket factory that uses KeyStoreFactory's to get its key and trust material. */
+/**
+ * An SSL/TLS socket factory that uses KeyStoreFactory's to get its key and trust material.
+ * 
+ * The {@link SSLContext} used by the factory is obtained from a {@link TLSContextCache}, by default the shared
+ * {@link TLSContextCache#getDefaultCache()}, so factories created with the same key and trust managers share a TLS
+ * session cache and can resume each other's sessions.
+ */
 @ThreadSafe
 public class TLSProtocolSocketFactory {
 
+    /** Socket factory used by HttpClient 4 connection managers. */
     private SSLConnectionSocketFactory socketFactory;
 
+    /** Cache from which the SSL context is obtained. */
+    private TLSContextCache contextCache;
+
+    /** Protocols enabled on created sockets, or null if the provider defaults are used. */
+    private String[] enabledProtocols;
+
     /** Managers used to retrieve client-cert authentication keys for a given host. */
     private X509KeyManager[] keyManagers;
 
@@ -111,6 +124,8 @@ public class TLSProtocolSocketFactory {
         
         secureRandom = null;
         
+        contextCache = TLSContextCache.getDefaultCache();
+        
         init();
     }
     
@@ -131,11 +146,36 @@ public class TLSProtocolSocketFactory {
      */
     public TLSProtocolSocketFactory(X509KeyManager[] keyMgrs, X509TrustManager[] trustMgrs, HostnameVerifier verifier, 
             SecureRandom random) throws IllegalArgumentException {
+        this(keyMgrs, trustMgrs, verifier, random, TLSContextCache.getDefaultCache());
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param keyMgrs managers used to retrieve client-cert authentication keys for a given host. 
+     *          May be null, in which case the JSSE default key manager lookup mechanism is used.
+     * @param trustMgrs manager used to validate the X.509 credentials of a given host.
+     *          May be null, in which case the JSSE default trust manager lookup mechanism is used.
+     * @param verifier the hostname verifier used to verify the SSL/TLS's peer's hostname. 
+     *          May be null, in which case no hostname verification is performed.
+     * @param random the secure random instance used to create SSL sessions.
+     *          May be null, in which case the JSSE default secure random impl is used.
+     * @param cache the cache from which the SSL context is obtained
+     * 
+     * @throws IllegalArgumentException thrown if the given key or trust manager can not be used to create the
+     *             {@link SSLContext} used to create new sockets
+     */
+    public TLSProtocolSocketFactory(X509KeyManager[] keyMgrs, X509TrustManager[] trustMgrs, HostnameVerifier verifier, 
+            SecureRandom random, TLSContextCache cache) throws IllegalArgumentException {
+        if (cache == null) {
+            throw new IllegalArgumentException("TLS context cache may not be null");
+        }
         
         keyManagers = keyMgrs;
         trustManagers = trustMgrs;
         hostnameVerifier = verifier;
         secureRandom = random;
+        contextCache = cache;
         
         init();
     }
@@ -148,18 +188,29 @@ public class TLSProtocolSocketFactory {
      */
     protected void init() throws IllegalArgumentException {
         try {
-            sslContext = SSLContext.getInstance("SSL");
-            sslContext.init(keyManagers, trustManagers, secureRandom);
+            sslContext = contextCache.getContext(keyManagers, trustManagers, secureRandom);
         } catch (GeneralSecurityException e) {
             throw new IllegalArgumentException("Error create SSL context", e);
         }
+        enabledProtocols = contextCache.getEnabledProtocols(sslContext);
 
-        this.socketFactory = new SSLConnectionSocketFactory(sslContext, hostnameVerifier);
+        this.socketFactory = new SSLConnectionSocketFactory(sslContext, enabledProtocols, null, hostnameVerifier);
+    }
+
+    /**
+     * Gets the socket factory to register for the https scheme of an HttpClient 4 connection manager, for example
+     * with {@link HttpClientBuilder#setSSLConnectionSocketFactory(SSLConnectionSocketFactory)}.
+     * 
+     * @return socket factory for the https scheme
+     */
+    public SSLConnectionSocketFactory getSSLConnectionSocketFactory() {
+        return socketFactory;
     }
 
     /** {@inheritDoc} */
     public Socket createSocket(String host, int port) throws IOException {
         Socket socket = sslContext.getSocketFactory().createSocket(host, port);
+        enableProtocols(socket);
         verifyHostname(socket, host);
         return socket;
     }
@@ -167,6 +218,7 @@ public class TLSProtocolSocketFactory {
     /** {@inheritDoc} */
     public Socket createSocket(String host, int port, InetAddress localHost, int clientPort) throws IOException {
         Socket socket = sslContext.getSocketFactory().createSocket(host, port, localHost, clientPort);
+        enableProtocols(socket);
         verifyHostname(socket, host);
         return socket;
     }
@@ -174,6 +226,7 @@ public class TLSProtocolSocketFactory {
     /** {@inheritDoc} */
     public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
         Socket newSocket = sslContext.getSocketFactory().createSocket(socket, host, port, autoClose);
+        enableProtocols(newSocket);
         verifyHostname(socket, host);
         return newSocket;
     }
@@ -188,10 +241,12 @@ public class TLSProtocolSocketFactory {
         SocketFactory socketfactory = sslContext.getSocketFactory();
         if (timeout == 0) {
             Socket socket = socketfactory.createSocket(host, port, localHost, localPort);
+            enableProtocols(socket);
             verifyHostname(socket, host);
             return socket;
         } else {
             Socket socket = socketfactory.createSocket();
+            enableProtocols(socket);
             SocketAddress localaddr = new InetSocketAddress(localHost, localPort);
             SocketAddress remoteaddr = new InetSocketAddress(host, port);
             socket.bind(localaddr);
@@ -211,6 +266,17 @@ public class TLSProtocolSocketFactory {
         return getClass().hashCode();
     }
     
+    /**
+     * Enables the configured protocols on a newly created socket, before its handshake is started.
+     * 
+     * @param socket the newly created socket
+     */
+    protected void enableProtocols(Socket socket) {
+        if (enabledProtocols != null && socket instanceof SSLSocket) {
+            ((SSLSocket) socket).setEnabledProtocols(enabledProtocols);
+        }
+    }
+    
     /**
      * Verifies the peer's hostname using the configured {@link HostnameVerifier}.
      * 
@@ -38,6 +38,12 @@ public class SOAP11Decoder extends BaseHandlerChainAwareMessageDecoder {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(SOAP11Decoder.class);
+
+    /** Unmarshaller used when streaming decoding is enabled. */
+    private final SOAP11StreamingUnmarshaller streamingUnmarshaller = new SOAP11StreamingUnmarshaller();
+
+    /** Whether messages are decoded from a StAX stream rather than a fully parsed DOM. */
+    private boolean streamingDecoding;
     
     /** Constructor. */
     public SOAP11Decoder() {
@@ -58,10 +64,39 @@ public class SOAP11Decoder extends BaseHandlerChainAwareMessageDecoder {
 
         InTransport inTransport = messageContext.getInboundMessageTransport();
 
-        log.debug("Unmarshalling SOAP message");
-        Envelope soapMessage = (Envelope) unmarshallMessage(inTransport.getIncomingStream());
+        Envelope soapMessage;
+        if (streamingDecoding) {
+            log.debug("Unmarshalling SOAP message from stream");
+            soapMessage = streamingUnmarshaller.unmarshall(getParserPool(), inTransport.getIncomingStream());
+        } else {
+            log.debug("Unmarshalling SOAP message");
+            soapMessage = (Envelope) unmarshallMessage(inTransport.getIncomingStream());
+        }
         messageContext.setInboundMessage(soapMessage);
     }
+
+    /**
+     * Gets whether messages are decoded from a StAX stream, materializing only individual header blocks and body
+     * children as DOM, rather than from a DOM of the entire message. Defaults to false.
+     * 
+     * @return whether messages are decoded from a StAX stream
+     */
+    public boolean isStreamingDecoding() {
+        return streamingDecoding;
+    }
+
+    /**
+     * Sets whether messages are decoded from a StAX stream, materializing only individual header blocks and body
+     * children as DOM, rather than from a DOM of the entire message.
+     * 
+     * Signatures covering content outside of their own header block or body child can not be validated against
+     * messages decoded this way.
+     * 
+     * @param streaming whether messages are decoded from a StAX stream
+     */
+    public void setStreamingDecoding(boolean streaming) {
+        streamingDecoding = streaming;
+    }
     
     
     /** {@inheritDoc} */
@@ -0,0 +1,456 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.soap11.decoder;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.opensaml.ws.message.decoder.MessageDecodingException;
+import org.opensaml.ws.soap.soap11.Body;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.ws.soap.soap11.Fault;
+import org.opensaml.ws.soap.soap11.Header;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.ParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.util.DatatypeHelper;
+import org.opensaml.xml.util.XMLConstants;
+import org.opensaml.xml.util.XMLHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Unmarshalls a SOAP 1.1 envelope from a StAX event stream rather than from a fully parsed DOM document.
+ * 
+ * The envelope, header and body elements are read directly from the stream. Each header block and each body child is
+ * materialized as its own small DOM document, unmarshalled, and then has its DOM released unless the subtree
+ * contains an XML signature. Peak memory is therefore bounded by the largest individual header block or body child
+ * rather than by the whole message, while signed content retains the DOM needed to later validate its signature.
+ * 
+ * Because each subtree is unmarshalled in its own document, signatures which reference content outside of their own
+ * subtree (e.g. a header signature covering the body) can not be validated against messages decoded this way.
+ * 
+ * The underlying StAX parser is configured to reject DTDs and external entities.
+ */
+public class SOAP11StreamingUnmarshaller {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(SOAP11StreamingUnmarshaller.class);
+
+    /** Factory used to create stream readers. */
+    private final XMLInputFactory inputFactory;
+
+    /** Constructor. */
+    public SOAP11StreamingUnmarshaller() {
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    /**
+     * Reads a SOAP 1.1 envelope from the given stream.
+     * 
+     * @param parserPool parser pool used to create the documents which hold each materialized subtree
+     * @param messageStream stream containing the SOAP message
+     * 
+     * @return the unmarshalled envelope
+     * 
+     * @throws MessageDecodingException thrown if the stream can not be read, does not contain a SOAP 1.1 envelope,
+     *             or one of its parts can not be unmarshalled
+     */
+    public Envelope unmarshall(ParserPool parserPool, InputStream messageStream) throws MessageDecodingException {
+        return unmarshall(parserPool, messageStream, false);
+    }
+
+    /**
+     * Reads a SOAP 1.1 envelope from the given stream, optionally stopping as soon as a SOAP fault has been read from
+     * the body. In that case the returned envelope contains the content read up to and including the fault, and the
+     * remainder of the stream is left unread.
+     * 
+     * @param parserPool parser pool used to create the documents which hold each materialized subtree
+     * @param messageStream stream containing the SOAP message
+     * @param stopAtFault whether to stop reading once a fault has been read from the body
+     * 
+     * @return the unmarshalled envelope
+     * 
+     * @throws MessageDecodingException thrown if the stream can not be read, does not contain a SOAP 1.1 envelope,
+     *             or one of its parts can not be unmarshalled
+     */
+    public Envelope unmarshall(ParserPool parserPool, InputStream messageStream, boolean stopAtFault)
+            throws MessageDecodingException {
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(messageStream);
+            return readEnvelope(parserPool, reader, stopAtFault);
+        } catch (XMLStreamException e) {
+            log.error("Encountered error reading SOAP message stream", e);
+            throw new MessageDecodingException("Encountered error reading SOAP message stream", e);
+        } catch (XMLParserException e) {
+            log.error("Unable to create DOM document for SOAP message content", e);
+            throw new MessageDecodingException("Unable to create DOM document for SOAP message content", e);
+        } catch (UnmarshallingException e) {
+            log.error("Encountered error unmarshalling SOAP message content", e);
+            throw new MessageDecodingException("Encountered error unmarshalling SOAP message content", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    log.debug("Unable to close SOAP message stream reader", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the envelope element and its children.
+     * 
+     * @param parserPool parser pool used to create DOM documents
+     * @param reader reader positioned before the document element
+     * @param stopAtFault whether to stop reading once a fault has been read from the body
+     * 
+     * @return the unmarshalled envelope
+     * 
+     * @throws XMLStreamException thrown if the stream can not be read
+     * @throws XMLParserException thrown if a DOM document can not be created
+     * @throws UnmarshallingException thrown if some content can not be unmarshalled
+     * @throws MessageDecodingException thrown if the message is not a SOAP 1.1 envelope
+     */
+    protected Envelope readEnvelope(ParserPool parserPool, XMLStreamReader reader, boolean stopAtFault)
+            throws XMLStreamException, XMLParserException, UnmarshallingException, MessageDecodingException {
+        nextElement(reader);
+        if (!Envelope.DEFAULT_ELEMENT_NAME.equals(reader.getName())) {
+            throw new MessageDecodingException("Message document element was " + reader.getName()
+                    + " rather than a SOAP 1.1 Envelope");
+        }
+
+        Document skeletonDoc = parserPool.newDocument();
+        Element envelopeElem = copyElement(skeletonDoc, reader);
+        skeletonDoc.appendChild(envelopeElem);
+        Map<String, String> envelopeNamespaces = getNamespaces(reader, new HashMap<String, String>());
+
+        List<XMLObject> headerBlocks = new ArrayList<XMLObject>();
+        List<XMLObject> bodyChildren = new ArrayList<XMLObject>();
+        List<XMLObject> envelopeChildren = new ArrayList<XMLObject>();
+
+        while (nextElement(reader)) {
+            if (Header.DEFAULT_ELEMENT_NAME.equals(reader.getName())) {
+                envelopeElem.appendChild(copyElement(skeletonDoc, reader));
+                readChildren(parserPool, reader, getNamespaces(reader, envelopeNamespaces), headerBlocks, false);
+            } else if (Body.DEFAULT_ELEMENT_NAME.equals(reader.getName())) {
+                envelopeElem.appendChild(copyElement(skeletonDoc, reader));
+                if (readChildren(parserPool, reader, getNamespaces(reader, envelopeNamespaces), bodyChildren,
+                        stopAtFault)) {
+                    log.debug("Stopped reading SOAP message after reading fault");
+                    break;
+                }
+            } else {
+                envelopeChildren.add(readSubtree(parserPool, reader, envelopeNamespaces));
+            }
+        }
+
+        Envelope envelope = (Envelope) unmarshallElement(envelopeElem);
+        envelope.releaseDOM();
+        envelope.releaseChildrenDOM(true);
+
+        if (envelope.getHeader() != null) {
+            envelope.getHeader().getUnknownXMLObjects().addAll(headerBlocks);
+        }
+        if (envelope.getBody() != null) {
+            envelope.getBody().getUnknownXMLObjects().addAll(bodyChildren);
+        }
+        envelope.getUnknownXMLObjects().addAll(envelopeChildren);
+
+        return envelope;
+    }
+
+    /**
+     * Reads each child element of the current element as an individually unmarshalled subtree.
+     * 
+     * @param parserPool parser pool used to create DOM documents
+     * @param reader reader positioned on the start tag of the parent element
+     * @param inScopeNamespaces namespaces declared on the parent element and its ancestors
+     * @param children list to which the unmarshalled children are added
+     * @param stopAtFault whether to stop reading once a SOAP fault child has been read
+     * 
+     * @return true if reading stopped at a fault, false if all children were read
+     * 
+     * @throws XMLStreamException thrown if the stream can not be read
+     * @throws XMLParserException thrown if a DOM document can not be created
+     * @throws UnmarshallingException thrown if a child can not be unmarshalled
+     */
+    protected boolean readChildren(ParserPool parserPool, XMLStreamReader reader,
+            Map<String, String> inScopeNamespaces, List<XMLObject> children, boolean stopAtFault)
+            throws XMLStreamException, XMLParserException, UnmarshallingException {
+        while (nextElement(reader)) {
+            XMLObject child = readSubtree(parserPool, reader, inScopeNamespaces);
+            children.add(child);
+            if (stopAtFault && child instanceof Fault) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Materializes the element the reader is positioned on, and all its content, as a DOM document and unmarshalls it.
+     * The resulting object's DOM is released unless the subtree contained an XML signature.
+     * 
+     * @param parserPool parser pool used to create the DOM document
+     * @param reader reader positioned on the start tag of the subtree root
+     * @param inScopeNamespaces namespaces declared on the ancestors of the subtree root
+     * 
+     * @return the unmarshalled subtree
+     * 
+     * @throws XMLStreamException thrown if the stream can not be read
+     * @throws XMLParserException thrown if a DOM document can not be created
+     * @throws UnmarshallingException thrown if the subtree can not be unmarshalled
+     */
+    protected XMLObject readSubtree(ParserPool parserPool, XMLStreamReader reader,
+            Map<String, String> inScopeNamespaces) throws XMLStreamException, XMLParserException,
+            UnmarshallingException {
+        Document document = parserPool.newDocument();
+        Element root = copyElement(document, reader);
+        document.appendChild(root);
+
+        // make inherited namespaces, which QName valued content may rely on, visible within the detached subtree
+        for (Map.Entry<String, String> namespace : inScopeNamespaces.entrySet()) {
+            String declaredName = namespace.getKey() == null ? XMLConstants.XMLNS_PREFIX : namespace.getKey();
+            if (!root.hasAttributeNS(XMLConstants.XMLNS_NS, declaredName)) {
+                root.setAttributeNS(XMLConstants.XMLNS_NS, getNamespaceAttributeName(namespace.getKey()),
+                        namespace.getValue());
+            }
+        }
+
+        boolean signed = isSignature(reader);
+        Node current = root;
+        while (current != null) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    signed |= isSignature(reader);
+                    current = current.appendChild(copyElement(document, reader));
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    current = current == root ? null : current.getParentNode();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    current.appendChild(document.createTextNode(reader.getText()));
+                    break;
+                case XMLStreamConstants.CDATA:
+                    current.appendChild(document.createCDATASection(reader.getText()));
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    current.appendChild(document.createComment(reader.getText()));
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    current.appendChild(document.createProcessingInstruction(reader.getPITarget(),
+                            reader.getPIData()));
+                    break;
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                case XMLStreamConstants.DTD:
+                    throw new XMLStreamException("Entity references and DTDs are not supported",
+                            reader.getLocation());
+                default:
+                    throw new XMLStreamException("Unexpected end of subtree " + XMLHelper.getNodeQName(root),
+                            reader.getLocation());
+            }
+        }
+
+        XMLObject xmlObject = unmarshallElement(root);
+        if (signed) {
+            log.debug("Retaining DOM of signed SOAP content {}", xmlObject.getElementQName());
+        } else {
+            xmlObject.releaseDOM();
+            xmlObject.releaseChildrenDOM(true);
+        }
+        return xmlObject;
+    }
+
+    /**
+     * Unmarshalls the given element. Elements without a registered unmarshaller are unmarshalled by the default
+     * provider's unmarshaller, as they are when a whole envelope is unmarshalled from a DOM.
+     * 
+     * @param element element to unmarshall
+     * 
+     * @return the unmarshalled object
+     * 
+     * @throws UnmarshallingException thrown if there is no unmarshaller for the element or the unmarshaller fails
+     */
+    protected XMLObject unmarshallElement(Element element) throws UnmarshallingException {
+        Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(element);
+        if (unmarshaller == null) {
+            log.debug("No unmarshaller registered for element {}, using default unmarshaller",
+                    XMLHelper.getNodeQName(element));
+            unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(
+                    Configuration.getDefaultProviderQName());
+        }
+        if (unmarshaller == null) {
+            throw new UnmarshallingException("No unmarshaller registered for element "
+                    + XMLHelper.getNodeQName(element));
+        }
+        return unmarshaller.unmarshall(element);
+    }
+
+    /**
+     * Advances the reader to the next start tag at the current level, skipping whitespace, comments and processing
+     * instructions.
+     * 
+     * @param reader the stream reader
+     * 
+     * @return true if the reader is positioned on a start tag, false if it reached the parent's end tag or the end
+     *         of the document
+     * 
+     * @throws XMLStreamException thrown if the stream can not be read or contains a DTD or non-whitespace text
+     */
+    private boolean nextElement(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    return true;
+                case XMLStreamConstants.END_ELEMENT:
+                case XMLStreamConstants.END_DOCUMENT:
+                    return false;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (!reader.isWhiteSpace()) {
+                        throw new XMLStreamException("Unexpected text content", reader.getLocation());
+                    }
+                    break;
+                case XMLStreamConstants.DTD:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    throw new XMLStreamException("Entity references and DTDs are not supported",
+                            reader.getLocation());
+                default:
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a DOM element, including its namespace declarations and attributes, for the start tag the reader is
+     * positioned on.
+     * 
+     * @param document document which will own the element
+     * @param reader reader positioned on a start tag
+     * 
+     * @return the created element
+     */
+    private Element copyElement(Document document, XMLStreamReader reader) {
+        Element element = document.createElementNS(DatatypeHelper.safeTrimOrNullString(reader.getNamespaceURI()),
+                getQualifiedName(reader.getPrefix(), reader.getLocalName()));
+
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            element.setAttributeNS(XMLConstants.XMLNS_NS, getNamespaceAttributeName(reader.getNamespacePrefix(i)),
+                    emptyIfNull(reader.getNamespaceURI(i)));
+        }
+
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            element.setAttributeNS(DatatypeHelper.safeTrimOrNullString(reader.getAttributeNamespace(i)),
+                    getQualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                    reader.getAttributeValue(i));
+        }
+
+        return element;
+    }
+
+    /**
+     * Gets the namespaces in scope at the start tag the reader is positioned on.
+     * 
+     * @param reader reader positioned on a start tag
+     * @param parentNamespaces namespaces in scope at the parent element, keyed by prefix
+     * 
+     * @return namespaces in scope at the current element, keyed by prefix
+     */
+    private Map<String, String> getNamespaces(XMLStreamReader reader, Map<String, String> parentNamespaces) {
+        Map<String, String> namespaces = new HashMap<String, String>(parentNamespaces);
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            namespaces.put(DatatypeHelper.safeTrimOrNullString(reader.getNamespacePrefix(i)),
+                    emptyIfNull(reader.getNamespaceURI(i)));
+        }
+        return namespaces;
+    }
+
+    /**
+     * Checks whether the reader is positioned on the start tag of an XML signature.
+     * 
+     * @param reader reader positioned on a start tag
+     * 
+     * @return true if the element is a ds:Signature element
+     */
+    private boolean isSignature(XMLStreamReader reader) {
+        return XMLConstants.XMLSIG_NS.equals(reader.getNamespaceURI()) && "Signature".equals(reader.getLocalName());
+    }
+
+    /**
+     * Builds a qualified name from a prefix and local name.
+     * 
+     * @param prefix the prefix, may be null or empty
+     * @param localName the local name
+     * 
+     * @return the qualified name
+     */
+    private String getQualifiedName(String prefix, String localName) {
+        if (DatatypeHelper.isEmpty(prefix)) {
+            return localName;
+        }
+        return prefix + ":" + localName;
+    }
+
+    /**
+     * Gets the name of the attribute which declares the given namespace prefix.
+     * 
+     * @param prefix the prefix, null or empty for the default namespace
+     * 
+     * @return the namespace declaration attribute name
+     */
+    private String getNamespaceAttributeName(String prefix) {
+        if (DatatypeHelper.isEmpty(prefix)) {
+            return XMLConstants.XMLNS_PREFIX;
+        }
+        return XMLConstants.XMLNS_PREFIX + ":" + prefix;
+    }
+
+    /**
+     * Gets the given string, or the empty string if it is null.
+     * 
+     * @param value the string, may be null
+     * 
+     * @return the string, never null
+     */
+    private static String emptyIfNull(String value) {
+        return value == null ? "" : value;
+    }
+}
@@ -17,10 +17,15 @@
 
 package org.opensaml.ws.soap.soap11.encoder;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
 
 import org.opensaml.ws.message.MessageContext;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
@@ -28,9 +33,15 @@ import org.opensaml.ws.message.handler.BaseHandlerChainAwareMessageEncoder;
 import org.opensaml.ws.soap.common.SOAPObjectBuilder;
 import org.opensaml.ws.soap.soap11.Body;
 import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.ws.soap.soap11.Header;
 import org.opensaml.ws.transport.OutTransport;
+import org.opensaml.ws.wsaddressing.Action;
 import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.XMLObjectBuilderFactory;
+import org.opensaml.xml.io.Marshaller;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.util.XMLConstants;
 import org.opensaml.xml.util.XMLHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,6 +60,15 @@ public class SOAP11Encoder extends BaseHandlerChainAwareMessageEncoder {
     
     /** SOAP Body builder. */
     private SOAPObjectBuilder<Body> bodyBuilder;
+
+    /** Serializer used when streaming encoding is enabled. */
+    private final SOAP11StreamingSerializer streamingSerializer = new SOAP11StreamingSerializer();
+
+    /** Whether messages are written with a StAX writer rather than the DOM serializer. */
+    private boolean streamingEncoding;
+
+    /** Pre-serialized envelope templates used for matching messages, or null. */
+    private SOAP11EnvelopeTemplateCache envelopeTemplateCache;
     
 
     /** Constructor. */
@@ -79,22 +99,203 @@ public class SOAP11Encoder extends BaseHandlerChainAwareMessageEncoder {
     
     /** {@inheritDoc} */
     protected void encodeToTransport(MessageContext messageContext) throws MessageEncodingException {
+        if (envelopeTemplateCache != null && encodeWithTemplate(messageContext)) {
+            return;
+        }
+
         Element envelopeElem = marshallMessage(messageContext.getOutboundMessage());
         
         preprocessTransport(messageContext);
         
         try {
             OutTransport outTransport = messageContext.getOutboundMessageTransport();
-            Writer out = new OutputStreamWriter(outTransport.getOutgoingStream(), "UTF-8");
-            XMLHelper.writeNode(envelopeElem, out);
-            out.flush();
+            if (streamingEncoding && !isSigned(envelopeElem)) {
+                log.debug("Writing SOAP message to stream");
+                streamingSerializer.serialize(envelopeElem, outTransport.getOutgoingStream());
+            } else {
+                Writer out = new OutputStreamWriter(new BufferedOutputStream(outTransport.getOutgoingStream(),
+                        SOAP11StreamingSerializer.BUFFER_SIZE), "UTF-8");
+                XMLHelper.writeNode(envelopeElem, out);
+                out.flush();
+            }
         } catch (UnsupportedEncodingException e) {
             log.error("JVM does not support required UTF-8 encoding");
             throw new MessageEncodingException("JVM does not support required UTF-8 encoding");
+        } catch (XMLStreamException e) {
+            log.error("Unable to write message content to outbound stream", e);
+            throw new MessageEncodingException("Unable to write message content to outbound stream", e);
+        } catch (IOException e) {
+            log.error("Unable to write message content to outbound stream", e);
+            throw new MessageEncodingException("Unable to write message content to outbound stream", e);
+        }
+    }
+
+    /**
+     * Gets whether messages are written directly to the outbound stream with a StAX writer rather than through the
+     * DOM serializer. Messages containing an XML signature are always written with the DOM serializer. Defaults to
+     * false.
+     * 
+     * @return whether messages are written with a StAX writer
+     */
+    public boolean isStreamingEncoding() {
+        return streamingEncoding;
+    }
+
+    /**
+     * Sets whether messages are written directly to the outbound stream with a StAX writer rather than through the
+     * DOM serializer. Messages containing an XML signature are always written with the DOM serializer.
+     * 
+     * @param streaming whether messages are written with a StAX writer
+     */
+    public void setStreamingEncoding(boolean streaming) {
+        streamingEncoding = streaming;
+    }
+
+    /**
+     * Gets the cache of pre-serialized envelope templates used to encode messages. Messages whose communication
+     * profile ID and WS-Addressing action match a registered template have only their variable header blocks and
+     * body content marshalled and serialized.
+     * 
+     * @return the envelope template cache, may be null
+     */
+    public SOAP11EnvelopeTemplateCache getEnvelopeTemplateCache() {
+        return envelopeTemplateCache;
+    }
+
+    /**
+     * Sets the cache of pre-serialized envelope templates used to encode messages.
+     * 
+     * @param cache the envelope template cache, may be null
+     */
+    public void setEnvelopeTemplateCache(SOAP11EnvelopeTemplateCache cache) {
+        envelopeTemplateCache = cache;
+    }
+
+    /**
+     * Encodes the outbound message using the envelope template registered for the message context's communication
+     * profile and the message's WS-Addressing action, if there is one and it is applicable to the message.
+     * 
+     * @param messageContext the current message context being processed
+     * 
+     * @return true if the message was encoded, false if it must be encoded without a template
+     * 
+     * @throws MessageEncodingException thrown if the message can not be encoded
+     */
+    protected boolean encodeWithTemplate(MessageContext messageContext) throws MessageEncodingException {
+        Envelope envelope = (Envelope) messageContext.getOutboundMessage();
+        SOAP11EnvelopeTemplate template = envelopeTemplateCache.getTemplate(
+                messageContext.getCommunicationProfileId(), getWSAddressingAction(envelope));
+        if (template == null || !template.isApplicable(envelope)) {
+            return false;
+        }
+
+        List<Element> headerElems = new ArrayList<Element>();
+        if (envelope.getHeader() != null) {
+            for (XMLObject headerBlock : envelope.getHeader().getUnknownXMLObjects()) {
+                headerElems.add(marshallContent(headerBlock));
+            }
+        }
+        try {
+            headerElems = template.getVariableHeaders(headerElems);
+        } catch (XMLStreamException e) {
+            log.error("Unable to serialize SOAP header block", e);
+            throw new MessageEncodingException("Unable to serialize SOAP header block", e);
+        }
+        if (headerElems == null) {
+            log.debug("SOAP header blocks differ from the constant header blocks of the envelope template");
+            return false;
+        }
+        List<Element> bodyElems = new ArrayList<Element>();
+        for (XMLObject content : envelope.getBody().getUnknownXMLObjects()) {
+            bodyElems.add(marshallContent(content));
+        }
+        List<Element> variableElems = new ArrayList<Element>(headerElems);
+        variableElems.addAll(bodyElems);
+        for (Element elem : variableElems) {
+            if (isSigned(elem)) {
+                log.debug("Signed SOAP content can not be spliced into an envelope template");
+                return false;
+            }
+        }
+
+        log.debug("Encoding SOAP message using envelope template");
+        preprocessTransport(messageContext);
+
+        try {
+            OutTransport outTransport = messageContext.getOutboundMessageTransport();
+            template.write(headerElems, bodyElems, new BufferedOutputStream(outTransport.getOutgoingStream(),
+                    SOAP11StreamingSerializer.BUFFER_SIZE));
+        } catch (XMLStreamException e) {
+            log.error("Unable to write message content to outbound stream", e);
+            throw new MessageEncodingException("Unable to write message content to outbound stream", e);
         } catch (IOException e) {
             log.error("Unable to write message content to outbound stream", e);
             throw new MessageEncodingException("Unable to write message content to outbound stream", e);
         }
+        return true;
+    }
+
+    /**
+     * Marshalls a header block or body content on its own. Content without a registered marshaller is marshalled by
+     * the default provider's marshaller, as it is when the whole envelope is marshalled.
+     * 
+     * @param content the header block or body content
+     * 
+     * @return the marshalled content
+     * 
+     * @throws MessageEncodingException thrown if the content can not be marshalled
+     */
+    protected Element marshallContent(XMLObject content) throws MessageEncodingException {
+        Marshaller marshaller = Configuration.getMarshallerFactory().getMarshaller(content);
+        if (marshaller == null) {
+            log.debug("No marshaller registered for {}, using default marshaller", content.getElementQName());
+            marshaller = Configuration.getMarshallerFactory().getMarshaller(Configuration.getDefaultProviderQName());
+        }
+        if (marshaller == null) {
+            log.error("Unable to marshall message, no marshaller registered for message object: "
+                    + content.getElementQName());
+            throw new MessageEncodingException(
+                    "Unable to marshall message, no marshaller registered for message object: "
+                            + content.getElementQName());
+        }
+        try {
+            return marshaller.marshall(content);
+        } catch (MarshallingException e) {
+            log.error("Encountered error marshalling message to its DOM representation", e);
+            throw new MessageEncodingException("Encountered error marshalling message into its DOM representation", e);
+        }
+    }
+
+    /**
+     * Gets the value of the envelope's WS-Addressing Action header, if present.
+     * 
+     * @param envelope the envelope
+     * 
+     * @return the WS-Addressing action or null
+     */
+    protected String getWSAddressingAction(Envelope envelope) {
+        Header header = envelope.getHeader();
+        if (header == null) {
+            return null;
+        }
+        List<XMLObject> objList = header.getUnknownXMLObjects(Action.ELEMENT_NAME);
+        if (objList == null || objList.isEmpty()) {
+            return null;
+        } else {
+            return ((Action) objList.get(0)).getValue();
+        }
+    }
+
+    /**
+     * Checks whether the marshalled message contains an XML signature, in which case it is serialized with the DOM
+     * serializer so that the signed content is written exactly as produced during signing.
+     * 
+     * @param messageElem the marshalled message
+     * 
+     * @return true if the message contains a ds:Signature element
+     */
+    protected boolean isSigned(Element messageElem) {
+        return messageElem.getElementsByTagNameNS(XMLConstants.XMLSIG_NS, "Signature").getLength() > 0;
     }
     
     /**
@@ -0,0 +1,343 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.soap11.encoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.opensaml.ws.soap.soap11.Body;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.ws.soap.soap11.Header;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.Marshaller;
+import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.util.XMLHelper;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A pre-serialized SOAP 1.1 envelope into which the variable header blocks and body content of a message are spliced.
+ * 
+ * A template is created from a prototype envelope carrying the envelope, header and body attributes and the constant
+ * header blocks, for example a WS-Addressing Action, shared by all messages encoded with it. The prototype is
+ * serialized once into three byte sequences: everything up to the end of the constant header blocks, the text between
+ * the header blocks and the body content, and the text closing the body and envelope. At encode time only the
+ * message's body content and its variable header blocks are written.
+ * 
+ * A message may only be encoded with a template if its header blocks start with the template's constant header
+ * blocks, in the same order and each serializing to exactly the same bytes as the corresponding block of the
+ * prototype. The remaining header blocks of the message are its variable header blocks. Messages which do not carry
+ * the constant header blocks, or carry different values for them, must be encoded without the template.
+ * 
+ * Checking a constant header block requires its marshalled DOM. A header block object which is reused from message to
+ * message keeps its cached DOM for as long as it is not modified, since modifying an XMLObject releases its DOM. The
+ * template remembers the cached DOM of each header block it has found to match, so a reused, unmodified constant
+ * header block is neither marshalled nor serialized again. A constant header block built anew for each message is
+ * marshalled and serialized once per message in order to be compared.
+ * 
+ * Templates are safe for concurrent use.
+ */
+public class SOAP11EnvelopeTemplate {
+
+    /** Bytes up to and including the constant header blocks, or up to the body start tag if there is no header. */
+    private final byte[] head;
+
+    /** Bytes closing the header and opening the body, or null if the template has no header. */
+    private final byte[] headerToBody;
+
+    /** Bytes closing the body and the envelope. */
+    private final byte[] tail;
+
+    /** Names of the constant header blocks contained in the template. */
+    private final Set<QName> constantHeaders;
+
+    /** Names of the constant header blocks, in document order. */
+    private final List<QName> constantHeaderNames;
+
+    /** Standalone serialization of each constant header block, in document order. */
+    private final List<byte[]> constantHeaderBytes;
+
+    /** Serializer used to write the variable content. */
+    private final SOAP11StreamingSerializer serializer;
+
+    /**
+     * Cached DOMs of header blocks found to match a constant header block, mapped to the position of that block.
+     * Entries are discarded once the header block object releases, or is itself discarded along with, its DOM.
+     */
+    private final Map<Element, Integer> matchedHeaders;
+
+    /**
+     * Constructor.
+     * 
+     * @param prototype the prototype envelope, whose body must be empty
+     * @param streamingSerializer serializer used to write the template and the variable content
+     * 
+     * @throws MarshallingException thrown if the prototype can not be marshalled
+     * @throws XMLStreamException thrown if the prototype can not be serialized
+     */
+    public SOAP11EnvelopeTemplate(Envelope prototype, SOAP11StreamingSerializer streamingSerializer)
+            throws MarshallingException, XMLStreamException {
+        if (prototype.getBody() == null || !prototype.getBody().getUnknownXMLObjects().isEmpty()) {
+            throw new IllegalArgumentException("Template prototype must contain an empty Body");
+        }
+        serializer = streamingSerializer;
+
+        Marshaller marshaller = Configuration.getMarshallerFactory().getMarshaller(prototype);
+        if (marshaller == null) {
+            throw new MarshallingException("No marshaller registered for " + prototype.getElementQName());
+        }
+        Element envelopeElem = marshaller.marshall(prototype);
+
+        Element headerElem = null;
+        Element bodyElem = null;
+        for (Node child = envelopeElem.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            QName childName = XMLHelper.getNodeQName(child);
+            if (Header.DEFAULT_ELEMENT_NAME.equals(childName)) {
+                headerElem = (Element) child;
+            } else if (Body.DEFAULT_ELEMENT_NAME.equals(childName)) {
+                bodyElem = (Element) child;
+            }
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        XMLStreamWriter writer = serializer.createStreamWriter(buffer);
+        writer.writeStartDocument("UTF-8", "1.0");
+        serializer.writeStartTag(writer, envelopeElem);
+        if (headerElem != null) {
+            serializer.writeStartTag(writer, headerElem);
+            serializer.writeChildren(writer, headerElem);
+            head = drain(writer, buffer);
+            writer.writeEndElement();
+            serializer.writeStartTag(writer, bodyElem);
+            headerToBody = drain(writer, buffer);
+        } else {
+            serializer.writeStartTag(writer, bodyElem);
+            head = drain(writer, buffer);
+            headerToBody = null;
+        }
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.close();
+        tail = buffer.toByteArray();
+
+        // the constant blocks are compared with a message's header blocks as the encoder marshalls those, that is
+        // each on its own, so re-marshall each prototype block the same way now that the template bytes are written
+        List<QName> headerNames = new ArrayList<QName>();
+        List<byte[]> headerBytes = new ArrayList<byte[]>();
+        if (prototype.getHeader() != null) {
+            for (XMLObject headerBlock : prototype.getHeader().getUnknownXMLObjects()) {
+                headerBlock.releaseDOM();
+                headerBlock.releaseChildrenDOM(true);
+                headerNames.add(headerBlock.getElementQName());
+                headerBytes.add(serialize(getMarshaller(headerBlock).marshall(headerBlock)));
+            }
+        }
+        constantHeaderNames = Collections.unmodifiableList(headerNames);
+        constantHeaderBytes = Collections.unmodifiableList(headerBytes);
+        constantHeaders = Collections.unmodifiableSet(new HashSet<QName>(headerNames));
+        matchedHeaders = Collections.synchronizedMap(new WeakHashMap<Element, Integer>());
+    }
+
+    /**
+     * Gets the names of the constant header blocks contained in this template.
+     * 
+     * @return names of the constant header blocks
+     */
+    public Set<QName> getConstantHeaders() {
+        return constantHeaders;
+    }
+
+    /**
+     * Checks whether the given envelope may be encoded with this template. This is the case if the envelope carries
+     * no attributes or content, other than its header blocks and body content, which would differ from the template,
+     * if its header blocks start with blocks of the same names as the constant header blocks and, if the template has
+     * no header, the envelope has no header blocks.
+     * 
+     * The values of the header blocks are only compared by {@link #getVariableHeaders(List)}, once they have been
+     * marshalled.
+     * 
+     * @param envelope the envelope to check
+     * 
+     * @return true if the envelope may be encoded with this template
+     */
+    public boolean isApplicable(Envelope envelope) {
+        if (!envelope.getUnknownAttributes().isEmpty() || !envelope.getUnknownXMLObjects().isEmpty()) {
+            return false;
+        }
+        if (envelope.getBody() == null || !envelope.getBody().getUnknownAttributes().isEmpty()) {
+            return false;
+        }
+        Header header = envelope.getHeader();
+        if (header == null) {
+            return constantHeaderNames.isEmpty();
+        }
+        if (!header.getUnknownAttributes().isEmpty()) {
+            return false;
+        }
+        List<XMLObject> headerBlocks = header.getUnknownXMLObjects();
+        if (headerToBody == null) {
+            return headerBlocks.isEmpty();
+        }
+        if (headerBlocks.size() < constantHeaderNames.size()) {
+            return false;
+        }
+        for (int i = 0; i < constantHeaderNames.size(); i++) {
+            if (!constantHeaderNames.get(i).equals(headerBlocks.get(i).getElementQName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the variable header blocks of a message, that is the blocks following its constant header blocks, after
+     * checking that each of the message's leading header blocks serializes to exactly the same bytes as the
+     * corresponding constant header block. A leading header block whose DOM has already been found to match is not
+     * serialized again.
+     * 
+     * @param headerBlocks all marshalled header blocks of the message, in document order, each marshalled on its own
+     * 
+     * @return the variable header blocks, or null if the message's leading header blocks differ from the constant
+     *         header blocks and so the message must not be encoded with this template
+     * 
+     * @throws XMLStreamException thrown if a header block can not be serialized
+     */
+    public List<Element> getVariableHeaders(List<Element> headerBlocks) throws XMLStreamException {
+        if (headerBlocks.size() < constantHeaderBytes.size()) {
+            return null;
+        }
+        Element headerBlock;
+        Integer matched;
+        for (int i = 0; i < constantHeaderBytes.size(); i++) {
+            headerBlock = headerBlocks.get(i);
+            matched = matchedHeaders.get(headerBlock);
+            if (matched != null && matched.intValue() == i) {
+                continue;
+            }
+            if (!Arrays.equals(constantHeaderBytes.get(i), serialize(headerBlock))) {
+                return null;
+            }
+            matchedHeaders.put(headerBlock, Integer.valueOf(i));
+        }
+        return headerBlocks.subList(constantHeaderBytes.size(), headerBlocks.size());
+    }
+
+    /**
+     * Writes a complete envelope, splicing the given marshalled header blocks and body content into the template.
+     * 
+     * @param variableHeaders the marshalled variable header blocks
+     * @param bodyContent the marshalled body content
+     * @param output the stream to write to, which should be buffered
+     * 
+     * @throws XMLStreamException thrown if the variable content can not be serialized
+     * @throws IOException thrown if the stream can not be written to
+     */
+    public void write(List<Element> variableHeaders, List<Element> bodyContent, OutputStream output)
+            throws XMLStreamException, IOException {
+        XMLStreamWriter writer = serializer.createStreamWriter(output);
+
+        output.write(head);
+        if (headerToBody != null) {
+            for (Element headerBlock : variableHeaders) {
+                serializer.writeNode(writer, headerBlock);
+            }
+            writer.flush();
+            output.write(headerToBody);
+        }
+        for (Element content : bodyContent) {
+            serializer.writeNode(writer, content);
+        }
+        writer.flush();
+        output.write(tail);
+        output.flush();
+    }
+
+    /**
+     * Gets the marshaller of an object, falling back to the default provider's marshaller, as marshalling a whole
+     * envelope does, if none is registered for it.
+     * 
+     * @param xmlObject the object
+     * 
+     * @return the marshaller
+     * 
+     * @throws MarshallingException thrown if there is no marshaller for the object
+     */
+    private Marshaller getMarshaller(XMLObject xmlObject) throws MarshallingException {
+        Marshaller marshaller = Configuration.getMarshallerFactory().getMarshaller(xmlObject);
+        if (marshaller == null) {
+            marshaller = Configuration.getMarshallerFactory().getMarshaller(Configuration.getDefaultProviderQName());
+        }
+        if (marshaller == null) {
+            throw new MarshallingException("No marshaller registered for " + xmlObject.getElementQName());
+        }
+        return marshaller;
+    }
+
+    /**
+     * Serializes an element on its own, without an XML declaration.
+     * 
+     * @param element the element to serialize
+     * 
+     * @return the serialized element
+     * 
+     * @throws XMLStreamException thrown if the element can not be serialized
+     */
+    private byte[] serialize(Element element) throws XMLStreamException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        XMLStreamWriter writer = serializer.createStreamWriter(buffer);
+        serializer.writeNode(writer, element);
+        writer.close();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Closes any open start tag and returns, and then clears, the bytes written so far.
+     * 
+     * @param writer the writer writing to the buffer
+     * @param buffer the buffer
+     * 
+     * @return the bytes written since the buffer was last drained
+     * 
+     * @throws XMLStreamException thrown if the writer can not be flushed
+     */
+    private byte[] drain(XMLStreamWriter writer, ByteArrayOutputStream buffer) throws XMLStreamException {
+        writer.writeCharacters("");
+        writer.flush();
+        byte[] bytes = buffer.toByteArray();
+        buffer.reset();
+        return bytes;
+    }
+}
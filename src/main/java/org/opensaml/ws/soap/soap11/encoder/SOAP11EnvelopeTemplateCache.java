@@ -0,0 +1,154 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.soap11.encoder;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.opensaml.ws.message.encoder.MessageEncodingException;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.xml.io.MarshallingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of {@link SOAP11EnvelopeTemplate}s keyed by communication profile ID and WS-Addressing action. Either part
+ * of the key may be null.
+ * 
+ * This class is safe for concurrent use.
+ */
+public class SOAP11EnvelopeTemplateCache {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(SOAP11EnvelopeTemplateCache.class);
+
+    /** Serializer used by the cached templates. */
+    private final SOAP11StreamingSerializer serializer;
+
+    /** Registered templates. */
+    private final ConcurrentMap<TemplateKey, SOAP11EnvelopeTemplate> templates;
+
+    /** Constructor. */
+    public SOAP11EnvelopeTemplateCache() {
+        serializer = new SOAP11StreamingSerializer();
+        templates = new ConcurrentHashMap<TemplateKey, SOAP11EnvelopeTemplate>();
+    }
+
+    /**
+     * Creates and registers a template from the given prototype, replacing any template already registered for the
+     * same communication profile and action.
+     * 
+     * @param communicationProfileId the communication profile ID, may be null
+     * @param action the WS-Addressing action, may be null
+     * @param prototype the prototype envelope, containing the constant header blocks and an empty body
+     * 
+     * @return the registered template
+     * 
+     * @throws MessageEncodingException thrown if the prototype can not be marshalled or serialized
+     */
+    public SOAP11EnvelopeTemplate registerTemplate(String communicationProfileId, String action, Envelope prototype)
+            throws MessageEncodingException {
+        SOAP11EnvelopeTemplate template;
+        try {
+            template = new SOAP11EnvelopeTemplate(prototype, serializer);
+        } catch (MarshallingException e) {
+            log.error("Unable to marshall SOAP envelope template prototype", e);
+            throw new MessageEncodingException("Unable to marshall SOAP envelope template prototype", e);
+        } catch (XMLStreamException e) {
+            log.error("Unable to serialize SOAP envelope template prototype", e);
+            throw new MessageEncodingException("Unable to serialize SOAP envelope template prototype", e);
+        }
+
+        log.debug("Registering SOAP envelope template for communication profile {} and action {}",
+                communicationProfileId, action);
+        templates.put(new TemplateKey(communicationProfileId, action), template);
+        return template;
+    }
+
+    /**
+     * Gets the template registered for the given communication profile and action.
+     * 
+     * @param communicationProfileId the communication profile ID, may be null
+     * @param action the WS-Addressing action, may be null
+     * 
+     * @return the registered template or null
+     */
+    public SOAP11EnvelopeTemplate getTemplate(String communicationProfileId, String action) {
+        return templates.get(new TemplateKey(communicationProfileId, action));
+    }
+
+    /**
+     * Removes the template registered for the given communication profile and action.
+     * 
+     * @param communicationProfileId the communication profile ID, may be null
+     * @param action the WS-Addressing action, may be null
+     * 
+     * @return the removed template or null
+     */
+    public SOAP11EnvelopeTemplate removeTemplate(String communicationProfileId, String action) {
+        return templates.remove(new TemplateKey(communicationProfileId, action));
+    }
+
+    /** Removes all registered templates. */
+    public void clear() {
+        templates.clear();
+    }
+
+    /** Cache key composed of a communication profile ID and an action. */
+    private static final class TemplateKey {
+
+        /** Communication profile ID. */
+        private final String communicationProfileId;
+
+        /** WS-Addressing action. */
+        private final String action;
+
+        /**
+         * Constructor.
+         * 
+         * @param profileId communication profile ID, may be null
+         * @param wsaAction WS-Addressing action, may be null
+         */
+        private TemplateKey(String profileId, String wsaAction) {
+            communicationProfileId = profileId;
+            action = wsaAction;
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            int hash = communicationProfileId == null ? 0 : communicationProfileId.hashCode();
+            return 31 * hash + (action == null ? 0 : action.hashCode());
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof TemplateKey)) {
+                return false;
+            }
+            TemplateKey other = (TemplateKey) obj;
+            return (communicationProfileId == null ? other.communicationProfileId == null
+                    : communicationProfileId.equals(other.communicationProfileId))
+                    && (action == null ? other.action == null : action.equals(other.action));
+        }
+    }
+}
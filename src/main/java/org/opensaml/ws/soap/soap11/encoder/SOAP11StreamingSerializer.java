@@ -0,0 +1,235 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.soap11.encoder;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.opensaml.xml.util.DatatypeHelper;
+import org.opensaml.xml.util.XMLConstants;
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * Serializes a marshalled DOM directly to a buffered UTF-8 stream with a StAX writer.
+ * 
+ * This avoids the identity transform performed by the DOM load and save serializer and coalesces the many small
+ * writes made during serialization into buffer sized writes to the underlying stream. Namespace declarations are
+ * written exactly as they appear on the DOM, which xmltooling marshallers always populate, so no namespace repairing
+ * is performed.
+ */
+public class SOAP11StreamingSerializer {
+
+    /** Size of the buffer placed in front of the output stream. */
+    public static final int BUFFER_SIZE = 8192;
+
+    /** Factory used to create stream writers. */
+    private final XMLOutputFactory outputFactory;
+
+    /** Constructor. */
+    public SOAP11StreamingSerializer() {
+        outputFactory = XMLOutputFactory.newInstance();
+        outputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.FALSE);
+    }
+
+    /**
+     * Serializes the given node, and its descendants, as a UTF-8 encoded document.
+     * 
+     * @param node the node to serialize
+     * @param output the stream to write to, which is flushed but not closed
+     * 
+     * @throws XMLStreamException thrown if the node can not be serialized
+     * @throws IOException thrown if the stream can not be written to
+     */
+    public void serialize(Node node, OutputStream output) throws XMLStreamException, IOException {
+        BufferedOutputStream bufferedOutput = new BufferedOutputStream(output, BUFFER_SIZE);
+        XMLStreamWriter writer = createStreamWriter(bufferedOutput);
+        writer.writeStartDocument("UTF-8", "1.0");
+        writeNode(writer, node);
+        writer.writeEndDocument();
+        writer.close();
+        bufferedOutput.flush();
+    }
+
+    /**
+     * Serializes the given node, and its descendants, as a UTF-8 encoded fragment without an XML declaration.
+     * 
+     * @param node the node to serialize
+     * @param output the stream to write to, which is flushed but not closed
+     * 
+     * @throws XMLStreamException thrown if the node can not be serialized
+     * @throws IOException thrown if the stream can not be written to
+     */
+    public void serializeFragment(Node node, OutputStream output) throws XMLStreamException, IOException {
+        BufferedOutputStream bufferedOutput = new BufferedOutputStream(output, BUFFER_SIZE);
+        XMLStreamWriter writer = createStreamWriter(bufferedOutput);
+        writeNode(writer, node);
+        writer.close();
+        bufferedOutput.flush();
+    }
+
+    /**
+     * Writes the given node, and its descendants, to the stream writer.
+     * 
+     * @param writer the writer to write to
+     * @param node the node to write
+     * 
+     * @throws XMLStreamException thrown if the node can not be written
+     */
+    protected void writeNode(XMLStreamWriter writer, Node node) throws XMLStreamException {
+        switch (node.getNodeType()) {
+            case Node.DOCUMENT_NODE:
+            case Node.DOCUMENT_FRAGMENT_NODE:
+                writeChildren(writer, node);
+                break;
+            case Node.ELEMENT_NODE:
+                writeElement(writer, node);
+                break;
+            case Node.TEXT_NODE:
+                writer.writeCharacters(node.getNodeValue());
+                break;
+            case Node.CDATA_SECTION_NODE:
+                writer.writeCData(node.getNodeValue());
+                break;
+            case Node.COMMENT_NODE:
+                writer.writeComment(node.getNodeValue());
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                ProcessingInstruction pi = (ProcessingInstruction) node;
+                writer.writeProcessingInstruction(pi.getTarget(), pi.getData());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Creates a UTF-8 stream writer over the given stream. The stream is not buffered by the writer.
+     * 
+     * @param output the stream to write to
+     * 
+     * @return the stream writer
+     * 
+     * @throws XMLStreamException thrown if the writer can not be created
+     */
+    protected XMLStreamWriter createStreamWriter(OutputStream output) throws XMLStreamException {
+        return outputFactory.createXMLStreamWriter(output, "UTF-8");
+    }
+
+    /**
+     * Writes an element, its namespace declarations, attributes and children.
+     * 
+     * @param writer the writer to write to
+     * @param element the element to write
+     * 
+     * @throws XMLStreamException thrown if the element can not be written
+     */
+    private void writeElement(XMLStreamWriter writer, Node element) throws XMLStreamException {
+        writeStartTag(writer, element);
+        writeChildren(writer, element);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Writes the start tag of an element, including its namespace declarations and attributes. The tag is left open
+     * for the writer to close when the next event is written.
+     * 
+     * @param writer the writer to write to
+     * @param element the element whose start tag is written
+     * 
+     * @throws XMLStreamException thrown if the start tag can not be written
+     */
+    protected void writeStartTag(XMLStreamWriter writer, Node element) throws XMLStreamException {
+        String prefix = emptyIfNull(element.getPrefix());
+        String namespaceURI = emptyIfNull(element.getNamespaceURI());
+        writer.writeStartElement(prefix, getLocalName(element), namespaceURI);
+
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (XMLConstants.XMLNS_NS.equals(attribute.getNamespaceURI())) {
+                if (XMLConstants.XMLNS_PREFIX.equals(attribute.getPrefix())) {
+                    writer.writeNamespace(attribute.getLocalName(), attribute.getValue());
+                } else {
+                    writer.writeDefaultNamespace(attribute.getValue());
+                }
+            }
+        }
+
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (XMLConstants.XMLNS_NS.equals(attribute.getNamespaceURI())) {
+                continue;
+            }
+            if (DatatypeHelper.isEmpty(attribute.getNamespaceURI())) {
+                writer.writeAttribute(getLocalName(attribute), attribute.getValue());
+            } else {
+                writer.writeAttribute(emptyIfNull(attribute.getPrefix()), attribute.getNamespaceURI(),
+                        getLocalName(attribute), attribute.getValue());
+            }
+        }
+    }
+
+    /**
+     * Writes each child of the given node.
+     * 
+     * @param writer the writer to write to
+     * @param node the node whose children are written
+     * 
+     * @throws XMLStreamException thrown if a child can not be written
+     */
+    protected void writeChildren(XMLStreamWriter writer, Node node) throws XMLStreamException {
+        Node child = node.getFirstChild();
+        while (child != null) {
+            writeNode(writer, child);
+            child = child.getNextSibling();
+        }
+    }
+
+    /**
+     * Gets the local name of a node, falling back to its node name for nodes created without namespace support.
+     * 
+     * @param node the node
+     * 
+     * @return the local name of the node
+     */
+    private String getLocalName(Node node) {
+        if (node.getLocalName() != null) {
+            return node.getLocalName();
+        }
+        return node.getNodeName();
+    }
+
+    /**
+     * Gets the given string, or the empty string if it is null.
+     * 
+     * @param value the string, may be null
+     * 
+     * @return the string, never null
+     */
+    private static String emptyIfNull(String value) {
+        return value == null ? "" : value;
+    }
+}
@@ -17,17 +17,12 @@
 
 package org.opensaml.ws.soap.soap11.encoder.http;
 
-import java.util.List;
-
 import org.opensaml.ws.message.MessageContext;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
 import org.opensaml.ws.soap.soap11.Envelope;
-import org.opensaml.ws.soap.soap11.Header;
 import org.opensaml.ws.soap.soap11.encoder.SOAP11Encoder;
 import org.opensaml.ws.transport.http.HTTPOutTransport;
 import org.opensaml.ws.transport.http.HTTPTransportUtils;
-import org.opensaml.ws.wsaddressing.Action;
-import org.opensaml.xml.XMLObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -104,17 +99,7 @@ public class HTTPSOAP11Encoder extends SOAP11Encoder {
      * @return a SOAPAction HTTP header URI value
      */
     protected String getSOAPAction(MessageContext messageContext) {
-        Envelope env = (Envelope) messageContext.getOutboundMessage();
-        Header header = env.getHeader();
-        if (header == null) {
-            return null;
-        }
-        List<XMLObject> objList = header.getUnknownXMLObjects(Action.ELEMENT_NAME);
-        if (objList == null || objList.isEmpty()) {
-            return null;
-        } else {
-            return ((Action)objList.get(0)).getValue();
-        }
+        return getWSAddressingAction((Envelope) messageContext.getOutboundMessage());
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.util.storage;
+
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.opensaml.util.storage.BoundedMapBasedStorageService.PartitionStatistics;
+
+/**
+ * Tests for {@link BoundedMapBasedStorageService}.
+ */
+public class BoundedMapBasedStorageServiceTest extends TestCase {
+
+    /**
+     * Test that a partition never exceeds its capacity and evicts the least recently used entry.
+     */
+    public void testLeastRecentlyUsedEviction() {
+        BoundedMapBasedStorageService<String, String> storageService =
+                new BoundedMapBasedStorageService<String, String>(2);
+        storageService.put("partition", "a", "a");
+        storageService.put("partition", "b", "b");
+        storageService.get("partition", "a");
+        storageService.put("partition", "c", "c");
+
+        assertTrue(storageService.contains("partition", "a"));
+        assertFalse(storageService.contains("partition", "b"));
+        assertTrue(storageService.contains("partition", "c"));
+
+        PartitionStatistics statistics = storageService.getStatistics("partition");
+        assertEquals(2, statistics.getSize());
+        assertEquals(1, statistics.getEvictionCount());
+        assertEquals(1, statistics.getUnexpiredEvictionCount());
+    }
+
+    /**
+     * Test per-partition capacities and hit rate accounting.
+     */
+    public void testStatistics() {
+        BoundedMapBasedStorageService<String, String> storageService =
+                new BoundedMapBasedStorageService<String, String>(10);
+        storageService.setPartitionCapacity("small", 1);
+        storageService.put("small", "a", "a");
+        storageService.put("small", "b", "b");
+        storageService.get("small", "a");
+        storageService.get("small", "b");
+
+        PartitionStatistics statistics = storageService.getStatistics("small");
+        assertEquals(1, statistics.getCapacity());
+        assertEquals(1, statistics.getHitCount());
+        assertEquals(1, statistics.getMissCount());
+        assertEquals(0.5, statistics.getHitRate(), 0.0001);
+        assertNull(storageService.getStatistics("missing"));
+    }
+
+    /**
+     * Test that replay checks, which only use put-if-absent, are counted as hits and misses.
+     */
+    public void testReplayCheckStatistics() {
+        BoundedMapBasedStorageService<String, ReplayCacheEntry> storageService =
+                new BoundedMapBasedStorageService<String, ReplayCacheEntry>(10);
+        ReplayCache replayCache = new ReplayCache(storageService, 60000);
+        assertFalse(replayCache.isReplay("test", "abc123"));
+        assertTrue(replayCache.isReplay("test", "abc123"));
+        assertFalse(replayCache.isReplay("test", "def456"));
+
+        storageService.put("replay", "expired", new ReplayCacheEntry("expired", System.currentTimeMillis() - 1000));
+        assertNull(storageService.putIfAbsent("replay", "expired", new ReplayCacheEntry("expired", System
+                .currentTimeMillis() + 60000), 0));
+
+        PartitionStatistics statistics = storageService.getStatistics("replay");
+        assertEquals(1, statistics.getHitCount());
+        assertEquals(3, statistics.getMissCount());
+    }
+
+    /**
+     * Test that expired entries are evicted silently and that a fail-closed store rejects puts when only unexpired
+     * entries remain.
+     */
+    public void testFailClosed() {
+        BoundedMapBasedStorageService<String, ReplayCacheEntry> storageService =
+                new BoundedMapBasedStorageService<String, ReplayCacheEntry>(1, false);
+        long now = System.currentTimeMillis();
+        storageService.put("replay", "expired", new ReplayCacheEntry("expired", now - 1000));
+        storageService.put("replay", "valid", new ReplayCacheEntry("valid", now + 60000));
+        assertEquals(0, storageService.getStatistics("replay").getUnexpiredEvictionCount());
+
+        try {
+            storageService.put("replay", "other", new ReplayCacheEntry("other", now + 60000));
+            fail("Full partition should have rejected the put");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(storageService.contains("replay", "valid"));
+    }
+
+    /**
+     * Test that a fail-closed store evicts expired entries which are not the least recently used before rejecting a
+     * put.
+     */
+    public void testFailClosedEvictsExpired() {
+        BoundedMapBasedStorageService<String, ReplayCacheEntry> storageService =
+                new BoundedMapBasedStorageService<String, ReplayCacheEntry>(2, false);
+        long now = System.currentTimeMillis();
+        storageService.put("replay", "valid", new ReplayCacheEntry("valid", now + 60000));
+        storageService.put("replay", "expired", new ReplayCacheEntry("expired", now - 1000));
+        assertNull(storageService.putIfAbsent("replay", "other", new ReplayCacheEntry("other", now + 60000), 0));
+
+        assertTrue(storageService.contains("replay", "valid"));
+        assertFalse(storageService.contains("replay", "expired"));
+        assertTrue(storageService.contains("replay", "other"));
+        assertEquals(1, storageService.getStatistics("replay").getEvictionCount());
+        assertEquals(0, storageService.getStatistics("replay").getUnexpiredEvictionCount());
+    }
+
+    /**
+     * Test that a large partition split into segments still holds its full capacity.
+     */
+    public void testSegmentedCapacity() {
+        int capacity = BoundedMapBasedStorageService.MAX_SEGMENTS * BoundedMapBasedStorageService.MIN_SEGMENT_CAPACITY
+                * 2;
+        BoundedMapBasedStorageService<String, String> storageService =
+                new BoundedMapBasedStorageService<String, String>(capacity);
+        for (int i = 0; i < capacity * 2; i++) {
+            storageService.put("partition", "key" + i, "value" + i);
+        }
+
+        PartitionStatistics statistics = storageService.getStatistics("partition");
+        assertEquals(capacity, statistics.getSize());
+        assertEquals(capacity, statistics.getEvictionCount());
+        assertTrue(storageService.contains("partition", "key" + (capacity * 2 - 1)));
+    }
+
+    /**
+     * Test removal through the key iterator, as used by the sweeper.
+     */
+    public void testKeyIteratorRemove() {
+        BoundedMapBasedStorageService<String, String> storageService =
+                new BoundedMapBasedStorageService<String, String>(10);
+        storageService.put("partition", "a", "a");
+        storageService.put("partition", "b", "b");
+
+        Iterator<String> keys = storageService.getKeys("partition");
+        while (keys.hasNext()) {
+            if ("a".equals(keys.next())) {
+                keys.remove();
+            }
+        }
+        assertFalse(storageService.contains("partition", "a"));
+        assertTrue(storageService.contains("partition", "b"));
+    }
+}
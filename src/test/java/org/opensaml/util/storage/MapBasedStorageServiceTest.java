@@ -0,0 +1,148 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.util.storage;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link MapBasedStorageService}.
+ */
+public class MapBasedStorageServiceTest extends TestCase {
+
+    /**
+     * Test that concurrent writers creating and filling many partitions lose no entries.
+     * 
+     * @throws InterruptedException
+     */
+    public void testConcurrentPartitionCreation() throws InterruptedException {
+        final MapBasedStorageService<String, String> storageService = new MapBasedStorageService<String, String>();
+        final int threadCount = 8;
+        final int partitionCount = 32;
+        final int entriesPerPartition = 100;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final String writer = "writer" + i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int entry = 0; entry < entriesPerPartition; entry++) {
+                        for (int partition = 0; partition < partitionCount; partition++) {
+                            storageService.put("partition" + partition, writer + entry, writer);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int partition = 0; partition < partitionCount; partition++) {
+            for (int i = 0; i < threadCount; i++) {
+                for (int entry = 0; entry < entriesPerPartition; entry++) {
+                    assertTrue(storageService.contains("partition" + partition, "writer" + i + entry));
+                }
+            }
+        }
+    }
+
+    /**
+     * Test a store backed by a map without atomic operations.
+     */
+    public void testNonConcurrentBackingMap() {
+        MapBasedStorageService<String, String> storageService = new MapBasedStorageService<String, String>(
+                new HashMap<String, Map<String, String>>()) {
+        };
+        assertNull(storageService.put("partition", "key", "value"));
+        assertEquals("value", storageService.put("partition", "key", "other"));
+        assertEquals("other", storageService.get("partition", "key"));
+        assertEquals("other", storageService.remove("partition", "key"));
+        assertFalse(storageService.contains("partition", "key"));
+    }
+
+    /**
+     * Test the batch operations.
+     */
+    public void testBatchOperations() {
+        MapBasedStorageService<String, String> storageService = new MapBasedStorageService<String, String>();
+        Map<String, String> entries = new HashMap<String, String>();
+        entries.put("a", "1");
+        entries.put("b", "2");
+        storageService.putAll("partition", entries);
+
+        Map<String, String> values = storageService.getAll("partition", Arrays.asList("a", "b", "c"));
+        assertEquals(entries, values);
+
+        storageService.removeAll("partition", Arrays.asList("a", "c"));
+        assertFalse(storageService.contains("partition", "a"));
+        assertTrue(storageService.contains("partition", "b"));
+        assertTrue(storageService.getAll("missing", Arrays.asList("a")).isEmpty());
+    }
+
+    /**
+     * Test that put-if-absent keeps unexpired values and replaces expired ones.
+     */
+    public void testPutIfAbsent() {
+        MapBasedStorageService<String, ReplayCacheEntry> storageService =
+                new MapBasedStorageService<String, ReplayCacheEntry>();
+        long now = System.currentTimeMillis();
+        ReplayCacheEntry valid = new ReplayCacheEntry("valid", now + 60000);
+
+        assertNull(storageService.putIfAbsent("replay", "valid", valid, 60000));
+        assertSame(valid, storageService.putIfAbsent("replay", "valid", new ReplayCacheEntry("valid", now + 60000),
+                60000));
+
+        storageService.put("replay", "expired", new ReplayCacheEntry("expired", now - 1000));
+        ReplayCacheEntry replacement = new ReplayCacheEntry("expired", now + 60000);
+        assertNull(storageService.putIfAbsent("replay", "expired", replacement, 60000));
+        assertSame(replacement, storageService.get("replay", "expired"));
+    }
+
+    /**
+     * Test that a conditional remove only removes the expected value.
+     */
+    public void testConditionalRemove() {
+        MapBasedStorageService<String, ReplayCacheEntry> storageService =
+                new MapBasedStorageService<String, ReplayCacheEntry>();
+        long now = System.currentTimeMillis();
+        ReplayCacheEntry expired = new ReplayCacheEntry("message", now - 1000);
+        ReplayCacheEntry fresh = new ReplayCacheEntry("message", now + 60000);
+
+        storageService.put("replay", "message", fresh);
+        assertFalse(storageService.remove("replay", "message", expired));
+        assertSame(fresh, storageService.get("replay", "message"));
+
+        assertTrue(storageService.remove("replay", "message", new ReplayCacheEntry("message", now + 60000)));
+        assertFalse(storageService.contains("replay", "message"));
+        assertFalse(storageService.remove("missing", "message", fresh));
+    }
+}
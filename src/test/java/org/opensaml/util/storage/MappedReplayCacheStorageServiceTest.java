@@ -0,0 +1,401 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.util.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+
+/**
+ * Tests for {@link MappedReplayCacheStorageService}.
+ */
+public class MappedReplayCacheStorageServiceTest extends TestCase {
+
+    private File cacheFile;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        cacheFile = File.createTempFile("replay", ".cache");
+        cacheFile.delete();
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        cacheFile.delete();
+
+        super.tearDown();
+    }
+
+    /**
+     * Test basic put, get and remove operations.
+     */
+    public void testPutGetRemove() {
+        MappedReplayCacheStorageService storageService = new MappedReplayCacheStorageService(100);
+        DateTime expiration = new DateTime().plus(60000);
+
+        assertNull(storageService.put("replay", "key", new ReplayCacheEntry("key", expiration)));
+        assertTrue(storageService.contains("replay", "key"));
+        assertFalse(storageService.contains("other", "key"));
+
+        ReplayCacheEntry entry = storageService.get("replay", "key");
+        assertEquals("key", entry.getMessageId());
+        assertEquals(expiration.getMillis(), entry.getExpirationTime().getMillis());
+
+        assertNotNull(storageService.remove("replay", "key"));
+        assertFalse(storageService.contains("replay", "key"));
+        assertNull(storageService.get("replay", "key"));
+    }
+
+    /**
+     * Test that entries survive closing and reopening the backing file.
+     * 
+     * @throws IOException
+     */
+    public void testReload() throws IOException {
+        MappedReplayCacheStorageService storageService = new MappedReplayCacheStorageService(cacheFile, 100);
+        ReplayCache replayCache = new ReplayCache(storageService, 60000);
+        assertFalse(replayCache.isReplay("test", "abc123"));
+        storageService.close();
+
+        storageService = new MappedReplayCacheStorageService(cacheFile, 10);
+        assertEquals("Capacity should be read from the file", 256, storageService.getCapacity());
+        replayCache = new ReplayCache(storageService, 60000);
+        assertTrue("Replay should be detected after reload", replayCache.isReplay("test", "abc123"));
+        storageService.close();
+    }
+
+    /**
+     * Test that a file which is not a replay cache file is rejected.
+     * 
+     * @throws IOException
+     */
+    public void testInvalidFile() throws IOException {
+        FileOutputStream out = new FileOutputStream(cacheFile);
+        out.write(new byte[64]);
+        out.close();
+
+        try {
+            new MappedReplayCacheStorageService(cacheFile, 100);
+            fail("Invalid file should have been rejected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that an open file can not be opened by a second instance until it is closed.
+     * 
+     * @throws IOException
+     */
+    public void testFileLocked() throws IOException {
+        MappedReplayCacheStorageService storageService = new MappedReplayCacheStorageService(cacheFile, 100);
+        try {
+            new MappedReplayCacheStorageService(cacheFile, 100);
+            fail("Open file should have been rejected");
+        } catch (IOException e) {
+            // expected
+        }
+        storageService.close();
+
+        storageService = new MappedReplayCacheStorageService(cacheFile, 100);
+        storageService.close();
+    }
+
+    /**
+     * Test that removing entries keeps the remaining entries of a crowded table reachable.
+     */
+    public void testRemoveKeepsEntries() {
+        MappedReplayCacheStorageService storageService = new MappedReplayCacheStorageService(10);
+        int entries = storageService.getCapacity() - storageService.getCapacity() / 4 - 1;
+        DateTime valid = new DateTime().plus(60000);
+
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < entries; i++) {
+                storageService.put("replay", round + "-" + i, new ReplayCacheEntry(round + "-" + i, valid));
+            }
+            for (int i = 0; i < entries; i += 2) {
+                assertNotNull(storageService.remove("replay", round + "-" + i));
+            }
+            for (int i = 0; i < entries; i++) {
+                assertEquals(i % 2 == 1, storageService.contains("replay", round + "-" + i));
+            }
+            for (int i = 1; i < entries; i += 2) {
+                assertNotNull(storageService.remove("replay", round + "-" + i));
+            }
+            assertEquals(0, storageService.getSize());
+        }
+    }
+
+    /**
+     * Test that expired slots are reclaimed and that a table full of unexpired entries rejects further puts.
+     */
+    public void testCapacity() {
+        MappedReplayCacheStorageService storageService = new MappedReplayCacheStorageService(10);
+        int capacity = storageService.getCapacity();
+
+        DateTime expired = new DateTime().minus(1000);
+        for (int i = 0; i < capacity * 4; i++) {
+            storageService.put("replay", "expired" + i, new ReplayCacheEntry("expired" + i, expired));
+        }
+
+        DateTime valid = new DateTime().plus(60000);
+        try {
+            for (int i = 0; i < capacity; i++) {
+                storageService.put("replay", "valid" + i, new ReplayCacheEntry("valid" + i, valid));
+            }
+            fail("Full table should have rejected the put");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(storageService.contains("replay", "valid0"));
+    }
+
+    /**
+     * Test the replay check.
+     */
+    public void testCheckAndPut() {
+        MappedReplayCacheStorageService storageService = new MappedReplayCacheStorageService(100);
+        long now = System.currentTimeMillis();
+
+        assertFalse(storageService.checkAndPut("replay", "test", "abc123", now + 60000));
+        assertTrue(storageService.checkAndPut("replay", "test", "abc123", now + 60000));
+        assertTrue("Split key should hash like the concatenated key", storageService.contains("replay", "testabc123"));
+
+        assertFalse(storageService.checkAndPut("replay", "test", "expired", now - 1000));
+        assertFalse("Expired entry should not be a replay", storageService.checkAndPut("replay", "test", "expired",
+                now + 60000));
+    }
+
+    /**
+     * Test that the replay check allocates nothing, measured with the thread's allocated byte count. The test passes
+     * trivially on a JVM that does not provide that count.
+     */
+    public void testCheckAndPutAllocation() {
+        com.sun.management.ThreadMXBean allocationBean = getAllocationBean();
+        if (allocationBean == null) {
+            return;
+        }
+        long threadId = Thread.currentThread().getId();
+
+        int checks = 10000;
+        MappedReplayCacheStorageService storageService = new MappedReplayCacheStorageService(checks * 2);
+        String[] messageIds = new String[checks * 2];
+        for (int i = 0; i < messageIds.length; i++) {
+            messageIds[i] = "message" + i;
+        }
+        long expiration = System.currentTimeMillis() + 60000;
+        for (int i = checks; i < messageIds.length; i++) {
+            storageService.checkAndPut("replay", "test", messageIds[i], expiration);
+        }
+
+        long overhead = allocationBean.getThreadAllocatedBytes(threadId);
+        overhead = allocationBean.getThreadAllocatedBytes(threadId) - overhead;
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < checks; i++) {
+            storageService.checkAndPut("replay", "test", messageIds[i], expiration);
+            storageService.checkAndPut("replay", "test", messageIds[i], expiration);
+        }
+        allocated = allocationBean.getThreadAllocatedBytes(threadId) - allocated - overhead;
+
+        // a single object per check would amount to at least 16 bytes per check
+        assertTrue("Replay checks allocated " + allocated + " bytes", allocated < checks);
+    }
+
+    /**
+     * Test that a large table is divided into segments and that their entries survive closing and reopening the
+     * backing file.
+     * 
+     * @throws IOException
+     */
+    public void testSegmentedReload() throws IOException {
+        assertEquals(1, new MappedReplayCacheStorageService(100).getSegmentCount());
+
+        MappedReplayCacheStorageService storageService = new MappedReplayCacheStorageService(cacheFile, 100000);
+        assertEquals(MappedReplayCacheStorageService.MAX_SEGMENTS, storageService.getSegmentCount());
+        long expiration = System.currentTimeMillis() + 60000;
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(storageService.checkAndPut("replay", "test", "message" + i, expiration));
+        }
+        assertEquals(1000, storageService.getSize());
+        storageService.close();
+
+        storageService = new MappedReplayCacheStorageService(cacheFile, 10);
+        assertEquals(262144, storageService.getCapacity());
+        assertEquals(MappedReplayCacheStorageService.MAX_SEGMENTS, storageService.getSegmentCount());
+        assertEquals(1000, storageService.getSize());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(storageService.checkAndPut("replay", "test", "message" + i, expiration));
+        }
+        storageService.close();
+    }
+
+    /**
+     * Test that a file of the first format version, without segments, is loaded and kept in its own layout.
+     * 
+     * @throws IOException
+     */
+    public void testUnsegmentedFile() throws IOException {
+        int capacity = 16;
+        RandomAccessFile file = new RandomAccessFile(cacheFile, "rw");
+        file.writeInt(0x4F575243);
+        file.writeInt(1);
+        file.writeInt(capacity);
+        file.writeInt(0);
+        file.write(new byte[MappedReplayCacheStorageService.HEADER_SIZE - 16 + capacity
+                * MappedReplayCacheStorageService.SLOT_SIZE]);
+        file.close();
+        long length = cacheFile.length();
+
+        MappedReplayCacheStorageService storageService = new MappedReplayCacheStorageService(cacheFile, 100);
+        assertEquals(capacity, storageService.getCapacity());
+        assertEquals(1, storageService.getSegmentCount());
+        assertFalse(storageService.checkAndPut("replay", "test", "abc123", System.currentTimeMillis() + 60000));
+        storageService.close();
+        assertEquals(length, cacheFile.length());
+
+        storageService = new MappedReplayCacheStorageService(cacheFile, 100);
+        assertTrue(storageService.checkAndPut("replay", "test", "abc123", System.currentTimeMillis() + 60000));
+        assertEquals(1, storageService.getSize());
+        storageService.close();
+    }
+
+    /**
+     * Test that concurrent replay checks of the same message IDs, spread over all segments, report each message ID as
+     * new exactly once.
+     * 
+     * @throws Exception
+     */
+    public void testConcurrentCheckAndPut() throws Exception {
+        final int threads = 8;
+        final int checks = 20000;
+        final MappedReplayCacheStorageService storageService = new MappedReplayCacheStorageService(checks * 4);
+        assertTrue(storageService.getSegmentCount() > 1);
+        final String[] messageIds = new String[checks];
+        for (int i = 0; i < checks; i++) {
+            messageIds[i] = "message" + i;
+        }
+        final long expiration = System.currentTimeMillis() + 60000;
+        final AtomicIntegerArray firstSeen = new AtomicIntegerArray(checks);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(new Callable<Object>() {
+                    public Object call() {
+                        for (int i = 0; i < checks; i++) {
+                            if (!storageService.checkAndPut("replay", "test", messageIds[i], expiration)) {
+                                firstSeen.incrementAndGet(i);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (int i = 0; i < checks; i++) {
+            assertEquals("Message " + i + " reported as new", 1, firstSeen.get(i));
+        }
+        assertEquals(checks, storageService.getSize());
+    }
+
+    /**
+     * Test the heap allocated while storing replay state, measured with the thread's allocated byte count, against
+     * that allocated by a {@link MapBasedStorageService} holding the same entries. Both stores are handed the same,
+     * previously allocated, keys and entries, so only the storage structures themselves are measured. The test passes
+     * trivially on a JVM that does not provide that count.
+     */
+    public void testHeapAllocation() {
+        com.sun.management.ThreadMXBean allocationBean = getAllocationBean();
+        if (allocationBean == null) {
+            return;
+        }
+        long threadId = Thread.currentThread().getId();
+
+        int entries = 10000;
+        long expiration = System.currentTimeMillis() + 60000;
+        String[] messageIds = new String[entries];
+        ReplayCacheEntry[] values = new ReplayCacheEntry[entries];
+        for (int i = 0; i < entries; i++) {
+            messageIds[i] = "message" + i;
+            values[i] = new ReplayCacheEntry(messageIds[i], expiration);
+        }
+        MappedReplayCacheStorageService mappedService = new MappedReplayCacheStorageService(entries);
+        MapBasedStorageService<String, ReplayCacheEntry> mapService =
+                new MapBasedStorageService<String, ReplayCacheEntry>();
+
+        long overhead = allocationBean.getThreadAllocatedBytes(threadId);
+        overhead = allocationBean.getThreadAllocatedBytes(threadId) - overhead;
+
+        long mapped = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < entries; i++) {
+            mappedService.checkAndPut("replay", "test", messageIds[i], expiration);
+        }
+        mapped = allocationBean.getThreadAllocatedBytes(threadId) - mapped - overhead;
+
+        long mapBased = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < entries; i++) {
+            mapService.putIfAbsent("replay", messageIds[i], values[i], 60000);
+        }
+        mapBased = allocationBean.getThreadAllocatedBytes(threadId) - mapBased - overhead;
+
+        // a hash map entry alone amounts to at least 24 bytes per entry
+        assertTrue("Mapped store allocated " + mapped + " bytes for " + entries + " entries", mapped < entries);
+        assertTrue("Map based store allocated only " + mapBased + " bytes for " + entries + " entries",
+                mapBased > entries * 24L);
+    }
+
+    /**
+     * Gets the bean providing the heap allocated by a thread.
+     * 
+     * @return the bean, or null if the JVM does not provide or has disabled the allocated byte count
+     */
+    private com.sun.management.ThreadMXBean getAllocationBean() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        if (!allocationBean.isThreadAllocatedMemorySupported() || !allocationBean.isThreadAllocatedMemoryEnabled()) {
+            return null;
+        }
+        return allocationBean;
+    }
+}
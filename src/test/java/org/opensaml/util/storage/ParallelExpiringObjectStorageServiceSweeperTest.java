@@ -0,0 +1,111 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.util.storage;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link ParallelExpiringObjectStorageServiceSweeper}.
+ */
+public class ParallelExpiringObjectStorageServiceSweeperTest extends TestCase {
+
+    private Timer timer;
+
+    private ExecutorService executor;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        timer = new Timer(true);
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        timer.cancel();
+        executor.shutdownNow();
+
+        super.tearDown();
+    }
+
+    /**
+     * Test that expired entries are removed from every partition and that the sweep is reported.
+     * 
+     * @throws InterruptedException
+     */
+    public void testSweep() throws InterruptedException {
+        MapBasedStorageService<String, ReplayCacheEntry> storageService =
+                new MapBasedStorageService<String, ReplayCacheEntry>();
+        long now = System.currentTimeMillis();
+        for (int partition = 0; partition < 4; partition++) {
+            for (int i = 0; i < 1000; i++) {
+                storageService.put("partition" + partition, "expired" + i, new ReplayCacheEntry("expired" + i,
+                        now - 1000));
+                storageService.put("partition" + partition, "valid" + i, new ReplayCacheEntry("valid" + i,
+                        now + 60000));
+            }
+        }
+
+        ParallelExpiringObjectStorageServiceSweeper sweeper = new ParallelExpiringObjectStorageServiceSweeper(timer,
+                60000, storageService, null, executor, 1);
+        sweeper.run();
+        for (int i = 0; i < 100 && sweeper.isSweeping(); i++) {
+            Thread.sleep(50);
+        }
+
+        assertFalse(sweeper.isSweeping());
+        assertEquals(4000, sweeper.getLastSweepRemovedCount());
+        for (int partition = 0; partition < 4; partition++) {
+            assertFalse(storageService.contains("partition" + partition, "expired0"));
+            assertTrue(storageService.contains("partition" + partition, "valid0"));
+        }
+    }
+
+    /**
+     * Test that an expired entry replaced by a replay check after the sweeper read it is not removed.
+     */
+    public void testReplacedEntryNotSwept() {
+        final long now = System.currentTimeMillis();
+        final ReplayCacheEntry fresh = new ReplayCacheEntry("message", now + 60000);
+        MapBasedStorageService<String, ReplayCacheEntry> storageService =
+                new MapBasedStorageService<String, ReplayCacheEntry>() {
+                    public Map<String, ReplayCacheEntry> getAll(String partition, Collection<String> keys) {
+                        Map<String, ReplayCacheEntry> values = super.getAll(partition, keys);
+                        // a replay check reuses the expired entry's key between the sweeper's read and its removal
+                        assertNull(putIfAbsent(partition, "message", fresh, 60000));
+                        return values;
+                    }
+                };
+        storageService.put("replay", "message", new ReplayCacheEntry("message", now - 1000));
+        storageService.put("replay", "expired", new ReplayCacheEntry("expired", now - 1000));
+
+        List<Object> keys = Arrays.<Object> asList("message", "expired");
+        assertEquals(1, ExpiringObjectStorageServiceSweeper.removeExpired(storageService, "replay", keys));
+        assertSame(fresh, storageService.get("replay", "message"));
+        assertFalse(storageService.contains("replay", "expired"));
+    }
+}
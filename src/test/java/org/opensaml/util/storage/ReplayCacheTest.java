@@ -17,6 +17,9 @@
 
 package org.opensaml.util.storage;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import junit.framework.TestCase;
 
 
@@ -80,4 +83,50 @@ public class ReplayCacheTest extends TestCase {
         assertFalse("Message was not replay, previous cache entry should have expired", replayCache.isReplay("test",
                 messageID));
     }
-}
\ No newline at end of file
+
+    /**
+     * Test that concurrent checks of the same message ID report exactly one non-replay.
+     * 
+     * @throws InterruptedException
+     */
+    public void testConcurrentReplay() throws InterruptedException {
+        final ReplayCache replayCache = new ReplayCache(storageEngine, 10000);
+        final int threadCount = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger accepted = new AtomicInteger();
+
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (!replayCache.isReplay("test", messageID)) {
+                        accepted.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("Exactly one check should have accepted the message", 1, accepted.get());
+    }
+
+    /**
+     * Test that a message which a full, fail-closed storage service can not record is reported as a replay.
+     */
+    public void testFullStorageReportsReplay() {
+        ReplayCache replayCache = new ReplayCache(new BoundedMapBasedStorageService<String, ReplayCacheEntry>(1,
+                false), 60000);
+        assertFalse(replayCache.isReplay("test", messageID));
+        assertTrue("Unrecorded message should be reported as a replay", replayCache.isReplay("test", "other"));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.util.storage;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+
+/**
+ * Tests for {@link TimeBucketedStorageService}.
+ */
+public class TimeBucketedStorageServiceTest extends TestCase {
+
+    private TimeBucketedStorageService<String, ReplayCacheEntry> storageService;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        storageService = new TimeBucketedStorageService<String, ReplayCacheEntry>(10);
+    }
+
+    /**
+     * Test that only expired entries are evicted.
+     */
+    public void testEvictExpired() {
+        storageService.put("replay", "expired", new ReplayCacheEntry("expired", new DateTime().minus(1000)));
+        storageService.put("replay", "valid", new ReplayCacheEntry("valid", new DateTime().plus(60000)));
+
+        storageService.evictExpired("replay");
+        assertFalse(storageService.contains("replay", "expired"));
+        assertTrue(storageService.contains("replay", "valid"));
+    }
+
+    /**
+     * Test that an entry replaced by one expiring later is not evicted with its old bucket.
+     * 
+     * @throws InterruptedException
+     */
+    public void testReplacedEntryNotEvicted() throws InterruptedException {
+        storageService.put("replay", "key", new ReplayCacheEntry("key", new DateTime().plus(20)));
+        ReplayCacheEntry replacement = new ReplayCacheEntry("key", new DateTime().plus(60000));
+        storageService.put("replay", "key", replacement);
+        Thread.sleep(50);
+
+        assertEquals(0, storageService.evictExpired("replay"));
+        assertSame(replacement, storageService.get("replay", "key"));
+    }
+
+    /**
+     * Test that writes evict expired entries without a sweeper.
+     * 
+     * @throws InterruptedException
+     */
+    public void testEvictionOnWrite() throws InterruptedException {
+        storageService.put("replay", "shortLived", new ReplayCacheEntry("shortLived", new DateTime().plus(5)));
+        Thread.sleep(50);
+        storageService.put("replay", "other", new ReplayCacheEntry("other", new DateTime().plus(60000)));
+
+        assertFalse(storageService.contains("replay", "shortLived"));
+        assertTrue(storageService.contains("replay", "other"));
+    }
+
+    /**
+     * Test the store as the backing store of a replay cache.
+     * 
+     * @throws InterruptedException
+     */
+    public void testReplayCache() throws InterruptedException {
+        ReplayCache replayCache = new ReplayCache(storageService, 10000);
+        assertFalse(replayCache.isReplay("test", "abc123"));
+        assertTrue(replayCache.isReplay("test", "abc123"));
+
+        replayCache = new ReplayCache(storageService, "shortLived", 5);
+        assertFalse(replayCache.isReplay("test", "abc123"));
+        Thread.sleep(50);
+        assertFalse(replayCache.isReplay("test", "abc123"));
+    }
+}
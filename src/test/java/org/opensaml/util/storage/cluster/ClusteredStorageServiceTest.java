@@ -0,0 +1,213 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.util.storage.cluster;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.TestCase;
+
+import org.opensaml.util.storage.MapBasedStorageService;
+import org.opensaml.util.storage.ReplayCache;
+import org.opensaml.util.storage.ReplayCacheEntry;
+
+/**
+ * Tests for {@link ClusteredStorageService} over an in-process cluster.
+ */
+public class ClusteredStorageServiceTest extends TestCase {
+
+    private Map<String, ClusterStorageNode<String, ReplayCacheEntry>> nodes;
+
+    private Map<String, LocalClusterTransport<String, ReplayCacheEntry>> transports;
+
+    private Map<String, ClusteredStorageService<String, ReplayCacheEntry>> services;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        nodes = new ConcurrentHashMap<String, ClusterStorageNode<String, ReplayCacheEntry>>();
+        transports = new HashMap<String, LocalClusterTransport<String, ReplayCacheEntry>>();
+        services = new HashMap<String, ClusteredStorageService<String, ReplayCacheEntry>>();
+
+        for (String nodeId : new String[] {"node1", "node2", "node3"}) {
+            nodes.put(nodeId, new ClusterStorageNode<String, ReplayCacheEntry>(
+                    new MapBasedStorageService<String, ReplayCacheEntry>()));
+        }
+        for (String nodeId : nodes.keySet()) {
+            LocalClusterTransport<String, ReplayCacheEntry> transport =
+                    new LocalClusterTransport<String, ReplayCacheEntry>(nodeId, nodes);
+            transports.put(nodeId, transport);
+            services.put(nodeId, new ClusteredStorageService<String, ReplayCacheEntry>(transport, nodes.get(nodeId)));
+        }
+    }
+
+    /**
+     * Test that a message accepted on one node is detected as a replay on every other node.
+     */
+    public void testCrossNodeReplay() {
+        ReplayCache cache1 = new ReplayCache(services.get("node1"), 60000);
+        ReplayCache cache2 = new ReplayCache(services.get("node2"), 60000);
+        ReplayCache cache3 = new ReplayCache(services.get("node3"), 60000);
+
+        for (int i = 0; i < 50; i++) {
+            assertFalse(cache1.isReplay("test", "message" + i));
+            assertTrue(cache2.isReplay("test", "message" + i));
+            assertTrue(cache3.isReplay("test", "message" + i));
+        }
+    }
+
+    /**
+     * Test that a replay check outside of a membership transition costs at most one round trip.
+     */
+    public void testSingleRoundTrip() {
+        LocalClusterTransport<String, ReplayCacheEntry> transport = transports.get("node1");
+        ReplayCache cache = new ReplayCache(new ClusteredStorageService<String, ReplayCacheEntry>(transport, nodes
+                .get("node1"), 0), 60000);
+
+        long before;
+        for (int i = 0; i < 50; i++) {
+            before = transport.getRemoteRequestCount();
+            cache.isReplay("test", "message" + i);
+            assertTrue(transport.getRemoteRequestCount() - before <= 1);
+        }
+    }
+
+    /**
+     * Test that messages recorded before a node joins are still detected as replays once their keys have moved to the
+     * new node, whichever node performs the check.
+     */
+    public void testMembershipChange() {
+        ClusterStorageNode<String, ReplayCacheEntry> node3 = nodes.remove("node3");
+        ReplayCache cache1 = new ReplayCache(services.get("node1"), 60000);
+        for (int i = 0; i < 50; i++) {
+            assertFalse(cache1.isReplay("test", "message" + i));
+        }
+
+        nodes.put("node3", node3);
+        ReplayCache cache3 = new ReplayCache(services.get("node3"), 60000);
+        int moved = 0;
+        for (int i = 0; i < 50; i++) {
+            if ("node3".equals(services.get("node1").getOwner("testmessage" + i))) {
+                moved++;
+            }
+            assertTrue(cache3.isReplay("test", "message" + i));
+            assertTrue(cache1.isReplay("test", "message" + i));
+            assertNotNull(services.get("node2").get("replay", "testmessage" + i));
+        }
+        assertTrue("Some keys should have moved to the new node", moved > 0);
+
+        ClusteredStorageService<String, ReplayCacheEntry> stable = new ClusteredStorageService<String,
+                ReplayCacheEntry>(transports.get("node1"), nodes.get("node1"), 0);
+        for (int i = 50; i < 100; i++) {
+            assertFalse(cache1.isReplay("test", "message" + i));
+            assertTrue("Entries recorded during the transition should be on their current owner", nodes.get(
+                    stable.getOwner("testmessage" + i)).getLocalStore().contains("replay", "testmessage" + i));
+        }
+    }
+
+    /**
+     * Test that a transport reporting the same members in a different order does not end a membership transition.
+     */
+    public void testMembershipOrder() {
+        ClusterStorageNode<String, ReplayCacheEntry> node3 = nodes.remove("node3");
+        ReplayCache cache1 = new ReplayCache(services.get("node1"), 60000);
+        for (int i = 0; i < 50; i++) {
+            assertFalse(cache1.isReplay("test", "message" + i));
+        }
+        nodes.put("node3", node3);
+
+        final boolean[] reversed = new boolean[1];
+        LocalClusterTransport<String, ReplayCacheEntry> transport =
+                new LocalClusterTransport<String, ReplayCacheEntry>("node3", nodes) {
+                    public List<String> getNodeIds() {
+                        List<String> nodeIds = super.getNodeIds();
+                        if (reversed[0]) {
+                            Collections.reverse(nodeIds);
+                        }
+                        return nodeIds;
+                    }
+                };
+        ClusteredStorageService<String, ReplayCacheEntry> service =
+                new ClusteredStorageService<String, ReplayCacheEntry>(transport, node3);
+        ReplayCache cache3 = new ReplayCache(service, 60000);
+        assertTrue(cache3.isReplay("test", "message0"));
+
+        reversed[0] = true;
+        for (int i = 1; i < 50; i++) {
+            assertTrue("Reordered members should not end the transition", cache3.isReplay("test", "message" + i));
+        }
+    }
+
+    /**
+     * Test that keys are owned by exactly one node and that batched writes contact each node once.
+     */
+    public void testPutAll() {
+        ClusteredStorageService<String, ReplayCacheEntry> service = services.get("node1");
+        Map<String, ReplayCacheEntry> values = new HashMap<String, ReplayCacheEntry>();
+        for (int i = 0; i < 100; i++) {
+            values.put("key" + i, new ReplayCacheEntry("key" + i, System.currentTimeMillis() + 60000));
+        }
+
+        service.putAll("replay", values);
+        assertTrue(transports.get("node1").getRemoteRequestCount() <= 2);
+
+        int owned;
+        for (String key : values.keySet()) {
+            owned = 0;
+            for (ClusterStorageNode<String, ReplayCacheEntry> node : nodes.values()) {
+                if (node.getLocalStore().contains("replay", key)) {
+                    owned++;
+                }
+            }
+            assertEquals(1, owned);
+            assertTrue(services.get("node3").contains("replay", key));
+        }
+    }
+
+    /**
+     * Test that an unreachable owner surfaces as an exception.
+     */
+    public void testUnavailableNode() {
+        ClusteredStorageService<String, ReplayCacheEntry> service = services.get("node1");
+        String key = null;
+        for (int i = 0; key == null; i++) {
+            if ("node2".equals(service.getOwner("key" + i))) {
+                key = "key" + i;
+            }
+        }
+
+        LocalClusterTransport<String, ReplayCacheEntry> partitioned =
+                new LocalClusterTransport<String, ReplayCacheEntry>("node1",
+                        new HashMap<String, ClusterStorageNode<String, ReplayCacheEntry>>(nodes) {
+                            public ClusterStorageNode<String, ReplayCacheEntry> get(Object nodeId) {
+                                return "node2".equals(nodeId) ? null : super.get(nodeId);
+                            }
+                        });
+        service = new ClusteredStorageService<String, ReplayCacheEntry>(partitioned, nodes.get("node1"));
+        try {
+            service.get("replay", key);
+            fail("Unreachable owner should have caused an exception");
+        } catch (ClusterStorageException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.opensaml.ws.message.MessageContext;
+
+/**
+ * Tests for {@link AsyncHandlerChainExecutor}.
+ */
+public class AsyncHandlerChainExecutorTest extends TestCase {
+
+    /** Executor on which asynchronous handlers complete. */
+    private ExecutorService executor;
+
+    /** Names of the handlers invoked, in invocation order. */
+    private List<String> invoked;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        executor = Executors.newCachedThreadPool();
+        invoked = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        super.tearDown();
+    }
+
+    /**
+     * Tests that a chain of ordinary handlers completes before the executor returns.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testSynchronousHandlers() throws Exception {
+        BasicHandlerChain chain = new BasicHandlerChain();
+        chain.getHandlers().add(new RecordingHandler("a"));
+        chain.getHandlers().add(new RecordingHandler("b"));
+
+        Future<MessageContext> result = new AsyncHandlerChainExecutor().execute(chains(chain), null, null);
+
+        assertTrue(result.isDone());
+        result.get();
+        assertEquals(Arrays.asList("a", "b"), invoked);
+    }
+
+    /**
+     * Tests that the calling thread is released while an asynchronous handler is outstanding and that the remaining
+     * handlers run once it completes.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testAsynchronousHandler() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BasicHandlerChain chain = new BasicHandlerChain();
+        chain.getHandlers().add(new RecordingHandler("a"));
+        chain.getHandlers().add(new DelayedHandler("b", release, null));
+        chain.getHandlers().add(new RecordingHandler("c"));
+
+        RecordingCallback callback = new RecordingCallback();
+        Future<MessageContext> result = new AsyncHandlerChainExecutor().execute(chains(chain), null, callback);
+
+        assertFalse(result.isDone());
+        assertEquals(Arrays.asList("a"), invoked);
+
+        release.countDown();
+        result.get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("a", "b", "c"), invoked);
+        assertTrue(callback.completed.await(5, TimeUnit.SECONDS));
+        assertNull(callback.error.get());
+    }
+
+    /**
+     * Tests that a failing asynchronous handler ends execution and is reported to the future and callback.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testAsynchronousFailure() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        HandlerException failure = new HandlerException("failed");
+        BasicHandlerChain chain = new BasicHandlerChain();
+        chain.getHandlers().add(new DelayedHandler("a", release, failure));
+        chain.getHandlers().add(new RecordingHandler("b"));
+
+        RecordingCallback callback = new RecordingCallback();
+        Future<MessageContext> result = new AsyncHandlerChainExecutor().execute(chains(chain), null, callback);
+        release.countDown();
+
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("Handler failure was not reported");
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+        assertTrue(callback.completed.await(5, TimeUnit.SECONDS));
+        assertSame(failure, callback.error.get());
+        assertEquals(Arrays.asList("a"), invoked);
+    }
+
+    /**
+     * Tests that cancelling execution stops it before the next handler and that the callback is not notified.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testCancellation() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BasicHandlerChain chain = new BasicHandlerChain();
+        chain.getHandlers().add(new DelayedHandler("a", release, null));
+        chain.getHandlers().add(new RecordingHandler("b"));
+
+        RecordingCallback callback = new RecordingCallback();
+        Future<MessageContext> result = new AsyncHandlerChainExecutor().execute(chains(chain), null, callback);
+        assertTrue(result.cancel(false));
+        assertFalse(result.cancel(false));
+        assertTrue(result.isCancelled());
+        assertTrue(result.isDone());
+        try {
+            result.get();
+            fail("Cancellation was not reported");
+        } catch (CancellationException e) {
+            // expected
+        }
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a"), invoked);
+        assertEquals(1, callback.completed.getCount());
+    }
+
+    /**
+     * Tests that a chain without asynchronous handlers is invoked as a whole, so that its metrics are recorded.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testChainMetrics() throws Exception {
+        InMemoryHandlerMetrics metrics = new InMemoryHandlerMetrics();
+        BasicHandlerChain chain = new BasicHandlerChain();
+        chain.setMetrics(metrics);
+        chain.getHandlers().add(new RecordingHandler("a"));
+
+        new AsyncHandlerChainExecutor().execute(chains(chain), null, null).get();
+        assertEquals(Arrays.asList("a"), invoked);
+        assertNotNull(metrics.getHandlerLatency(RecordingHandler.class));
+    }
+
+    /**
+     * Tests that a long chain of asynchronous handlers which complete immediately does not grow the stack.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testImmediateCompletion() throws Exception {
+        BasicHandlerChain chain = new BasicHandlerChain();
+        for (int i = 0; i < 100000; i++) {
+            chain.getHandlers().add(new BaseAsyncHandler() {
+                public void invokeAsync(MessageContext msgContext, HandlerCallback callback) {
+                    callback.onSuccess(msgContext);
+                }
+            });
+        }
+
+        Future<MessageContext> result = new AsyncHandlerChainExecutor().execute(chains(chain), null, null);
+        assertTrue(result.isDone());
+        result.get();
+    }
+
+    /**
+     * Tests that an asynchronous handler still works when its chain is invoked synchronously.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testSynchronousInvocationOfAsynchronousHandler() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BasicHandlerChain chain = new BasicHandlerChain();
+        chain.getHandlers().add(new DelayedHandler("a", release, null));
+        chain.getHandlers().add(new RecordingHandler("b"));
+        release.countDown();
+
+        chain.invoke(null);
+        assertEquals(Arrays.asList("a", "b"), invoked);
+    }
+
+    /**
+     * Wraps a handler chain in a list.
+     * 
+     * @param chain the handler chain
+     * 
+     * @return list containing the chain
+     */
+    private List<HandlerChain> chains(HandlerChain chain) {
+        List<HandlerChain> chains = new ArrayList<HandlerChain>();
+        chains.add(chain);
+        return chains;
+    }
+
+    /** Handler which records its name when invoked. */
+    private class RecordingHandler implements Handler {
+
+        /** Name of the handler. */
+        private final String name;
+
+        /**
+         * Constructor.
+         * 
+         * @param handlerName name of the handler
+         */
+        public RecordingHandler(String handlerName) {
+            name = handlerName;
+        }
+
+        /** {@inheritDoc} */
+        public void invoke(MessageContext msgContext) throws HandlerException {
+            invoked.add(name);
+        }
+    }
+
+    /** Asynchronous handler which completes on another thread once released. */
+    private class DelayedHandler extends BaseAsyncHandler {
+
+        /** Name of the handler. */
+        private final String name;
+
+        /** Latch released when the handler may complete. */
+        private final CountDownLatch release;
+
+        /** Failure to report, or null to succeed. */
+        private final HandlerException failure;
+
+        /**
+         * Constructor.
+         * 
+         * @param handlerName name of the handler
+         * @param latch latch released when the handler may complete
+         * @param error failure to report, or null to succeed
+         */
+        public DelayedHandler(String handlerName, CountDownLatch latch, HandlerException error) {
+            name = handlerName;
+            release = latch;
+            failure = error;
+        }
+
+        /** {@inheritDoc} */
+        public void invokeAsync(final MessageContext msgContext, final HandlerCallback callback) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    invoked.add(name);
+                    if (failure == null) {
+                        callback.onSuccess(msgContext);
+                    } else {
+                        callback.onFailure(msgContext, failure);
+                    }
+                }
+            });
+        }
+    }
+
+    /** Callback which records the outcome of an execution. */
+    private class RecordingCallback implements HandlerCallback {
+
+        /** Released once the callback has been notified. */
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        /** Failure reported, if any. */
+        private final AtomicReference<Exception> error = new AtomicReference<Exception>();
+
+        /** {@inheritDoc} */
+        public void onSuccess(MessageContext msgContext) {
+            completed.countDown();
+        }
+
+        /** {@inheritDoc} */
+        public void onFailure(MessageContext msgContext, Exception failure) {
+            error.set(failure);
+            completed.countDown();
+        }
+    }
+}
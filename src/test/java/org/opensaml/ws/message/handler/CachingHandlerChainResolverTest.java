@@ -0,0 +1,148 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.opensaml.ws.message.BaseMessageContext;
+import org.opensaml.ws.message.MessageContext;
+
+/**
+ * Tests for {@link CachingHandlerChainResolver}.
+ */
+public class CachingHandlerChainResolverTest extends TestCase {
+
+    /** Resolver wrapped by the caching resolver. */
+    private CountingResolver wrapped;
+
+    /** Caching resolver under test. */
+    private CachingHandlerChainResolver resolver;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        wrapped = new CountingResolver();
+        resolver = new CachingHandlerChainResolver(wrapped, 2);
+    }
+
+    /**
+     * Tests that chains are resolved once per communication profile and issuer.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testCaching() throws Exception {
+        Iterable<HandlerChain> first = resolver.resolve(buildContext("profile", "issuer"));
+        assertSame(first, resolver.resolve(buildContext("profile", "issuer")));
+        assertEquals(1, wrapped.resolutions);
+
+        assertNotSame(first, resolver.resolve(buildContext("profile", "other")));
+        resolver.resolve(buildContext(null, null));
+        resolver.resolve(buildContext(null, null));
+        assertEquals(3, wrapped.resolutions);
+    }
+
+    /**
+     * Tests that the least recently used entry is discarded once the cache is full.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testEviction() throws Exception {
+        resolver.resolve(buildContext("profile", "a"));
+        resolver.resolve(buildContext("profile", "b"));
+        resolver.resolve(buildContext("profile", "a"));
+        resolver.resolve(buildContext("profile", "c"));
+        assertEquals(2, resolver.size());
+        assertEquals(3, wrapped.resolutions);
+
+        resolver.resolve(buildContext("profile", "a"));
+        assertEquals(3, wrapped.resolutions);
+        resolver.resolve(buildContext("profile", "b"));
+        assertEquals(4, wrapped.resolutions);
+    }
+
+    /**
+     * Tests that invalidation causes chains to be resolved again.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testInvalidate() throws Exception {
+        resolver.resolve(buildContext("profile1", "issuer"));
+        resolver.resolve(buildContext("profile2", "issuer"));
+
+        resolver.invalidate("profile1");
+        assertEquals(1, resolver.size());
+        resolver.resolve(buildContext("profile1", "issuer"));
+        resolver.resolve(buildContext("profile2", "issuer"));
+        assertEquals(3, wrapped.resolutions);
+
+        resolver.invalidate();
+        assertEquals(0, resolver.size());
+        resolver.resolve(buildContext("profile2", "issuer"));
+        assertEquals(4, wrapped.resolutions);
+    }
+
+    /**
+     * Tests that the cached chains can not be modified.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testImmutable() throws Exception {
+        Iterator<HandlerChain> chains = resolver.resolve(buildContext("profile", "issuer")).iterator();
+        chains.next();
+        try {
+            chains.remove();
+            fail("Cached handler chains were modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Builds a message context.
+     * 
+     * @param profileId communication profile ID
+     * @param issuer inbound message issuer
+     * 
+     * @return the message context
+     */
+    private MessageContext buildContext(String profileId, String issuer) {
+        MessageContext messageContext = new BaseMessageContext();
+        messageContext.setCommunicationProfileId(profileId);
+        messageContext.setInboundMessageIssuer(issuer);
+        return messageContext;
+    }
+
+    /** Resolver which counts its resolutions and returns a new chain each time. */
+    private static class CountingResolver implements HandlerChainResolver {
+
+        /** Number of resolutions. */
+        private int resolutions;
+
+        /** {@inheritDoc} */
+        public Iterable<HandlerChain> resolve(MessageContext messageContext) throws HandlerException {
+            resolutions++;
+            List<HandlerChain> chains = new ArrayList<HandlerChain>();
+            chains.add(new BasicHandlerChain());
+            return chains;
+        }
+    }
+}
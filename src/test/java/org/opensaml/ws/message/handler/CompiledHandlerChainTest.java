@@ -0,0 +1,149 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.opensaml.ws.message.MessageContext;
+
+/**
+ * Tests for {@link CompiledHandlerChain}.
+ */
+public class CompiledHandlerChainTest extends TestCase {
+
+    /** Names of the handlers invoked, in invocation order. */
+    private List<String> invoked;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        invoked = new ArrayList<String>();
+    }
+
+    /**
+     * Tests that a compiled phased chain invokes the handlers of each phase in phase order, skipping missing phases.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testPhaseOrder() throws Exception {
+        BasicPhasedHandlerChain phased = buildPhasedChain();
+
+        CompiledHandlerChain compiled = phased.compile();
+        assertEquals(4, compiled.getHandlers().size());
+
+        compiled.invoke(null);
+        assertEquals(Arrays.asList("a1", "a2", "b1", "b2"), invoked);
+
+        invoked.clear();
+        phased.invoke(null);
+        assertEquals(Arrays.asList("a1", "a2", "b1", "b2"), invoked);
+    }
+
+    /**
+     * Tests that later changes to the source chain do not affect the compiled chain.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testSnapshot() throws Exception {
+        BasicPhasedHandlerChain phased = buildPhasedChain();
+        CompiledHandlerChain compiled = phased.compile();
+
+        phased.getPhaseChains().get("b").getHandlers().add(new RecordingHandler("b3"));
+        phased.getPhaseOrder().remove("a");
+
+        compiled.invoke(null);
+        assertEquals(Arrays.asList("a1", "a2", "b1", "b2"), invoked);
+    }
+
+    /** Tests that the handlers of a compiled chain can not be modified. */
+    public void testImmutable() {
+        CompiledHandlerChain compiled = buildPhasedChain().compile();
+        try {
+            compiled.getHandlers().add(new RecordingHandler("c1"));
+            fail("Handlers of a compiled chain were modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    /** Tests that an exception thrown by a handler stops the chain. */
+    public void testHandlerException() {
+        BasicHandlerChain chain = new BasicHandlerChain();
+        chain.getHandlers().add(new RecordingHandler("a1"));
+        chain.getHandlers().add(new Handler() {
+            public void invoke(MessageContext msgContext) throws HandlerException {
+                throw new HandlerException("failed");
+            }
+        });
+        chain.getHandlers().add(new RecordingHandler("a2"));
+
+        try {
+            chain.compile().invoke(null);
+            fail("Handler exception was not propagated");
+        } catch (HandlerException e) {
+            assertEquals(Arrays.asList("a1"), invoked);
+        }
+    }
+
+    /**
+     * Builds a phased chain with phases "a" and "b", each of two handlers, and a phase order which also names a
+     * missing phase.
+     * 
+     * @return the phased chain
+     */
+    private BasicPhasedHandlerChain buildPhasedChain() {
+        BasicHandlerChain phaseA = new BasicHandlerChain();
+        phaseA.getHandlers().add(new RecordingHandler("a1"));
+        phaseA.getHandlers().add(new RecordingHandler("a2"));
+
+        BasicHandlerChain phaseB = new BasicHandlerChain();
+        phaseB.getHandlers().add(new RecordingHandler("b1"));
+        phaseB.getHandlers().add(new RecordingHandler("b2"));
+
+        BasicPhasedHandlerChain phased = new BasicPhasedHandlerChain();
+        phased.getPhaseChains().put("a", phaseA);
+        phased.getPhaseChains().put("b", phaseB);
+        phased.setPhaseOrder(new ArrayList<String>(Arrays.asList("a", "missing", "b")));
+        return phased;
+    }
+
+    /** Handler which records its name when invoked. */
+    private class RecordingHandler implements Handler {
+
+        /** Name of the handler. */
+        private final String name;
+
+        /**
+         * Constructor.
+         * 
+         * @param handlerName name of the handler
+         */
+        public RecordingHandler(String handlerName) {
+            name = handlerName;
+        }
+
+        /** {@inheritDoc} */
+        public void invoke(MessageContext msgContext) throws HandlerException {
+            invoked.add(name);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.opensaml.ws.message.MessageContext;
+
+/**
+ * Tests for {@link InMemoryHandlerMetrics} and the instrumentation of handler chains.
+ */
+public class InMemoryHandlerMetricsTest extends TestCase {
+
+    /**
+     * Tests that a phased chain records the latency of each handler class and each phase.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testPhasedChainMetrics() throws Exception {
+        InMemoryHandlerMetrics metrics = new InMemoryHandlerMetrics();
+        BasicPhasedHandlerChain chain = buildPhasedChain();
+        chain.setMetrics(metrics);
+
+        chain.invoke(null);
+        chain.invoke(null);
+
+        LatencyHistogram sleeping = metrics.getHandlerLatency(SleepingHandler.class);
+        assertEquals(4, sleeping.getCount());
+        assertEquals(0, sleeping.getFailureCount());
+        assertTrue(sleeping.getMax() >= 5000000);
+        assertEquals(2, metrics.getHandlerLatency(NoOpHandler.class).getCount());
+
+        assertEquals(2, metrics.getPhaseLatency("a").getCount());
+        assertEquals(2, metrics.getPhaseLatency("b").getCount());
+        assertNull(metrics.getPhaseLatency("missing"));
+        assertTrue(metrics.getPhaseLatency("a").getTotal() >= 20000000);
+    }
+
+    /**
+     * Tests that a failing handler is recorded as a failure for both the handler and its phase.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testFailureRecorded() throws Exception {
+        InMemoryHandlerMetrics metrics = new InMemoryHandlerMetrics();
+        BasicPhasedHandlerChain chain = buildPhasedChain();
+        chain.getPhaseChains().get("b").getHandlers().add(new FailingHandler());
+        chain.setMetrics(metrics);
+
+        try {
+            chain.invoke(null);
+            fail("Handler failure was not thrown");
+        } catch (HandlerException e) {
+            // expected
+        }
+
+        assertEquals(1, metrics.getHandlerLatency(FailingHandler.class).getFailureCount());
+        assertEquals(0, metrics.getPhaseLatency("a").getFailureCount());
+        assertEquals(1, metrics.getPhaseLatency("b").getFailureCount());
+    }
+
+    /**
+     * Tests that a compiled chain keeps recording handler latencies.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testCompiledChainMetrics() throws Exception {
+        InMemoryHandlerMetrics metrics = new InMemoryHandlerMetrics();
+        BasicPhasedHandlerChain chain = buildPhasedChain();
+        chain.setMetrics(metrics);
+
+        chain.compile().invoke(null);
+
+        assertEquals(2, metrics.getHandlerLatency(SleepingHandler.class).getCount());
+        assertEquals(1, metrics.getHandlerLatency(NoOpHandler.class).getCount());
+        assertTrue(metrics.getPhaseLatencies().isEmpty());
+    }
+
+    /**
+     * Tests that a chain without metrics is invoked normally.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testNoMetrics() throws Exception {
+        BasicPhasedHandlerChain chain = buildPhasedChain();
+        assertNull(chain.getMetrics());
+        chain.invoke(null);
+    }
+
+    /** Tests the percentiles reported by a histogram. */
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000, true);
+        }
+        histogram.record(1000000, false);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getFailureCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(1099000, histogram.getTotal());
+
+        long median = histogram.getPercentile(0.5);
+        assertTrue(median >= 1000 && median < 2000);
+        assertEquals(1000000, histogram.getPercentile(1));
+    }
+
+    /**
+     * Builds a phased chain with phase "a" of two sleeping handlers, phase "b" of one no-op handler, and a phase order
+     * which also names a missing phase.
+     * 
+     * @return the phased chain
+     */
+    private BasicPhasedHandlerChain buildPhasedChain() {
+        BasicHandlerChain phaseA = new BasicHandlerChain();
+        phaseA.getHandlers().add(new SleepingHandler());
+        phaseA.getHandlers().add(new SleepingHandler());
+
+        BasicHandlerChain phaseB = new BasicHandlerChain();
+        phaseB.getHandlers().add(new NoOpHandler());
+
+        BasicPhasedHandlerChain chain = new BasicPhasedHandlerChain();
+        chain.getPhaseChains().put("a", phaseA);
+        chain.getPhaseChains().put("b", phaseB);
+        chain.setPhaseOrder(new ArrayList<String>(Arrays.asList("a", "missing", "b")));
+        return chain;
+    }
+
+    /** Handler which sleeps for 10 milliseconds. */
+    private static class SleepingHandler implements Handler {
+
+        /** {@inheritDoc} */
+        public void invoke(MessageContext msgContext) throws HandlerException {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new HandlerException(e);
+            }
+        }
+    }
+
+    /** Handler which does nothing. */
+    private static class NoOpHandler implements Handler {
+
+        /** {@inheritDoc} */
+        public void invoke(MessageContext msgContext) throws HandlerException {
+        }
+    }
+
+    /** Handler which always fails. */
+    private static class FailingHandler implements Handler {
+
+        /** {@inheritDoc} */
+        public void invoke(MessageContext msgContext) throws HandlerException {
+            throw new HandlerException("failed");
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.message.handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.opensaml.ws.message.MessageContext;
+
+/**
+ * Tests for {@link ParallelPhasedHandlerChain}.
+ */
+public class ParallelPhasedHandlerChainTest extends TestCase {
+
+    /** Executor on which independent handlers are invoked. */
+    private ExecutorService executor;
+
+    /** Names of the handlers which completed, in completion order. */
+    private List<String> completed;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        executor = Executors.newCachedThreadPool();
+        completed = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        super.tearDown();
+    }
+
+    /**
+     * Tests that adjacent independent handlers run concurrently and that they all complete before the following
+     * handler and phase.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testConcurrentInvocation() throws Exception {
+        // each independent handler waits until all three are running, so they can only complete if run concurrently
+        CountDownLatch running = new CountDownLatch(3);
+        BasicHandlerChain phaseA = new BasicHandlerChain();
+        phaseA.getHandlers().add(new DependentHandler("a1"));
+        phaseA.getHandlers().add(new ConcurrentHandler("a2", running, null));
+        phaseA.getHandlers().add(new ConcurrentHandler("a3", running, null));
+        phaseA.getHandlers().add(new ConcurrentHandler("a4", running, null));
+        phaseA.getHandlers().add(new DependentHandler("a5"));
+
+        BasicHandlerChain phaseB = new BasicHandlerChain();
+        phaseB.getHandlers().add(new DependentHandler("b1"));
+
+        ParallelPhasedHandlerChain chain = buildChain(phaseA, phaseB);
+        chain.invoke(null);
+
+        assertEquals(6, completed.size());
+        assertEquals("a1", completed.get(0));
+        assertTrue(completed.subList(1, 4).containsAll(Arrays.asList("a2", "a3", "a4")));
+        assertEquals(Arrays.asList("a5", "b1"), completed.subList(4, 6));
+    }
+
+    /**
+     * Tests that the failure of the earliest failing handler is thrown, even if a later handler fails first, and that
+     * no later handler is invoked.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testDeterministicFailure() throws Exception {
+        CountDownLatch running = new CountDownLatch(3);
+        HandlerException first = new HandlerException("first");
+        HandlerException second = new HandlerException("second");
+
+        BasicHandlerChain phaseA = new BasicHandlerChain();
+        phaseA.getHandlers().add(new ConcurrentHandler("a1", running, null));
+        phaseA.getHandlers().add(new SlowFailingHandler(running, first));
+        phaseA.getHandlers().add(new ConcurrentHandler("a3", running, second));
+        phaseA.getHandlers().add(new DependentHandler("a4"));
+
+        ParallelPhasedHandlerChain chain = buildChain(phaseA, new BasicHandlerChain());
+        try {
+            chain.invoke(null);
+            fail("Handler failure was not thrown");
+        } catch (HandlerException e) {
+            assertSame(first, e);
+        }
+        assertFalse(completed.contains("a4"));
+    }
+
+    /**
+     * Builds a parallel chain of two phases.
+     * 
+     * @param phaseA the first phase
+     * @param phaseB the second phase
+     * 
+     * @return the chain
+     */
+    private ParallelPhasedHandlerChain buildChain(HandlerChain phaseA, HandlerChain phaseB) {
+        ParallelPhasedHandlerChain chain = new ParallelPhasedHandlerChain(executor);
+        chain.getPhaseChains().put("a", phaseA);
+        chain.getPhaseChains().put("b", phaseB);
+        chain.setPhaseOrder(new ArrayList<String>(Arrays.asList("a", "b")));
+        return chain;
+    }
+
+    /** Ordinary handler which records its name. */
+    private class DependentHandler implements Handler {
+
+        /** Name of the handler. */
+        private final String name;
+
+        /**
+         * Constructor.
+         * 
+         * @param handlerName name of the handler
+         */
+        public DependentHandler(String handlerName) {
+            name = handlerName;
+        }
+
+        /** {@inheritDoc} */
+        public void invoke(MessageContext msgContext) throws HandlerException {
+            completed.add(name);
+        }
+    }
+
+    /** Independent handler which waits for the other independent handlers of its run to start. */
+    private class ConcurrentHandler implements IndependentHandler {
+
+        /** Name of the handler. */
+        private final String name;
+
+        /** Latch counted down by each independent handler of the run. */
+        private final CountDownLatch running;
+
+        /** Failure to throw, or null to succeed. */
+        private final HandlerException failure;
+
+        /**
+         * Constructor.
+         * 
+         * @param handlerName name of the handler
+         * @param latch latch counted down by each independent handler of the run
+         * @param error failure to throw, or null to succeed
+         */
+        public ConcurrentHandler(String handlerName, CountDownLatch latch, HandlerException error) {
+            name = handlerName;
+            running = latch;
+            failure = error;
+        }
+
+        /** {@inheritDoc} */
+        public void invoke(MessageContext msgContext) throws HandlerException {
+            running.countDown();
+            try {
+                if (!running.await(5, TimeUnit.SECONDS)) {
+                    throw new HandlerException("Independent handlers were not run concurrently");
+                }
+            } catch (InterruptedException e) {
+                throw new HandlerException(e);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            completed.add(name);
+        }
+    }
+
+    /** Independent handler which fails only after the other independent handlers of its run have completed. */
+    private class SlowFailingHandler implements IndependentHandler {
+
+        /** Latch counted down by each independent handler of the run. */
+        private final CountDownLatch running;
+
+        /** Failure to throw. */
+        private final HandlerException failure;
+
+        /**
+         * Constructor.
+         * 
+         * @param latch latch counted down by each independent handler of the run
+         * @param error failure to throw
+         */
+        public SlowFailingHandler(CountDownLatch latch, HandlerException error) {
+            running = latch;
+            failure = error;
+        }
+
+        /** {@inheritDoc} */
+        public void invoke(MessageContext msgContext) throws HandlerException {
+            running.countDown();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                throw new HandlerException(e);
+            }
+            throw failure;
+        }
+    }
+}
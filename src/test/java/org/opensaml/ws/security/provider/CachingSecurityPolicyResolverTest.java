@@ -0,0 +1,170 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.security.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.opensaml.ws.message.BaseMessageContext;
+import org.opensaml.ws.message.MessageContext;
+import org.opensaml.ws.security.SecurityPolicy;
+import org.opensaml.ws.security.SecurityPolicyResolver;
+import org.opensaml.xml.security.SecurityException;
+
+/**
+ * Tests for {@link CachingSecurityPolicyResolver}.
+ */
+public class CachingSecurityPolicyResolverTest extends TestCase {
+
+    /** Resolver wrapped by the caching resolver. */
+    private CountingResolver wrapped;
+
+    /** Caching resolver under test. */
+    private CachingSecurityPolicyResolver resolver;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        wrapped = new CountingResolver();
+        resolver = new CachingSecurityPolicyResolver(wrapped, 2);
+    }
+
+    /**
+     * Tests that policies are resolved once per communication profile and issuer.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testCaching() throws Exception {
+        Iterable<SecurityPolicy> first = resolver.resolve(buildContext("profile", "issuer"));
+        assertSame(first, resolver.resolve(buildContext("profile", "issuer")));
+        assertSame(first.iterator().next(), resolver.resolveSingle(buildContext("profile", "issuer")));
+        assertEquals(1, wrapped.resolutions);
+
+        assertNotSame(first, resolver.resolve(buildContext("profile", "other")));
+        assertEquals(2, wrapped.resolutions);
+    }
+
+    /**
+     * Tests that the least recently used entry is discarded once the cache is full.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testEviction() throws Exception {
+        resolver.resolve(buildContext("profile", "a"));
+        resolver.resolve(buildContext("profile", "b"));
+        resolver.resolve(buildContext("profile", "a"));
+        resolver.resolve(buildContext("profile", "c"));
+        assertEquals(2, resolver.size());
+
+        resolver.resolve(buildContext("profile", "a"));
+        assertEquals(3, wrapped.resolutions);
+        resolver.resolve(buildContext("profile", "b"));
+        assertEquals(4, wrapped.resolutions);
+    }
+
+    /**
+     * Tests that invalidation causes policies to be resolved again.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testInvalidate() throws Exception {
+        resolver.resolve(buildContext("profile1", "issuer"));
+        resolver.resolve(buildContext("profile2", "issuer"));
+
+        resolver.invalidate("profile1");
+        assertEquals(1, resolver.size());
+        resolver.resolve(buildContext("profile1", "issuer"));
+        resolver.resolve(buildContext("profile2", "issuer"));
+        assertEquals(3, wrapped.resolutions);
+
+        resolver.invalidate();
+        assertEquals(0, resolver.size());
+        resolver.resolve(buildContext("profile2", "issuer"));
+        assertEquals(4, wrapped.resolutions);
+    }
+
+    /**
+     * Tests that a failed resolution is not cached and that an empty result resolves to no single policy.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testFailureAndEmptyResult() throws Exception {
+        wrapped.failure = new SecurityException("failed");
+        try {
+            resolver.resolve(buildContext("profile", "issuer"));
+            fail("Resolution failure was not reported");
+        } catch (SecurityException e) {
+            assertSame(wrapped.failure, e);
+        }
+        assertEquals(0, resolver.size());
+
+        wrapped.failure = null;
+        wrapped.empty = true;
+        assertNull(resolver.resolveSingle(buildContext("profile", "issuer")));
+        assertFalse(resolver.resolve(buildContext("profile", "issuer")).iterator().hasNext());
+        assertEquals(2, wrapped.resolutions);
+    }
+
+    /**
+     * Builds a message context.
+     * 
+     * @param profileId communication profile ID
+     * @param issuer inbound message issuer
+     * 
+     * @return the message context
+     */
+    private MessageContext buildContext(String profileId, String issuer) {
+        MessageContext messageContext = new BaseMessageContext();
+        messageContext.setCommunicationProfileId(profileId);
+        messageContext.setInboundMessageIssuer(issuer);
+        return messageContext;
+    }
+
+    /** Resolver which counts its resolutions and returns a new policy each time. */
+    private static class CountingResolver implements SecurityPolicyResolver {
+
+        /** Number of resolutions. */
+        private int resolutions;
+
+        /** Failure to report, or null to succeed. */
+        private SecurityException failure;
+
+        /** Whether to resolve no policies. */
+        private boolean empty;
+
+        /** {@inheritDoc} */
+        public Iterable<SecurityPolicy> resolve(MessageContext messageContext) throws SecurityException {
+            resolutions++;
+            if (failure != null) {
+                throw failure;
+            }
+            List<SecurityPolicy> policies = new ArrayList<SecurityPolicy>();
+            if (!empty) {
+                policies.add(new BasicSecurityPolicy());
+            }
+            return policies;
+        }
+
+        /** {@inheritDoc} */
+        public SecurityPolicy resolveSingle(MessageContext messageContext) throws SecurityException {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
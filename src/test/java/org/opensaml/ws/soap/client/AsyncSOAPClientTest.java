@@ -0,0 +1,211 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.opensaml.ws.soap.common.SOAPException;
+import org.opensaml.xml.security.SecurityException;
+
+/**
+ * Tests for {@link AsyncSOAPClient}.
+ */
+public class AsyncSOAPClientTest extends TestCase {
+
+    /** Executor on which requests are performed. */
+    private ExecutorService executor;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        super.tearDown();
+    }
+
+    /**
+     * Tests that no more than the configured number of requests are in flight to an endpoint and that queued
+     * requests are dispatched as earlier ones complete.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testBoundedInFlightRequests() throws Exception {
+        BlockingSOAPClient delegate = new BlockingSOAPClient();
+        AsyncSOAPClient client = new AsyncSOAPClient(delegate, executor, 2);
+
+        Future<?>[] results = new Future<?>[10];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = client.sendAsync("https://idp.example.org/soap", new BasicSOAPMessageContext());
+        }
+        Future<?> other = client.sendAsync("https://other.example.org/soap", new BasicSOAPMessageContext());
+
+        assertTrue(delegate.started.tryAcquire(3, 5, TimeUnit.SECONDS));
+        assertEquals(2, client.getInFlightRequests("https://idp.example.org/soap"));
+        assertEquals(8, client.getQueuedRequests("https://idp.example.org/soap"));
+
+        delegate.release.countDown();
+        for (Future<?> result : results) {
+            assertNotNull(result.get(5, TimeUnit.SECONDS));
+        }
+        assertNotNull(other.get(5, TimeUnit.SECONDS));
+
+        assertEquals(0, client.getInFlightRequests("https://idp.example.org/soap"));
+        assertEquals(0, client.getQueuedRequests("https://idp.example.org/soap"));
+        assertTrue(delegate.maxConcurrent.get() <= 3);
+        assertEquals(11, delegate.sent.get());
+    }
+
+    /**
+     * Tests that failures are reported to the callback and rethrown by the blocking send.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testFailure() throws Exception {
+        SOAPClient failing = new SOAPClient() {
+            public void send(String endpoint, SOAPMessageContext messageContext) throws SOAPException {
+                throw new SOAPClientException("failed");
+            }
+        };
+        AsyncSOAPClient client = new AsyncSOAPClient(failing, executor, 1);
+
+        final CountDownLatch notified = new CountDownLatch(1);
+        final Exception[] reported = new Exception[1];
+        client.sendAsync("https://idp.example.org/soap", new BasicSOAPMessageContext(), new SOAPClientCallback() {
+            public void onSuccess(SOAPMessageContext messageContext) {
+                notified.countDown();
+            }
+
+            public void onFailure(SOAPMessageContext messageContext, Exception error) {
+                reported[0] = error;
+                notified.countDown();
+            }
+        });
+        assertTrue(notified.await(5, TimeUnit.SECONDS));
+        assertTrue(reported[0] instanceof SOAPClientException);
+
+        try {
+            client.send("https://idp.example.org/soap", new BasicSOAPMessageContext());
+            fail("Failure of the wrapped client was not rethrown");
+        } catch (SOAPClientException e) {
+            // expected
+        }
+        assertEquals(0, client.getInFlightRequests("https://idp.example.org/soap"));
+    }
+
+    /**
+     * Tests that a request cancelled while it is being sent keeps its slot until the wrapped client returns.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testCancelledRequestKeepsSlot() throws Exception {
+        BlockingSOAPClient delegate = new BlockingSOAPClient();
+        AsyncSOAPClient client = new AsyncSOAPClient(delegate, executor, 1);
+
+        Future<?> running = client.sendAsync("https://idp.example.org/soap", new BasicSOAPMessageContext());
+        Future<?> queued = client.sendAsync("https://idp.example.org/soap", new BasicSOAPMessageContext());
+        assertTrue(delegate.started.tryAcquire(5, TimeUnit.SECONDS));
+
+        assertTrue(running.cancel(false));
+        assertFalse(delegate.started.tryAcquire(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, client.getInFlightRequests("https://idp.example.org/soap"));
+        assertEquals(1, client.getQueuedRequests("https://idp.example.org/soap"));
+
+        delegate.release.countDown();
+        assertNotNull(queued.get(5, TimeUnit.SECONDS));
+        assertEquals(1, delegate.maxConcurrent.get());
+        assertEquals(2, delegate.sent.get());
+        assertEquals(0, client.getInFlightRequests("https://idp.example.org/soap"));
+    }
+
+    /**
+     * Tests that a request which would exceed the queue bound fails immediately.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testQueueLimit() throws Exception {
+        BlockingSOAPClient delegate = new BlockingSOAPClient();
+        AsyncSOAPClient client = new AsyncSOAPClient(delegate, executor, 1, 1);
+
+        Future<?> running = client.sendAsync("https://idp.example.org/soap", new BasicSOAPMessageContext());
+        Future<?> queued = client.sendAsync("https://idp.example.org/soap", new BasicSOAPMessageContext());
+        Future<?> rejected = client.sendAsync("https://idp.example.org/soap", new BasicSOAPMessageContext());
+        try {
+            rejected.get(5, TimeUnit.SECONDS);
+            fail("Request beyond the queue bound was accepted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SOAPClientException);
+        }
+        assertEquals(1, client.getQueuedRequests("https://idp.example.org/soap"));
+
+        delegate.release.countDown();
+        assertNotNull(running.get(5, TimeUnit.SECONDS));
+        assertNotNull(queued.get(5, TimeUnit.SECONDS));
+        assertEquals(2, delegate.sent.get());
+    }
+
+    /** Client which blocks each request until released and records the peak number of concurrent requests. */
+    private static class BlockingSOAPClient implements SOAPClient {
+
+        /** Permits released as each request starts. */
+        private final Semaphore started = new Semaphore(0);
+
+        /** Released to let requests complete. */
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        /** Number of requests currently executing. */
+        private final AtomicInteger concurrent = new AtomicInteger();
+
+        /** Peak number of concurrently executing requests. */
+        private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        /** Number of requests sent. */
+        private final AtomicInteger sent = new AtomicInteger();
+
+        /** {@inheritDoc} */
+        public void send(String endpoint, SOAPMessageContext messageContext) throws SOAPException,
+                SecurityException {
+            int current = concurrent.incrementAndGet();
+            int max = maxConcurrent.get();
+            while (current > max && !maxConcurrent.compareAndSet(max, current)) {
+                max = maxConcurrent.get();
+            }
+            started.release();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new SOAPClientException(e);
+            } finally {
+                sent.incrementAndGet();
+                concurrent.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opensaml.ws.WSBaseTestCase;
+import org.opensaml.ws.soap.common.SOAPException;
+import org.opensaml.ws.soap.soap11.Body;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.ws.soap.soap11.Header;
+import org.opensaml.ws.wstrust.RequestSecurityToken;
+import org.opensaml.ws.wstrust.RequestSecurityTokenCollection;
+import org.opensaml.ws.wstrust.RequestSecurityTokenResponse;
+import org.opensaml.ws.wstrust.RequestSecurityTokenResponseCollection;
+import org.opensaml.ws.wstrust.TokenType;
+import org.opensaml.xml.XMLConfigurator;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.security.SecurityException;
+
+/**
+ * Tests for {@link WSTrustBatchingSOAPClient}.
+ */
+public class WSTrustBatchingSOAPClientTest extends WSBaseTestCase {
+
+    /** Endpoint to which requests are sent. */
+    private static final String ENDPOINT = "https://sts.example.org/trust";
+
+    /** Executor on which concurrent requests are sent. */
+    private ExecutorService executor;
+
+    /** {@inheritDoc} */
+    protected void configureWS() throws Exception {
+        XMLConfigurator configurator = new XMLConfigurator();
+        InputStream is = getClass().getResourceAsStream("/soap11-config.xml");
+        configurator.load(is);
+        is = getClass().getResourceAsStream("/wstrust-config.xml");
+        configurator.load(is);
+    }
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        super.tearDown();
+    }
+
+    /**
+     * Tests that concurrent requests are sent as one collection and that each caller receives the response matching
+     * its request's context, even though the responses are returned in a different order.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testBatchedRequests() throws Exception {
+        CollectionSOAPClient delegate = new CollectionSOAPClient();
+        WSTrustBatchingSOAPClient client = new WSTrustBatchingSOAPClient(delegate, 3, 10000);
+
+        List<SOAPMessageContext> contexts = new ArrayList<SOAPMessageContext>();
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (int i = 0; i < 3; i++) {
+            SOAPMessageContext messageContext = buildRequestContext("context-" + i);
+            contexts.add(messageContext);
+            results.add(executor.submit(new SendTask(client, messageContext)));
+        }
+        for (Future<?> result : results) {
+            result.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(1, delegate.requests.get());
+        assertEquals(3, delegate.lastBatchSize);
+        assertEquals(1, client.getBatchCount());
+        assertEquals(3, client.getBatchedRequestCount());
+
+        for (int i = 0; i < 3; i++) {
+            SOAPMessageContext messageContext = contexts.get(i);
+            Envelope response = (Envelope) messageContext.getInboundMessage();
+            assertNotNull(response);
+            RequestSecurityTokenResponse rstr = (RequestSecurityTokenResponse) response.getBody()
+                    .getUnknownXMLObjects().get(0);
+            assertEquals("context-" + i, rstr.getContext());
+            assertEquals("issuer", messageContext.getInboundMessageIssuer());
+
+            Body requestBody = ((Envelope) messageContext.getOutboundMessage()).getBody();
+            assertEquals(1, requestBody.getUnknownXMLObjects().size());
+            RequestSecurityToken rst = (RequestSecurityToken) requestBody.getUnknownXMLObjects().get(0);
+            assertEquals("context-" + i, rst.getContext());
+        }
+    }
+
+    /**
+     * Tests that two requests made within the batch delay are sent together once the delay passes, even though the
+     * batch is not full.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testBatchClosedByDelay() throws Exception {
+        CollectionSOAPClient delegate = new CollectionSOAPClient();
+        WSTrustBatchingSOAPClient client = new WSTrustBatchingSOAPClient(delegate, 10, 500);
+
+        SOAPMessageContext first = buildRequestContext("first");
+        SOAPMessageContext second = buildRequestContext("second");
+        Future<?> firstResult = executor.submit(new SendTask(client, first));
+        Thread.sleep(100);
+        client.send(ENDPOINT, second);
+        firstResult.get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, delegate.requests.get());
+        assertEquals(2, delegate.lastBatchSize);
+        assertEquals(1, client.getBatchCount());
+        assertEquals(2, client.getBatchedRequestCount());
+        assertEquals("first", ((RequestSecurityTokenResponse) ((Envelope) first.getInboundMessage()).getBody()
+                .getUnknownXMLObjects().get(0)).getContext());
+        assertEquals("second", ((RequestSecurityTokenResponse) ((Envelope) second.getInboundMessage()).getBody()
+                .getUnknownXMLObjects().get(0)).getContext());
+    }
+
+    /**
+     * Tests that a request which is not joined by any other within the batch delay is sent unchanged.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testSingleRequestSentUnchanged() throws Exception {
+        CollectionSOAPClient delegate = new CollectionSOAPClient();
+        WSTrustBatchingSOAPClient client = new WSTrustBatchingSOAPClient(delegate, 3, 10);
+
+        SOAPMessageContext messageContext = buildRequestContext("context");
+        client.send(ENDPOINT, messageContext);
+
+        assertEquals(1, delegate.requests.get());
+        assertSame(messageContext, delegate.lastContext);
+        assertEquals(0, client.getBatchCount());
+    }
+
+    /**
+     * Tests that a request carrying header blocks is passed straight to the wrapped client.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testRequestWithHeaderNotBatched() throws Exception {
+        CollectionSOAPClient delegate = new CollectionSOAPClient();
+        WSTrustBatchingSOAPClient client = new WSTrustBatchingSOAPClient(delegate, 3, 10000);
+
+        SOAPMessageContext messageContext = buildRequestContext("context");
+        Envelope envelope = (Envelope) messageContext.getOutboundMessage();
+        Header header = buildXMLObject(Header.DEFAULT_ELEMENT_NAME);
+        header.getUnknownXMLObjects().add(buildXMLObject(TokenType.ELEMENT_NAME));
+        envelope.setHeader(header);
+
+        long start = System.currentTimeMillis();
+        client.send(ENDPOINT, messageContext);
+
+        // a batched request would have waited out the batch delay
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertSame(messageContext, delegate.lastContext);
+    }
+
+    /**
+     * Tests that a request without a Context attribute is passed straight to the wrapped client, since its response
+     * could not be matched to it within a collection.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testRequestWithoutContextNotBatched() throws Exception {
+        CollectionSOAPClient delegate = new CollectionSOAPClient();
+        WSTrustBatchingSOAPClient client = new WSTrustBatchingSOAPClient(delegate, 3, 10000);
+
+        SOAPMessageContext messageContext = buildRequestContext(null);
+        long start = System.currentTimeMillis();
+        client.send(ENDPOINT, messageContext);
+
+        // a batched request would have waited out the batch delay
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertSame(messageContext, delegate.lastContext);
+        assertEquals(0, client.getBatchCount());
+    }
+
+    /**
+     * Tests that a request whose context is already used in the open batch is sent on its own rather than joining it.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testDuplicateContextNotBatched() throws Exception {
+        CollectionSOAPClient delegate = new CollectionSOAPClient();
+        WSTrustBatchingSOAPClient client = new WSTrustBatchingSOAPClient(delegate, 2, 500);
+
+        SOAPMessageContext first = buildRequestContext("context");
+        Future<?> result = executor.submit(new SendTask(client, first));
+        Thread.sleep(100);
+
+        SOAPMessageContext second = buildRequestContext("context");
+        client.send(ENDPOINT, second);
+        result.get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, delegate.requests.get());
+        assertEquals(0, client.getBatchCount());
+        assertNotNull(first.getInboundMessage());
+        assertNotNull(second.getInboundMessage());
+    }
+
+    /**
+     * Builds a message context whose outbound message carries a single RequestSecurityToken.
+     * 
+     * @param context the Context attribute of the RequestSecurityToken
+     * 
+     * @return the message context
+     * 
+     * @throws Exception if the message can not be built
+     */
+    private SOAPMessageContext buildRequestContext(String context) throws Exception {
+        RequestSecurityToken rst = buildXMLObject(RequestSecurityToken.ELEMENT_NAME);
+        rst.setContext(context);
+        Body body = buildXMLObject(Body.DEFAULT_ELEMENT_NAME);
+        body.getUnknownXMLObjects().add(rst);
+        Envelope envelope = buildXMLObject(Envelope.DEFAULT_ELEMENT_NAME);
+        envelope.setBody(body);
+
+        SOAPMessageContext messageContext = new BasicSOAPMessageContext();
+        messageContext.setOutboundMessage(envelope);
+        return messageContext;
+    }
+
+    /** Task sending a single request. */
+    private class SendTask implements Callable<Object> {
+
+        /** Client used to send the request. */
+        private final SOAPClient client;
+
+        /** Message context of the request. */
+        private final SOAPMessageContext messageContext;
+
+        /**
+         * Constructor.
+         * 
+         * @param soapClient client used to send the request
+         * @param context message context of the request
+         */
+        public SendTask(SOAPClient soapClient, SOAPMessageContext context) {
+            client = soapClient;
+            messageContext = context;
+        }
+
+        /** {@inheritDoc} */
+        public Object call() throws Exception {
+            client.send(ENDPOINT, messageContext);
+            return null;
+        }
+    }
+
+    /**
+     * Client which answers a RequestSecurityTokenCollection with a RequestSecurityTokenResponseCollection, in reverse
+     * order, and a single RequestSecurityToken with a single RequestSecurityTokenResponse.
+     */
+    private class CollectionSOAPClient implements SOAPClient {
+
+        /** Number of requests received. */
+        private final AtomicInteger requests = new AtomicInteger();
+
+        /** Number of tokens in the last collection received. */
+        private volatile int lastBatchSize;
+
+        /** Message context of the last request received. */
+        private volatile SOAPMessageContext lastContext;
+
+        /** {@inheritDoc} */
+        public void send(String endpoint, SOAPMessageContext messageContext) throws SOAPException,
+                SecurityException {
+            requests.incrementAndGet();
+            lastContext = messageContext;
+            try {
+                XMLObject request = ((Envelope) messageContext.getOutboundMessage()).getBody()
+                        .getUnknownXMLObjects().get(0);
+                XMLObject response;
+                if (request instanceof RequestSecurityTokenCollection) {
+                    List<RequestSecurityToken> rsts = ((RequestSecurityTokenCollection) request)
+                            .getRequestSecurityTokens();
+                    lastBatchSize = rsts.size();
+                    RequestSecurityTokenResponseCollection rstrc = buildXMLObject(
+                            RequestSecurityTokenResponseCollection.ELEMENT_NAME);
+                    List<RequestSecurityTokenResponse> rstrs = new ArrayList<RequestSecurityTokenResponse>();
+                    for (RequestSecurityToken rst : rsts) {
+                        rstrs.add(buildResponse(rst));
+                    }
+                    Collections.reverse(rstrs);
+                    rstrc.getRequestSecurityTokenResponses().addAll(rstrs);
+                    response = rstrc;
+                } else {
+                    response = buildResponse((RequestSecurityToken) request);
+                }
+
+                Body body = buildXMLObject(Body.DEFAULT_ELEMENT_NAME);
+                body.getUnknownXMLObjects().add(response);
+                Envelope envelope = buildXMLObject(Envelope.DEFAULT_ELEMENT_NAME);
+                envelope.setBody(body);
+                messageContext.setInboundMessage(envelope);
+                messageContext.setInboundMessageIssuer("issuer");
+            } catch (Exception e) {
+                throw new SOAPClientException(e);
+            }
+        }
+
+        /**
+         * Builds a response to a request, carrying the request's context.
+         * 
+         * @param rst the request
+         * 
+         * @return the response
+         * 
+         * @throws Exception if the response can not be built
+         */
+        private RequestSecurityTokenResponse buildResponse(RequestSecurityToken rst) throws Exception {
+            RequestSecurityTokenResponse rstr = buildXMLObject(RequestSecurityTokenResponse.ELEMENT_NAME);
+            rstr.setContext(rst.getContext());
+            return rstr;
+        }
+    }
+}
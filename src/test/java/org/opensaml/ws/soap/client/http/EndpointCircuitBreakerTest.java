@@ -0,0 +1,103 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client.http;
+
+import junit.framework.TestCase;
+
+import org.opensaml.ws.soap.client.http.EndpointCircuitBreaker.State;
+
+/**
+ * Tests for {@link EndpointCircuitBreaker}.
+ */
+public class EndpointCircuitBreakerTest extends TestCase {
+
+    /** Current time seen by the breaker under test. */
+    private long now;
+
+    /** Breaker under test. */
+    private EndpointCircuitBreaker breaker;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        now = 1000;
+        breaker = new EndpointCircuitBreaker(3, 500) {
+            protected long currentTime() {
+                return now;
+            }
+        };
+    }
+
+    /** Tests that the breaker opens after consecutive failures and that a success resets the count. */
+    public void testOpensAfterConsecutiveFailures() {
+        breaker.recordFailure();
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+
+        breaker.recordFailure();
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    /** Tests that a single trial request is let through once the open interval has elapsed. */
+    public void testHalfOpenTrial() {
+        for (int i = 0; i < 3; i++) {
+            breaker.recordFailure();
+        }
+
+        now += 499;
+        assertFalse(breaker.allowRequest());
+
+        now += 1;
+        assertTrue(breaker.allowRequest());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        breaker.recordFailure();
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        now += 500;
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    /** Tests that requests which were never sent neither count as failures nor hold on to the trial request. */
+    public void testNotSent() {
+        for (int i = 0; i < 5; i++) {
+            breaker.recordNotSent();
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+
+        for (int i = 0; i < 3; i++) {
+            breaker.recordFailure();
+        }
+        now += 500;
+        assertTrue(breaker.allowRequest());
+        breaker.recordNotSent();
+        assertEquals(State.OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client.http;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+
+/**
+ * Tests for {@link HttpClientBuilder} and {@link InstrumentedHttpClientConnectionManager}.
+ */
+public class HttpClientBuilderTest extends TestCase {
+
+    /** Tests that routes are built with the scheme's default port and the configured proxy. */
+    public void testBuildRoute() {
+        HttpClientBuilder builder = new HttpClientBuilder();
+
+        HttpRoute route = builder.buildRoute("https://idp.example.org/idp/profile/SAML2/SOAP/ArtifactResolution");
+        assertEquals(443, route.getTargetHost().getPort());
+        assertTrue(route.isSecure());
+        assertNull(route.getProxyHost());
+
+        builder.setProxyHost("proxy.example.org");
+        builder.setProxyPort(3128);
+        route = builder.buildRoute("http://idp.example.org:8080/soap");
+        assertEquals(8080, route.getTargetHost().getPort());
+        assertFalse(route.isSecure());
+        assertEquals("proxy.example.org", route.getProxyHost().getHostName());
+
+        try {
+            builder.setMaxConnectionsPerEndpoint("/relative/path", 2);
+            fail("Endpoint without a host was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Tests that per-endpoint limits are applied to the pool and that leases and lease timeouts are recorded.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testRouteStatistics() throws Exception {
+        String endpoint = "https://idp.example.org/idp/profile/SAML2/SOAP/ArtifactResolution";
+        HttpClientBuilder builder = new HttpClientBuilder();
+        builder.setMaxConnectionsPerEndpoint(endpoint, 1);
+
+        InstrumentedHttpClientConnectionManager connMgr = builder.buildConnectionManager();
+        try {
+            HttpRoute route = builder.buildRoute(endpoint);
+            assertEquals(1, connMgr.getMaxPerRoute(route));
+            assertEquals(builder.getMaxConnectionsPerHost(),
+                    connMgr.getMaxPerRoute(builder.buildRoute("https://sp.example.org/soap")));
+
+            HttpClientConnection conn = connMgr.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+            assertNotNull(conn);
+
+            InstrumentedHttpClientConnectionManager.RouteStatistics stats = connMgr.getRouteStatistics(route);
+            assertEquals(1, stats.getLeased());
+            assertEquals(0, stats.getAvailable());
+            assertEquals(1, stats.getMax());
+            assertEquals(1, stats.getLeaseCount());
+
+            try {
+                connMgr.requestConnection(route, null).get(50, TimeUnit.MILLISECONDS);
+                fail("Lease beyond the route maximum succeeded");
+            } catch (ConnectionPoolTimeoutException e) {
+                // expected
+            }
+
+            stats = connMgr.getRouteStatistics(route);
+            assertEquals(1, stats.getLeaseCount());
+            assertEquals(1, stats.getLeaseTimeoutCount());
+            assertTrue(stats.getMaxLeaseWait() >= 40);
+
+            connMgr.releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+            assertEquals(0, connMgr.getRouteStatistics(route).getLeased());
+        } finally {
+            connMgr.shutdown();
+        }
+    }
+}
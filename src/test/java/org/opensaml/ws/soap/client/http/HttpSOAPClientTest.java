@@ -0,0 +1,238 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+
+import javax.xml.namespace.QName;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.opensaml.ws.BaseTestCase;
+import org.opensaml.ws.soap.client.BasicSOAPMessageContext;
+import org.opensaml.ws.soap.client.SOAPClientException;
+import org.opensaml.ws.soap.client.SOAPFaultException;
+import org.opensaml.ws.soap.client.SOAPMessageContext;
+import org.opensaml.ws.soap.soap11.Body;
+import org.opensaml.ws.soap.soap11.Envelope;
+import org.opensaml.xml.schema.XSAny;
+
+/**
+ * Tests for {@link HttpSOAPClient}.
+ */
+public class HttpSOAPClientTest extends BaseTestCase {
+
+    /** Endpoint to which requests are sent. */
+    private static final String ENDPOINT = "https://idp.example.org/soap";
+
+    /** Response carrying a SOAP fault. */
+    private static final String FAULT = "<soap11:Envelope xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<soap11:Body><soap11:Fault><faultcode>soap11:Server</faultcode><faultstring>Server failed</faultstring>"
+            + "</soap11:Fault></soap11:Body></soap11:Envelope>";
+
+    /** Response carrying an empty body. */
+    private static final String EMPTY = "<soap11:Envelope xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<soap11:Body/></soap11:Envelope>";
+
+    /** HTTP client returning canned responses. */
+    private CannedHttpClient httpClient;
+
+    /** Client under test. */
+    private HttpSOAPClient client;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        httpClient = new CannedHttpClient();
+        client = new HttpSOAPClient(httpClient, parserPool);
+
+        HttpSOAPRequestPolicy policy = new HttpSOAPRequestPolicy();
+        policy.setMaxAttempts(3);
+        policy.setInitialBackoff(1);
+        policy.setJitter(0);
+        policy.setCircuitFailureThreshold(2);
+        client.setRequestPolicy(policy);
+    }
+
+    /**
+     * Tests that a SOAP fault received after a retried attempt is reported as a fault, without retrying it or counting
+     * it against the endpoint's circuit breaker.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testFaultAfterRetry() throws Exception {
+        httpClient.addResponse(503, EMPTY);
+        httpClient.addResponse(500, FAULT);
+
+        SOAPMessageContext messageContext = buildRequestContext();
+        try {
+            client.send(ENDPOINT, messageContext);
+            fail("SOAP fault was not reported");
+        } catch (SOAPFaultException e) {
+            assertEquals("Server failed", e.getFault().getMessage().getValue());
+        }
+
+        assertEquals(2, httpClient.requests);
+        assertEquals(1, client.getRetryCount());
+        assertNotNull(messageContext.getInboundMessage());
+        assertEquals(EndpointCircuitBreaker.State.CLOSED, client.getCircuitBreaker(ENDPOINT).getState());
+    }
+
+    /**
+     * Tests that faults do not open the endpoint's circuit, whereas retryable failures do.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testFaultsDoNotOpenCircuit() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            httpClient.addResponse(500, FAULT);
+            try {
+                client.send(ENDPOINT, buildRequestContext());
+                fail("SOAP fault was not reported");
+            } catch (SOAPFaultException e) {
+                // expected
+            }
+        }
+        assertEquals(3, httpClient.requests);
+        assertEquals(0, client.getRetryCount());
+        assertEquals(EndpointCircuitBreaker.State.CLOSED, client.getCircuitBreaker(ENDPOINT).getState());
+
+        httpClient.addResponse(503, EMPTY);
+        httpClient.addResponse(503, EMPTY);
+        try {
+            client.send(ENDPOINT, buildRequestContext());
+            fail("Unavailable endpoint was not reported");
+        } catch (SOAPClientException e) {
+            // expected
+        }
+        assertEquals(EndpointCircuitBreaker.State.OPEN, client.getCircuitBreaker(ENDPOINT).getState());
+    }
+
+    /**
+     * Tests that a streamed response whose body carries an element without a registered unmarshaller is unmarshalled
+     * as it would be from a DOM.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testStreamingResponseWithUnknownContent() throws Exception {
+        httpClient.addResponse(200, "<soap11:Envelope xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+                + "<soap11:Body><test:Response xmlns:test=\"urn:test\">ok</test:Response></soap11:Body>"
+                + "</soap11:Envelope>");
+        client = new HttpSOAPClient(httpClient, parserPool);
+        client.setStreamingResponses(true);
+
+        SOAPMessageContext messageContext = buildRequestContext();
+        client.send(ENDPOINT, messageContext);
+
+        Envelope response = (Envelope) messageContext.getInboundMessage();
+        XSAny content = (XSAny) response.getBody().getUnknownXMLObjects().get(0);
+        assertEquals(new QName("urn:test", "Response"), content.getElementQName());
+        assertEquals("ok", content.getTextContent());
+    }
+
+    /**
+     * Builds the context of an idempotent request carrying an empty body.
+     * 
+     * @return the message context
+     */
+    private SOAPMessageContext buildRequestContext() {
+        Envelope envelope = (Envelope) buildXMLObject(Envelope.DEFAULT_ELEMENT_NAME);
+        envelope.setBody((Body) buildXMLObject(Body.DEFAULT_ELEMENT_NAME));
+
+        SOAPMessageContext messageContext = new BasicSOAPMessageContext();
+        messageContext.setOutboundMessage(envelope);
+        messageContext.setSOAPRequestParameters(new HttpSOAPRequestParameters("urn:test", true));
+        return messageContext;
+    }
+
+    /** HTTP client which reads each request and returns the next canned response. */
+    private static class CannedHttpClient extends CloseableHttpClient {
+
+        /** Responses to return, in order. */
+        private final LinkedList<CloseableHttpResponse> responses = new LinkedList<CloseableHttpResponse>();
+
+        /** Number of requests received. */
+        private int requests;
+
+        /**
+         * Adds a response to return.
+         * 
+         * @param status HTTP status code of the response
+         * @param body body of the response
+         */
+        private void addResponse(int status, String body) {
+            CannedHttpResponse response = new CannedHttpResponse(status);
+            response.setEntity(new StringEntity(body, ContentType.TEXT_XML));
+            responses.add(response);
+        }
+
+        /** {@inheritDoc} */
+        protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+                throws IOException, ClientProtocolException {
+            requests++;
+            ((HttpEntityEnclosingRequest) request).getEntity().writeTo(new ByteArrayOutputStream());
+            return responses.removeFirst();
+        }
+
+        /** {@inheritDoc} */
+        @SuppressWarnings("deprecation")
+        public HttpParams getParams() {
+            throw new UnsupportedOperationException();
+        }
+
+        /** {@inheritDoc} */
+        @SuppressWarnings("deprecation")
+        public ClientConnectionManager getConnectionManager() {
+            throw new UnsupportedOperationException();
+        }
+
+        /** {@inheritDoc} */
+        public void close() {
+        }
+    }
+
+    /** A response which needs no releasing. */
+    private static class CannedHttpResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+        /**
+         * Constructor.
+         * 
+         * @param status HTTP status code of the response
+         */
+        private CannedHttpResponse(int status) {
+            super(HttpVersion.HTTP_1_1, status, null);
+        }
+
+        /** {@inheritDoc} */
+        public void close() {
+        }
+    }
+}
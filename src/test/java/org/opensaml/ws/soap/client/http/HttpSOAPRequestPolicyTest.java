@@ -0,0 +1,58 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client.http;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link HttpSOAPRequestPolicy}.
+ */
+public class HttpSOAPRequestPolicyTest extends TestCase {
+
+    /** Tests that backoff delays grow exponentially, are capped and are reduced by at most the jitter fraction. */
+    public void testBackoffDelay() {
+        HttpSOAPRequestPolicy policy = new HttpSOAPRequestPolicy();
+        policy.setInitialBackoff(100);
+        policy.setMaxBackoff(1000);
+        policy.setBackoffMultiplier(2);
+        policy.setJitter(0);
+
+        assertEquals(100, policy.getBackoffDelay(1));
+        assertEquals(200, policy.getBackoffDelay(2));
+        assertEquals(400, policy.getBackoffDelay(3));
+        assertEquals(1000, policy.getBackoffDelay(5));
+
+        policy.setJitter(0.5);
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getBackoffDelay(3);
+            assertTrue(delay >= 200 && delay <= 400);
+        }
+    }
+
+    /** Tests the retryable status codes and that circuit breaking can be disabled. */
+    public void testDefaults() {
+        HttpSOAPRequestPolicy policy = new HttpSOAPRequestPolicy();
+        assertTrue(policy.isRetryableStatus(503));
+        assertFalse(policy.isRetryableStatus(500));
+        assertFalse(policy.isRetryableStatus(200));
+        assertNotNull(policy.createCircuitBreaker());
+
+        policy.setCircuitFailureThreshold(0);
+        assertNull(policy.createCircuitBreaker());
+    }
+}
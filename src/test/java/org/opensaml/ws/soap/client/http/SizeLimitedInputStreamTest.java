@@ -0,0 +1,76 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link SizeLimitedInputStream}.
+ */
+public class SizeLimitedInputStreamTest extends TestCase {
+
+    /**
+     * Tests that bytes read are counted and that reading within the limit succeeds.
+     * 
+     * @throws IOException if something goes wrong
+     */
+    public void testWithinLimit() throws IOException {
+        SizeLimitedInputStream in = new SizeLimitedInputStream(new ByteArrayInputStream(new byte[100]), 100);
+        byte[] buffer = new byte[30];
+        int total = 0;
+        int read;
+        while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+            total += read;
+        }
+        assertEquals(100, total);
+        assertEquals(100, in.getBytesRead());
+        assertFalse(in.isLimitExceeded());
+    }
+
+    /**
+     * Tests that reading past the limit fails.
+     */
+    public void testLimitExceeded() {
+        SizeLimitedInputStream in = new SizeLimitedInputStream(new ByteArrayInputStream(new byte[100]), 50);
+        try {
+            while (in.read() != -1) {
+                // keep reading
+            }
+            fail("Reading past the limit succeeded");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(in.isLimitExceeded());
+        assertEquals(51, in.getBytesRead());
+    }
+
+    /**
+     * Tests that a negative limit means unlimited.
+     * 
+     * @throws IOException if something goes wrong
+     */
+    public void testUnlimited() throws IOException {
+        SizeLimitedInputStream in = new SizeLimitedInputStream(new ByteArrayInputStream(new byte[100]), -1);
+        assertEquals(100, in.skip(1000));
+        assertEquals(-1, in.read());
+        assertEquals(100, in.getBytesRead());
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development, 
+ * Inc. (UCAID) under one or more contributor license agreements.  See the 
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache 
+ * License, Version 2.0 (the "License"); you may not use this file except in 
+ * compliance with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.ws.soap.client.http;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link TLSContextCache} and its use by {@link TLSProtocolSocketFactory}.
+ */
+public class TLSContextCacheTest extends TestCase {
+
+    /** Keystore holding the test server's key and certificate. */
+    private static final String KEYSTORE = "/data/org/opensaml/ws/soap/client/http/localhost.jks";
+
+    /** Keystore password. */
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    /** Number of connections made in each run. */
+    private static final int CONNECTIONS = 20;
+
+    /** Trust manager trusting the test server's certificate. */
+    private X509TrustManager trustManager;
+
+    /** Local TLS server. */
+    private SSLServerSocket serverSocket;
+
+    /** Thread accepting connections to the local TLS server. */
+    private Thread serverThread;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream in = TLSContextCacheTest.class.getResourceAsStream(KEYSTORE);
+        try {
+            keyStore.load(in, PASSWORD);
+        } finally {
+            in.close();
+        }
+
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        trustManager = (X509TrustManager) tmf.getTrustManagers()[0];
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, PASSWORD);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+        serverSocket = (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket(0);
+
+        serverThread = new Thread() {
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        try {
+                            socket.getOutputStream().write(socket.getInputStream().read());
+                            socket.getOutputStream().flush();
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (Exception e) {
+                        // connection failed or server closed
+                    }
+                }
+            }
+        };
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        serverSocket.close();
+        serverThread.join(5000);
+        super.tearDown();
+    }
+
+    /**
+     * Tests that factories created from the same managers share a context and that others do not.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testContextSharing() throws Exception {
+        TLSContextCache cache = new TLSContextCache();
+        X509TrustManager[] trustManagers = new X509TrustManager[] {trustManager};
+
+        new TLSProtocolSocketFactory(null, trustManagers, null, null, cache);
+        new TLSProtocolSocketFactory(null, new X509TrustManager[] {trustManager}, null, null, cache);
+        assertEquals(1, cache.size());
+
+        new TLSProtocolSocketFactory(null, null, null, null, cache);
+        assertEquals(2, cache.size());
+
+        // managers are compared by identity, so equivalent managers from another factory get a new context
+        for (int i = 0; i < 2; i++) {
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init((KeyStore) null);
+            new TLSProtocolSocketFactory(null, new X509TrustManager[] {(X509TrustManager) tmf.getTrustManagers()[0]},
+                    null, null, cache);
+        }
+        assertEquals(4, cache.size());
+
+        cache.setMaxContexts(1);
+        new TLSProtocolSocketFactory(null, trustManagers, null, null, cache);
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Counts full and resumed handshakes made by a new socket factory per connection, first with a shared context
+     * cache and then with a separate cache per factory, as happened before contexts were cached.
+     * 
+     * @throws Exception if something goes wrong
+     */
+    public void testSessionResumption() throws Exception {
+        assertEquals(1, countFullHandshakes(true));
+        assertEquals(CONNECTIONS, countFullHandshakes(false));
+    }
+
+    /**
+     * Makes {@link #CONNECTIONS} connections to the local server, each through a new socket factory, and counts those
+     * which performed a full handshake rather than resuming an earlier session.
+     * 
+     * TLS 1.2 is used since a resumed TLS 1.2 session keeps its session ID, whereas a resumed TLS 1.3 session does not
+     * and so can not be told apart from a new one.
+     * 
+     * @param sharedCache whether every factory uses the same cache or each uses a new one
+     * 
+     * @return the number of full handshakes
+     * 
+     * @throws Exception if something goes wrong
+     */
+    private int countFullHandshakes(boolean sharedCache) throws Exception {
+        X509TrustManager[] trustManagers = new X509TrustManager[] {trustManager};
+        TLSContextCache cache = null;
+        Set<BigInteger> sessions = new HashSet<BigInteger>();
+        int fullHandshakes = 0;
+        for (int i = 0; i < CONNECTIONS; i++) {
+            if (cache == null || !sharedCache) {
+                cache = new TLSContextCache();
+                cache.setProtocols(new String[] {"TLSv1.2"});
+            }
+            TLSProtocolSocketFactory factory = new TLSProtocolSocketFactory(null, trustManagers, null, null, cache);
+            SSLSocket socket = (SSLSocket) factory.createSocket("localhost", serverSocket.getLocalPort());
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write(1);
+                out.flush();
+                assertEquals(1, socket.getInputStream().read());
+                if (sessions.add(new BigInteger(1, socket.getSession().getId()))) {
+                    fullHandshakes++;
+                }
+            } finally {
+                socket.close();
+            }
+        }
+        return fullHandshakes;
+    }
+}
@@ -17,6 +17,7 @@
 
 package org.opensaml.ws.soap.soap11.decoder;
 
+import java.io.ByteArrayInputStream;
 import java.util.Collections;
 import java.util.Set;
 
@@ -155,6 +156,59 @@ public class SOAP11DecoderTest extends BaseTestCase {
         
     }
     
+    /**
+     * Test that streaming decoding yields the same envelope content as DOM decoding.
+     * @throws SecurityException
+     * @throws MessageDecodingException 
+     */
+    public void testStreamingHandlerChainInvocation() throws SecurityException, MessageDecodingException {
+        String soapMessage = "/data/org/opensaml/ws/soap/soap11/SOAPHeaderNotMustUnderstand.xml";
+        InputStreamInTransportAdapter inTransport = getInTransportResource(soapMessage);
+        
+        handlerChain.getHandlers().add(new TestHeaderHandler());
+        handlerChain.getHandlers().add(new TestBodyHandler());
+        
+        decoder.setStreamingDecoding(true);
+        messageContext.setInboundMessageTransport(inTransport);
+        decoder.decode(messageContext);
+        
+        assertEquals("Invalid test header value", "5", messageContext.transaction);
+        assertNotNull("Context body message was null", messageContext.bodyMessage);
+        assertNull("Unsigned body content retained its DOM", messageContext.bodyMessage.getDOM());
+        
+        TestContext domContext = new TestContext();
+        domContext.setInboundMessageTransport(getInTransportResource(soapMessage));
+        new SOAP11Decoder().decode(domContext);
+        
+        Envelope streamed = (Envelope) messageContext.getInboundMessage();
+        Envelope parsed = (Envelope) domContext.getInboundMessage();
+        assertEquals(parsed.getHeader().getUnknownXMLObjects().size(),
+                streamed.getHeader().getUnknownXMLObjects().size());
+        assertEquals(parsed.getBody().getUnknownXMLObjects().size(), streamed.getBody().getUnknownXMLObjects().size());
+        assertEquals(parsed.getBody().getUnknownXMLObjects().get(0).getElementQName(),
+                streamed.getBody().getUnknownXMLObjects().get(0).getElementQName());
+    }
+    
+    /**
+     * Test that streaming decoding rejects documents containing a DTD.
+     * @throws SecurityException
+     */
+    public void testStreamingRejectsDTD() throws SecurityException {
+        String soapMessage = "<!DOCTYPE foo [<!ENTITY bar \"baz\">]>"
+            + "<soap11:Envelope xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<soap11:Body>&bar;</soap11:Body></soap11:Envelope>";
+        
+        decoder.setStreamingDecoding(true);
+        messageContext.setInboundMessageTransport(new InputStreamInTransportAdapter(
+                new ByteArrayInputStream(soapMessage.getBytes())));
+        try {
+            decoder.decode(messageContext);
+            fail("Message containing a DTD was decoded");
+        } catch (MessageDecodingException e) {
+            // expected
+        }
+    }
+    
     //
     // Helper stuff
     //
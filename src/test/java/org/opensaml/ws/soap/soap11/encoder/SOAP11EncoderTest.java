@@ -124,11 +124,200 @@ public class SOAP11EncoderTest extends BaseTestCase {
         assertXMLEqual(controlEnv.getDOM().getOwnerDocument(), encodedEnv.getDOM().getOwnerDocument());
     }
     
+    /**
+     * Test that streaming encoding produces the same message as DOM serialization.
+     * @throws XMLParserException
+     * @throws UnmarshallingException
+     * @throws MessageEncodingException
+     */
+    public void testStreamingEncodingWithHandler() throws XMLParserException, UnmarshallingException,
+            MessageEncodingException {
+        String controlMessage = "/data/org/opensaml/ws/soap/soap11/SOAPHeaderMustUnderstand.xml";
+        Envelope controlEnv = (Envelope) parseUnmarshallResource(controlMessage, false);
+        
+        String soapMessage = "/data/org/opensaml/ws/soap/soap11/SOAPNoHeaders.xml";
+        Envelope env = (Envelope) parseUnmarshallResource(soapMessage, true);
+        
+        XMLObject msg = env.getBody().getUnknownXMLObjects().get(0);
+        msg.setParent(null);
+        messageContext.bodyMessage = msg;
+        messageContext.transaction = "5";
+        handlerChain.getHandlers().add(new TestBodyHandler());
+        handlerChain.getHandlers().add(new TestHeaderHandler());
+        
+        encoder.setStreamingEncoding(true);
+        messageContext.setOutboundMessageTransport(getOutTransport());
+        encoder.encode(messageContext);
+        
+        Envelope encodedEnv = (Envelope) getEncodedMessage(messageContext);
+        assertNotNull(encodedEnv.getDOM());
+        
+        assertXMLEqual(controlEnv.getDOM().getOwnerDocument(), encodedEnv.getDOM().getOwnerDocument());
+    }
+    
+    /**
+     * Test encoding with a registered envelope template supplying the constant header.
+     * @throws XMLParserException
+     * @throws UnmarshallingException
+     * @throws MessageEncodingException
+     */
+    public void testTemplateEncoding() throws XMLParserException, UnmarshallingException, MessageEncodingException {
+        String controlMessage = "/data/org/opensaml/ws/soap/soap11/SOAPHeaderMustUnderstand.xml";
+        Envelope controlEnv = (Envelope) parseUnmarshallResource(controlMessage, false);
+        
+        Envelope prototype = (Envelope) parseUnmarshallResource(controlMessage, true);
+        prototype.getBody().getUnknownXMLObjects().clear();
+        SOAP11EnvelopeTemplateCache templateCache = new SOAP11EnvelopeTemplateCache();
+        templateCache.registerTemplate(null, null, prototype);
+        encoder.setEnvelopeTemplateCache(templateCache);
+        
+        String soapMessage = "/data/org/opensaml/ws/soap/soap11/SOAPNoHeaders.xml";
+        Envelope env = (Envelope) parseUnmarshallResource(soapMessage, true);
+        
+        XMLObject msg = env.getBody().getUnknownXMLObjects().get(0);
+        msg.setParent(null);
+        messageContext.bodyMessage = msg;
+        messageContext.transaction = "5";
+        handlerChain.getHandlers().add(new TestBodyHandler());
+        handlerChain.getHandlers().add(new TestHeaderHandler());
+        
+        messageContext.setOutboundMessageTransport(getOutTransport());
+        encoder.encode(messageContext);
+        
+        Envelope encodedEnv = (Envelope) getEncodedMessage(messageContext);
+        assertXMLEqual(controlEnv.getDOM().getOwnerDocument(), encodedEnv.getDOM().getOwnerDocument());
+        
+        msg.setParent(null);
+        messageContext.setCommunicationProfileId("urn:example:unregistered");
+        messageContext.setOutboundMessage(null);
+        messageContext.setOutboundMessageTransport(getOutTransport());
+        encoder.encode(messageContext);
+        
+        encodedEnv = (Envelope) getEncodedMessage(messageContext);
+        assertXMLEqual(controlEnv.getDOM().getOwnerDocument(), encodedEnv.getDOM().getOwnerDocument());
+    }
+    
+    /**
+     * Test that a constant header whose value differs from the template's prototype is encoded with its own value.
+     * @throws XMLParserException
+     * @throws UnmarshallingException
+     * @throws MessageEncodingException
+     */
+    public void testTemplateEncodingDifferentHeaderValue() throws XMLParserException, UnmarshallingException,
+            MessageEncodingException {
+        registerTemplate();
+        
+        String soapMessage = "/data/org/opensaml/ws/soap/soap11/SOAPNoHeaders.xml";
+        Envelope env = (Envelope) parseUnmarshallResource(soapMessage, true);
+        
+        XMLObject msg = env.getBody().getUnknownXMLObjects().get(0);
+        msg.setParent(null);
+        messageContext.bodyMessage = msg;
+        messageContext.transaction = "6";
+        handlerChain.getHandlers().add(new TestBodyHandler());
+        handlerChain.getHandlers().add(new TestHeaderHandler());
+        
+        messageContext.setOutboundMessageTransport(getOutTransport());
+        encoder.encode(messageContext);
+        
+        Envelope encodedEnv = (Envelope) getEncodedMessage(messageContext);
+        assertNotNull(encodedEnv.getHeader());
+        assertEquals(1, encodedEnv.getHeader().getUnknownXMLObjects().size());
+        assertEquals("6", ((XSAny) encodedEnv.getHeader().getUnknownXMLObjects().get(0)).getTextContent());
+    }
+    
+    /**
+     * Test that a message lacking the template's constant header is encoded without it.
+     * @throws XMLParserException
+     * @throws UnmarshallingException
+     * @throws MessageEncodingException
+     */
+    public void testTemplateEncodingMissingHeader() throws XMLParserException, UnmarshallingException,
+            MessageEncodingException {
+        registerTemplate();
+        
+        String soapMessage = "/data/org/opensaml/ws/soap/soap11/SOAPNoHeaders.xml";
+        Envelope controlEnv = (Envelope) parseUnmarshallResource(soapMessage, false);
+        Envelope env = (Envelope) parseUnmarshallResource(soapMessage, true);
+        
+        XMLObject msg = env.getBody().getUnknownXMLObjects().get(0);
+        msg.setParent(null);
+        messageContext.bodyMessage = msg;
+        handlerChain.getHandlers().add(new TestBodyHandler());
+        
+        messageContext.setOutboundMessageTransport(getOutTransport());
+        encoder.encode(messageContext);
+        
+        Envelope encodedEnv = (Envelope) getEncodedMessage(messageContext);
+        assertXMLEqual(controlEnv.getDOM().getOwnerDocument(), encodedEnv.getDOM().getOwnerDocument());
+    }
+    
+    /**
+     * Test that a constant header block reused from message to message is encoded with the template for as long as it
+     * is unchanged, and with its own value once it is modified.
+     * @throws XMLParserException
+     * @throws UnmarshallingException
+     * @throws MessageEncodingException
+     */
+    public void testTemplateEncodingReusedHeader() throws XMLParserException, UnmarshallingException,
+            MessageEncodingException {
+        registerTemplate();
+        
+        String controlMessage = "/data/org/opensaml/ws/soap/soap11/SOAPHeaderMustUnderstand.xml";
+        Envelope controlEnv = (Envelope) parseUnmarshallResource(controlMessage, false);
+        String soapMessage = "/data/org/opensaml/ws/soap/soap11/SOAPNoHeaders.xml";
+        Envelope env = (Envelope) parseUnmarshallResource(soapMessage, true);
+        
+        XMLObject msg = env.getBody().getUnknownXMLObjects().get(0);
+        messageContext.bodyMessage = msg;
+        messageContext.transaction = "5";
+        handlerChain.getHandlers().add(new TestBodyHandler());
+        TestHeaderHandler headerHandler = new TestHeaderHandler();
+        handlerChain.getHandlers().add(headerHandler);
+        
+        for (int i = 0; i < 2; i++) {
+            msg.setParent(null);
+            messageContext.setOutboundMessage(null);
+            messageContext.setOutboundMessageTransport(getOutTransport());
+            encoder.encode(messageContext);
+            
+            Envelope encodedEnv = (Envelope) getEncodedMessage(messageContext);
+            assertXMLEqual(controlEnv.getDOM().getOwnerDocument(), encodedEnv.getDOM().getOwnerDocument());
+            assertNotNull(headerHandler.tHeader.getDOM());
+        }
+        
+        messageContext.transaction = "7";
+        headerHandler.tHeader.setTextContent("7");
+        msg.setParent(null);
+        messageContext.setOutboundMessage(null);
+        messageContext.setOutboundMessageTransport(getOutTransport());
+        encoder.encode(messageContext);
+        
+        Envelope encodedEnv = (Envelope) getEncodedMessage(messageContext);
+        assertEquals(1, encodedEnv.getHeader().getUnknownXMLObjects().size());
+        assertEquals("7", ((XSAny) encodedEnv.getHeader().getUnknownXMLObjects().get(0)).getTextContent());
+    }
+    
     
     //
     // Helper stuff
     //
     
+    /**
+     * Registers a template whose prototype carries the transaction header with value 5.
+     * @throws XMLParserException
+     * @throws UnmarshallingException
+     * @throws MessageEncodingException
+     */
+    protected void registerTemplate() throws XMLParserException, UnmarshallingException, MessageEncodingException {
+        String controlMessage = "/data/org/opensaml/ws/soap/soap11/SOAPHeaderMustUnderstand.xml";
+        Envelope prototype = (Envelope) parseUnmarshallResource(controlMessage, true);
+        prototype.getBody().getUnknownXMLObjects().clear();
+        SOAP11EnvelopeTemplateCache templateCache = new SOAP11EnvelopeTemplateCache();
+        templateCache.registerTemplate(null, null, prototype);
+        encoder.setEnvelopeTemplateCache(templateCache);
+    }
+    
     protected XMLObject getEncodedMessage(TestContext messageContext) throws XMLParserException, UnmarshallingException {
         OutputStreamOutTransportAdapter adapter = (OutputStreamOutTransportAdapter) messageContext.getOutboundMessageTransport();
         ByteArrayOutputStream baos = (ByteArrayOutputStream) adapter.getOutgoingStream();
@@ -182,6 +371,9 @@ public class SOAP11EncoderTest extends BaseTestCase {
         
         private QName tHeaderName = new QName("http://example.org/soap/ns/transaction", "Transaction", "t");
         
+        /** The header block added to the last message, which is reused while its value is unchanged. */
+        private XSAny tHeader;
+        
         /** {@inheritDoc} */
         public void invoke(MessageContext msgContext) throws HandlerException {
             TestContext context = (TestContext) msgContext;
@@ -189,10 +381,13 @@ public class SOAP11EncoderTest extends BaseTestCase {
             if (env.getHeader() == null) {
                env.setHeader((Header) buildXMLObject(Header.DEFAULT_ELEMENT_NAME));
             }
-            XSAny tHeader =
-                (XSAny) builderFactory.getBuilder(Configuration.getDefaultProviderQName()).buildObject(tHeaderName);
-            tHeader.setTextContent(context.transaction);
-            SOAPHelper.addMustUnderstandAttribute(tHeader, true);
+            if (tHeader == null || !context.transaction.equals(tHeader.getTextContent())) {
+                tHeader = (XSAny) builderFactory.getBuilder(Configuration.getDefaultProviderQName()).buildObject(
+                        tHeaderName);
+                tHeader.setTextContent(context.transaction);
+                SOAPHelper.addMustUnderstandAttribute(tHeader, true);
+            }
+            tHeader.setParent(null);
             env.getHeader().getUnknownXMLObjects().add(tHeader);
         }
     }